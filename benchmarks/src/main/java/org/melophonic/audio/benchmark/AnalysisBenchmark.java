@@ -0,0 +1,83 @@
+package org.melophonic.audio.benchmark;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.melophonic.audio.spi.AnalysisService;
+import org.melophonic.audio.spi.tarsos.TarsosAnalysisService;
+import org.melophonic.audio.spi.tarsos.TarsosAnalysisService.SilenceDetector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loudness analysis of {@link TarsosAnalysisService}: the sound pressure
+ * levels of whole corpus tracks, and {@link SilenceDetector#isSilence(float[])}
+ * on single buffers of the sizes the dispatcher hands to it.
+ */
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class AnalysisBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Track {
+
+		@Param({ "wav-16-44100", "flac-16-44100", "flac-24-96000" })
+		String format;
+
+		TarsosAnalysisService service;
+		URI uri;
+
+		@Setup
+		public void setup() throws Exception {
+			service = new TarsosAnalysisService();
+			uri = Corpus.find(format).toURI();
+		}
+
+	}
+
+	@State(Scope.Thread)
+	public static class Buffer {
+
+		@Param({ "512", "2048", "8192" })
+		int size;
+
+		SilenceDetector detector;
+		float[] samples;
+
+		@Setup
+		public void setup() {
+			detector = new SilenceDetector(AnalysisService.DEFAULT_SILENCE_THRESHOLD_DB, false);
+			samples = new float[size];
+			Random random = new Random(size);
+			for (int i = 0; i < size; i++) samples[i] = (float) (random.nextGaussian() * 0.1);
+		}
+
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public Map<Double, Double> getSoundPressureLevels(Track track) throws Exception {
+		return track.service.getSoundPressureLevels(track.uri, false, AnalysisService.DEFAULT_SILENCE_THRESHOLD_DB);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public boolean isSilence(Buffer buffer) {
+		return buffer.detector.isSilence(buffer.samples);
+	}
+
+}
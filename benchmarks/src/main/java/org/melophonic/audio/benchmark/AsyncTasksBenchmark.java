@@ -0,0 +1,55 @@
+package org.melophonic.audio.benchmark;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.melophonic.audio.util.AsyncTasks;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Submitting trivial tasks to the default executor of {@link AsyncTasks},
+ * with and without a timeout, in batches of {@value #TASKS} that are awaited
+ * together.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AsyncTasksBenchmark {
+
+	static final int TASKS = 1000;
+
+	@Benchmark
+	@OperationsPerInvocation(TASKS)
+	public Object supply() throws Exception {
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[TASKS];
+		for (int i = 0; i < TASKS; i++) {
+			int n = i;
+			futures[i] = AsyncTasks.supply(() -> n, AsyncTasks.getDefaultExecutor());
+		}
+		return CompletableFuture.allOf(futures).get(1, TimeUnit.MINUTES);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(TASKS)
+	public Object supplyWithTimeout() throws Exception {
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[TASKS];
+		for (int i = 0; i < TASKS; i++) {
+			int n = i;
+			futures[i] = AsyncTasks.withTimeout(AsyncTasks.supply(() -> n, AsyncTasks.getDefaultExecutor()), 1, TimeUnit.MINUTES);
+		}
+		return CompletableFuture.allOf(futures).get(1, TimeUnit.MINUTES);
+	}
+
+}
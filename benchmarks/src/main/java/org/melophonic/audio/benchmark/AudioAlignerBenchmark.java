@@ -0,0 +1,46 @@
+package org.melophonic.audio.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.melophonic.audio.util.AudioAligner;
+import org.melophonic.audio.util.PcmSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Aligning a ten second excerpt of a corpus WAVE track, with noise at 30 dB,
+ * to the sample within the default search radius around its start.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AudioAlignerBenchmark {
+
+	PcmSource track;
+	PcmSource excerpt;
+	AudioAligner aligner;
+
+	@Setup
+	public void setup() throws Exception {
+		track = PcmSource.open(Corpus.find("wav-16-44100"));
+		excerpt = FingerprintRobustness.addNoise(FingerprintRobustness.excerpt(track, 1.0, 10), 30, 6);
+		aligner = new AudioAligner();
+	}
+
+	@Benchmark
+	public AudioAligner.Alignment align() {
+		return aligner.align(track, excerpt, 1.0);
+	}
+
+}
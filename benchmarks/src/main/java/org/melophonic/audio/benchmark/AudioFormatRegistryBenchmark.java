@@ -0,0 +1,44 @@
+package org.melophonic.audio.benchmark;
+
+import java.io.FileFilter;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioSystem;
+
+import org.melophonic.audio.util.AudioFormatRegistry;
+import org.melophonic.audio.util.AudioUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Looking up the supported file types from the cached
+ * {@link AudioFormatRegistry}, against <code>AudioSystem</code>, which
+ * discovers the file writers on every call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AudioFormatRegistryBenchmark {
+
+	@Benchmark
+	public FileFilter cached() {
+		return AudioUtil.getSupportedAudioFileFilter();
+	}
+
+	@Benchmark
+	public AudioFileFormat.Type[] discovered() {
+		return AudioSystem.getAudioFileTypes();
+	}
+
+}
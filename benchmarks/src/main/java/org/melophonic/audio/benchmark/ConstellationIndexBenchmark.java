@@ -0,0 +1,68 @@
+package org.melophonic.audio.benchmark;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.melophonic.audio.spi.tarsos.ConstellationIndex;
+import org.melophonic.audio.spi.tarsos.TarsosFingerprintService;
+import org.melophonic.audio.util.PcmSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building a {@link ConstellationIndex} of {@value #COPIES} noisy copies of
+ * each corpus WAVE track, and looking up a five second excerpt in it. The
+ * copies share most of their hashes, so every query hits many postings.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConstellationIndexBenchmark {
+
+	static final int COPIES = 50;
+
+	final List<byte[]> fingerprints = new ArrayList<>();
+	ConstellationIndex<Integer> index;
+	byte[] excerpt;
+
+	@Setup
+	public void setup() throws Exception {
+		TarsosFingerprintService service = new TarsosFingerprintService();
+		for (File set : Corpus.getDirectory().listFiles(File::isDirectory)) {
+			for (File track : set.listFiles(f -> f.getName().endsWith(".wav"))) {
+				PcmSource source = PcmSource.open(track);
+				for (int i = 0; i < COPIES; i++) fingerprints.add(service.calculateFingerprint(FingerprintRobustness.addNoise(source, 20, i)));
+				if (excerpt == null) excerpt = service.calculateFingerprint(FingerprintRobustness.excerpt(source, 3.3, 5));
+			}
+		}
+		index = index();
+	}
+
+	@Benchmark
+	public ConstellationIndex<Integer> index() {
+		ConstellationIndex<Integer> index = new ConstellationIndex<>();
+		for (int i = 0; i < fingerprints.size(); i++) index.add(i, fingerprints.get(i));
+		// the first query sorts the entries
+		index.query(excerpt, 1, 1);
+		return index;
+	}
+
+	@Benchmark
+	public List<ConstellationIndex.Match<Integer>> query() {
+		return index.query(excerpt, 10, 10);
+	}
+
+}
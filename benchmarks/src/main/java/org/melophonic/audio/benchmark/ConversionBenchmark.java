@@ -0,0 +1,69 @@
+package org.melophonic.audio.benchmark;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat.Encoding;
+
+import org.melophonic.audio.spi.flac.FlacAudioFileWriter;
+import org.melophonic.audio.util.AudioConverter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link AudioConverter#convert(File, File, AudioConverter.Parameters)} of
+ * each decodable format in the corpus to 16 bit 44.1 kHz WAVE and FLAC.
+ * The ALAC (<code>alac-16-44100</code>, <code>alac-24-96000</code>) and MP3
+ * (<code>mp3-320</code>) tracks can be added with <code>-p format=...</code>
+ * when a decoder for them is on the class path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ConversionBenchmark {
+
+	@Param({ "wav-16-44100", "flac-16-44100", "flac-24-96000" })
+	String format;
+
+	@Param({ "WAVE", "FLAC" })
+	String fileType;
+
+	File input;
+	File output;
+	AudioConverter.Parameters parameters;
+
+	@Setup
+	public void setup() throws Exception {
+		input = Corpus.find(format);
+		AudioFileFormat.Type type = "FLAC".equals(fileType) ? FlacAudioFileWriter.FLAC : AudioFileFormat.Type.WAVE;
+		parameters = new AudioConverter.Parameters(Encoding.PCM_SIGNED, type, 44100F, 16);
+		output = File.createTempFile("benchmark-", "." + type.getExtension());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		Files.deleteIfExists(output.toPath());
+	}
+
+	@Benchmark
+	public int convert() throws Exception {
+		return AudioConverter.convert(input, output, parameters);
+	}
+
+}
@@ -0,0 +1,65 @@
+package org.melophonic.audio.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioFormat.Encoding;
+import javax.sound.sampled.AudioInputStream;
+
+import org.melophonic.audio.util.AudioConverter;
+import org.melophonic.audio.util.ConversionPlanner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Setting up the conversion of a 24 bit big-endian stream to 16 bit
+ * little-endian from a cached {@link ConversionPlanner} plan, against having
+ * <code>AudioSystem</code> look up the providers for each step. No audio is
+ * read; this is the per-file overhead of a batch conversion.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConversionPlannerBenchmark {
+
+	static final AudioFormat SOURCE_FORMAT = new AudioFormat(48000F, 24, 2, true, true);
+
+	final byte[] pcm = new byte[4800 * SOURCE_FORMAT.getFrameSize()];
+	ConversionPlanner planner;
+	AudioConverter.Parameters parameters;
+
+	@Setup
+	public void setup() throws Exception {
+		planner = new ConversionPlanner();
+		parameters = new AudioConverter.Parameters(Encoding.PCM_SIGNED, AudioFileFormat.Type.WAVE, 48000F, 16);
+		planner.convert(source(), parameters);
+	}
+
+	@Benchmark
+	public AudioInputStream planned() throws Exception {
+		return planner.convert(source(), parameters);
+	}
+
+	@Benchmark
+	public AudioInputStream unplanned() {
+		return AudioConverter.convertSampleSizeAndEndianess(16, false, AudioConverter.convertSampleRate(48000F, source()));
+	}
+
+	AudioInputStream source() {
+		return new AudioInputStream(new ByteArrayInputStream(pcm), SOURCE_FORMAT, pcm.length / SOURCE_FORMAT.getFrameSize());
+	}
+
+}
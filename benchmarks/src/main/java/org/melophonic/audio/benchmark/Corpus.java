@@ -0,0 +1,46 @@
+package org.melophonic.audio.benchmark;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+
+/**
+ * Locates the test corpus of audio-util for the benchmarks. The directory is
+ * taken from the <code>corpus.dir</code> system property, or found relative
+ * to the working directory when run from the project root or the benchmarks
+ * module (forked benchmark JVMs inherit the working directory).
+ */
+public class Corpus {
+
+	static final String[] DEFAULT_PATHS = { "src/test/resources/audio", "../src/test/resources/audio" };
+
+	public static File getDirectory() throws FileNotFoundException {
+		String property = System.getProperty("corpus.dir");
+		if (property != null) {
+			File dir = new File(property);
+			if (dir.isDirectory()) return dir;
+			throw new FileNotFoundException("corpus.dir is not a directory: " + property);
+		}
+		for (String path : DEFAULT_PATHS) {
+			File dir = new File(path);
+			if (dir.isDirectory()) return dir;
+		}
+		throw new FileNotFoundException("Test corpus not found, set -Dcorpus.dir=<path to src/test/resources/audio>");
+	}
+
+	/**
+	 * @param format the part of a corpus file name after the track, such as <code>flac-24-96000</code>
+	 * @return the first corpus file in that format
+	 */
+	public static File find(String format) throws FileNotFoundException {
+		String suffix = "-" + format + ".";
+		File[] sets = getDirectory().listFiles(File::isDirectory);
+		if (sets != null) {
+			for (File set : sets) {
+				File[] files = set.listFiles(f -> f.getName().contains(suffix));
+				if (files != null && files.length > 0) return files[0];
+			}
+		}
+		throw new FileNotFoundException("No corpus file in format " + format);
+	}
+
+}
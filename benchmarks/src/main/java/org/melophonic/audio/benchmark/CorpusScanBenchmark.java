@@ -0,0 +1,63 @@
+package org.melophonic.audio.benchmark;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.melophonic.audio.util.CorpusScanner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Scanning four directories of 1000 files each, enough for several batches
+ * per directory, every file the first 4 kB of a corpus MP3. Once warmed up
+ * the files are in the page cache, so this measures the walk and the sniffing
+ * rather than the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CorpusScanBenchmark {
+
+	Path root;
+
+	@Setup
+	public void setup() throws Exception {
+		root = Files.createTempDirectory("scan");
+		byte[] header = Arrays.copyOf(Files.readAllBytes(Corpus.find("mp3-320").toPath()), 4096);
+		for (int d = 0; d < 4; d++) {
+			File dir = new File(root.toFile(), "d" + d);
+			dir.mkdir();
+			for (int i = 0; i < 1000; i++) Files.write(new File(dir, i + ".mp3").toPath(), header);
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		try (Stream<Path> paths = Files.walk(root)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	@Benchmark
+	public CorpusScanner.ScanResult scan() throws Exception {
+		return new CorpusScanner().scan(root, file -> {});
+	}
+
+}
@@ -0,0 +1,76 @@
+package org.melophonic.audio.benchmark;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.melophonic.audio.daemon.AudioDaemon;
+import org.melophonic.audio.daemon.AudioDaemonClient;
+import org.melophonic.audio.util.AudioConverter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Downsampling a corpus WAVE track to 22.05 kHz through a warm
+ * {@link AudioDaemon}, against starting a new JVM running the
+ * <code>AudioConverter</code> command line for it, which is what the daemon
+ * saves scripts from.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DaemonBenchmark {
+
+	File source;
+	File target;
+	File tokenFile;
+	AudioDaemon daemon;
+	AudioDaemonClient client;
+
+	@Setup
+	public void setup() throws Exception {
+		source = Corpus.find("wav-16-44100");
+		target = File.createTempFile("benchmark-", ".wav");
+		tokenFile = File.createTempFile("benchmark-", ".token");
+		daemon = new AudioDaemon(0, 1, 16, 4, tokenFile).start();
+		client = new AudioDaemonClient(daemon.getPort(), tokenFile);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		client.close();
+		daemon.close();
+		Files.deleteIfExists(target.toPath());
+	}
+
+	@Benchmark
+	public AudioDaemon.Response daemon() throws Exception {
+		AudioDaemon.Response response = client.execute("convert", "-f", "22050", source.getAbsolutePath(), target.getAbsolutePath());
+		if (!response.isOk()) throw new IllegalStateException(response.getMessage());
+		return response;
+	}
+
+	@Benchmark
+	public int coldJvm() throws Exception {
+		String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+		File nul = new File(System.getProperty("os.name").startsWith("Windows") ? "NUL" : "/dev/null");
+		Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), AudioConverter.class.getName(), "-f", "22050",
+				source.getAbsolutePath(), target.getAbsolutePath()).redirectErrorStream(true).redirectOutput(nul).start();
+		int status = process.waitFor();
+		if (status != 0) throw new IllegalStateException("AudioConverter exited with " + status);
+		return status;
+	}
+
+}
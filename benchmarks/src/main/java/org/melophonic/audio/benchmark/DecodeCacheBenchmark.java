@@ -0,0 +1,80 @@
+package org.melophonic.audio.benchmark;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.melophonic.audio.util.DecodeCache;
+import org.melophonic.audio.util.PcmSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Getting a corpus track resampled to 22.05 kHz mono from a warm
+ * {@link DecodeCache}, from a cache reopened on the same directory (a
+ * restart, with the content hashes read from its hash file), and from a
+ * cache too small to store it, which hashes, decodes and converts it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecodeCacheBenchmark {
+
+	@Param({ "wav-16-44100", "flac-24-96000" })
+	String format;
+
+	File file;
+	Path directory;
+	Path empty;
+	DecodeCache cache;
+
+	@Setup
+	public void setup() throws Exception {
+		file = Corpus.find(format);
+		directory = Files.createTempDirectory("cache");
+		empty = Files.createTempDirectory("cache");
+		cache = new DecodeCache(directory.toFile(), Long.MAX_VALUE);
+		cache.get(file, 22050F, 1);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		for (Path root : new Path[] { directory, empty }) {
+			try (Stream<Path> paths = Files.walk(root)) {
+				paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+			}
+		}
+	}
+
+	@Benchmark
+	public PcmSource hit() throws Exception {
+		return cache.get(file, 22050F, 1);
+	}
+
+	@Benchmark
+	public PcmSource reopened() throws Exception {
+		return new DecodeCache(directory.toFile(), Long.MAX_VALUE).get(file, 22050F, 1);
+	}
+
+	@Benchmark
+	public PcmSource uncached() throws Exception {
+		return new DecodeCache(empty.toFile(), 0).get(file, 22050F, 1);
+	}
+
+}
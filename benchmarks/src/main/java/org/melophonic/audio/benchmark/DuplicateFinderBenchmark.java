@@ -0,0 +1,71 @@
+package org.melophonic.audio.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.melophonic.audio.spi.musicg.MGDuplicateFinder;
+import org.melophonic.audio.spi.musicg.MGFingerprintService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Indexing 2000 unrelated fingerprints in the format of
+ * {@link MGFingerprintService}, each 400 frames of four random peaks, with
+ * {@link MGDuplicateFinder}, and searching them for duplicates. Unrelated
+ * fingerprints rarely share a band, so the search measures the candidate
+ * lookup rather than the comparisons.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DuplicateFinderBenchmark {
+
+	static final int FINGERPRINTS = 2000, FRAMES = 400, POINTS_PER_FRAME = 4, BINS = 512;
+
+	byte[][] fingerprints;
+	MGFingerprintService service;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(1);
+		fingerprints = new byte[FINGERPRINTS][];
+		for (int i = 0; i < FINGERPRINTS; i++) {
+			// frame and bin as unsigned shorts, then the intensity
+			ByteBuffer fingerprint = ByteBuffer.allocate(FRAMES * POINTS_PER_FRAME * 8);
+			for (int x = 0; x < FRAMES; x++) {
+				for (int p = 0; p < POINTS_PER_FRAME; p++) {
+					fingerprint.putShort((short) x).putShort((short) random.nextInt(BINS)).putInt(random.nextInt(Integer.MAX_VALUE));
+				}
+			}
+			fingerprints[i] = fingerprint.array();
+		}
+		service = new MGFingerprintService();
+	}
+
+	@Benchmark
+	public MGDuplicateFinder<Integer> add() {
+		MGDuplicateFinder<Integer> finder = new MGDuplicateFinder<>(service);
+		for (int i = 0; i < FINGERPRINTS; i++) finder.add(i, fingerprints[i]);
+		return finder;
+	}
+
+	@Benchmark
+	public List<Set<Integer>> findDuplicates() throws Exception {
+		return add().findDuplicates(i -> fingerprints[i]);
+	}
+
+}
@@ -0,0 +1,84 @@
+package org.melophonic.audio.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.melophonic.audio.spi.FingerprintService.FingerprintComparison;
+import org.melophonic.audio.spi.musicg.MGFingerprintService;
+import org.melophonic.audio.util.MappedWaveFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.musicg.wave.Wave;
+import com.musicg.wave.WaveHeader;
+
+/**
+ * Fingerprint extraction and comparison of {@link MGFingerprintService} on
+ * the WAVE tracks of the corpus. Extraction resamples the track to the
+ * fingerprint rate, as <code>calculateFingerprint</code> does, but starts
+ * from data already in memory so that file access is not measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class FingerprintBenchmark {
+
+	@Param({ "naim-test-1-wav-16-44100.wav", "naim-test-2-wav-16-44100.wav" })
+	String file;
+
+	MGFingerprintService service;
+	byte[] header;
+	byte[] data;
+	byte[] fingerprint;
+	byte[] otherFingerprint;
+
+	@Setup
+	public void setup() throws Exception {
+		service = new MGFingerprintService();
+		File track = null, other = null;
+		for (File set : Corpus.getDirectory().listFiles(File::isDirectory)) {
+			for (File f : set.listFiles(f -> f.getName().endsWith(".wav"))) {
+				if (f.getName().equals(file)) track = f;
+				else if (other == null) other = f;
+			}
+		}
+		if (track == null || other == null) throw new IllegalStateException("Corpus does not contain " + file + " and another WAVE track");
+		try (MappedWaveFile wave = MappedWaveFile.open(track)) {
+			header = wave.getCanonicalHeader();
+			data = wave.toByteArray();
+		}
+		fingerprint = service.calculateFingerprint(track.toURI());
+		otherFingerprint = service.calculateFingerprint(other.toURI());
+	}
+
+	@Benchmark
+	public byte[] extractFingerprint() throws Exception {
+		// resampling updates the header in place, so every invocation gets its own
+		Wave wave = new Wave(new WaveHeader(new ByteArrayInputStream(header)), data);
+		return service.extractFingerprint(wave, true);
+	}
+
+	@Benchmark
+	public FingerprintComparison compareFingerprints() throws Exception {
+		return service.compareFingerprints(fingerprint, otherFingerprint);
+	}
+
+	@Benchmark
+	public FingerprintComparison compareFingerprintToItself() throws Exception {
+		return service.compareFingerprints(fingerprint, fingerprint);
+	}
+
+}
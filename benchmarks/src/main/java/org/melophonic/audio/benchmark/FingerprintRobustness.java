@@ -0,0 +1,82 @@
+package org.melophonic.audio.benchmark;
+
+import java.io.File;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.melophonic.audio.spi.FingerprintService;
+import org.melophonic.audio.spi.FingerprintService.FingerprintComparison;
+import org.melophonic.audio.util.PcmSource;
+
+/**
+ * Prints how similar each fingerprint service finds the WAVE tracks of the
+ * corpus to degraded copies of themselves, to excerpts of themselves and to
+ * the other tracks. Copies should stay well above the other tracks, at
+ * offset 0, and excerpts should be found at the time they were cut from.
+ *
+ *     java -cp benchmarks/target/benchmarks.jar org.melophonic.audio.benchmark.FingerprintRobustness [service...]
+ */
+public class FingerprintRobustness {
+
+	static final double[] NOISE = { 30, 20, 10, 5, 0 };
+	static final double EXCERPT_START = 3.3, EXCERPT_DURATION = 5;
+
+	public static void main(String[] args) throws Exception {
+		String[] services = args.length == 0 ? new String[] { "musicg", "constellation" } : args;
+		List<File> tracks = new ArrayList<>();
+		for (File set : Corpus.getDirectory().listFiles(File::isDirectory)) {
+			for (File f : set.listFiles(f -> f.getName().endsWith(".wav"))) tracks.add(f);
+		}
+		for (String name : services) {
+			FingerprintService service = FingerprintServiceBenchmark.create(name);
+			List<byte[]> fingerprints = new ArrayList<>();
+			for (File track : tracks) fingerprints.add(service.calculateFingerprint(PcmSource.open(track)));
+			for (int t = 0; t < tracks.size(); t++) {
+				PcmSource source = PcmSource.open(tracks.get(t));
+				byte[] fingerprint = fingerprints.get(t);
+				String track = name + " " + tracks.get(t).getName();
+				for (double snr : NOISE) {
+					print(track, String.format("noise at %.0f dB", snr), service.compareFingerprints(fingerprint, service.calculateFingerprint(addNoise(source, snr, t))));
+				}
+				print(track, String.format("excerpt from %.1f secs.", EXCERPT_START),
+						service.compareFingerprints(fingerprint, service.calculateFingerprint(excerpt(source, EXCERPT_START, EXCERPT_DURATION))));
+				for (int o = 0; o < tracks.size(); o++) {
+					if (o != t) print(track, tracks.get(o).getName(), service.compareFingerprints(fingerprint, fingerprints.get(o)));
+				}
+			}
+		}
+	}
+
+	static void print(String track, String against, FingerprintComparison fc) {
+		System.out.println(String.format("%-45s %-35s similarity %.3f at %.2f secs.", track, against, fc.getSimilarity(), fc.getMostSimilarTime()));
+	}
+
+	/**
+	 * @return <code>source</code> with white noise at <code>snr</code> dB below its mean power
+	 */
+	static PcmSource addNoise(PcmSource source, double snr, long seed) {
+		Random random = new Random(seed);
+		FloatBuffer samples = source.getSamples();
+		float[] noisy = new float[samples.remaining()];
+		double power = 0;
+		for (int i = 0; i < noisy.length; i++) {
+			noisy[i] = samples.get(samples.position() + i);
+			power += noisy[i] * noisy[i];
+		}
+		double sigma = Math.sqrt(power / noisy.length / Math.pow(10, snr / 10));
+		for (int i = 0; i < noisy.length; i++) noisy[i] += (float) (sigma * random.nextGaussian());
+		return PcmSource.wrap(FloatBuffer.wrap(noisy), source.getSampleRate(), source.getChannels());
+	}
+
+	static PcmSource excerpt(PcmSource source, double start, double duration) {
+		FloatBuffer samples = source.getSamples();
+		int channels = source.getChannels();
+		int offset = (int) (start * source.getSampleRate()) * channels;
+		float[] excerpt = new float[(int) (duration * source.getSampleRate()) * channels];
+		for (int i = 0; i < excerpt.length; i++) excerpt[i] = samples.get(samples.position() + offset + i);
+		return PcmSource.wrap(FloatBuffer.wrap(excerpt), source.getSampleRate(), channels);
+	}
+
+}
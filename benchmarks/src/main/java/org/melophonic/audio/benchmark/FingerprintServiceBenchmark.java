@@ -0,0 +1,76 @@
+package org.melophonic.audio.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.melophonic.audio.spi.FingerprintService;
+import org.melophonic.audio.spi.FingerprintService.FingerprintComparison;
+import org.melophonic.audio.spi.musicg.MGFingerprintService;
+import org.melophonic.audio.spi.tarsos.TarsosFingerprintService;
+import org.melophonic.audio.util.PcmSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link MGFingerprintService} against {@link TarsosFingerprintService}:
+ * fingerprinting a decoded corpus track, so that neither reads the file,
+ * and comparing its fingerprint to that of a copy with noise at 10 dB. See
+ * {@link FingerprintRobustness} for how well each recognizes the copy.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class FingerprintServiceBenchmark {
+
+	@Param({ "musicg", "constellation" })
+	String service;
+
+	@Param({ "wav-16-44100" })
+	String format;
+
+	FingerprintService fingerprintService;
+	PcmSource source;
+	byte[] fingerprint;
+	byte[] noisyFingerprint;
+
+	@Setup
+	public void setup() throws Exception {
+		fingerprintService = create(service);
+		source = PcmSource.open(Corpus.find(format));
+		fingerprint = fingerprintService.calculateFingerprint(source);
+		noisyFingerprint = fingerprintService.calculateFingerprint(FingerprintRobustness.addNoise(source, 10, 1));
+	}
+
+	static FingerprintService create(String service) {
+		switch (service) {
+		case "musicg":
+			return new MGFingerprintService();
+		case "constellation":
+			return new TarsosFingerprintService();
+		default:
+			throw new IllegalArgumentException("Unknown fingerprint service " + service);
+		}
+	}
+
+	@Benchmark
+	public byte[] calculateFingerprint() throws Exception {
+		return fingerprintService.calculateFingerprint(source);
+	}
+
+	@Benchmark
+	public FingerprintComparison compareToNoisyCopy() throws Exception {
+		return fingerprintService.compareFingerprints(fingerprint, noisyFingerprint);
+	}
+
+}
@@ -0,0 +1,34 @@
+package org.melophonic.audio.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.melophonic.audio.ingest.IngestPipeline;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Scanning, probing and decoding the whole corpus with an
+ * {@link IngestPipeline} that neither fingerprints nor analyzes, so that
+ * the stages measured are those of the pipeline itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class IngestBenchmark {
+
+	@Benchmark
+	public IngestPipeline.IngestResult ingest() throws Exception {
+		return new IngestPipeline(null, null, record -> {}).run(Corpus.getDirectory().toPath());
+	}
+
+}
@@ -0,0 +1,56 @@
+package org.melophonic.audio.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.melophonic.audio.spi.jmx.JmxInstrumentationListener;
+import org.melophonic.audio.util.Instrumentation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of timing one stage with {@link Instrumentation}, without
+ * listeners and with an unregistered {@link JmxInstrumentationListener}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InstrumentationBenchmark {
+
+	@Param({ "false", "true" })
+	boolean enabled;
+
+	JmxInstrumentationListener listener;
+	long frames = 0;
+
+	@Setup
+	public void setup() {
+		if (enabled) {
+			listener = new JmxInstrumentationListener(null);
+			Instrumentation.addListener(listener);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		if (listener != null) Instrumentation.removeListener(listener);
+	}
+
+	@Benchmark
+	public long stage() {
+		return Instrumentation.start("benchmark", "stage").end(frames++);
+	}
+
+}
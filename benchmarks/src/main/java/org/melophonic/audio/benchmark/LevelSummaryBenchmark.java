@@ -0,0 +1,53 @@
+package org.melophonic.audio.benchmark;
+
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.melophonic.audio.spi.LevelSummary;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link LevelSummary.Aggregator} on ten hours of 2048 sample windows at
+ * 44.1 kHz, one in a hundred of them digital silence, into one second buckets.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LevelSummaryBenchmark {
+
+	double[] times;
+	double[] levels;
+
+	@Setup
+	public void setup() {
+		int windows = (int) (10 * 3600 * 44100.0 / 2048);
+		times = new double[windows];
+		levels = new double[windows];
+		Random random = new Random(1);
+		for (int i = 0; i < windows; i++) {
+			times[i] = i * 2048 / 44100.0;
+			levels[i] = random.nextInt(100) == 0 ? Double.NEGATIVE_INFINITY : -30 + 10 * random.nextGaussian();
+		}
+	}
+
+	@Benchmark
+	public TreeMap<Double, LevelSummary> aggregate() {
+		LevelSummary.Aggregator aggregator = new LevelSummary.Aggregator(1.0, 95);
+		for (int i = 0; i < levels.length; i++) aggregator.add(times[i], levels[i]);
+		return aggregator.finish();
+	}
+
+}
@@ -0,0 +1,79 @@
+package org.melophonic.audio.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import org.melophonic.audio.util.AudioConverter;
+import org.melophonic.audio.util.PcmFormatConverter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link PcmFormatConverter} against the chain of
+ * <code>AudioSystem</code> conversions it replaces, downmixing the decoded
+ * 24 bit 96 kHz FLAC track of the corpus to 16 bit mono in memory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PcmFormatConverterBenchmark {
+
+	byte[] pcm;
+	AudioFormat source;
+	AudioFormat target;
+	byte[] buffer;
+
+	@Setup
+	public void setup() throws Exception {
+		try (AudioInputStream decoded = AudioConverter.convertEncoding(AudioFormat.Encoding.PCM_SIGNED, AudioSystem.getAudioInputStream(Corpus.find("flac-24-96000")))) {
+			source = decoded.getFormat();
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] b = new byte[65536];
+			int n;
+			while ((n = decoded.read(b)) > 0) out.write(b, 0, n);
+			pcm = out.toByteArray();
+		}
+		target = new AudioFormat(source.getSampleRate(), 16, 1, true, true);
+		buffer = new byte[4096 * source.getFrameSize()];
+	}
+
+	@Benchmark
+	public long fused() throws Exception {
+		return drain(PcmFormatConverter.convert(target, stream()));
+	}
+
+	@Benchmark
+	public long chained() throws Exception {
+		AudioInputStream chain = AudioConverter.convertChannels(1, stream());
+		return drain(AudioConverter.convertSampleSizeAndEndianess(16, true, chain));
+	}
+
+	AudioInputStream stream() {
+		return new AudioInputStream(new ByteArrayInputStream(pcm), source, pcm.length / source.getFrameSize());
+	}
+
+	long drain(InputStream stream) throws Exception {
+		long total = 0;
+		int n;
+		while ((n = stream.read(buffer)) > 0) total += n;
+		return total;
+	}
+
+}
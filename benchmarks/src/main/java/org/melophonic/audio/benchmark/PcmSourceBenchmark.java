@@ -0,0 +1,49 @@
+package org.melophonic.audio.benchmark;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.melophonic.audio.util.PcmSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding a corpus WAVE track into a {@link PcmSource}, and converting the
+ * decoded samples back to 16 bit PCM.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PcmSourceBenchmark {
+
+	File file;
+	PcmSource source;
+
+	@Setup
+	public void setup() throws Exception {
+		file = Corpus.find("wav-16-44100");
+		source = PcmSource.open(file);
+	}
+
+	@Benchmark
+	public PcmSource decode() throws Exception {
+		return PcmSource.open(file);
+	}
+
+	@Benchmark
+	public byte[] encode() throws Exception {
+		return source.toByteArray(16);
+	}
+
+}
@@ -0,0 +1,54 @@
+package org.melophonic.audio.benchmark;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioSystem;
+
+import org.melophonic.audio.util.AudioProbe;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading the format and length of a corpus file with {@link AudioProbe},
+ * against asking the <code>AudioSystem</code> file readers in turn.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProbeBenchmark {
+
+	@Param({ "wav-16-44100", "flac-24-96000", "mp3-320" })
+	String format;
+
+	File file;
+
+	@Setup
+	public void setup() throws Exception {
+		file = Corpus.find(format);
+	}
+
+	@Benchmark
+	public AudioProbe probe() throws Exception {
+		return AudioProbe.probe(file);
+	}
+
+	@Benchmark
+	public AudioFileFormat audioSystem() throws Exception {
+		return AudioSystem.getAudioFileFormat(file);
+	}
+
+}
@@ -0,0 +1,65 @@
+package org.melophonic.audio.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
+import org.melophonic.audio.spi.resample.SincResamplerProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link SincResamplerProvider} on 10 seconds of 24 bit stereo noise held
+ * in memory. The score is resampled streams per second; multiply by 10 for
+ * the factor to realtime.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ResamplerBenchmark {
+
+	@Param({ "96000:44100", "44100:48000" })
+	String rates;
+
+	final SincResamplerProvider provider = new SincResamplerProvider();
+	AudioFormat source;
+	AudioFormat target;
+	byte[] pcm;
+	byte[] buffer;
+
+	@Setup
+	public void setup() {
+		String[] r = rates.split(":");
+		source = new AudioFormat(Float.parseFloat(r[0]), 24, 2, true, false);
+		target = new AudioFormat(Float.parseFloat(r[1]), 24, 2, true, false);
+		pcm = new byte[(int) source.getSampleRate() * 10 * source.getFrameSize()];
+		new Random(0).nextBytes(pcm);
+		buffer = new byte[4096 * target.getFrameSize()];
+	}
+
+	@Benchmark
+	public long resample() throws Exception {
+		AudioInputStream stream = provider.getAudioInputStream(target,
+				new AudioInputStream(new ByteArrayInputStream(pcm), source, pcm.length / source.getFrameSize()));
+		long total = 0;
+		int n;
+		while ((n = stream.read(buffer)) > 0) total += n;
+		return total;
+	}
+
+}
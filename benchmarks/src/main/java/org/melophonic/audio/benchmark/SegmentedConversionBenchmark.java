@@ -0,0 +1,67 @@
+package org.melophonic.audio.benchmark;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat.Encoding;
+
+import org.melophonic.audio.util.AudioConverter;
+import org.melophonic.audio.util.SegmentedConverter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Resampling a corpus WAVE track to 48 kHz with {@link SegmentedConverter}
+ * on a pool of <code>threads</code> threads; one thread is the sequential
+ * conversion of {@link AudioConverter}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SegmentedConversionBenchmark {
+
+	@Param({ "1", "2", "4" })
+	int threads;
+
+	File input;
+	File output;
+	AudioConverter.Parameters parameters;
+	ForkJoinPool pool;
+
+	@Setup
+	public void setup() throws Exception {
+		input = Corpus.find("wav-16-44100");
+		output = File.createTempFile("benchmark-", ".wav");
+		parameters = new AudioConverter.Parameters(Encoding.PCM_SIGNED, AudioFileFormat.Type.WAVE, 48000F, 16);
+		pool = new ForkJoinPool(threads);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		pool.shutdown();
+		Files.deleteIfExists(output.toPath());
+	}
+
+	@Benchmark
+	public long convert() throws Exception {
+		if (threads == 1) return AudioConverter.convert(input, output, parameters);
+		return SegmentedConverter.convert(input, output, parameters, pool);
+	}
+
+}
@@ -0,0 +1,51 @@
+package org.melophonic.audio.benchmark;
+
+import java.util.ServiceLoader;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.sampled.spi.AudioFileWriter;
+
+import org.melophonic.audio.util.LazyServiceLoader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Looking up the first file writer from a {@link LazyServiceLoader} that
+ * has already instantiated it, against a new <code>ServiceLoader</code>,
+ * which reads the service files and instantiates the writer every time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServiceLookupBenchmark {
+
+	LazyServiceLoader<AudioFileWriter> lazy;
+
+	@Setup
+	public void setup() {
+		lazy = LazyServiceLoader.load(AudioFileWriter.class);
+		lazy.first();
+	}
+
+	@Benchmark
+	public AudioFileWriter lazy() {
+		return lazy.first();
+	}
+
+	@Benchmark
+	public AudioFileWriter serviceLoader() {
+		return ServiceLoader.load(AudioFileWriter.class).iterator().next();
+	}
+
+}
@@ -0,0 +1,550 @@
+package org.melophonic.audio.daemon;
+
+import gnu.getopt.Getopt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.melophonic.audio.spi.AnalysisService;
+import org.melophonic.audio.spi.FingerprintService;
+import org.melophonic.audio.spi.LevelSummary;
+import org.melophonic.audio.util.AudioConverter;
+import org.melophonic.audio.util.LazyServiceLoader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps one warm JVM serving convert, fingerprint and analyze jobs, so that
+ * scripts do not pay JVM startup, class loading and provider discovery for
+ * every file. Clients connect to a loopback port and send framed requests
+ * (see {@link #writeRequest} and {@link Response}); each connection may send
+ * any number of requests, answered in order. Jobs run on a bounded pool and
+ * are refused with a {@link Response#BUSY} response when its queue is full;
+ * so are connections beyond the maximum number served at once.
+ *
+ * The port is reachable by every local user, and jobs read and write files
+ * with the daemon's permissions. The first request of every connection must
+ * therefore be <code>auth &lt;token&gt;</code>, with the random token the
+ * daemon writes on startup to a file only its owner can read (by default
+ * {@link #getDefaultTokenFile(int)} in the home directory); other
+ * connections are answered with an error and closed, as are connections
+ * that do not authenticate within {@link #AUTH_TIMEOUT}. The file is
+ * deleted when the daemon is closed.
+ *
+ * Requests are argument lists whose first element is the command:
+ * <ul>
+ * <li><code>convert [-c -s -e -f -t -B -L options] &lt;source&gt; &lt;target&gt;</code>, as for <code>AudioConverter</code></li>
+ * <li><code>fingerprint &lt;uri&gt;</code>, returning the fingerprint bytes</li>
+ * <li><code>analyze &lt;uri&gt; [linear [silenceThresholdDb [resolution]]]</code>, returning "time\tspl" lines, or with
+ * a resolution in seconds, "time\tmean\tmin\tmax\tp95" lines per bucket</li>
+ * <li><code>features &lt;uri&gt; &lt;featureFile&gt;</code>, returning the number of rows written</li>
+ * <li><code>ping</code> and <code>shutdown</code></li>
+ * </ul>
+ */
+public class AudioDaemon implements Closeable {
+
+	final static Logger log = LoggerFactory.getLogger(AudioDaemon.class);
+
+	public static final int DEFAULT_PORT = 7341;
+	public static final int DEFAULT_QUEUE_CAPACITY = 256;
+	public static final int DEFAULT_MAX_CONNECTIONS = 64;
+	static final int MAX_ARGUMENTS = 256;
+	static final int TOKEN_LENGTH = 32;
+	/** how long a refused connection may take to send its first request */
+	static final int REFUSAL_TIMEOUT = 1000;
+	/** how long a new connection may take to authenticate, in milliseconds */
+	public static final int AUTH_TIMEOUT = 10000;
+
+	final ServerSocket serverSocket;
+	final ThreadPoolExecutor jobs;
+	final ThreadPoolExecutor connections;
+	final ThreadPoolExecutor refusals;
+	int authTimeout = AUTH_TIMEOUT;
+	final File tokenFile;
+	final byte[] token;
+	final Map<String, Command> commands = new HashMap<>();
+	final FingerprintService fingerprintService;
+	final AnalysisService analysisService;
+	volatile boolean running = true;
+
+	public AudioDaemon(int port) throws IOException {
+		this(port, Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY);
+	}
+
+	public AudioDaemon(int port, int threads, int queueCapacity) throws IOException {
+		this(port, threads, queueCapacity, DEFAULT_MAX_CONNECTIONS, null);
+	}
+
+	/**
+	 * Binds to <code>port</code> on the loopback interface; use 0 for an
+	 * ephemeral port.
+	 *
+	 * @param maxConnections the number of connections served at once
+	 * @param tokenFile where to write the token, or null for the
+	 * {@link #getDefaultTokenFile(int) default} of the bound port
+	 */
+	public AudioDaemon(int port, int threads, int queueCapacity, int maxConnections, File tokenFile) throws IOException {
+		this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		try {
+			this.tokenFile = tokenFile != null ? tokenFile : getDefaultTokenFile(serverSocket.getLocalPort());
+			this.token = writeToken(this.tokenFile);
+		} catch (IOException | RuntimeException e) {
+			serverSocket.close();
+			throw e;
+		}
+		this.jobs = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity),
+				new NamedThreadFactory("audio-daemon-job"), new ThreadPoolExecutor.AbortPolicy());
+		this.connections = new ThreadPoolExecutor(0, maxConnections, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+				new NamedThreadFactory("audio-daemon-connection"), new ThreadPoolExecutor.AbortPolicy());
+		this.refusals = new ThreadPoolExecutor(0, maxConnections, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+				new NamedThreadFactory("audio-daemon-refusal"), new ThreadPoolExecutor.AbortPolicy());
+		this.fingerprintService = first(FingerprintService.class);
+		this.analysisService = first(AnalysisService.class);
+		commands.put("ping", args -> Response.ok("pong"));
+		commands.put("convert", this::convert);
+		commands.put("fingerprint", this::fingerprint);
+		commands.put("analyze", this::analyze);
+		commands.put("features", this::features);
+	}
+
+	static <T> T first(Class<T> service) {
+		return LazyServiceLoader.load(service).first();
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	public File getTokenFile() {
+		return tokenFile;
+	}
+
+	/**
+	 * @return <code>.audio-daemon-&lt;port&gt;.token</code> in the user's home directory
+	 */
+	public static File getDefaultTokenFile(int port) {
+		return new File(System.getProperty("user.home"), ".audio-daemon-" + port + ".token");
+	}
+
+	/**
+	 * Writes a new random token to <code>file</code>, created readable and
+	 * writable by its owner only.
+	 *
+	 * @return the token as sent by clients
+	 */
+	static byte[] writeToken(File file) throws IOException {
+		byte[] random = new byte[TOKEN_LENGTH];
+		new SecureRandom().nextBytes(random);
+		StringBuilder token = new StringBuilder();
+		for (byte b : random) token.append(String.format("%02x", b));
+		Path path = file.toPath();
+		Files.deleteIfExists(path);
+		if (path.getParent() != null) Files.createDirectories(path.getParent());
+		try {
+			Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} catch (UnsupportedOperationException e) {
+			// not a POSIX file system
+			Files.createFile(path);
+			if (!(file.setReadable(false, false) && file.setWritable(false, false) && file.setReadable(true, true) && file.setWritable(true, true))) {
+				log.warn("Unable to restrict the permissions of " + file);
+			}
+		}
+		Files.write(path, token.toString().getBytes(StandardCharsets.US_ASCII));
+		return token.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * @return the token in <code>file</code>, as written by the daemon
+	 */
+	public static String readToken(File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII).trim();
+	}
+
+	/**
+	 * Starts accepting connections on a background thread.
+	 */
+	public AudioDaemon start() {
+		Thread acceptor = new Thread(this::acceptConnections, "audio-daemon-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		log.info("Listening on " + serverSocket.getLocalSocketAddress() + " with " + jobs.getMaximumPoolSize() + " job threads");
+		return this;
+	}
+
+	void acceptConnections() {
+		while (running) {
+			try {
+				Socket socket = serverSocket.accept();
+				try {
+					connections.execute(() -> serve(socket));
+				} catch (RejectedExecutionException e) {
+					try {
+						refusals.execute(() -> refuse(socket));
+					} catch (RejectedExecutionException e2) {
+						// as many refusals as connections pending: drop this one
+						socket.close();
+					}
+				}
+			} catch (IOException e) {
+				if (running) log.error("Error accepting connection", e);
+			}
+		}
+	}
+
+	/**
+	 * Answers the first request of a connection beyond the maximum with
+	 * {@link Response#BUSY}, on the refusal pool so that a client slow to
+	 * send it does not hold up the acceptor. The request is read first, so
+	 * that closing the socket does not reset the connection before the
+	 * client reads the answer.
+	 */
+	void refuse(Socket socket) {
+		try (Socket s = socket;
+				DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+			s.setSoTimeout(REFUSAL_TIMEOUT);
+			readRequest(in);
+			new Response(Response.BUSY, "Too many connections", new byte[0]).write(out);
+			out.flush();
+		} catch (IOException e) {
+			log.debug("Error refusing connection: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return true if <code>request</code> is <code>auth</code> with the daemon's token
+	 */
+	boolean authenticate(List<String> request) {
+		return request.size() == 2 && "auth".equals(request.get(0))
+				&& MessageDigest.isEqual(token, request.get(1).getBytes(StandardCharsets.US_ASCII));
+	}
+
+	void serve(Socket socket) {
+		try (Socket s = socket;
+				DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+			s.setTcpNoDelay(true);
+			s.setSoTimeout(authTimeout);
+			try {
+				boolean authenticated = authenticate(readRequest(in));
+				(authenticated ? Response.ok("authenticated") : Response.error("Expected auth <token> from " + tokenFile)).write(out);
+				out.flush();
+				if (!authenticated) return;
+			} catch (EOFException e) {
+				return;
+			} catch (SocketTimeoutException e) {
+				log.debug("Connection did not authenticate within " + authTimeout + " ms");
+				return;
+			}
+			s.setSoTimeout(0);
+			while (running) {
+				List<String> request;
+				try {
+					request = readRequest(in);
+				} catch (EOFException e) {
+					break;
+				}
+				Response response = "shutdown".equals(request.get(0)) ? Response.ok("shutting down") : submit(request);
+				response.write(out);
+				out.flush();
+				if ("shutdown".equals(request.get(0))) {
+					close();
+					break;
+				}
+			}
+		} catch (SocketException e) {
+			log.debug("Connection closed: " + e.getMessage());
+		} catch (IOException e) {
+			log.error("Error serving connection", e);
+		}
+	}
+
+	/**
+	 * Runs a request on the job pool and waits for its response.
+	 */
+	Response submit(List<String> request) {
+		Command command = commands.get(request.get(0));
+		if (command == null) return Response.error("Unknown command: " + request.get(0));
+		List<String> args = request.subList(1, request.size());
+		Future<Response> future;
+		try {
+			future = jobs.submit(() -> command.execute(args));
+		} catch (RejectedExecutionException e) {
+			return new Response(Response.BUSY, "Job queue full", new byte[0]);
+		}
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			future.cancel(true);
+			return Response.error("Interrupted");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			log.debug("Error executing " + request, cause);
+			return Response.error(cause.getClass().getSimpleName() + ": " + cause.getMessage());
+		}
+	}
+
+	Response convert(List<String> args) throws Exception {
+		AudioConverter.Parameters params = new AudioConverter.Parameters();
+		String[] argv = args.toArray(new String[args.size()]);
+		Getopt g = new Getopt("convert", argv, "c:s:e:f:t:BL");
+		g.setOpterr(false);
+		int c;
+		while ((c = g.getopt()) != -1) {
+			if (c == '?') throw new IllegalArgumentException("Unknown option in " + args);
+			AudioConverter.setOption(params, c, g.getOptarg());
+		}
+		if (argv.length - g.getOptind() != 2) throw new IllegalArgumentException("Expected <source> <target> in " + args);
+		File source = new File(argv[g.getOptind()]);
+		File target = new File(argv[g.getOptind() + 1]);
+		int written = AudioConverter.convert(source, target, params);
+		return Response.ok(Integer.toString(written));
+	}
+
+	Response fingerprint(List<String> args) throws Exception {
+		if (args.size() != 1) throw new IllegalArgumentException("Expected <uri>");
+		if (fingerprintService == null) throw new IllegalStateException("No FingerprintService installed");
+		byte[] fingerprint = fingerprintService.calculateFingerprint(new URI(args.get(0)));
+		return new Response(Response.OK, Integer.toString(fingerprint.length), fingerprint);
+	}
+
+	Response analyze(List<String> args) throws Exception {
+		if (args.isEmpty() || args.size() > 4) throw new IllegalArgumentException("Expected <uri> [linear [silenceThresholdDb [resolution]]]");
+		if (analysisService == null) throw new IllegalStateException("No AnalysisService installed");
+		boolean linear = args.size() > 1 && Boolean.parseBoolean(args.get(1));
+		double threshold = args.size() > 2 ? Double.parseDouble(args.get(2)) : AnalysisService.DEFAULT_SILENCE_THRESHOLD_DB;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		int count;
+		try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(bytes, StandardCharsets.UTF_8))) {
+			if (args.size() > 3) {
+				Map<Double, LevelSummary> buckets = analysisService.getBucketedSoundPressureLevels(new URI(args.get(0)), linear, threshold, Double.parseDouble(args.get(3)));
+				for (Map.Entry<Double, LevelSummary> bucket : buckets.entrySet()) {
+					LevelSummary summary = bucket.getValue();
+					writer.println(bucket.getKey() + "\t" + summary.getMean() + "\t" + summary.getMin() + "\t" + summary.getMax() + "\t" + summary.getPercentile());
+				}
+				count = buckets.size();
+			} else {
+				Map<Double, Double> levels = analysisService.getSoundPressureLevels(new URI(args.get(0)), linear, threshold);
+				for (Map.Entry<Double, Double> level : levels.entrySet()) writer.println(level.getKey() + "\t" + level.getValue());
+				count = levels.size();
+			}
+		}
+		return new Response(Response.OK, Integer.toString(count), bytes.toByteArray());
+	}
+
+	Response features(List<String> args) throws Exception {
+		if (args.size() != 2) throw new IllegalArgumentException("Expected <uri> <featureFile>");
+		if (analysisService == null) throw new IllegalStateException("No AnalysisService installed");
+		long rows = analysisService.extractFeatures(new URI(args.get(0)), new File(args.get(1)));
+		return Response.ok(Long.toString(rows));
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Blocks until the daemon is closed.
+	 */
+	public void awaitTermination() throws InterruptedException {
+		while (!jobs.awaitTermination(1, TimeUnit.MINUTES));
+	}
+
+	/**
+	 * Stops accepting connections and lets queued jobs finish.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (!running) return;
+		running = false;
+		serverSocket.close();
+		Files.deleteIfExists(tokenFile.toPath());
+		jobs.shutdown();
+		connections.shutdown();
+		refusals.shutdown();
+		log.info("Stopped");
+	}
+
+	/**
+	 * Writes a request: the number of arguments followed by each as modified UTF-8.
+	 */
+	public static void writeRequest(DataOutputStream out, List<String> request) throws IOException {
+		if (request.isEmpty() || request.size() > MAX_ARGUMENTS) throw new IllegalArgumentException("Expected 1 to " + MAX_ARGUMENTS + " arguments");
+		out.writeInt(request.size());
+		for (String arg : request) out.writeUTF(arg);
+	}
+
+	public static List<String> readRequest(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		if (count < 1 || count > MAX_ARGUMENTS) throw new IOException("Invalid request: " + count + " arguments");
+		List<String> request = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) request.add(in.readUTF());
+		return request;
+	}
+
+	interface Command {
+		Response execute(List<String> args) throws Exception;
+	}
+
+	/**
+	 * A response frame: a status byte, a message and a length-prefixed payload.
+	 */
+	public static class Response {
+
+		public static final byte OK = 0;
+		public static final byte ERROR = 1;
+		public static final byte BUSY = 2;
+
+		final byte status;
+		final String message;
+		final byte[] payload;
+
+		public Response(byte status, String message, byte[] payload) {
+			this.status = status;
+			this.message = message == null ? "" : message;
+			this.payload = payload;
+		}
+
+		static Response ok(String message) {
+			return new Response(OK, message, new byte[0]);
+		}
+
+		static Response error(String message) {
+			return new Response(ERROR, message, new byte[0]);
+		}
+
+		public byte getStatus() {
+			return status;
+		}
+
+		public boolean isOk() {
+			return status == OK;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		public byte[] getPayload() {
+			return payload;
+		}
+
+		public void write(DataOutputStream out) throws IOException {
+			out.writeByte(status);
+			out.writeUTF(message);
+			out.writeInt(payload.length);
+			out.write(payload);
+		}
+
+		public static Response read(DataInputStream in) throws IOException {
+			byte status = in.readByte();
+			String message = in.readUTF();
+			int length = in.readInt();
+			if (length < 0) throw new IOException("Invalid payload length: " + length);
+			byte[] payload = new byte[length];
+			in.readFully(payload);
+			return new Response(status, message, payload);
+		}
+
+		@Override
+		public String toString() {
+			return "Response [status=" + status + ", message=" + message + ", payload=" + payload.length + " bytes]";
+		}
+
+	}
+
+	static class NamedThreadFactory implements ThreadFactory {
+
+		final String prefix;
+		final AtomicInteger count = new AtomicInteger();
+
+		NamedThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+
+	}
+
+	private static void printUsageAndExit() {
+		log.info("AudioDaemon: usage:");
+		log.info("\tjava AudioDaemon [-p <port>] [-j <threads>] [-q <queue_capacity>] [-c <max_connections>] [-k <token_file>]");
+		System.exit(1);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int port = DEFAULT_PORT;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+		int maxConnections = DEFAULT_MAX_CONNECTIONS;
+		File tokenFile = null;
+		Getopt g = new Getopt("AudioDaemon", args, "hp:j:q:c:k:");
+		int c;
+		while ((c = g.getopt()) != -1) {
+			switch (c) {
+			case 'p':
+				port = Integer.parseInt(g.getOptarg());
+				break;
+			case 'j':
+				threads = Integer.parseInt(g.getOptarg());
+				break;
+			case 'q':
+				queueCapacity = Integer.parseInt(g.getOptarg());
+				break;
+			case 'c':
+				maxConnections = Integer.parseInt(g.getOptarg());
+				break;
+			case 'k':
+				tokenFile = new File(g.getOptarg());
+				break;
+			default:
+				printUsageAndExit();
+			}
+		}
+		if (g.getOptind() != args.length) log.warn("Ignoring arguments " + Arrays.asList(args).subList(g.getOptind(), args.length));
+		AudioDaemon daemon = new AudioDaemon(port, threads, queueCapacity, maxConnections, tokenFile).start();
+		daemon.awaitTermination();
+	}
+
+}
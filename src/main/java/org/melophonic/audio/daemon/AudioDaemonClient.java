@@ -0,0 +1,147 @@
+package org.melophonic.audio.daemon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A thin client for {@link AudioDaemon}. One connection may be used for any
+ * number of requests; requests on one client are answered in order. The
+ * connection is authenticated with the token the daemon wrote, read from
+ * {@link AudioDaemon#getDefaultTokenFile(int)} unless given.
+ *
+ * From the command line, relative paths are resolved against the client's
+ * working directory before being sent, since the daemon's differs:
+ * <pre>
+ * java AudioDaemonClient [-p port] [-k token_file] convert [options] &lt;source&gt; &lt;target&gt;
+ * java AudioDaemonClient [-p port] [-k token_file] fingerprint &lt;file&gt; &gt; fingerprint.bin
+ * </pre>
+ */
+public class AudioDaemonClient implements Closeable {
+
+	final Socket socket;
+	final DataInputStream in;
+	final DataOutputStream out;
+
+	public AudioDaemonClient() throws IOException {
+		this(AudioDaemon.DEFAULT_PORT);
+	}
+
+	public AudioDaemonClient(int port) throws IOException {
+		this(port, AudioDaemon.getDefaultTokenFile(port));
+	}
+
+	public AudioDaemonClient(int port, File tokenFile) throws IOException {
+		this(port, AudioDaemon.readToken(tokenFile));
+	}
+
+	/**
+	 * Connects and authenticates with <code>token</code>.
+	 *
+	 * @throws IOException if the daemon refuses the connection, because the
+	 * token is wrong or it serves too many connections
+	 */
+	public AudioDaemonClient(int port, String token) throws IOException {
+		this.socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		try {
+			socket.setTcpNoDelay(true);
+			this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			AudioDaemon.Response response = execute("auth", token);
+			if (!response.isOk()) throw new RefusedException(response);
+		} catch (IOException | RuntimeException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Sends a request and waits for its response.
+	 *
+	 * @param request the command followed by its arguments
+	 */
+	public synchronized AudioDaemon.Response execute(String... request) throws IOException {
+		AudioDaemon.writeRequest(out, Arrays.asList(request));
+		out.flush();
+		return AudioDaemon.Response.read(in);
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+
+	/**
+	 * The daemon's answer to the authentication of a new connection was not OK.
+	 */
+	public static class RefusedException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		final AudioDaemon.Response response;
+
+		RefusedException(AudioDaemon.Response response) {
+			super("Connection refused: " + response.getMessage());
+			this.response = response;
+		}
+
+		public AudioDaemon.Response getResponse() {
+			return response;
+		}
+
+	}
+
+	/**
+	 * Makes file arguments absolute: the last two arguments of
+	 * <code>convert</code>, the first of the other commands (as a URI for
+	 * those that take one) and the feature file of <code>features</code>.
+	 */
+	static String[] resolvePaths(String[] request) {
+		List<String> resolved = new ArrayList<>(Arrays.asList(request));
+		String command = request[0];
+		if ("convert".equals(command) && request.length >= 3) {
+			for (int i = request.length - 2; i < request.length; i++) resolved.set(i, new File(request[i]).getAbsolutePath());
+		} else if (("fingerprint".equals(command) || "analyze".equals(command) || "features".equals(command)) && request.length >= 2) {
+			if (!request[1].contains(":/")) resolved.set(1, new File(request[1]).toURI().toString());
+			if ("features".equals(command) && request.length >= 3) resolved.set(2, new File(request[2]).getAbsolutePath());
+		}
+		return resolved.toArray(new String[resolved.size()]);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int port = AudioDaemon.DEFAULT_PORT;
+		File tokenFile = null;
+		int start = 0;
+		while (args.length >= start + 2 && ("-p".equals(args[start]) || "-k".equals(args[start]))) {
+			if ("-p".equals(args[start])) port = Integer.parseInt(args[start + 1]);
+			else tokenFile = new File(args[start + 1]);
+			start += 2;
+		}
+		if (args.length == start) {
+			System.err.println("usage: java AudioDaemonClient [-p <port>] [-k <token_file>] <command> [<arguments>]");
+			System.exit(1);
+		}
+		String[] request = resolvePaths(Arrays.copyOfRange(args, start, args.length));
+		AudioDaemon.Response response;
+		try (AudioDaemonClient client = new AudioDaemonClient(port, tokenFile != null ? tokenFile : AudioDaemon.getDefaultTokenFile(port))) {
+			response = client.execute(request);
+		}
+		if (response.getPayload().length > 0) {
+			System.out.write(response.getPayload());
+			System.out.flush();
+		} else {
+			System.err.println(response.getMessage());
+		}
+		System.exit(response.getStatus());
+	}
+
+}
@@ -0,0 +1,99 @@
+package org.melophonic.audio.ingest;
+
+import java.nio.file.Path;
+import java.util.Map;
+
+import javax.sound.sampled.AudioFileFormat;
+
+import org.melophonic.audio.util.AudioProbe;
+import org.melophonic.audio.util.PcmSource;
+
+/**
+ * A file passing through an {@link IngestPipeline}, filled in by each stage.
+ * A record whose stage failed keeps the error and skips the remaining
+ * stages up to persisting, so failures are cataloged too.
+ */
+public class CatalogRecord {
+
+	final Path path;
+	final AudioFileFormat.Type type;
+	final long size;
+	final long lastModified;
+	AudioProbe probe;
+	PcmSource source;
+	byte[] fingerprint;
+	Map<Double, Double> soundPressureLevels;
+	String failedStage;
+	Exception error;
+
+	CatalogRecord(Path path, AudioFileFormat.Type type, long size, long lastModified) {
+		this.path = path;
+		this.type = type;
+		this.size = size;
+		this.lastModified = lastModified;
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * @return the type sniffed from the content by the scan
+	 */
+	public AudioFileFormat.Type getType() {
+		return type;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * @return the headers read by the probe stage, or null if it failed
+	 */
+	public AudioProbe getProbe() {
+		return probe;
+	}
+
+	/**
+	 * @return the fingerprint, or null if it was not calculated
+	 */
+	public byte[] getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * @return the sound pressure levels in dB by time, or null if they were not calculated
+	 */
+	public Map<Double, Double> getSoundPressureLevels() {
+		return soundPressureLevels;
+	}
+
+	/**
+	 * @return the stage that failed, or null
+	 */
+	public String getFailedStage() {
+		return failedStage;
+	}
+
+	/**
+	 * @return the error of the failed stage, or null
+	 */
+	public Exception getError() {
+		return error;
+	}
+
+	public boolean isFailed() {
+		return error != null;
+	}
+
+	@Override
+	public String toString() {
+		return path + (error != null ? " (" + failedStage + " failed: " + error + ")" : "");
+	}
+
+}
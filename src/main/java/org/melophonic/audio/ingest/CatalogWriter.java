@@ -0,0 +1,15 @@
+package org.melophonic.audio.ingest;
+
+/**
+ * Persists the records of an {@link IngestPipeline}. The writer is called
+ * from the threads of the persist stage, which is a single thread unless
+ * configured otherwise.
+ */
+public interface CatalogWriter {
+
+	/**
+	 * Persists a record, whether it failed or not.
+	 */
+	void write(CatalogRecord record) throws Exception;
+
+}
@@ -0,0 +1,610 @@
+package org.melophonic.audio.ingest;
+
+import gnu.getopt.Getopt;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.melophonic.audio.spi.AnalysisService;
+import org.melophonic.audio.spi.FingerprintService;
+import org.melophonic.audio.util.AudioProbe;
+import org.melophonic.audio.util.CorpusScanner;
+import org.melophonic.audio.util.DecodeCache;
+import org.melophonic.audio.util.Instrumentation;
+import org.melophonic.audio.util.LazyServiceLoader;
+import org.melophonic.audio.util.PcmSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Ingests a library into a catalog in stages: scan, probe, decode,
+ * fingerprint, analyze and persist. Every stage has its own thread pool and
+ * takes its records from a bounded queue filled by the stage before, so
+ * decoding overlaps with fingerprinting and analysis, and a slow stage
+ * blocks the stages before it instead of letting decoded audio pile up in
+ * memory. At most about <code>queueCapacity</code> decoded files wait in
+ * each queue between decoding and analysis.
+ *
+ * The statistics of each stage, available while the pipeline runs and in
+ * the {@link IngestResult}, show its queue depth, throughput, the share of
+ * time its threads were busy and the share they were blocked on a full
+ * queue downstream: the bottleneck is the busiest stage, with full queues
+ * before it and blocked stages upstream.
+ */
+public class IngestPipeline {
+
+	final static Logger log = LoggerFactory.getLogger(IngestPipeline.class);
+
+	/** the component name of the stages reported to {@link Instrumentation} */
+	public final static String COMPONENT = "ingest";
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 4;
+
+	public enum Stage {
+
+		SCAN, PROBE, DECODE, FINGERPRINT, ANALYZE, PERSIST;
+
+		public String getName() {
+			return name().toLowerCase(Locale.ROOT);
+		}
+
+	}
+
+	final FingerprintService fingerprintService;
+	final AnalysisService analysisService;
+	final CatalogWriter writer;
+	final int[] threads = new int[Stage.values().length];
+	int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+	DecodeCache decodeCache;
+	double silenceThresholdDb = AnalysisService.DEFAULT_SILENCE_THRESHOLD_DB;
+	long reportIntervalMillis;
+	volatile List<StageRunner> runners = Collections.emptyList();
+
+	/**
+	 * @param fingerprintService the service to fingerprint with, or null to skip fingerprinting
+	 * @param analysisService the service to measure sound pressure levels with, or null to skip the analysis
+	 * @param writer the writer persisting the records
+	 */
+	public IngestPipeline(FingerprintService fingerprintService, AnalysisService analysisService, CatalogWriter writer) {
+		this.fingerprintService = fingerprintService;
+		this.analysisService = analysisService;
+		this.writer = Objects.requireNonNull(writer, "writer");
+		int processors = Runtime.getRuntime().availableProcessors();
+		threads[Stage.SCAN.ordinal()] = 1;
+		threads[Stage.PROBE.ordinal()] = 1;
+		threads[Stage.DECODE.ordinal()] = Math.max(1, processors / 2);
+		threads[Stage.FINGERPRINT.ordinal()] = processors;
+		threads[Stage.ANALYZE.ordinal()] = processors;
+		threads[Stage.PERSIST.ordinal()] = 1;
+	}
+
+	public int getThreads(Stage stage) {
+		return threads[stage.ordinal()];
+	}
+
+	/**
+	 * Sets the size of the thread pool of <code>stage</code>. By default,
+	 * scan, probe and persist have one thread, decode half as many as there
+	 * are processors, fingerprint and analyze as many as there are
+	 * processors.
+	 */
+	public void setThreads(Stage stage, int count) {
+		if (count < 1) throw new IllegalArgumentException("A stage needs at least one thread: " + count);
+		threads[stage.ordinal()] = count;
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	/**
+	 * Sets the capacity of the queue before each stage.
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		if (queueCapacity < 1) throw new IllegalArgumentException("Invalid queue capacity: " + queueCapacity);
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * Decodes through <code>decodeCache</code>, so files ingested again are not decoded again.
+	 */
+	public void setDecodeCache(DecodeCache decodeCache) {
+		this.decodeCache = decodeCache;
+	}
+
+	public void setSilenceThresholdDb(double silenceThresholdDb) {
+		this.silenceThresholdDb = silenceThresholdDb;
+	}
+
+	/**
+	 * Logs the statistics of every stage each <code>interval</code> while the pipeline runs; 0 disables the reports.
+	 */
+	public void setReportInterval(long interval, TimeUnit unit) {
+		this.reportIntervalMillis = unit.toMillis(interval);
+	}
+
+	/**
+	 * Ingests the audio files below <code>root</code>, returning once every
+	 * record has been persisted.
+	 */
+	public IngestResult run(Path root) throws IOException, InterruptedException {
+		StageRunner persist = new StageRunner(Stage.PERSIST, getThreads(Stage.PERSIST), queueCapacity, writer::write, null);
+		StageRunner analyze = new StageRunner(Stage.ANALYZE, getThreads(Stage.ANALYZE), queueCapacity, this::analyze, persist);
+		StageRunner fingerprint = new StageRunner(Stage.FINGERPRINT, getThreads(Stage.FINGERPRINT), queueCapacity, this::fingerprint, analyze);
+		StageRunner decode = new StageRunner(Stage.DECODE, getThreads(Stage.DECODE), queueCapacity, this::decode, fingerprint);
+		StageRunner probe = new StageRunner(Stage.PROBE, getThreads(Stage.PROBE), queueCapacity, record -> record.probe = AudioProbe.probe(record.path.toFile()), decode);
+		StageRunner scan = new StageRunner(Stage.SCAN, getThreads(Stage.SCAN), 0, null, probe);
+		List<StageRunner> stages = Arrays.asList(scan, probe, decode, fingerprint, analyze, persist);
+		runners = stages;
+
+		long start = System.nanoTime();
+		for (StageRunner runner : stages) runner.startNanos = start;
+		ScheduledExecutorService reporter = null;
+		if (reportIntervalMillis > 0) {
+			reporter = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("ingest-report"));
+			reporter.scheduleAtFixedRate(() -> log.info("Ingesting " + root + "\n" + format(getStatistics())), reportIntervalMillis, reportIntervalMillis,
+					TimeUnit.MILLISECONDS);
+		}
+		ForkJoinPool pool = new ForkJoinPool(scan.threads);
+		try {
+			for (StageRunner runner : stages.subList(1, stages.size())) runner.start();
+			new CorpusScanner(pool).scan(root, file -> {
+				long put = System.nanoTime();
+				scan.processed.increment();
+				scan.emit(new CatalogRecord(file.getPath(), file.getType(), file.getSize(), file.getLastModified()));
+				scan.blockedNanos.add(System.nanoTime() - put);
+			});
+			scan.endNanos = System.nanoTime();
+			scan.busyNanos.add(Math.max(0, (scan.endNanos - start) * scan.threads - scan.blockedNanos.sum()));
+			probe.end();
+			for (StageRunner runner : stages.subList(1, stages.size())) runner.awaitTermination();
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			for (StageRunner runner : stages) runner.abort();
+			if (e instanceof CancellationException) throw new InterruptedException(e.getMessage());
+			throw e;
+		} finally {
+			pool.shutdownNow();
+			if (reporter != null) reporter.shutdownNow();
+		}
+		IngestResult result = new IngestResult(getStatistics(), System.nanoTime() - start);
+		log.debug("Ingested " + root + ": " + result);
+		return result;
+	}
+
+	void decode(CatalogRecord record) throws Exception {
+		File file = record.path.toFile();
+		record.source = decodeCache != null ? decodeCache.get(file) : PcmSource.open(file);
+	}
+
+	void fingerprint(CatalogRecord record) throws Exception {
+		if (fingerprintService != null) record.fingerprint = fingerprintService.calculateFingerprint(record.source);
+	}
+
+	void analyze(CatalogRecord record) throws Exception {
+		try {
+			if (analysisService != null) record.soundPressureLevels = analysisService.getSoundPressureLevels(record.source, false, silenceThresholdDb);
+		} finally {
+			// the last stage reading the samples lets them go before the record waits to be persisted
+			record.source = null;
+		}
+	}
+
+	/**
+	 * @return the statistics of the stages of the current or last run, in order
+	 */
+	public List<StageStatistics> getStatistics() {
+		List<StageStatistics> statistics = new ArrayList<>();
+		for (StageRunner runner : runners) statistics.add(runner.getStatistics());
+		return statistics;
+	}
+
+	static String format(List<StageStatistics> statistics) {
+		StringBuilder s = new StringBuilder();
+		for (StageStatistics stage : statistics) s.append('\t').append(stage).append('\n');
+		return s.toString();
+	}
+
+	/**
+	 * The work of a stage on one record.
+	 */
+	interface Task {
+
+		void process(CatalogRecord record) throws Exception;
+
+	}
+
+	/**
+	 * The thread pool and input queue of a stage. The workers take records
+	 * until they take one end marker each; the last worker to stop passes
+	 * the markers on to the next stage.
+	 */
+	static class StageRunner {
+
+		static final CatalogRecord END = new CatalogRecord(null, null, 0, 0);
+
+		final Stage stage;
+		final int threads;
+		final BlockingQueue<CatalogRecord> queue;
+		final Task task;
+		final StageRunner next;
+		final ExecutorService pool;
+		final AtomicInteger running = new AtomicInteger();
+		final LongAdder processed = new LongAdder();
+		final LongAdder failed = new LongAdder();
+		final LongAdder busyNanos = new LongAdder();
+		final LongAdder blockedNanos = new LongAdder();
+		volatile long startNanos;
+		volatile long endNanos;
+		volatile boolean aborted;
+
+		StageRunner(Stage stage, int threads, int queueCapacity, Task task, StageRunner next) {
+			this.stage = stage;
+			this.threads = threads;
+			this.queue = queueCapacity > 0 ? new ArrayBlockingQueue<>(queueCapacity) : null;
+			this.task = task;
+			this.next = next;
+			this.pool = task != null ? Executors.newFixedThreadPool(threads, new NamedThreadFactory("ingest-" + stage.getName())) : null;
+		}
+
+		void start() {
+			running.set(threads);
+			for (int i = 0; i < threads; i++) pool.execute(this::work);
+			pool.shutdown();
+		}
+
+		void work() {
+			try {
+				CatalogRecord record;
+				while ((record = queue.take()) != END) {
+					long start = System.nanoTime();
+					// failed records skip the work of the stages after their failure, but are persisted
+					if (record.error == null || next == null) {
+						Instrumentation.Stage timing = Instrumentation.start(COMPONENT, stage.getName());
+						try {
+							task.process(record);
+						} catch (Exception e) {
+							log.warn("Unable to " + stage.getName() + " " + record.path + ": " + e);
+							record.error = e;
+							record.failedStage = stage.getName();
+							record.source = null;
+							failed.increment();
+						}
+						timing.end(record.probe != null ? record.probe.getFrameLength() : -1);
+					}
+					long put = System.nanoTime();
+					busyNanos.add(put - start);
+					processed.increment();
+					if (next != null) {
+						next.queue.put(record);
+						blockedNanos.add(System.nanoTime() - put);
+					}
+				}
+			} catch (InterruptedException e) {
+				log.debug(stage.getName() + " interrupted");
+			} finally {
+				if (running.decrementAndGet() == 0) {
+					endNanos = System.nanoTime();
+					if (next != null && !aborted) next.end();
+				}
+			}
+		}
+
+		/**
+		 * Passes a record from outside the pool to the next stage.
+		 */
+		void emit(CatalogRecord record) {
+			try {
+				next.queue.put(record);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CancellationException("Ingest interrupted");
+			}
+		}
+
+		/**
+		 * Tells the workers to stop once the records queued before are processed.
+		 */
+		void end() {
+			try {
+				for (int i = 0; i < threads; i++) queue.put(END);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		void awaitTermination() throws InterruptedException {
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}
+
+		void abort() {
+			aborted = true;
+			if (pool != null) pool.shutdownNow();
+		}
+
+		StageStatistics getStatistics() {
+			long end = endNanos;
+			return new StageStatistics(stage, threads, queue != null ? queue.size() : 0, queue != null ? queue.size() + queue.remainingCapacity() : 0,
+					processed.sum(), failed.sum(), busyNanos.sum(), blockedNanos.sum(), (end != 0 ? end : System.nanoTime()) - startNanos);
+		}
+
+	}
+
+	/**
+	 * A snapshot of the counters of a stage.
+	 */
+	public static class StageStatistics {
+
+		final Stage stage;
+		final int threads;
+		final int queueDepth;
+		final int queueCapacity;
+		final long processed;
+		final long failed;
+		final long busyNanos;
+		final long blockedNanos;
+		final long elapsedNanos;
+
+		StageStatistics(Stage stage, int threads, int queueDepth, int queueCapacity, long processed, long failed, long busyNanos, long blockedNanos,
+				long elapsedNanos) {
+			this.stage = stage;
+			this.threads = threads;
+			this.queueDepth = queueDepth;
+			this.queueCapacity = queueCapacity;
+			this.processed = processed;
+			this.failed = failed;
+			this.busyNanos = busyNanos;
+			this.blockedNanos = blockedNanos;
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		public Stage getStage() {
+			return stage;
+		}
+
+		public int getThreads() {
+			return threads;
+		}
+
+		/**
+		 * @return the records waiting in the queue before the stage
+		 */
+		public int getQueueDepth() {
+			return queueDepth;
+		}
+
+		public int getQueueCapacity() {
+			return queueCapacity;
+		}
+
+		/**
+		 * @return the records passed on, including failed records and, for the scan, the files found
+		 */
+		public long getProcessed() {
+			return processed;
+		}
+
+		public long getFailed() {
+			return failed;
+		}
+
+		/**
+		 * @return records per second since the pipeline started
+		 */
+		public double getThroughput() {
+			return elapsedNanos > 0 ? processed * 1E9 / elapsedNanos : 0;
+		}
+
+		/**
+		 * @return the share of the time of all threads of the stage spent working on records
+		 */
+		public double getUtilization() {
+			return elapsedNanos > 0 ? Math.min(1, busyNanos / ((double) elapsedNanos * threads)) : 0;
+		}
+
+		/**
+		 * @return the share of the time of all threads of the stage spent
+		 * waiting for room in the next queue; the scan may block more threads
+		 * than it has while its pool compensates for them
+		 */
+		public double getBlocked() {
+			return elapsedNanos > 0 ? Math.min(1, blockedNanos / ((double) elapsedNanos * threads)) : 0;
+		}
+
+		public double getElapsedSeconds() {
+			return elapsedNanos / 1E9;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%-11s %3d threads, queue %3d/%-3d %6d done, %4d failed, %8.1f/s, %3.0f%% busy, %3.0f%% blocked", stage.getName(), threads,
+					queueDepth, queueCapacity, processed, failed, getThroughput(), getUtilization() * 100, getBlocked() * 100);
+		}
+
+	}
+
+	/**
+	 * The statistics of a finished run.
+	 */
+	public static class IngestResult {
+
+		final List<StageStatistics> stages;
+		final long elapsedNanos;
+
+		IngestResult(List<StageStatistics> stages, long elapsedNanos) {
+			this.stages = stages;
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		public List<StageStatistics> getStages() {
+			return stages;
+		}
+
+		public StageStatistics getStage(Stage stage) {
+			return stages.get(stage.ordinal());
+		}
+
+		/**
+		 * @return the records persisted
+		 */
+		public long getRecords() {
+			return getStage(Stage.PERSIST).getProcessed() - getStage(Stage.PERSIST).getFailed();
+		}
+
+		/**
+		 * @return the records that failed in a stage before persisting
+		 */
+		public long getFailed() {
+			long failed = 0;
+			for (StageStatistics stage : stages) {
+				if (stage.stage != Stage.PERSIST) failed += stage.failed;
+			}
+			return failed;
+		}
+
+		/**
+		 * @return the stage after the scan whose threads were busy for the largest share of the run
+		 */
+		public Stage getBottleneck() {
+			StageStatistics busiest = null;
+			for (StageStatistics stage : stages.subList(1, stages.size())) {
+				if (busiest == null || stage.getUtilization() > busiest.getUtilization()) busiest = stage;
+			}
+			return busiest.stage;
+		}
+
+		public double getElapsedSeconds() {
+			return elapsedNanos / 1E9;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d records (%d failed) in %.1f s, bottleneck %s%n%s", getRecords(), getFailed(), getElapsedSeconds(), getBottleneck().getName(),
+					format(stages));
+		}
+
+	}
+
+	static class NamedThreadFactory implements ThreadFactory {
+
+		final String prefix;
+		final AtomicInteger count = new AtomicInteger();
+
+		NamedThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+
+	}
+
+	/**
+	 * Writes a record as a tab-separated line of path, type, duration,
+	 * sample rate, channels, Base64 fingerprint, mean sound pressure level
+	 * and error.
+	 */
+	static String toLine(CatalogRecord record) {
+		AudioProbe probe = record.getProbe();
+		double meanLevel = Double.NaN;
+		if (record.getSoundPressureLevels() != null && !record.getSoundPressureLevels().isEmpty()) {
+			double sum = 0;
+			for (double level : record.getSoundPressureLevels().values()) sum += level;
+			meanLevel = sum / record.getSoundPressureLevels().size();
+		}
+		return String.join("\t", record.getPath().toString(), String.valueOf(record.getType()),
+				probe != null ? String.format(Locale.ROOT, "%.3f", probe.getDurationInSeconds()) : "",
+				probe != null ? String.format(Locale.ROOT, "%.0f", probe.getSampleRate()) : "", probe != null ? Integer.toString(probe.getChannels()) : "",
+				record.getFingerprint() != null ? Base64.getEncoder().encodeToString(record.getFingerprint()) : "",
+				Double.isNaN(meanLevel) ? "" : String.format(Locale.ROOT, "%.2f", meanLevel),
+				record.isFailed() ? record.getFailedStage() + ": " + record.getError() : "");
+	}
+
+	static <T> T first(Class<T> service) {
+		return LazyServiceLoader.load(service).first();
+	}
+
+	private static void printUsageAndExit() {
+		log.info("IngestPipeline: usage:");
+		log.info("\tjava IngestPipeline [-j <stage>=<threads>]... [-q <queue_capacity>] [-c <cache_directory> [-m <cache_megabytes>]] [-r <report_seconds>] <directory> [<catalog.tsv>]");
+		log.info("\tstages: " + Arrays.toString(Stage.values()).toLowerCase(Locale.ROOT));
+		System.exit(1);
+	}
+
+	public static void main(String[] args) throws Exception {
+		List<String[]> stageThreads = new ArrayList<>();
+		int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+		File cacheDirectory = null;
+		long cacheMegabytes = 10240;
+		long reportSeconds = 10;
+		Getopt g = new Getopt("IngestPipeline", args, "hj:q:c:m:r:");
+		int c;
+		while ((c = g.getopt()) != -1) {
+			switch (c) {
+			case 'j':
+				String[] assignment = g.getOptarg().split("=", 2);
+				if (assignment.length != 2) printUsageAndExit();
+				stageThreads.add(assignment);
+				break;
+			case 'q':
+				queueCapacity = Integer.parseInt(g.getOptarg());
+				break;
+			case 'c':
+				cacheDirectory = new File(g.getOptarg());
+				break;
+			case 'm':
+				cacheMegabytes = Long.parseLong(g.getOptarg());
+				break;
+			case 'r':
+				reportSeconds = Long.parseLong(g.getOptarg());
+				break;
+			default:
+				printUsageAndExit();
+			}
+		}
+		int remaining = args.length - g.getOptind();
+		if (remaining < 1 || remaining > 2) printUsageAndExit();
+		Path root = Paths.get(args[g.getOptind()]);
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(remaining == 2 ? new FileOutputStream(args[g.getOptind() + 1]) : System.out,
+				StandardCharsets.UTF_8));
+		IngestPipeline pipeline = new IngestPipeline(first(FingerprintService.class), first(AnalysisService.class), record -> out.println(toLine(record)));
+		for (String[] assignment : stageThreads) {
+			pipeline.setThreads(Stage.valueOf(assignment[0].toUpperCase(Locale.ROOT)), Integer.parseInt(assignment[1]));
+		}
+		pipeline.setQueueCapacity(queueCapacity);
+		if (cacheDirectory != null) pipeline.setDecodeCache(new DecodeCache(cacheDirectory, cacheMegabytes << 20));
+		pipeline.setReportInterval(reportSeconds, TimeUnit.SECONDS);
+		IngestResult result = pipeline.run(root);
+		out.flush();
+		if (remaining == 2) out.close();
+		log.info(result.toString());
+	}
+
+}
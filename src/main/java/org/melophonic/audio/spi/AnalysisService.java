@@ -1,13 +1,49 @@
 package org.melophonic.audio.spi;
 
+import java.io.File;
 import java.net.URI;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import org.melophonic.audio.util.AsyncTasks;
+import org.melophonic.audio.util.PcmSource;
 
 
 public interface AnalysisService {
 
 	public static final double DEFAULT_SILENCE_THRESHOLD_DB = -70.0;
 	
+	/** the percentile of each bucket of {@link #getBucketedSoundPressureLevels} */
+	public static final double DEFAULT_LEVEL_PERCENTILE = 95.0;
+	
+	/**
+	 * The frame-level features written by <code>extractFeatures</code>, one
+	 * float column per constant, in declaration order.
+	 */
+	public enum Feature {
+		
+		/** magnitude-weighted mean frequency of the spectrum, in Hz */
+		SPECTRAL_CENTROID,
+		/** frequency in Hz below which 85% of the spectral energy lies */
+		SPECTRAL_ROLLOFF,
+		/** L2 norm of the positive magnitude change since the previous frame */
+		SPECTRAL_FLUX,
+		/** fraction of adjacent samples whose sign differs */
+		ZERO_CROSSING_RATE,
+		/** pitch class energies, normalized so the strongest class is 1.0 */
+		CHROMA_C, CHROMA_C_SHARP, CHROMA_D, CHROMA_D_SHARP, CHROMA_E, CHROMA_F,
+		CHROMA_F_SHARP, CHROMA_G, CHROMA_G_SHARP, CHROMA_A, CHROMA_A_SHARP, CHROMA_B;
+		
+		public static String[] columnNames() {
+			Feature[] features = values();
+			String[] names = new String[features.length];
+			for (int i = 0; i < features.length; i++) names[i] = features[i].name();
+			return names;
+		}
+		
+	}
+	
 	/**
 	 * Returns a <code>Map<Double, Double></code> of tracking times in seconds
 	 * to sound pressure levels, outputting either linear or logarithmic values.
@@ -19,5 +55,100 @@ public interface AnalysisService {
 	 * @throws Exception
 	 */
 	Map<Double, Double> getSoundPressureLevels(URI audioUri, boolean linear, double silenceThresholdDb) throws Exception;
+	
+	/**
+	 * As {@link #getSoundPressureLevels(URI, boolean, double)}, for decoded
+	 * audio. The default implementation analyzes a temporary 16 bit WAVE
+	 * file of the samples; services should read the samples directly.
+	 */
+	default Map<Double, Double> getSoundPressureLevels(PcmSource source, boolean linear, double silenceThresholdDb) throws Exception {
+		File file = source.writeTemporaryWaveFile();
+		try {
+			return getSoundPressureLevels(file.toURI(), linear, silenceThresholdDb);
+		} finally {
+			file.delete();
+		}
+	}
+	
+	/**
+	 * Returns the sound pressure levels of {@link #getSoundPressureLevels(URI, boolean, double)}
+	 * aggregated into buckets of <code>resolution</code> seconds, keyed by
+	 * the start time of each bucket, such as one summary per second instead
+	 * of a level per analysis window.
+	 * 
+	 * The default implementation buckets the full series; implementations
+	 * should aggregate while analyzing, holding only the current bucket.
+	 * 
+	 * @param resolution the bucket length in seconds
+	 * @param percentile the percentile of the levels of each bucket to report, from 0 to 100
+	 * @return bucket times (s) mapped to summaries of their SPLs
+	 * @throws Exception
+	 */
+	default Map<Double, LevelSummary> getBucketedSoundPressureLevels(URI audioUri, boolean linear, double silenceThresholdDb, double resolution, double percentile) throws Exception {
+		return LevelSummary.aggregate(getSoundPressureLevels(audioUri, linear, silenceThresholdDb), linear, resolution, percentile);
+	}
+	
+	default Map<Double, LevelSummary> getBucketedSoundPressureLevels(URI audioUri, boolean linear, double silenceThresholdDb, double resolution) throws Exception {
+		return getBucketedSoundPressureLevels(audioUri, linear, silenceThresholdDb, resolution, DEFAULT_LEVEL_PERCENTILE);
+	}
+	
+	/**
+	 * As {@link #getBucketedSoundPressureLevels(URI, boolean, double, double, double)}, for decoded audio.
+	 */
+	default Map<Double, LevelSummary> getBucketedSoundPressureLevels(PcmSource source, boolean linear, double silenceThresholdDb, double resolution, double percentile) throws Exception {
+		return LevelSummary.aggregate(getSoundPressureLevels(source, linear, silenceThresholdDb), linear, resolution, percentile);
+	}
+	
+	/**
+	 * Computes every {@link Feature} for each analysis frame of the input in a
+	 * single decoding pass and writes them to a columnar 
+	 * {@link org.melophonic.audio.util.FeatureFile}.
+	 * 
+	 * @param audioUri input audio
+	 * @param featureFile the file to write, replaced if it exists
+	 * @return the number of frames (rows) written
+	 * @throws Exception
+	 */
+	long extractFeatures(URI audioUri, File featureFile) throws Exception;
+	
+	/**
+	 * As {@link #extractFeatures(URI, File)}, for decoded audio, by default
+	 * through a temporary 16 bit WAVE file of the samples.
+	 */
+	default long extractFeatures(PcmSource source, File featureFile) throws Exception {
+		File file = source.writeTemporaryWaveFile();
+		try {
+			return extractFeatures(file.toURI(), featureFile);
+		} finally {
+			file.delete();
+		}
+	}
+	
+	/**
+	 * Computes the sound pressure levels on <code>executor</code>. Cancelling
+	 * the future, or timing it out with {@link AsyncTasks#withTimeout},
+	 * interrupts the analysis.
+	 */
+	default CompletableFuture<Map<Double, Double>> getSoundPressureLevelsAsync(URI audioUri, boolean linear, double silenceThresholdDb, Executor executor) {
+		return AsyncTasks.supply(() -> getSoundPressureLevels(audioUri, linear, silenceThresholdDb), executor);
+	}
+	
+	/**
+	 * Computes the sound pressure levels on the {@link AsyncTasks#getDefaultExecutor() default executor}.
+	 */
+	default CompletableFuture<Map<Double, Double>> getSoundPressureLevelsAsync(URI audioUri, boolean linear, double silenceThresholdDb) {
+		return getSoundPressureLevelsAsync(audioUri, linear, silenceThresholdDb, AsyncTasks.getDefaultExecutor());
+	}
+	
+	/**
+	 * Computes the bucketed sound pressure levels on <code>executor</code>.
+	 */
+	default CompletableFuture<Map<Double, LevelSummary>> getBucketedSoundPressureLevelsAsync(URI audioUri, boolean linear, double silenceThresholdDb, double resolution, Executor executor) {
+		return AsyncTasks.supply(() -> getBucketedSoundPressureLevels(audioUri, linear, silenceThresholdDb, resolution), executor);
+	}
+	
+	default CompletableFuture<Map<Double, Double>> getSoundPressureLevelsAsync(PcmSource source, boolean linear, double silenceThresholdDb, Executor executor) {
+		return AsyncTasks.supply(() -> getSoundPressureLevels(source, linear, silenceThresholdDb), executor);
+	}
 
 }
@@ -1,6 +1,12 @@
 package org.melophonic.audio.spi;
 
+import java.io.File;
 import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import org.melophonic.audio.util.AsyncTasks;
+import org.melophonic.audio.util.PcmSource;
 
 public interface FingerprintService {
 	
@@ -35,6 +41,25 @@ public interface FingerprintService {
 	 */
 	byte[] calculateFingerprint(URI audioUri) throws Exception;
 	
+	/**
+	 * Calculates the acoustic fingerprint of decoded audio, so that audio
+	 * decoded once can be fingerprinted and analyzed. The default
+	 * implementation fingerprints a temporary 16 bit WAVE file of the
+	 * samples; services should read the samples directly.
+	 * 
+	 * @param source the input audio
+	 * @return the unique fingerprint of the input audio
+	 * @throws Exception
+	 */
+	default byte[] calculateFingerprint(PcmSource source) throws Exception {
+		File file = source.writeTemporaryWaveFile();
+		try {
+			return calculateFingerprint(file.toURI());
+		} finally {
+			file.delete();
+		}
+	}
+	
 	/**
 	 * Returns a comparison between two acoustic fingerprints generated
 	 * by <code>calculateFingerprint<code>
@@ -45,5 +70,33 @@ public interface FingerprintService {
 	 * @throws Exception
 	 */
 	FingerprintComparison compareFingerprints(byte[] a, byte[] b) throws Exception;
+	
+	/**
+	 * Calculates the fingerprint on <code>executor</code>. Cancelling the
+	 * future, or timing it out with {@link AsyncTasks#withTimeout}, interrupts
+	 * the calculation.
+	 */
+	default CompletableFuture<byte[]> calculateFingerprintAsync(URI audioUri, Executor executor) {
+		return AsyncTasks.supply(() -> calculateFingerprint(audioUri), executor);
+	}
+	
+	/**
+	 * Calculates the fingerprint on the {@link AsyncTasks#getDefaultExecutor() default executor}.
+	 */
+	default CompletableFuture<byte[]> calculateFingerprintAsync(URI audioUri) {
+		return calculateFingerprintAsync(audioUri, AsyncTasks.getDefaultExecutor());
+	}
+	
+	default CompletableFuture<byte[]> calculateFingerprintAsync(PcmSource source, Executor executor) {
+		return AsyncTasks.supply(() -> calculateFingerprint(source), executor);
+	}
+	
+	default CompletableFuture<FingerprintComparison> compareFingerprintsAsync(byte[] a, byte[] b, Executor executor) {
+		return AsyncTasks.supply(() -> compareFingerprints(a, b), executor);
+	}
+	
+	default CompletableFuture<FingerprintComparison> compareFingerprintsAsync(byte[] a, byte[] b) {
+		return compareFingerprintsAsync(a, b, AsyncTasks.getDefaultExecutor());
+	}
 
 }
@@ -0,0 +1,27 @@
+package org.melophonic.audio.spi;
+
+/**
+ * Receives the timings of the processing stages of fingerprinting, analysis
+ * and conversion. Implementations listed in
+ * <code>META-INF/services/org.melophonic.audio.spi.InstrumentationListener</code>
+ * are installed when instrumentation is first used if the system property
+ * <code>org.melophonic.audio.instrumentation</code> is <code>true</code>;
+ * others are added with <code>Instrumentation.addListener</code>.
+ * 
+ * Listeners are called synchronously on the processing threads, concurrently
+ * and once per stage, so they must be thread-safe and cheap.
+ */
+public interface InstrumentationListener {
+	
+	/**
+	 * Called after a stage ended.
+	 * 
+	 * @param component the processing the stage belongs to, such as <code>fingerprint</code>
+	 * @param stage the name of the stage, such as <code>spectrogram</code>
+	 * @param nanos the duration of the stage
+	 * @param frames the number of audio frames processed, or -1 if the stage does not process frames
+	 * @param bytesAllocated the bytes allocated on the heap by the stage, or -1 if not measured
+	 */
+	void stageCompleted(String component, String stage, long nanos, long frames, long bytesAllocated);
+
+}
@@ -0,0 +1,170 @@
+package org.melophonic.audio.spi;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The sound pressure levels of the analysis windows starting within one
+ * bucket of a series at a coarser resolution, as returned by
+ * {@link AnalysisService#getBucketedSoundPressureLevels}. The minimum,
+ * maximum and percentile are of the levels as reported, in dB or linear.
+ *
+ * The mean is the energy mean: the levels are averaged as power, the square
+ * of the linear level, and converted back to the scale they were reported
+ * in, so a loud window weighs as it sounds and both scales give the same
+ * mean. It leaves out windows of digital silence (-Infinity dB, 0 linear),
+ * which would otherwise pull it down by however many there are; it is
+ * silence only if every window is silent. The count, minimum and percentile
+ * include them.
+ */
+public class LevelSummary {
+
+	final int count;
+	final double mean;
+	final double min;
+	final double max;
+	final double percentile;
+
+	public LevelSummary(int count, double mean, double min, double max, double percentile) {
+		this.count = count;
+		this.mean = mean;
+		this.min = min;
+		this.max = max;
+		this.percentile = percentile;
+	}
+
+	/**
+	 * @return the series of dB levels keyed by time in seconds, aggregated
+	 * into buckets of <code>resolution</code> seconds
+	 */
+	public static TreeMap<Double, LevelSummary> aggregate(Map<Double, Double> levels, double resolution, double percentile) {
+		return aggregate(levels, false, resolution, percentile);
+	}
+
+	/**
+	 * @param linear true if the levels are linear, false if they are in dB
+	 * @return the series of levels keyed by time in seconds, aggregated into
+	 * buckets of <code>resolution</code> seconds
+	 */
+	public static TreeMap<Double, LevelSummary> aggregate(Map<Double, Double> levels, boolean linear, double resolution, double percentile) {
+		Aggregator aggregator = new Aggregator(linear, resolution, percentile);
+		for (Map.Entry<Double, Double> level : new TreeMap<>(levels).entrySet()) aggregator.add(level.getKey(), level.getValue());
+		return aggregator.finish();
+	}
+
+	/**
+	 * @return the number of analysis windows in the bucket
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the energy mean of the levels that are not digital silence
+	 */
+	public double getMean() {
+		return mean;
+	}
+
+	public double getMin() {
+		return min;
+	}
+
+	public double getMax() {
+		return max;
+	}
+
+	/**
+	 * @return the requested percentile of the levels, interpolated between the closest ranks
+	 */
+	public double getPercentile() {
+		return percentile;
+	}
+
+	@Override
+	public String toString() {
+		return "LevelSummary [count=" + count + ", mean=" + mean + ", min=" + min + ", max=" + max + ", percentile=" + percentile + "]";
+	}
+
+	/**
+	 * Aggregates levels added in time order, holding only the levels of the
+	 * current bucket and the summaries of the buckets before it. Buckets are
+	 * keyed by their start time, rounded to the microsecond; buckets without
+	 * levels are left out.
+	 */
+	public static class Aggregator {
+
+		final boolean linear;
+		final double resolution;
+		final double percentile;
+		final TreeMap<Double, LevelSummary> summaries = new TreeMap<>();
+		long bucket = Long.MIN_VALUE;
+		double[] levels = new double[64];
+		int count = 0;
+
+		/**
+		 * Aggregates dB levels.
+		 *
+		 * @param resolution the bucket length in seconds
+		 * @param percentile the percentile to report, from 0 to 100
+		 */
+		public Aggregator(double resolution, double percentile) {
+			this(false, resolution, percentile);
+		}
+
+		/**
+		 * @param linear true if the levels are linear, false if they are in dB
+		 * @param resolution the bucket length in seconds
+		 * @param percentile the percentile to report, from 0 to 100
+		 */
+		public Aggregator(boolean linear, double resolution, double percentile) {
+			if (!(resolution > 0)) throw new IllegalArgumentException("Resolution must be positive: " + resolution);
+			if (!(percentile >= 0 && percentile <= 100)) throw new IllegalArgumentException("Percentile must be within [0, 100]: " + percentile);
+			this.linear = linear;
+			this.resolution = resolution;
+			this.percentile = percentile;
+		}
+
+		public void add(double time, double level) {
+			// a little slack, so that a time on a boundary is not put in the bucket before
+			long b = (long) Math.floor(time / resolution + 1E-9);
+			if (b != bucket) {
+				flush();
+				bucket = b;
+			}
+			if (count == levels.length) levels = Arrays.copyOf(levels, count * 2);
+			levels[count++] = level;
+		}
+
+		/**
+		 * @return the summaries of all buckets, including the current one
+		 */
+		public TreeMap<Double, LevelSummary> finish() {
+			flush();
+			return summaries;
+		}
+
+		void flush() {
+			if (count == 0) return;
+			Arrays.sort(levels, 0, count);
+			// the levels are sorted, so any digital silence comes first
+			double silence = linear ? 0 : Double.NEGATIVE_INFINITY;
+			int silent = 0;
+			while (silent < count && levels[silent] == silence) silent++;
+			double power = 0;
+			for (int i = silent; i < count; i++) power += linear ? levels[i] * levels[i] : Math.pow(10, levels[i] / 10);
+			power /= count - silent;
+			double mean = silent == count ? silence : linear ? Math.sqrt(power) : 10 * Math.log10(power);
+			double rank = percentile / 100 * (count - 1);
+			int floor = (int) rank;
+			double low = levels[floor], high = levels[Math.min(floor + 1, count - 1)];
+			// digital silence is -Infinity dB, which cannot be interpolated
+			double value = low == high || Double.isInfinite(low) || Double.isInfinite(high) ? (rank - floor < 0.5 ? low : high) : low + (rank - floor) * (high - low);
+			summaries.put(Math.round(bucket * resolution * 1E6) / 1E6, new LevelSummary(count, mean, levels[0], levels[count - 1], value));
+			count = 0;
+		}
+
+	}
+
+}
@@ -0,0 +1,87 @@
+package org.melophonic.audio.spi.flac;
+
+import java.util.Arrays;
+
+/**
+ * An MSB-first bit writer backed by a growable byte array.
+ */
+final class BitWriter {
+
+	byte[] buffer;
+	int length = 0;
+	long accumulator = 0;
+	int accumulatedBits = 0;
+
+	BitWriter(int capacity) {
+		buffer = new byte[Math.max(16, capacity)];
+	}
+
+	/**
+	 * Writes the low <code>bits</code> bits of <code>value</code>, 0 &lt;= bits &lt;= 32.
+	 */
+	void writeBits(long value, int bits) {
+		if (bits == 0) return;
+		accumulator = (accumulator << bits) | (value & ((1L << bits) - 1));
+		accumulatedBits += bits;
+		while (accumulatedBits >= 8) {
+			accumulatedBits -= 8;
+			if (length == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+			buffer[length++] = (byte) (accumulator >>> accumulatedBits);
+		}
+	}
+
+	/**
+	 * Writes <code>zeros</code> zero bits followed by a one bit.
+	 */
+	void writeUnary(int zeros) {
+		while (zeros >= 32) {
+			writeBits(0, 32);
+			zeros -= 32;
+		}
+		writeBits(1, zeros + 1);
+	}
+
+	/**
+	 * Writes a non-negative value as a Rice code with parameter k.
+	 */
+	void writeRice(int value, int k) {
+		writeUnary(value >>> k);
+		writeBits(value, k);
+	}
+
+	/**
+	 * Writes the UTF-8-like variable length coding of a frame or sample number.
+	 */
+	void writeUtf8(long value) {
+		if (value < 0x80) {
+			writeBits(value, 8);
+			return;
+		}
+		int bytes = value < 0x800 ? 2 : value < 0x10000 ? 3 : value < 0x200000 ? 4 : value < 0x4000000 ? 5 : value < 0x80000000L ? 6 : 7;
+		int shift = 6 * (bytes - 1);
+		writeBits((0xff00 >> bytes) & 0xff | (value >>> shift), 8);
+		while (shift > 0) {
+			shift -= 6;
+			writeBits(0x80 | ((value >>> shift) & 0x3f), 8);
+		}
+	}
+
+	/**
+	 * Pads with zero bits to the next byte boundary.
+	 */
+	void align() {
+		if (accumulatedBits > 0) writeBits(0, 8 - accumulatedBits);
+	}
+
+	/**
+	 * @return the number of complete bytes written
+	 */
+	int length() {
+		return length;
+	}
+
+	byte[] toByteArray() {
+		return Arrays.copyOf(buffer, length);
+	}
+
+}
@@ -0,0 +1,38 @@
+package org.melophonic.audio.spi.flac;
+
+/**
+ * The CRC-8 (polynomial 0x07) and CRC-16 (polynomial 0x8005) checksums used
+ * in FLAC frame headers and footers.
+ */
+final class Crc {
+
+	static final int[] CRC8 = new int[256];
+	static final int[] CRC16 = new int[256];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc8 = i, crc16 = i << 8;
+			for (int bit = 0; bit < 8; bit++) {
+				crc8 = (crc8 & 0x80) != 0 ? (crc8 << 1) ^ 0x07 : crc8 << 1;
+				crc16 = (crc16 & 0x8000) != 0 ? (crc16 << 1) ^ 0x8005 : crc16 << 1;
+			}
+			CRC8[i] = crc8 & 0xff;
+			CRC16[i] = crc16 & 0xffff;
+		}
+	}
+
+	private Crc() {}
+
+	static int crc8(byte[] data, int offset, int length) {
+		int crc = 0;
+		for (int i = offset; i < offset + length; i++) crc = CRC8[crc ^ (data[i] & 0xff)];
+		return crc;
+	}
+
+	static int crc16(byte[] data, int offset, int length) {
+		int crc = 0;
+		for (int i = offset; i < offset + length; i++) crc = ((crc << 8) ^ CRC16[(crc >> 8) ^ (data[i] & 0xff)]) & 0xffff;
+		return crc;
+	}
+
+}
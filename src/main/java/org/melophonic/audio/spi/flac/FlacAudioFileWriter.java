@@ -0,0 +1,155 @@
+package org.melophonic.audio.spi.flac;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sound.sampled.AudioFileFormat.Type;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.spi.AudioFileWriter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An <code>AudioFileWriter</code> for FLAC, encoding blocks in parallel with
+ * {@link FlacEncoder}. When writing to a <code>File</code> the STREAMINFO
+ * header is rewritten after encoding with the frame sizes, sample count and
+ * MD5; when writing to an <code>OutputStream</code> these are left unset
+ * except for the sample count if the stream length is known.
+ */
+public class FlacAudioFileWriter extends AudioFileWriter {
+
+	final static Logger log = LoggerFactory.getLogger(FlacAudioFileWriter.class);
+
+	public static final Type FLAC = new Type("FLAC", "flac");
+
+	static final Type[] TYPES = { FLAC };
+	static final Type[] NO_TYPES = {};
+	static final int BUFFER_SIZE = 1 << 16;
+
+	static final int THREADS = Runtime.getRuntime().availableProcessors();
+	static volatile ExecutorService executor;
+
+	@Override
+	public Type[] getAudioFileTypes() {
+		return TYPES.clone();
+	}
+
+	@Override
+	public Type[] getAudioFileTypes(AudioInputStream stream) {
+		return FlacEncoder.isSupported(stream.getFormat()) ? TYPES.clone() : NO_TYPES;
+	}
+
+	/**
+	 * Matches on the extension as well as the name, since other providers
+	 * (and the {@link org.melophonic.audio.util.AudioUtil} file filters)
+	 * create their own FLAC <code>Type</code> instances.
+	 */
+	@Override
+	public boolean isFileTypeSupported(Type fileType) {
+		return isFlac(fileType);
+	}
+
+	@Override
+	public boolean isFileTypeSupported(Type fileType, AudioInputStream stream) {
+		return isFlac(fileType) && FlacEncoder.isSupported(stream.getFormat());
+	}
+
+	/**
+	 * Writes the STREAMINFO before the frames, since the stream cannot be
+	 * rewound: the MD5 and the minimum and maximum frame sizes are zero, which
+	 * FLAC defines as unknown, and the sample count is zero unless the length
+	 * of <code>stream</code> is known. Write to a <code>File</code> for a
+	 * complete STREAMINFO.
+	 */
+	@Override
+	public int write(AudioInputStream stream, Type fileType, OutputStream out) throws IOException {
+		FlacEncoder encoder = createEncoder(stream, fileType);
+		encoder.createStreamInfo(stream.getFrameLength()).write(out);
+		CountingOutputStream counter = new CountingOutputStream(out);
+		encoder.encode(stream, counter);
+		counter.flush();
+		return (int) Math.min(Integer.MAX_VALUE, FlacEncoder.HEADER_LENGTH + counter.count);
+	}
+
+	@Override
+	public int write(AudioInputStream stream, Type fileType, File out) throws IOException {
+		FlacEncoder encoder = createEncoder(stream, fileType);
+		try (RandomAccessFile file = new RandomAccessFile(out, "rw")) {
+			file.setLength(0);
+			file.seek(FlacEncoder.HEADER_LENGTH);
+			OutputStream frames = new BufferedOutputStream(Channels.newOutputStream(file.getChannel()), BUFFER_SIZE);
+			FlacEncoder.StreamInfo info = encoder.encode(stream, frames);
+			frames.flush();
+			long length = file.getFilePointer();
+
+			file.seek(0);
+			info.write(Channels.newOutputStream(file.getChannel()));
+			if (log.isDebugEnabled()) log.debug("Wrote " + info.getTotalSamples() + " samples to " + out + " (" + length + " bytes)");
+			return (int) Math.min(Integer.MAX_VALUE, length);
+		}
+	}
+
+	FlacEncoder createEncoder(AudioInputStream stream, Type fileType) {
+		AudioFormat format = stream.getFormat();
+		if (!isFlac(fileType)) throw new IllegalArgumentException("Unsupported file type: " + fileType);
+		if (!FlacEncoder.isSupported(format)) throw new IllegalArgumentException("Unsupported format: " + format);
+		return new FlacEncoder(format, getExecutor(), THREADS);
+	}
+
+	static boolean isFlac(Type fileType) {
+		return fileType != null && (FLAC.equals(fileType)
+				|| FLAC.toString().equalsIgnoreCase(fileType.toString())
+				|| FLAC.getExtension().equalsIgnoreCase(fileType.getExtension()));
+	}
+
+	/**
+	 * @return the shared daemon pool used to encode frames, created on first use
+	 */
+	static ExecutorService getExecutor() {
+		if (executor == null) {
+			synchronized (FlacAudioFileWriter.class) {
+				if (executor == null) {
+					AtomicInteger count = new AtomicInteger();
+					executor = Executors.newFixedThreadPool(THREADS, r -> {
+						Thread thread = new Thread(r, "flac-encoder-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					});
+				}
+			}
+		}
+		return executor;
+	}
+
+	static class CountingOutputStream extends BufferedOutputStream {
+
+		long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out, BUFFER_SIZE);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) throws IOException {
+			super.write(b, off, len);
+			count += len;
+		}
+
+		@Override
+		public synchronized void write(int b) throws IOException {
+			super.write(b);
+			count++;
+		}
+
+	}
+
+}
@@ -0,0 +1,260 @@
+package org.melophonic.audio.spi.flac;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+
+/**
+ * Encodes PCM audio as a FLAC stream, compressing independent blocks in
+ * parallel. Blocks are read and checksummed in order on the calling thread,
+ * encoded into frames on an <code>ExecutorService</code>, and written back in
+ * order, with at most a bounded number of blocks in flight.
+ */
+public class FlacEncoder {
+
+	public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+	static final byte[] MAGIC = {'f', 'L', 'a', 'C'};
+	static final int STREAMINFO_LENGTH = 34;
+	static final byte[] VENDOR = "melophonic audio-util".getBytes(StandardCharsets.UTF_8);
+	static final int VORBIS_COMMENT_LENGTH = 4 + VENDOR.length + 4;
+	/** the length of the stream marker and metadata blocks written by {@link StreamInfo#write} */
+	public static final int HEADER_LENGTH = MAGIC.length + 4 + STREAMINFO_LENGTH + 4 + VORBIS_COMMENT_LENGTH;
+
+	final AudioFormat format;
+	final int channels;
+	final int bitsPerSample;
+	final int bytesPerSample;
+	final int blockSize;
+	final ExecutorService executor;
+	final int maxPendingBlocks;
+	final FlacFrameEncoder frameEncoder;
+
+	public FlacEncoder(AudioFormat format, ExecutorService executor, int threads) {
+		this(format, executor, threads, DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * @param format a PCM format accepted by {@link #isSupported(AudioFormat)}
+	 * @param executor encodes the frames
+	 * @param threads the parallelism of the executor; twice as many blocks are kept in flight
+	 * @param blockSize the number of samples per channel in each frame
+	 */
+	public FlacEncoder(AudioFormat format, ExecutorService executor, int threads, int blockSize) {
+		if (!isSupported(format)) throw new IllegalArgumentException("Unsupported format: " + format);
+		this.format = format;
+		this.channels = format.getChannels();
+		this.bitsPerSample = format.getSampleSizeInBits();
+		this.bytesPerSample = bitsPerSample / 8;
+		this.blockSize = blockSize;
+		this.executor = executor;
+		this.maxPendingBlocks = 2 * Math.max(1, threads);
+		this.frameEncoder = new FlacFrameEncoder(channels, bitsPerSample, (int) format.getSampleRate());
+	}
+
+	/**
+	 * @return true if the format is 8, 16 or 24 bit PCM with 1 to 8 channels
+	 * and an integral sample rate that fits into STREAMINFO
+	 */
+	public static boolean isSupported(AudioFormat format) {
+		int bits = format.getSampleSizeInBits();
+		float rate = format.getSampleRate();
+		boolean signed = AudioFormat.Encoding.PCM_SIGNED.equals(format.getEncoding());
+		boolean unsigned8 = AudioFormat.Encoding.PCM_UNSIGNED.equals(format.getEncoding()) && bits == 8;
+		return (signed || unsigned8) && (bits == 8 || bits == 16 || bits == 24)
+				&& format.getChannels() >= 1 && format.getChannels() <= 8
+				&& format.getFrameSize() == format.getChannels() * bits / 8
+				&& rate > 0 && rate < (1 << 20) && rate == Math.rint(rate);
+	}
+
+	/**
+	 * @param totalSamples the number of samples per channel, or
+	 * <code>AudioSystem.NOT_SPECIFIED</code> if unknown
+	 * @return the STREAMINFO to write before the frames are encoded
+	 */
+	public StreamInfo createStreamInfo(long totalSamples) {
+		StreamInfo info = new StreamInfo();
+		info.minBlockSize = info.maxBlockSize = blockSize;
+		info.sampleRate = (int) format.getSampleRate();
+		info.channels = channels;
+		info.bitsPerSample = bitsPerSample;
+		info.totalSamples = totalSamples == AudioSystem.NOT_SPECIFIED ? 0 : totalSamples;
+		return info;
+	}
+
+	/**
+	 * Encodes all audio from <code>in</code> as FLAC frames written to
+	 * <code>out</code>. The stream marker and STREAMINFO are not written.
+	 *
+	 * @param in PCM data in this encoder's format
+	 * @param out receives the encoded frames
+	 * @return the STREAMINFO describing the encoded frames, including the MD5 of the audio
+	 * @throws IOException
+	 */
+	public StreamInfo encode(InputStream in, OutputStream out) throws IOException {
+		StreamInfo info = createStreamInfo(0);
+		MessageDigest md5 = newMd5();
+		byte[] buffer = new byte[blockSize * format.getFrameSize()];
+		byte[] canonical = new byte[blockSize * channels * ((bitsPerSample + 7) / 8)];
+		Deque<Future<byte[]>> pending = new ArrayDeque<>();
+		long frameNumber = 0;
+		try {
+			int frames;
+			while ((frames = readBlock(in, buffer)) > 0) {
+				int[][] samples = decode(buffer, frames, canonical);
+				md5.update(canonical, 0, frames * channels * bytesPerSample);
+				info.totalSamples += frames;
+
+				final long number = frameNumber++;
+				final int length = frames;
+				pending.add(executor.submit(() -> frameEncoder.encode(samples, length, number)));
+				while (pending.size() >= maxPendingBlocks) writeFrame(pending.poll(), out, info);
+			}
+			while (!pending.isEmpty()) writeFrame(pending.poll(), out, info);
+		} finally {
+			for (Future<byte[]> future : pending) future.cancel(true);
+		}
+		info.md5 = md5.digest();
+		return info;
+	}
+
+	void writeFrame(Future<byte[]> future, OutputStream out, StreamInfo info) throws IOException {
+		byte[] frame;
+		try {
+			frame = future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while encoding FLAC");
+		} catch (ExecutionException e) {
+			throw new IOException("error encoding FLAC frame", e.getCause());
+		}
+		out.write(frame);
+		info.minFrameSize = info.minFrameSize == 0 ? frame.length : Math.min(info.minFrameSize, frame.length);
+		info.maxFrameSize = Math.max(info.maxFrameSize, frame.length);
+	}
+
+	int readBlock(InputStream in, byte[] buffer) throws IOException {
+		int frameSize = format.getFrameSize();
+		int read = 0;
+		while (read < buffer.length) {
+			int n = in.read(buffer, read, buffer.length - read);
+			if (n == -1) break;
+			read += n;
+		}
+		return read / frameSize;
+	}
+
+	/**
+	 * Splits interleaved PCM into one sign-extended array per channel, and
+	 * fills <code>canonical</code> with the signed little-endian layout the
+	 * STREAMINFO MD5 is defined on.
+	 */
+	int[][] decode(byte[] buffer, int frames, byte[] canonical) {
+		int[][] samples = new int[channels][frames];
+		boolean bigEndian = format.isBigEndian();
+		boolean unsigned = AudioFormat.Encoding.PCM_UNSIGNED.equals(format.getEncoding());
+		int shift = 32 - bitsPerSample;
+		for (int f = 0, offset = 0; f < frames; f++) {
+			for (int c = 0; c < channels; c++, offset += bytesPerSample) {
+				int value = 0;
+				for (int i = 0; i < bytesPerSample; i++) {
+					int b = buffer[offset + (bigEndian ? i : bytesPerSample - 1 - i)] & 0xff;
+					value = (value << 8) | b;
+				}
+				if (unsigned) value -= 128;
+				value = (value << shift) >> shift;
+				samples[c][f] = value;
+				for (int i = 0; i < bytesPerSample; i++) canonical[offset + i] = (byte) (value >> (8 * i));
+			}
+		}
+		return samples;
+	}
+
+	static MessageDigest newMd5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * The FLAC STREAMINFO metadata block.
+	 */
+	public static class StreamInfo {
+
+		int minBlockSize;
+		int maxBlockSize;
+		int minFrameSize;
+		int maxFrameSize;
+		int sampleRate;
+		int channels;
+		int bitsPerSample;
+		long totalSamples;
+		byte[] md5 = new byte[16];
+
+		/**
+		 * Writes the stream marker, this STREAMINFO and a VORBIS_COMMENT
+		 * block with just the vendor string, {@link FlacEncoder#HEADER_LENGTH}
+		 * bytes in all. Reference encoders always write the comment block, and
+		 * jflac's reader relies on it: it hands the decoder the STREAMINFO
+		 * again, not marked last, so a STREAMINFO alone is followed by a frame
+		 * where the decoder expects another metadata block.
+		 */
+		public void write(OutputStream out) throws IOException {
+			BitWriter header = new BitWriter(HEADER_LENGTH);
+			for (byte b : MAGIC) header.writeBits(b, 8);
+			header.writeBits(0, 1); // not the last metadata block
+			header.writeBits(0, 7); // STREAMINFO
+			header.writeBits(STREAMINFO_LENGTH, 24);
+			header.writeBits(minBlockSize, 16);
+			header.writeBits(maxBlockSize, 16);
+			header.writeBits(minFrameSize, 24);
+			header.writeBits(maxFrameSize, 24);
+			header.writeBits(sampleRate, 20);
+			header.writeBits(channels - 1, 3);
+			header.writeBits(bitsPerSample - 1, 5);
+			header.writeBits(totalSamples >>> 32, 4);
+			header.writeBits(totalSamples, 32);
+			for (byte b : md5) header.writeBits(b, 8);
+			header.writeBits(1, 1); // last metadata block
+			header.writeBits(4, 7); // VORBIS_COMMENT
+			header.writeBits(VORBIS_COMMENT_LENGTH, 24);
+			// the lengths in a comment block are little-endian
+			header.writeBits(Integer.reverseBytes(VENDOR.length), 32);
+			for (byte b : VENDOR) header.writeBits(b, 8);
+			header.writeBits(0, 32); // no comments
+			out.write(header.toByteArray());
+		}
+
+		public long getTotalSamples() {
+			return totalSamples;
+		}
+
+		public int getMinFrameSize() {
+			return minFrameSize;
+		}
+
+		public int getMaxFrameSize() {
+			return maxFrameSize;
+		}
+
+		public byte[] getMd5() {
+			return md5.clone();
+		}
+
+	}
+
+}
@@ -0,0 +1,332 @@
+package org.melophonic.audio.spi.flac;
+
+import java.util.Arrays;
+
+/**
+ * Encodes one block of samples into a self-contained FLAC frame. Each channel
+ * is coded as a constant, verbatim or fixed-predictor subframe, whichever is
+ * smallest, with partitioned Rice coding of the residual. Stereo blocks pick
+ * the cheapest of independent, left/side, right/side and mid/side coding.
+ *
+ * Instances hold no per-frame state, so one encoder can be shared by all
+ * threads encoding blocks of the same stream.
+ */
+final class FlacFrameEncoder {
+
+	static final int MAX_FIXED_ORDER = 4;
+	static final int MAX_PARTITION_ORDER = 8;
+	static final int MAX_RICE_PARAMETER = 30;
+	static final int RICE_ESCAPE_4BIT = 14;
+
+	static final int INDEPENDENT = 0;
+	static final int LEFT_SIDE = 8;
+	static final int RIGHT_SIDE = 9;
+	static final int MID_SIDE = 10;
+
+	final int channels;
+	final int bitsPerSample;
+	final int sampleRate;
+	final int sampleRateCode;
+	final int sampleSizeCode;
+
+	FlacFrameEncoder(int channels, int bitsPerSample, int sampleRate) {
+		this.channels = channels;
+		this.bitsPerSample = bitsPerSample;
+		this.sampleRate = sampleRate;
+		this.sampleRateCode = sampleRateCode(sampleRate);
+		this.sampleSizeCode = sampleSizeCode(bitsPerSample);
+	}
+
+	/**
+	 * @param samples one array of at least <code>blockSize</code> samples per channel
+	 * @param blockSize the number of samples per channel in this block
+	 * @param frameNumber the index of this frame in the stream
+	 * @return the encoded frame, including header and CRC-16 footer
+	 */
+	byte[] encode(int[][] samples, int blockSize, long frameNumber) {
+		BitWriter out = new BitWriter(blockSize * channels * (bitsPerSample / 8 + 1) / 2 + 64);
+
+		int[][] subframes = samples;
+		int[] subframeBits = new int[channels];
+		Arrays.fill(subframeBits, bitsPerSample);
+		int assignment = channels - 1;
+
+		if (channels == 2 && blockSize > MAX_FIXED_ORDER) {
+			int[] left = samples[0], right = samples[1];
+			int[] mid = new int[blockSize], side = new int[blockSize];
+			for (int i = 0; i < blockSize; i++) {
+				mid[i] = (left[i] + right[i]) >> 1;
+				side[i] = left[i] - right[i];
+			}
+			long l = estimate(left, blockSize), r = estimate(right, blockSize);
+			long m = estimate(mid, blockSize), s = estimate(side, blockSize);
+			long independent = l + r, leftSide = l + s, rightSide = r + s, midSide = m + s;
+			long best = Math.min(Math.min(independent, leftSide), Math.min(rightSide, midSide));
+			if (best == midSide) {
+				assignment = MID_SIDE;
+				subframes = new int[][] {mid, side};
+				subframeBits = new int[] {bitsPerSample, bitsPerSample + 1};
+			} else if (best == leftSide) {
+				assignment = LEFT_SIDE;
+				subframes = new int[][] {left, side};
+				subframeBits = new int[] {bitsPerSample, bitsPerSample + 1};
+			} else if (best == rightSide) {
+				assignment = RIGHT_SIDE;
+				subframes = new int[][] {side, right};
+				subframeBits = new int[] {bitsPerSample + 1, bitsPerSample};
+			}
+		}
+
+		writeHeader(out, blockSize, frameNumber, assignment);
+		for (int c = 0; c < channels; c++) {
+			writeSubframe(out, subframes[c], blockSize, subframeBits[c]);
+		}
+		out.align();
+		out.writeBits(Crc.crc16(out.buffer, 0, out.length()), 16);
+		return out.toByteArray();
+	}
+
+	void writeHeader(BitWriter out, int blockSize, long frameNumber, int assignment) {
+		int blockSizeCode = blockSizeCode(blockSize);
+		out.writeBits(0x3ffe, 14);
+		out.writeBits(0, 1);
+		out.writeBits(0, 1); // fixed block size
+		out.writeBits(blockSizeCode, 4);
+		out.writeBits(sampleRateCode, 4);
+		out.writeBits(assignment, 4);
+		out.writeBits(sampleSizeCode, 3);
+		out.writeBits(0, 1);
+		out.writeUtf8(frameNumber);
+		if (blockSizeCode == 6) out.writeBits(blockSize - 1, 8);
+		else if (blockSizeCode == 7) out.writeBits(blockSize - 1, 16);
+		if (sampleRateCode == 12) out.writeBits(sampleRate / 1000, 8);
+		else if (sampleRateCode == 13) out.writeBits(sampleRate, 16);
+		else if (sampleRateCode == 14) out.writeBits(sampleRate / 10, 16);
+		out.writeBits(Crc.crc8(out.buffer, 0, out.length()), 8);
+	}
+
+	void writeSubframe(BitWriter out, int[] x, int n, int bits) {
+		boolean constant = true;
+		for (int i = 1; i < n && constant; i++) constant = x[i] == x[0];
+		if (constant) {
+			out.writeBits(0, 8); // zero pad, type 000000, no wasted bits
+			out.writeBits(x[0], bits);
+			return;
+		}
+
+		long verbatimBits = (long) n * bits;
+		if (n > MAX_FIXED_ORDER) {
+			int order = bestFixedOrder(x, n);
+			int[] residual = residual(x, n, order);
+			RicePartitioning rice = new RicePartitioning(residual, n, order);
+			if ((long) order * bits + rice.bits < verbatimBits) {
+				out.writeBits(0x08 | order, 7); // zero pad, type 001xxx
+				out.writeBits(0, 1);
+				for (int i = 0; i < order; i++) out.writeBits(x[i], bits);
+				rice.write(out, residual);
+				return;
+			}
+		}
+
+		out.writeBits(0x01, 7); // zero pad, type 000001
+		out.writeBits(0, 1);
+		for (int i = 0; i < n; i++) out.writeBits(x[i], bits);
+	}
+
+	/**
+	 * @return the sum of absolute residuals of the best fixed predictor, as a cheap size estimate
+	 */
+	static long estimate(int[] x, int n) {
+		return fixedResidualSums(x, n)[bestFixedOrder(x, n)];
+	}
+
+	static int bestFixedOrder(int[] x, int n) {
+		long[] sums = fixedResidualSums(x, n);
+		int order = 0;
+		for (int o = 1; o <= MAX_FIXED_ORDER; o++) {
+			if (sums[o] < sums[order]) order = o;
+		}
+		return order;
+	}
+
+	/**
+	 * @return the sums of absolute residuals for each fixed predictor order,
+	 * over the samples every order can predict
+	 */
+	static long[] fixedResidualSums(int[] x, int n) {
+		long[] sums = new long[MAX_FIXED_ORDER + 1];
+		if (n <= MAX_FIXED_ORDER) return sums;
+		long last0 = x[3];
+		long last1 = x[3] - (long) x[2];
+		long last2 = last1 - (x[2] - (long) x[1]);
+		long last3 = last2 - (x[2] - 2L * x[1] + x[0]);
+		for (int i = MAX_FIXED_ORDER; i < n; i++) {
+			long e0 = x[i], e1 = e0 - last0, e2 = e1 - last1, e3 = e2 - last2, e4 = e3 - last3;
+			sums[0] += Math.abs(e0);
+			sums[1] += Math.abs(e1);
+			sums[2] += Math.abs(e2);
+			sums[3] += Math.abs(e3);
+			sums[4] += Math.abs(e4);
+			last0 = e0;
+			last1 = e1;
+			last2 = e2;
+			last3 = e3;
+		}
+		return sums;
+	}
+
+	static int[] residual(int[] x, int n, int order) {
+		int[] e = new int[n];
+		for (int i = order; i < n; i++) {
+			switch (order) {
+			case 0: e[i] = x[i]; break;
+			case 1: e[i] = x[i] - x[i - 1]; break;
+			case 2: e[i] = x[i] - 2 * x[i - 1] + x[i - 2]; break;
+			case 3: e[i] = x[i] - 3 * x[i - 1] + 3 * x[i - 2] - x[i - 3]; break;
+			default: e[i] = x[i] - 4 * x[i - 1] + 6 * x[i - 2] - 4 * x[i - 3] + x[i - 4]; break;
+			}
+		}
+		return e;
+	}
+
+	/**
+	 * Chooses the partition order and per-partition Rice parameters that
+	 * minimize the estimated size of a residual.
+	 */
+	static class RicePartitioning {
+
+		final int order;
+		final int partitionOrder;
+		final int[] parameters;
+		final boolean rice2;
+		final long bits;
+
+		RicePartitioning(int[] residual, int n, int order) {
+			this.order = order;
+			int maxPartitionOrder = 0;
+			while (maxPartitionOrder < MAX_PARTITION_ORDER && n % (2 << maxPartitionOrder) == 0 && (n >> (maxPartitionOrder + 1)) > order) {
+				maxPartitionOrder++;
+			}
+
+			// sums of the folded residuals at the finest partitioning, merged pairwise for coarser ones
+			long[] sums = new long[1 << maxPartitionOrder];
+			int partitionSize = n >> maxPartitionOrder;
+			for (int p = 0, i = order; p < sums.length; p++) {
+				int end = (p + 1) * partitionSize;
+				for (; i < end; i++) sums[p] += fold(residual[i]);
+			}
+
+			long bestBits = Long.MAX_VALUE;
+			int bestOrder = 0;
+			int[] bestParameters = null;
+			for (int po = maxPartitionOrder; po >= 0; po--) {
+				int partitions = 1 << po;
+				if (po < maxPartitionOrder) {
+					long[] merged = new long[partitions];
+					for (int p = 0; p < partitions; p++) merged[p] = sums[2 * p] + sums[2 * p + 1];
+					sums = merged;
+				}
+				int[] parameters = new int[partitions];
+				long total = 0;
+				boolean wide = false;
+				for (int p = 0; p < partitions; p++) {
+					int count = (n >> po) - (p == 0 ? order : 0);
+					parameters[p] = riceParameter(sums[p], count);
+					wide |= parameters[p] > RICE_ESCAPE_4BIT;
+					total += riceBits(sums[p], count, parameters[p]);
+				}
+				total += partitions * (wide ? 5 : 4);
+				if (total < bestBits) {
+					bestBits = total;
+					bestOrder = po;
+					bestParameters = parameters;
+				}
+			}
+			this.partitionOrder = bestOrder;
+			this.parameters = bestParameters;
+			boolean wide = false;
+			for (int k : bestParameters) wide |= k > RICE_ESCAPE_4BIT;
+			this.rice2 = wide;
+			this.bits = 6 + bestBits;
+		}
+
+		void write(BitWriter out, int[] residual) {
+			out.writeBits(rice2 ? 1 : 0, 2);
+			out.writeBits(partitionOrder, 4);
+			int partitionSize = residual.length >> partitionOrder;
+			for (int p = 0, i = order; p < parameters.length; p++) {
+				int k = parameters[p];
+				out.writeBits(k, rice2 ? 5 : 4);
+				for (int end = (p + 1) * partitionSize; i < end; i++) out.writeRice(fold(residual[i]), k);
+			}
+		}
+
+		static int riceParameter(long sum, int count) {
+			if (count <= 0 || sum <= count) return 0;
+			int k = 63 - Long.numberOfLeadingZeros(sum / count);
+			return Math.min(k, MAX_RICE_PARAMETER);
+		}
+
+		static long riceBits(long sum, int count, int k) {
+			return (long) count * (k + 1) + (sum >> k);
+		}
+
+	}
+
+	/** maps signed residuals to unsigned: 0, -1, 1, -2, 2 ... -&gt; 0, 1, 2, 3, 4 ... */
+	static int fold(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	static int blockSizeCode(int blockSize) {
+		switch (blockSize) {
+		case 192: return 1;
+		case 576: return 2;
+		case 1152: return 3;
+		case 2304: return 4;
+		case 4608: return 5;
+		case 256: return 8;
+		case 512: return 9;
+		case 1024: return 10;
+		case 2048: return 11;
+		case 4096: return 12;
+		case 8192: return 13;
+		case 16384: return 14;
+		case 32768: return 15;
+		default: return blockSize <= 256 ? 6 : 7;
+		}
+	}
+
+	static int sampleRateCode(int sampleRate) {
+		switch (sampleRate) {
+		case 88200: return 1;
+		case 176400: return 2;
+		case 192000: return 3;
+		case 8000: return 4;
+		case 16000: return 5;
+		case 22050: return 6;
+		case 24000: return 7;
+		case 32000: return 8;
+		case 44100: return 9;
+		case 48000: return 10;
+		case 96000: return 11;
+		default:
+			if (sampleRate % 1000 == 0 && sampleRate / 1000 <= 255) return 12;
+			if (sampleRate <= 65535) return 13;
+			if (sampleRate % 10 == 0 && sampleRate / 10 <= 65535) return 14;
+			return 0;
+		}
+	}
+
+	static int sampleSizeCode(int bitsPerSample) {
+		switch (bitsPerSample) {
+		case 8: return 1;
+		case 12: return 2;
+		case 16: return 4;
+		case 20: return 5;
+		case 24: return 6;
+		default: return 0;
+		}
+	}
+
+}
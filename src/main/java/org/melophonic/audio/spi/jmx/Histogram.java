@@ -0,0 +1,62 @@
+package org.melophonic.audio.spi.jmx;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of positive long values with log-linear buckets:
+ * every power of two is split into {@link #SUB_BUCKETS} buckets, so any
+ * value is reported within 1/{@value #SUB_BUCKETS} of its size. Recording is
+ * one atomic increment.
+ */
+class Histogram {
+
+	static final int SUB_BUCKET_BITS = 3;
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+
+	void record(long value) {
+		counts.incrementAndGet(bucket(Math.max(0, value)));
+	}
+
+	static int bucket(long value) {
+		if (value < SUB_BUCKETS) return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return the largest value that falls into <code>bucket</code>
+	 */
+	static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) return bucket;
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		long lower = (1L << exponent) + (sub << (exponent - SUB_BUCKET_BITS));
+		return lower + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the upper bound of the bucket holding the percentile, or 0 if empty
+	 */
+	long getPercentile(double percentile) {
+		long[] snapshot = new long[counts.length()];
+		long total = 0;
+		for (int i = 0; i < snapshot.length; i++) total += snapshot[i] = counts.get(i);
+		if (total == 0) return 0;
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) return upperBound(i);
+		}
+		return upperBound(snapshot.length - 1);
+	}
+
+	void reset() {
+		for (int i = 0; i < counts.length(); i++) counts.set(i, 0);
+	}
+
+}
@@ -0,0 +1,186 @@
+package org.melophonic.audio.spi.jmx;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.melophonic.audio.spi.InstrumentationListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a duration histogram and totals for every stage reported, each
+ * registered with the platform MBean server as
+ * <code>org.melophonic.audio:type=Instrumentation,component=&lt;component&gt;,stage=&lt;stage&gt;</code>
+ * the first time the stage is seen. The platform MBean server is only
+ * created then, not when the listener is loaded.
+ */
+public class JmxInstrumentationListener implements InstrumentationListener {
+
+	final static Logger log = LoggerFactory.getLogger(JmxInstrumentationListener.class);
+
+	public static final String DOMAIN = "org.melophonic.audio";
+
+	final Map<String, StageStatistics> statistics = new ConcurrentHashMap<>();
+	final MBeanServer server;
+	final boolean platformServer;
+
+	public JmxInstrumentationListener() {
+		this.server = null;
+		this.platformServer = true;
+	}
+
+	/**
+	 * @param server the server to register the statistics with, or null to keep them unregistered
+	 */
+	public JmxInstrumentationListener(MBeanServer server) {
+		this.server = server;
+		this.platformServer = false;
+	}
+
+	@Override
+	public void stageCompleted(String component, String stage, long nanos, long frames, long bytesAllocated) {
+		StageStatistics stats = statistics.get(component + '/' + stage);
+		if (stats == null) stats = statistics.computeIfAbsent(component + '/' + stage, key -> register(new StageStatistics(component, stage)));
+		stats.record(nanos, frames, bytesAllocated);
+	}
+
+	StageStatistics register(StageStatistics stats) {
+		MBeanServer server = platformServer ? ManagementFactory.getPlatformMBeanServer() : this.server;
+		if (server == null) return stats;
+		try {
+			ObjectName name = getObjectName(stats.component, stats.stage);
+			if (!server.isRegistered(name)) server.registerMBean(stats, name);
+		} catch (Exception e) {
+			log.warn("Unable to register statistics of " + stats.component + "/" + stats.stage + ": " + e);
+		}
+		return stats;
+	}
+
+	public static ObjectName getObjectName(String component, String stage) throws Exception {
+		return new ObjectName(DOMAIN + ":type=Instrumentation,component=" + ObjectName.quote(component) + ",stage=" + ObjectName.quote(stage));
+	}
+
+	/**
+	 * @return the statistics of a stage, or null if it was not reported yet
+	 */
+	public StageStatisticsMXBean getStatistics(String component, String stage) {
+		return statistics.get(component + '/' + stage);
+	}
+
+	static class StageStatistics implements StageStatisticsMXBean {
+
+		final String component;
+		final String stage;
+		final Histogram durations = new Histogram();
+		final LongAdder count = new LongAdder();
+		final LongAdder nanos = new LongAdder();
+		final LongAdder frames = new LongAdder();
+		final LongAdder framesNanos = new LongAdder();
+		final LongAdder bytesAllocated = new LongAdder();
+		final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+		StageStatistics(String component, String stage) {
+			this.component = component;
+			this.stage = stage;
+		}
+
+		void record(long nanos, long frames, long bytesAllocated) {
+			durations.record(nanos);
+			count.increment();
+			this.nanos.add(nanos);
+			maxNanos.accumulate(nanos);
+			if (frames >= 0) {
+				this.frames.add(frames);
+				framesNanos.add(nanos);
+			}
+			if (bytesAllocated > 0) this.bytesAllocated.add(bytesAllocated);
+		}
+
+		@Override
+		public String getComponent() {
+			return component;
+		}
+
+		@Override
+		public String getStage() {
+			return stage;
+		}
+
+		@Override
+		public long getCount() {
+			return count.sum();
+		}
+
+		@Override
+		public long getFrames() {
+			return frames.sum();
+		}
+
+		@Override
+		public long getBytesAllocated() {
+			return bytesAllocated.sum();
+		}
+
+		@Override
+		public double getTotalSeconds() {
+			return nanos.sum() / 1E9;
+		}
+
+		@Override
+		public double getMeanMillis() {
+			long n = count.sum();
+			return n > 0 ? nanos.sum() / 1E6 / n : 0;
+		}
+
+		@Override
+		public double getMedianMillis() {
+			return durations.getPercentile(50) / 1E6;
+		}
+
+		@Override
+		public double get95thPercentileMillis() {
+			return durations.getPercentile(95) / 1E6;
+		}
+
+		@Override
+		public double get99thPercentileMillis() {
+			return durations.getPercentile(99) / 1E6;
+		}
+
+		@Override
+		public double getMaxMillis() {
+			return maxNanos.get() / 1E6;
+		}
+
+		@Override
+		public double getFramesPerSecond() {
+			long n = framesNanos.sum();
+			return n > 0 ? frames.sum() / (n / 1E9) : 0;
+		}
+
+		@Override
+		public void reset() {
+			durations.reset();
+			count.reset();
+			nanos.reset();
+			frames.reset();
+			framesNanos.reset();
+			bytesAllocated.reset();
+			maxNanos.reset();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s/%s: %d runs, %.3f ms mean, %.3f ms p50, %.3f ms p99, %.3f ms max, %d frames, %d bytes allocated", component, stage,
+					getCount(), getMeanMillis(), getMedianMillis(), get99thPercentileMillis(), getMaxMillis(), getFrames(), getBytesAllocated());
+		}
+
+	}
+
+}
@@ -0,0 +1,40 @@
+package org.melophonic.audio.spi.jmx;
+
+/**
+ * The statistics of one processing stage, as exposed over JMX.
+ */
+public interface StageStatisticsMXBean {
+
+	String getComponent();
+
+	String getStage();
+
+	long getCount();
+
+	long getFrames();
+
+	/**
+	 * @return the bytes allocated by all runs, or 0 if not measured
+	 */
+	long getBytesAllocated();
+
+	double getTotalSeconds();
+
+	double getMeanMillis();
+
+	double getMedianMillis();
+
+	double get95thPercentileMillis();
+
+	double get99thPercentileMillis();
+
+	double getMaxMillis();
+
+	/**
+	 * @return frames processed per second of stage time
+	 */
+	double getFramesPerSecond();
+
+	void reset();
+
+}
@@ -0,0 +1,314 @@
+package org.melophonic.audio.spi.musicg;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.melophonic.audio.ingest.IngestPipeline;
+import org.melophonic.audio.spi.FingerprintService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds duplicate recordings in a corpus of {@link MGFingerprintService}
+ * fingerprints without comparing all pairs. The robust points of each
+ * fingerprint are turned into a set of time-shift invariant tokens, pairs
+ * of peaks in nearby frames with their frequency bins and distance, whose
+ * MinHash signature is split into bands. Fingerprints sharing a band hash
+ * become candidates, and only candidates are compared exactly with
+ * {@link FingerprintService#compareFingerprints}. Matches are joined into
+ * clusters, so a recording stored as WAV, FLAC and MP3 forms one cluster.
+ *
+ * With <code>b</code> bands of <code>r</code> rows, two fingerprints whose
+ * token sets have a Jaccard similarity <code>s</code> become candidates with
+ * a probability of <code>1 - (1 - s^r)^b</code>. Only the band hashes are
+ * kept per fingerprint, and the bands are bucketed by sorting, so both
+ * memory and time grow about linearly with the corpus, for up to 16 million
+ * fingerprints. Fingerprints are loaded again for the exact comparison, so
+ * they need not be held in memory.
+ */
+public class MGDuplicateFinder<K> {
+
+	final static Logger log = LoggerFactory.getLogger(MGDuplicateFinder.class);
+
+	public static final int DEFAULT_BANDS = 32;
+	public static final int DEFAULT_ROWS = 3;
+	public static final double DEFAULT_MIN_SIMILARITY = 0.5;
+
+	/** the bytes of a robust point: frame, frequency bin and intensity */
+	static final int POINT_SIZE = 8;
+
+	/** the frames after a peak whose peaks are paired with it */
+	static final int MAX_FRAME_DELTA = 3;
+
+	/** the bits of a band hash kept next to the index of its fingerprint when sorting */
+	static final int INDEX_BITS = 24;
+	static final int MAX_FINGERPRINTS = 1 << INDEX_BITS;
+
+	/** the candidates in one bucket beyond which each is only compared to the first */
+	static final int MAX_BUCKET_SIZE = 64;
+
+	/** the fingerprints loaded for comparison kept in memory */
+	static final int LOADED_FINGERPRINTS = 1024;
+
+	final FingerprintService service;
+	final int bands;
+	final int rows;
+	final double minSimilarity;
+	final long[] multipliers;
+	final long[] increments;
+
+	final List<K> keys = new ArrayList<>();
+	long[] bandHashes = new long[0];
+	long candidates;
+	long comparisons;
+
+	/**
+	 * Finds duplicates with the default bands, rows and minimum similarity.
+	 */
+	public MGDuplicateFinder(FingerprintService service) {
+		this(service, DEFAULT_BANDS, DEFAULT_ROWS, DEFAULT_MIN_SIMILARITY);
+	}
+
+	/**
+	 * @param service the service comparing candidates
+	 * @param bands the number of bands of the signature; more bands find less similar candidates
+	 * @param rows the MinHash values per band; more rows find fewer false candidates
+	 * @param minSimilarity the similarity at which candidates are duplicates
+	 */
+	public MGDuplicateFinder(FingerprintService service, int bands, int rows, double minSimilarity) {
+		if (bands < 1 || rows < 1) throw new IllegalArgumentException("Invalid signature of " + bands + " bands of " + rows + " rows");
+		this.service = service;
+		this.bands = bands;
+		this.rows = rows;
+		this.minSimilarity = minSimilarity;
+		// a fixed seed keeps signatures comparable between runs
+		Random random = new Random(0x6D696E68617368L);
+		multipliers = new long[bands * rows];
+		increments = new long[bands * rows];
+		for (int i = 0; i < multipliers.length; i++) {
+			multipliers[i] = random.nextLong() | 1;
+			increments[i] = random.nextLong();
+		}
+	}
+
+	/**
+	 * Adds a fingerprint under <code>key</code>. Only its band hashes are kept.
+	 *
+	 * @return false if the fingerprint has no pairs of peaks, such as for
+	 * silence, and is therefore never a duplicate
+	 */
+	public synchronized boolean add(K key, byte[] fingerprint) {
+		long[] signature = getSignature(fingerprint);
+		if (signature == null) return false;
+		if (keys.size() == MAX_FINGERPRINTS) throw new IllegalStateException("Too many fingerprints: " + MAX_FINGERPRINTS);
+		int index = keys.size();
+		keys.add(key);
+		if (bandHashes.length < (index + 1) * bands) bandHashes = Arrays.copyOf(bandHashes, Math.max(bands * 16, bandHashes.length * 2));
+		for (int band = 0; band < bands; band++) {
+			long hash = mix(band + 1);
+			for (int row = 0; row < rows; row++) hash = mix(hash ^ signature[band * rows + row]);
+			bandHashes[index * bands + band] = hash;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the MinHash values of the tokens of <code>fingerprint</code>, or null if it has none
+	 */
+	long[] getSignature(byte[] fingerprint) {
+		long[] signature = new long[bands * rows];
+		Arrays.fill(signature, Long.MAX_VALUE);
+		int points = fingerprint.length / POINT_SIZE;
+		boolean empty = true;
+		// the points are ordered by frame, so the peaks paired with a point follow it
+		for (int i = 0; i < points; i++) {
+			int frame = getFrame(fingerprint, i), bin = getBin(fingerprint, i);
+			for (int j = i + 1; j < points; j++) {
+				int delta = getFrame(fingerprint, j) - frame;
+				if (delta == 0) continue;
+				if (delta > MAX_FRAME_DELTA) break;
+				long token = mix(((long) bin << 32) | ((long) getBin(fingerprint, j) << 8) | delta);
+				for (int h = 0; h < signature.length; h++) {
+					long value = (multipliers[h] * token + increments[h]) >>> 1;
+					if (value < signature[h]) signature[h] = value;
+				}
+				empty = false;
+			}
+		}
+		return empty ? null : signature;
+	}
+
+	static int getFrame(byte[] fingerprint, int point) {
+		int offset = point * POINT_SIZE;
+		return (fingerprint[offset] & 0xff) << 8 | (fingerprint[offset + 1] & 0xff);
+	}
+
+	static int getBin(byte[] fingerprint, int point) {
+		int offset = point * POINT_SIZE + 2;
+		return (fingerprint[offset] & 0xff) << 8 | (fingerprint[offset + 1] & 0xff);
+	}
+
+	/**
+	 * The finalizer of SplitMix64.
+	 */
+	static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Loads the fingerprint added under a key for the exact comparison.
+	 */
+	public interface FingerprintLoader<K> {
+
+		byte[] load(K key) throws Exception;
+
+	}
+
+	/**
+	 * Compares the fingerprints sharing a band and joins the duplicates.
+	 *
+	 * @return the clusters of two or more duplicates, each in the order the fingerprints were added
+	 */
+	public synchronized List<Set<K>> findDuplicates(FingerprintLoader<K> loader) throws Exception {
+		int n = keys.size();
+		candidates = comparisons = 0;
+		int[] parents = new int[n];
+		for (int i = 0; i < n; i++) parents[i] = i;
+		Set<Long> rejected = new HashSet<>();
+		Map<Integer, byte[]> loaded = new LinkedHashMap<Integer, byte[]>(16, 0.75F, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+				return size() > LOADED_FINGERPRINTS;
+			}
+		};
+		long[] sorted = new long[n];
+		for (int band = 0; band < bands; band++) {
+			for (int i = 0; i < n; i++) sorted[i] = (bandHashes[i * bands + band] & -1L << INDEX_BITS) | i;
+			Arrays.sort(sorted);
+			for (int start = 0, end; start < n; start = end) {
+				long hash = sorted[start] >>> INDEX_BITS;
+				for (end = start + 1; end < n && sorted[end] >>> INDEX_BITS == hash; end++);
+				if (end - start < 2) continue;
+				for (int a = start; a < end - 1; a++) {
+					for (int b = a + 1; b < end; b++) {
+						compare((int) (sorted[a] & MAX_FINGERPRINTS - 1), (int) (sorted[b] & MAX_FINGERPRINTS - 1), parents, rejected, loaded, loader);
+					}
+					// the members of a large bucket, such as of near silent tracks, are only compared to the first
+					if (end - start > MAX_BUCKET_SIZE) break;
+				}
+			}
+		}
+
+		Map<Integer, Set<K>> groups = new LinkedHashMap<>();
+		for (int i = 0; i < n; i++) groups.computeIfAbsent(find(parents, i), root -> new LinkedHashSet<>()).add(keys.get(i));
+		List<Set<K>> clusters = new ArrayList<>();
+		for (Set<K> group : groups.values()) {
+			if (group.size() > 1) clusters.add(group);
+		}
+		log.debug(String.format("%d clusters of %d fingerprints from %d candidates, %d comparisons", clusters.size(), n, candidates, comparisons));
+		return clusters;
+	}
+
+	void compare(int a, int b, int[] parents, Set<Long> rejected, Map<Integer, byte[]> loaded, FingerprintLoader<K> loader) throws Exception {
+		candidates++;
+		int rootA = find(parents, a), rootB = find(parents, b);
+		if (rootA == rootB) return;
+		Long pair = (long) Math.min(a, b) << 32 | Math.max(a, b);
+		if (rejected.contains(pair)) return;
+		comparisons++;
+		double similarity = service.compareFingerprints(load(a, loaded, loader), load(b, loaded, loader)).getSimilarity();
+		if (similarity >= minSimilarity) {
+			// the lower index becomes the root, so clusters start with the first fingerprint added
+			parents[Math.max(rootA, rootB)] = Math.min(rootA, rootB);
+		} else {
+			rejected.add(pair);
+		}
+	}
+
+	byte[] load(int index, Map<Integer, byte[]> loaded, FingerprintLoader<K> loader) throws Exception {
+		byte[] fingerprint = loaded.get(index);
+		if (fingerprint == null) {
+			fingerprint = loader.load(keys.get(index));
+			loaded.put(index, fingerprint);
+		}
+		return fingerprint;
+	}
+
+	static int find(int[] parents, int i) {
+		while (parents[i] != i) {
+			// path halving
+			parents[i] = parents[parents[i]];
+			i = parents[i];
+		}
+		return i;
+	}
+
+	/**
+	 * Finds the duplicates among fingerprints held in memory.
+	 */
+	public static <K> List<Set<K>> findDuplicates(Map<K, byte[]> fingerprints, FingerprintService service) throws Exception {
+		MGDuplicateFinder<K> finder = new MGDuplicateFinder<>(service);
+		for (Map.Entry<K, byte[]> entry : fingerprints.entrySet()) finder.add(entry.getKey(), entry.getValue());
+		return finder.findDuplicates(fingerprints::get);
+	}
+
+	/**
+	 * @return the number of fingerprints that can have duplicates
+	 */
+	public synchronized int size() {
+		return keys.size();
+	}
+
+	/**
+	 * @return the pairs sharing a band in the last search, including pairs already known to be duplicates
+	 */
+	public synchronized long getCandidates() {
+		return candidates;
+	}
+
+	/**
+	 * @return the exact comparisons of the last search
+	 */
+	public synchronized long getComparisons() {
+		return comparisons;
+	}
+
+	/**
+	 * Fingerprints the audio files below a directory and prints each cluster of duplicates as a tab-separated line.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length != 1) {
+			log.info("usage: java MGDuplicateFinder <directory>");
+			System.exit(1);
+		}
+		MGFingerprintService service = new MGFingerprintService();
+		MGDuplicateFinder<Path> finder = new MGDuplicateFinder<>(service);
+		IngestPipeline pipeline = new IngestPipeline(service, null, record -> {
+			if (record.getFingerprint() != null) finder.add(record.getPath(), record.getFingerprint());
+		});
+		pipeline.setReportInterval(10, TimeUnit.SECONDS);
+		log.info(pipeline.run(Paths.get(args[0])).toString());
+		// the few fingerprints compared are calculated again rather than kept for the whole corpus
+		for (Set<Path> cluster : finder.findDuplicates(path -> service.calculateFingerprint(path.toUri()))) {
+			StringBuilder line = new StringBuilder();
+			for (Path path : cluster) line.append(line.length() > 0 ? "\t" : "").append(path);
+			System.out.println(line);
+		}
+		log.info(String.format("%d fingerprints, %d candidates, %d comparisons", finder.size(), finder.getCandidates(), finder.getComparisons()));
+	}
+
+}
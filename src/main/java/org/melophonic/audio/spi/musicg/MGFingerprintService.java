@@ -1,5 +1,6 @@
 package org.melophonic.audio.spi.musicg;
 
+import java.io.ByteArrayInputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -9,8 +10,12 @@ import java.net.URI;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 
 import org.melophonic.audio.spi.FingerprintService;
+import org.melophonic.audio.util.Instrumentation;
+import org.melophonic.audio.util.MappedWaveFile;
+import org.melophonic.audio.util.PcmSource;
 
 import com.musicg.dsp.Resampler;
 import com.musicg.fingerprint.FingerprintSimilarity;
@@ -28,6 +33,9 @@ import com.musicg.wave.extension.Spectrogram;
  */
 public class MGFingerprintService implements FingerprintService {
 	
+	/** the component name of the stages reported to {@link Instrumentation} */
+	public static final String COMPONENT = "fingerprint";
+	
 	private FingerprintProperties fingerprintProperties=FingerprintProperties.getInstance();
 	private int sampleSizePerFrame=fingerprintProperties.getSampleSizePerFrame();
 	private int overlapFactor=fingerprintProperties.getOverlapFactor();
@@ -36,16 +44,57 @@ public class MGFingerprintService implements FingerprintService {
 
 	@Override
 	public byte[] calculateFingerprint(URI audioUri) throws Exception {
-		try (InputStream in = audioUri.toURL().openStream()) {
-			Wave wave = new Wave(in);
-			return extractFingerprint(wave, true);		
+		Instrumentation.Stage stage = Instrumentation.start(COMPONENT, "decode");
+		Wave wave;
+		try (MappedWaveFile mapped = MappedWaveFile.openIfWave(audioUri)) {
+			if (mapped != null && mapped.isCanonical()) {
+				// a canonical header lets musicg read files with extra chunks, and the data is copied only once
+				WaveHeader header = new WaveHeader(new ByteArrayInputStream(mapped.getCanonicalHeader()));
+				wave = new Wave(header, mapped.toByteArray());
+			} else {
+				try (InputStream in = audioUri.toURL().openStream()) {
+					wave = new Wave(in);
+				}
+			}
 		}
+		stage.end(getFrameLength(wave));
+		return extractFingerprint(wave, true);
+	}
+	
+	/**
+	 * Fingerprints the samples of <code>source</code> as 16 bit PCM, the
+	 * input musicg reads from a 16 bit file.
+	 */
+	@Override
+	public byte[] calculateFingerprint(PcmSource source) throws Exception {
+		Instrumentation.Stage stage = Instrumentation.start(COMPONENT, "decode");
+		WaveHeader header = new WaveHeader(new ByteArrayInputStream(source.getCanonicalHeader(16)));
+		Wave wave = new Wave(header, source.toByteArray(16));
+		stage.end(source.getFrameLength());
+		return extractFingerprint(wave, true);
+	}
+	
+	/**
+	 * Stops fingerprinting between stages once the thread is interrupted,
+	 * such as by the cancellation of an asynchronous fingerprint.
+	 */
+	static void checkInterrupted() {
+		if (Thread.currentThread().isInterrupted()) throw new CancellationException("Fingerprinting interrupted");
+	}
+	
+	static long getFrameLength(Wave wave) {
+		WaveHeader header = wave.getWaveHeader();
+		int frameSize = header.getChannels() * header.getBitsPerSample() / 8;
+		return frameSize > 0 ? wave.getBytes().length / frameSize : -1;
 	}
 
 	@Override
 	public FingerprintComparison compareFingerprints(byte[] a, byte[] b) throws Exception {
+		Instrumentation.Stage stage = Instrumentation.start(COMPONENT, "compare");
 		FingerprintSimilarityComputer c = new FingerprintSimilarityComputer(a, b);
-		return new Comparison(c.getFingerprintsSimilarity());		
+		Comparison comparison = new Comparison(c.getFingerprintsSimilarity());
+		stage.end(-1);
+		return comparison;
 	}
 
 	static class Comparison implements FingerprintComparison {
@@ -97,6 +146,8 @@ public class MGFingerprintService implements FingerprintService {
 
         Wave resampledWave;
         
+        checkInterrupted();
+        Instrumentation.Stage stage = Instrumentation.start(COMPONENT, "resample");
         if (sourceRate != targetRate || forceResample) {
 			// resample to target rate
 			Resampler resampler=new Resampler();
@@ -112,12 +163,19 @@ public class MGFingerprintService implements FingerprintService {
         } else {
         	resampledWave = wave;
         }
+        checkInterrupted();
+        stage = stage.next("spectrogram", getFrameLength(wave));
+        long frames = getFrameLength(resampledWave);
 		// get spectrogram's data
 		Spectrogram spectrogram=resampledWave.getSpectrogram(sampleSizePerFrame, overlapFactor);
 		double[][] spectorgramData=spectrogram.getNormalizedSpectrogramData();
 		
+		checkInterrupted();
+		stage = stage.next("peaks", frames);
 		List<List<Integer>> pointsLists=getRobustPointList(spectorgramData);
 		int numFrames=pointsLists.size();
+		checkInterrupted();
+		stage = stage.next("serialize", frames);
 				
 		// prepare fingerprint bytes
 		coordinates=new int[numFrames][numRobustPointsPerFrame];
@@ -170,6 +228,7 @@ public class MGFingerprintService implements FingerprintService {
 		while(byteListIterator.hasNext()){
 			fingerprint[pointer++]=byteListIterator.next();
 		}
+		stage.end(frames);
 
 		return fingerprint;
 	}
@@ -0,0 +1,197 @@
+package org.melophonic.audio.spi.resample;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The coefficients of a Kaiser-windowed sinc low-pass filter for resampling
+ * by the rational ratio L/M, split into L phases of {@link #getTaps()} taps.
+ *
+ * Output sample <i>n</i> lies at input position <i>nM/L</i>; with
+ * <code>base = floor(nM/L)</code> and <code>phase = nM mod L</code> it is
+ * the dot product of phase <code>phase</code> with the input samples
+ * <code>base - H + 1 .. base + H</code>, where H is
+ * {@link #getHalfTaps()}. Every output sample therefore only depends on its
+ * own input window, which is what lets a long input be resampled in
+ * independent segments.
+ *
+ * Filter banks are immutable and shared: {@link #get(int, int)} caches them
+ * per reduced ratio, and the banks for common rate pairs are computed once
+ * when this class is initialized.
+ */
+public class PolyphaseFilterBank {
+
+	/** sinc zero crossings on each side of the filter center */
+	public static final int ZERO_CROSSINGS = 32;
+	/** Kaiser window shape, giving about 90 dB of stopband attenuation */
+	public static final double KAISER_BETA = 9.0;
+	/** cutoff relative to the lower Nyquist frequency */
+	public static final double ROLLOFF = 0.94;
+	/** the largest L for which a filter bank is built */
+	public static final int MAX_PHASES = 1024;
+
+	static final int[][] COMMON_RATES = {
+		{44100, 48000}, {48000, 44100}, {88200, 44100}, {96000, 44100}, {96000, 48000},
+		{176400, 44100}, {192000, 44100}, {192000, 48000}, {44100, 88200}, {44100, 96000}, {48000, 96000}
+	};
+
+	static final ConcurrentMap<Long, PolyphaseFilterBank> cache = new ConcurrentHashMap<>();
+
+	static {
+		for (int[] rates : COMMON_RATES) get(rates[0], rates[1]);
+	}
+
+	final int upFactor;
+	final int downFactor;
+	final int halfTaps;
+	final int taps;
+	final float[] coefficients;
+
+	PolyphaseFilterBank(int upFactor, int downFactor) {
+		this.upFactor = upFactor;
+		this.downFactor = downFactor;
+		double scale = Math.min(1.0, upFactor / (double) downFactor) * ROLLOFF;
+		double halfWidth = ZERO_CROSSINGS / scale;
+		this.halfTaps = (int) Math.ceil(halfWidth);
+		this.taps = 2 * halfTaps;
+		this.coefficients = new float[upFactor * taps];
+		double i0Beta = besselI0(KAISER_BETA);
+		for (int phase = 0; phase < upFactor; phase++) {
+			double sum = 0;
+			double[] h = new double[taps];
+			for (int k = 0; k < taps; k++) {
+				// distance in input samples between the output position and tap k
+				double u = phase / (double) upFactor + halfTaps - 1 - k;
+				if (Math.abs(u) >= halfWidth) continue;
+				double x = u / halfWidth;
+				double window = besselI0(KAISER_BETA * Math.sqrt(1 - x * x)) / i0Beta;
+				h[k] = scale * sinc(scale * u) * window;
+				sum += h[k];
+			}
+			// normalize each phase to unity gain at DC
+			for (int k = 0; k < taps; k++) coefficients[phase * taps + k] = (float) (h[k] / sum);
+		}
+	}
+
+	/**
+	 * @return the filter bank for resampling from <code>sourceRate</code> to
+	 * <code>targetRate</code>, or null if the reduced ratio has more than
+	 * {@link #MAX_PHASES} phases
+	 */
+	public static PolyphaseFilterBank get(int sourceRate, int targetRate) {
+		if (sourceRate <= 0 || targetRate <= 0) throw new IllegalArgumentException("invalid rates " + sourceRate + " -> " + targetRate);
+		int gcd = gcd(sourceRate, targetRate);
+		int up = targetRate / gcd, down = sourceRate / gcd;
+		if (up > MAX_PHASES) return null;
+		long key = ((long) up << 32) | down;
+		PolyphaseFilterBank bank = cache.get(key);
+		if (bank == null) {
+			bank = new PolyphaseFilterBank(up, down);
+			PolyphaseFilterBank existing = cache.putIfAbsent(key, bank);
+			if (existing != null) bank = existing;
+		}
+		return bank;
+	}
+
+	/**
+	 * @param sourceFrames the number of input frames
+	 * @return the number of output frames produced for them
+	 */
+	public long getOutputLength(long sourceFrames) {
+		return (sourceFrames * upFactor + downFactor - 1) / downFactor;
+	}
+
+	/**
+	 * @param n an output frame index
+	 * @return the index of the last input frame at or before output frame n
+	 */
+	public long getBase(long n) {
+		return n * downFactor / upFactor;
+	}
+
+	/**
+	 * @param n an output frame index
+	 * @return the first input frame in the window of output frame n, which
+	 * may be negative
+	 */
+	public long getWindowStart(long n) {
+		return getBase(n) - halfTaps + 1;
+	}
+
+	/**
+	 * @param n an output frame index
+	 * @return the input frame after the last one in the window of output frame n
+	 */
+	public long getWindowEnd(long n) {
+		return getBase(n) + halfTaps + 1;
+	}
+
+	/**
+	 * @param n an output frame index
+	 * @return the offset of the phase of output frame n in
+	 * {@link #getCoefficients()}
+	 */
+	public int getPhaseOffset(long n) {
+		return (int) (n * downFactor % upFactor) * taps;
+	}
+
+	/**
+	 * Computes one output sample.
+	 *
+	 * @param input samples of one channel
+	 * @param start the index in <code>input</code> of input sample <code>base - H + 1</code>
+	 * @param phaseOffset the phase offset of the output sample
+	 * @return the filtered sample
+	 */
+	public float filter(float[] input, int start, int phaseOffset) {
+		float sum = 0;
+		for (int k = 0; k < taps; k++) sum += coefficients[phaseOffset + k] * input[start + k];
+		return sum;
+	}
+
+	public int getUpFactor() {
+		return upFactor;
+	}
+
+	public int getDownFactor() {
+		return downFactor;
+	}
+
+	public int getTaps() {
+		return taps;
+	}
+
+	public int getHalfTaps() {
+		return halfTaps;
+	}
+
+	public float[] getCoefficients() {
+		return coefficients;
+	}
+
+	static double sinc(double x) {
+		if (x == 0) return 1.0;
+		double px = Math.PI * x;
+		return Math.sin(px) / px;
+	}
+
+	/** zeroth order modified Bessel function of the first kind */
+	static double besselI0(double x) {
+		double sum = 1, term = 1, q = x * x / 4;
+		for (int k = 1; k < 50 && term > 1E-12 * sum; k++) {
+			term *= q / (k * (double) k);
+			sum += term;
+		}
+		return sum;
+	}
+
+	static int gcd(int a, int b) {
+		while (b != 0) {
+			int t = a % b;
+			a = b;
+			b = t;
+		}
+		return a;
+	}
+
+}
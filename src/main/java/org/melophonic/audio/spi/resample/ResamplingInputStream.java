@@ -0,0 +1,197 @@
+package org.melophonic.audio.spi.resample;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
+/**
+ * Streams signed PCM audio resampled through a {@link PolyphaseFilterBank}.
+ *
+ * Source frames are read in blocks, decoded to planar float buffers and
+ * filtered into output frames as soon as their input window is available.
+ * The buffers keep only the filter history still needed by the next output
+ * frame, so memory use is bounded by the block size and filter length. The
+ * input is treated as silent before its first and after its last frame.
+ *
+ * A stream may also produce just one segment of the output, so that a long
+ * input can be resampled in parallel: every output frame depends only on its
+ * own input window, which makes the segments bit-identical to the same
+ * frames of a stream over the whole input.
+ */
+public class ResamplingInputStream extends InputStream {
+
+	public static final int DEFAULT_BLOCK_FRAMES = 4096;
+
+	final AudioInputStream source;
+	final PolyphaseFilterBank bank;
+	final int channels;
+	final int bytesPerSample;
+	final int frameSize;
+	final boolean bigEndian;
+	final int halfTaps;
+
+	final byte[] readBuffer;
+	float[][] input;
+	/** absolute input frame index of input[c][0] */
+	long inputStart;
+	int inputLength;
+	long sourceFrames = 0;
+	long nextOutput = 0;
+	long outputLength = -1;
+	/** the output frame to stop before, for a segment */
+	long outputLimit = Long.MAX_VALUE;
+	boolean padded = false;
+
+	public ResamplingInputStream(AudioInputStream source, PolyphaseFilterBank bank) {
+		this(source, bank, DEFAULT_BLOCK_FRAMES);
+	}
+
+	public ResamplingInputStream(AudioInputStream source, PolyphaseFilterBank bank, int blockFrames) {
+		AudioFormat format = source.getFormat();
+		this.source = source;
+		this.bank = bank;
+		this.channels = format.getChannels();
+		this.frameSize = format.getFrameSize();
+		this.bytesPerSample = frameSize / channels;
+		this.bigEndian = format.isBigEndian();
+		this.halfTaps = bank.getHalfTaps();
+		this.readBuffer = new byte[blockFrames * frameSize];
+		this.input = new float[channels][blockFrames + 2 * bank.getTaps()];
+		// silence before the first frame covers the history of output frame 0
+		this.inputStart = -(halfTaps - 1);
+		this.inputLength = halfTaps - 1;
+	}
+
+	/**
+	 * Creates a stream producing only output frames <code>firstOutput</code>
+	 * to <code>firstOutput + outputFrames</code>.
+	 *
+	 * @param source the input from frame {@link #getSegmentStart(PolyphaseFilterBank, long)}
+	 * on, at least up to {@link PolyphaseFilterBank#getWindowEnd(long)} of the
+	 * last output frame or to the end of the input
+	 */
+	public ResamplingInputStream(AudioInputStream source, PolyphaseFilterBank bank, long firstOutput, long outputFrames) {
+		this(source, bank, DEFAULT_BLOCK_FRAMES);
+		long start = getSegmentStart(bank, firstOutput);
+		if (start > 0) {
+			this.inputStart = start;
+			this.inputLength = 0;
+			this.sourceFrames = start;
+		}
+		this.nextOutput = firstOutput;
+		this.outputLimit = firstOutput + outputFrames;
+	}
+
+	/**
+	 * @return the first input frame needed for output frames from
+	 * <code>firstOutput</code> on
+	 */
+	public static long getSegmentStart(PolyphaseFilterBank bank, long firstOutput) {
+		return Math.max(0, bank.getWindowStart(firstOutput));
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (frameSize != 1) throw new IOException("cannot read a single byte if the frame size is not 1");
+		byte[] b = new byte[1];
+		return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int frames = len / frameSize;
+		if (frames == 0) return 0;
+		int out = off, produced = 0;
+		while (produced < frames) {
+			if (outputLength >= 0 && nextOutput >= outputLength || nextOutput >= outputLimit) break;
+			long base = bank.getBase(nextOutput);
+			if (base + halfTaps >= inputStart + inputLength) {
+				if (!fill()) break;
+				continue;
+			}
+			int start = (int) (base - halfTaps + 1 - inputStart);
+			int phaseOffset = bank.getPhaseOffset(nextOutput);
+			for (int c = 0; c < channels; c++) {
+				encode(bank.filter(input[c], start, phaseOffset), b, out);
+				out += bytesPerSample;
+			}
+			nextOutput++;
+			produced++;
+		}
+		return produced == 0 ? -1 : out - off;
+	}
+
+	/**
+	 * Discards input no longer needed and appends the next block of source
+	 * frames, or the trailing silence once the source is exhausted.
+	 *
+	 * @return false if no more input can be appended
+	 */
+	boolean fill() throws IOException {
+		int discard = (int) Math.min(inputLength, bank.getBase(nextOutput) - halfTaps + 1 - inputStart);
+		if (discard > 0) {
+			for (float[] samples : input) System.arraycopy(samples, discard, samples, 0, inputLength - discard);
+			inputStart += discard;
+			inputLength -= discard;
+		}
+
+		if (outputLength >= 0) {
+			if (padded) return false;
+			ensureCapacity(inputLength + halfTaps + 1);
+			for (float[] samples : input) Arrays.fill(samples, inputLength, inputLength + halfTaps + 1, 0f);
+			inputLength += halfTaps + 1;
+			padded = true;
+			return true;
+		}
+
+		int n = source.read(readBuffer, 0, readBuffer.length);
+		if (n == -1) {
+			outputLength = bank.getOutputLength(sourceFrames);
+			return true;
+		}
+		int frames = n / frameSize;
+		ensureCapacity(inputLength + frames);
+		for (int f = 0, offset = 0; f < frames; f++) {
+			for (int c = 0; c < channels; c++, offset += bytesPerSample) {
+				input[c][inputLength + f] = decode(readBuffer, offset);
+			}
+		}
+		inputLength += frames;
+		sourceFrames += frames;
+		return true;
+	}
+
+	void ensureCapacity(int capacity) {
+		if (input[0].length >= capacity) return;
+		for (int c = 0; c < channels; c++) input[c] = Arrays.copyOf(input[c], Math.max(capacity, input[c].length * 2));
+	}
+
+	float decode(byte[] buffer, int offset) {
+		int value = 0;
+		for (int i = 0; i < bytesPerSample; i++) {
+			int shift = bigEndian ? 24 - 8 * i : 24 - 8 * (bytesPerSample - 1 - i);
+			value |= (buffer[offset + i] & 0xff) << shift;
+		}
+		return value / 2147483648f;
+	}
+
+	void encode(float sample, byte[] buffer, int offset) {
+		long scale = 1L << (8 * bytesPerSample - 1);
+		long value = Math.round(sample * (double) scale);
+		if (value >= scale) value = scale - 1;
+		else if (value < -scale) value = -scale;
+		for (int i = 0; i < bytesPerSample; i++) {
+			int shift = bigEndian ? 8 * (bytesPerSample - 1 - i) : 8 * i;
+			buffer[offset + i] = (byte) (value >> shift);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		source.close();
+	}
+
+}
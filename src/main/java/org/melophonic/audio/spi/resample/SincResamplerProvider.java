@@ -0,0 +1,88 @@
+package org.melophonic.audio.spi.resample;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioFormat.Encoding;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.spi.FormatConversionProvider;
+
+/**
+ * A <code>FormatConversionProvider</code> that changes the sample rate of
+ * signed PCM audio with a polyphase windowed-sinc filter
+ * ({@link PolyphaseFilterBank}). Only the sample rate is converted: the
+ * source and target formats must agree on channels, sample size and
+ * endianess, and both rates must be integral.
+ */
+public class SincResamplerProvider extends FormatConversionProvider {
+
+	static final Encoding[] ENCODINGS = { Encoding.PCM_SIGNED };
+	static final Encoding[] NO_ENCODINGS = {};
+	static final AudioFormat[] NO_FORMATS = {};
+
+	@Override
+	public Encoding[] getSourceEncodings() {
+		return ENCODINGS.clone();
+	}
+
+	@Override
+	public Encoding[] getTargetEncodings() {
+		return ENCODINGS.clone();
+	}
+
+	@Override
+	public Encoding[] getTargetEncodings(AudioFormat sourceFormat) {
+		return isSupported(sourceFormat) ? ENCODINGS.clone() : NO_ENCODINGS;
+	}
+
+	@Override
+	public AudioFormat[] getTargetFormats(Encoding targetEncoding, AudioFormat sourceFormat) {
+		if (!Encoding.PCM_SIGNED.equals(targetEncoding) || !isSupported(sourceFormat)) return NO_FORMATS;
+		return new AudioFormat[] { new AudioFormat(targetEncoding, AudioSystem.NOT_SPECIFIED, sourceFormat.getSampleSizeInBits(),
+				sourceFormat.getChannels(), sourceFormat.getFrameSize(), AudioSystem.NOT_SPECIFIED, sourceFormat.isBigEndian()) };
+	}
+
+	@Override
+	public boolean isConversionSupported(AudioFormat targetFormat, AudioFormat sourceFormat) {
+		return isSupported(sourceFormat) && isSupported(targetFormat)
+				&& sourceFormat.getChannels() == targetFormat.getChannels()
+				&& sourceFormat.getSampleSizeInBits() == targetFormat.getSampleSizeInBits()
+				&& (sourceFormat.isBigEndian() == targetFormat.isBigEndian() || sourceFormat.getSampleSizeInBits() <= 8)
+				&& sourceFormat.getSampleRate() != targetFormat.getSampleRate()
+				&& getFilterBank(sourceFormat, targetFormat) != null;
+	}
+
+	@Override
+	public AudioInputStream getAudioInputStream(Encoding targetEncoding, AudioInputStream sourceStream) {
+		if (sourceStream.getFormat().getEncoding().equals(targetEncoding)) return sourceStream;
+		throw new IllegalArgumentException("Unsupported conversion: " + sourceStream.getFormat() + " to " + targetEncoding);
+	}
+
+	@Override
+	public AudioInputStream getAudioInputStream(AudioFormat targetFormat, AudioInputStream sourceStream) {
+		AudioFormat sourceFormat = sourceStream.getFormat();
+		if (!isConversionSupported(targetFormat, sourceFormat)) {
+			throw new IllegalArgumentException("Unsupported conversion: " + sourceFormat + " to " + targetFormat);
+		}
+		PolyphaseFilterBank bank = getFilterBank(sourceFormat, targetFormat);
+		AudioFormat format = new AudioFormat(Encoding.PCM_SIGNED, targetFormat.getSampleRate(), sourceFormat.getSampleSizeInBits(),
+				sourceFormat.getChannels(), sourceFormat.getFrameSize(), targetFormat.getSampleRate(), sourceFormat.isBigEndian());
+		long frameLength = sourceStream.getFrameLength();
+		if (frameLength != AudioSystem.NOT_SPECIFIED) frameLength = bank.getOutputLength(frameLength);
+		return new AudioInputStream(new ResamplingInputStream(sourceStream, bank), format, frameLength);
+	}
+
+	static PolyphaseFilterBank getFilterBank(AudioFormat sourceFormat, AudioFormat targetFormat) {
+		return PolyphaseFilterBank.get((int) sourceFormat.getSampleRate(), (int) targetFormat.getSampleRate());
+	}
+
+	static boolean isSupported(AudioFormat format) {
+		int bits = format.getSampleSizeInBits();
+		int channels = format.getChannels();
+		float rate = format.getSampleRate();
+		return Encoding.PCM_SIGNED.equals(format.getEncoding())
+				&& channels > 0 && bits > 0 && bits <= 32 && bits % 8 == 0
+				&& format.getFrameSize() == channels * bits / 8
+				&& rate > 0 && rate == Math.rint(rate);
+	}
+
+}
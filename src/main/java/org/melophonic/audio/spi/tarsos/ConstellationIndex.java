@@ -0,0 +1,207 @@
+package org.melophonic.audio.spi.tarsos;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An inverted index of {@link TarsosFingerprintService} fingerprints,
+ * answering which recordings an excerpt or a copy belongs to without
+ * comparing it to each of them. Every entry of every fingerprint is packed
+ * into one long of (hash, recording, frame), and the longs are kept sorted,
+ * so the recordings sharing a hash are found by binary search. A query
+ * looks up each of its hashes, and each recording found is scored by the
+ * number of hashes agreeing on the same frame offset, as in
+ * {@link TarsosFingerprintService#compareFingerprints}.
+ *
+ * Adding sorts lazily, on the next query. Neither is thread-safe; guard
+ * the index or build it before sharing it.
+ */
+public class ConstellationIndex<K> {
+
+	static final int FRAME_BITS = 20, KEY_BITS = 20;
+	static final long FRAME_MASK = (1L << FRAME_BITS) - 1, KEY_MASK = (1L << KEY_BITS) - 1;
+	static final int HASH_SHIFT = FRAME_BITS + KEY_BITS;
+
+	/** the number of recordings sharing a hash beyond which it is too common to count */
+	public static final int DEFAULT_MAX_POSTINGS = 1000;
+
+	final List<K> keys = new ArrayList<>();
+	final List<Integer> entryCounts = new ArrayList<>();
+	long[] entries = new long[1024];
+	int size = 0;
+	int sorted = 0;
+	int maxPostings = DEFAULT_MAX_POSTINGS;
+
+	/**
+	 * Indexes <code>fingerprint</code> under <code>key</code>. Entries beyond
+	 * frame 2^20, about 9 hours in, are not indexed.
+	 *
+	 * @throws IllegalArgumentException if it is not a constellation fingerprint
+	 * @throws IllegalStateException if the index holds 2^20 recordings
+	 */
+	public void add(K key, byte[] fingerprint) {
+		int count = TarsosFingerprintService.getEntryCount(fingerprint);
+		if (keys.size() > KEY_MASK) throw new IllegalStateException("Index is full");
+		long keyIndex = keys.size();
+		keys.add(key);
+		entryCounts.add(count);
+		if (size + count > entries.length) entries = Arrays.copyOf(entries, Math.max(size + count, entries.length * 2));
+		for (int i = 0; i < count; i++) {
+			int frame = TarsosFingerprintService.getFrame(fingerprint, i);
+			if (frame > FRAME_MASK) continue;
+			entries[size++] = (long) TarsosFingerprintService.getHash(fingerprint, i) << HASH_SHIFT | keyIndex << FRAME_BITS | frame;
+		}
+	}
+
+	/**
+	 * @return the recordings sharing at least <code>minScore</code> hashes
+	 * at one offset with <code>fingerprint</code>, best first, at most
+	 * <code>maxResults</code> of them
+	 */
+	public List<Match<K>> query(byte[] fingerprint, int minScore, int maxResults) {
+		sort();
+		int count = TarsosFingerprintService.getEntryCount(fingerprint);
+		// the votes, packed as (recording, offset) so that sorting groups them
+		long[] votes = new long[Math.max(16, count)];
+		int nVotes = 0;
+		for (int i = 0; i < count; i++) {
+			long hash = TarsosFingerprintService.getHash(fingerprint, i);
+			int from = search(hash << HASH_SHIFT), to = search((hash + 1) << HASH_SHIFT);
+			if (to - from > maxPostings) continue;
+			int frame = TarsosFingerprintService.getFrame(fingerprint, i);
+			if (frame > FRAME_MASK) continue;
+			for (int p = from; p < to; p++) {
+				long keyIndex = entries[p] >>> FRAME_BITS & KEY_MASK;
+				// offsets are within +-2^20, kept positive for sorting
+				long offset = (entries[p] & FRAME_MASK) - frame + (1L << FRAME_BITS);
+				if (nVotes == votes.length) votes = Arrays.copyOf(votes, nVotes * 2);
+				votes[nVotes++] = keyIndex << (FRAME_BITS + 1) | offset;
+			}
+		}
+		Arrays.sort(votes, 0, nVotes);
+
+		List<Match<K>> matches = new ArrayList<>();
+		int i = 0;
+		while (i < nVotes) {
+			long keyIndex = votes[i] >>> (FRAME_BITS + 1);
+			int bestScore = 0;
+			long bestOffset = 0;
+			// runs of equal votes within the recording, scored with their neighbours
+			int previousRun = 0;
+			long previousOffset = Long.MIN_VALUE;
+			while (i < nVotes && votes[i] >>> (FRAME_BITS + 1) == keyIndex) {
+				long offset = votes[i] & ((1L << (FRAME_BITS + 1)) - 1);
+				int j = i;
+				while (j < nVotes && votes[j] == votes[i]) j++;
+				int run = j - i;
+				int score = run + (offset - previousOffset == 1 ? previousRun : 0);
+				if (j < nVotes && votes[j] == votes[i] + 1) {
+					int k = j;
+					while (k < nVotes && votes[k] == votes[j]) k++;
+					score += k - j;
+				}
+				if (score > bestScore) {
+					bestScore = score;
+					bestOffset = offset;
+				}
+				previousRun = run;
+				previousOffset = offset;
+				i = j;
+			}
+			if (bestScore >= minScore) {
+				int frame = (int) (bestOffset - (1L << FRAME_BITS));
+				int shorter = Math.min(count, entryCounts.get((int) keyIndex));
+				matches.add(new Match<>(keys.get((int) keyIndex), bestScore, TarsosFingerprintService.getSimilarity(bestScore, shorter), frame));
+			}
+		}
+		Collections.sort(matches, (a, b) -> Integer.compare(b.score, a.score));
+		return matches.size() > maxResults ? new ArrayList<>(matches.subList(0, maxResults)) : matches;
+	}
+
+	/**
+	 * @return the first position of an entry not less than <code>key</code>
+	 */
+	int search(long key) {
+		int low = 0, high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (entries[mid] < key) low = mid + 1;
+			else high = mid;
+		}
+		return low;
+	}
+
+	void sort() {
+		if (sorted == size) return;
+		Arrays.sort(entries, 0, size);
+		sorted = size;
+	}
+
+	public int size() {
+		return keys.size();
+	}
+
+	public long getEntryCount() {
+		return size;
+	}
+
+	public void setMaxPostings(int maxPostings) {
+		this.maxPostings = maxPostings;
+	}
+
+	/**
+	 * A recording found by a query.
+	 */
+	public static class Match<K> {
+
+		final K key;
+		final int score;
+		final double similarity;
+		final int frame;
+
+		Match(K key, int score, double similarity, int frame) {
+			this.key = key;
+			this.score = score;
+			this.similarity = similarity;
+			this.frame = frame;
+		}
+
+		public K getKey() {
+			return key;
+		}
+
+		/**
+		 * @return the number of hashes agreeing on the offset
+		 */
+		public int getScore() {
+			return score;
+		}
+
+		/**
+		 * @return the score relative to the entries of the shorter fingerprint, at most 1
+		 */
+		public double getSimilarity() {
+			return similarity;
+		}
+
+		/**
+		 * @return the frame of the indexed recording at which the query starts
+		 */
+		public int getFrame() {
+			return frame;
+		}
+
+		public double getTime() {
+			return TarsosFingerprintService.toSeconds(frame);
+		}
+
+		@Override
+		public String toString() {
+			return "Match [key=" + key + ", score=" + score + ", similarity=" + similarity + ", frame=" + frame + "]";
+		}
+
+	}
+
+}
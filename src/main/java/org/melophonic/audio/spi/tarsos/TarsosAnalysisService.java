@@ -1,10 +1,19 @@
 package org.melophonic.audio.spi.tarsos;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.URI;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.TreeMap;
 
 import org.melophonic.audio.spi.AnalysisService;
+import org.melophonic.audio.spi.LevelSummary;
+import org.melophonic.audio.util.AsyncTasks;
+import org.melophonic.audio.util.FeatureFile;
+import org.melophonic.audio.util.Instrumentation;
+import org.melophonic.audio.util.MappedWaveFile;
+import org.melophonic.audio.util.PcmSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -12,6 +21,9 @@ import be.tarsos.dsp.AudioDispatcher;
 import be.tarsos.dsp.AudioEvent;
 import be.tarsos.dsp.AudioProcessor;
 import be.tarsos.dsp.io.jvm.AudioDispatcherFactory;
+import be.tarsos.dsp.io.jvm.JVMAudioInputStream;
+import be.tarsos.dsp.util.fft.FFT;
+import be.tarsos.dsp.util.fft.HannWindow;
 
 /**
  * Adapted from an example in the TarsosDSP library
@@ -22,6 +34,12 @@ public class TarsosAnalysisService implements AnalysisService {
 	
 	public final static int DEFAULT_LOUDNESS_SIZE = 2048;
 	public final static int DEFAULT_LOUDNESS_OVERLAP = 0;
+	
+	public final static int DEFAULT_FEATURE_SIZE = 2048;
+	public final static int DEFAULT_FEATURE_OVERLAP = 1024;
+	
+	/** the component name of the stages reported to {@link Instrumentation} */
+	public final static String COMPONENT = "analysis";
 
 	@Override
 	public Map<Double, Double> getSoundPressureLevels(URI audioUri, boolean linear, double silenceThresholdDb) throws Exception {
@@ -29,14 +47,299 @@ public class TarsosAnalysisService implements AnalysisService {
 	}
 
 	public Map<Double, Double> getSoundPressureLevels(URI audioUri, boolean linear, double silenceThresholdDb, int size, int overlap) throws Exception {
-		AudioDispatcher dispatcher = AudioDispatcherFactory.fromURL(audioUri.toURL(), size, overlap);
+		Instrumentation.Timer total = Instrumentation.timer();
+		total.start();
+		return getSoundPressureLevels(getDispatcher(audioUri, size, overlap), linear, silenceThresholdDb, total);
+	}
+	
+	@Override
+	public Map<Double, Double> getSoundPressureLevels(PcmSource source, boolean linear, double silenceThresholdDb) throws Exception {
+		return getSoundPressureLevels(source, linear, silenceThresholdDb, DEFAULT_LOUDNESS_SIZE, DEFAULT_LOUDNESS_OVERLAP);
+	}
+
+	public Map<Double, Double> getSoundPressureLevels(PcmSource source, boolean linear, double silenceThresholdDb, int size, int overlap) throws Exception {
+		Instrumentation.Timer total = Instrumentation.timer();
+		total.start();
+		return getSoundPressureLevels(getDispatcher(source, size, overlap), linear, silenceThresholdDb, total);
+	}
+	
+	/**
+	 * @param total the started timer of the whole analysis
+	 */
+	Map<Double, Double> getSoundPressureLevels(AudioDispatcher dispatcher, boolean linear, double silenceThresholdDb, Instrumentation.Timer total) throws InterruptedException {
 		LoudnessProcessor loudnessProcessor = new LoudnessProcessor(linear, silenceThresholdDb);
-		dispatcher.addAudioProcessor(loudnessProcessor.silenceDetecor);
-		dispatcher.addAudioProcessor(loudnessProcessor);
-		dispatcher.run();
+		analyzeLoudness(dispatcher, loudnessProcessor.silenceDetecor, loudnessProcessor, total);
 		return loudnessProcessor;
 	}
 	
+	@Override
+	public Map<Double, LevelSummary> getBucketedSoundPressureLevels(URI audioUri, boolean linear, double silenceThresholdDb, double resolution, double percentile) throws Exception {
+		Instrumentation.Timer total = Instrumentation.timer();
+		total.start();
+		BucketedLoudnessProcessor processor = new BucketedLoudnessProcessor(linear, silenceThresholdDb, resolution, percentile);
+		analyzeLoudness(getDispatcher(audioUri, DEFAULT_LOUDNESS_SIZE, DEFAULT_LOUDNESS_OVERLAP), processor.silenceDetecor, processor, total);
+		return processor.finish();
+	}
+	
+	@Override
+	public Map<Double, LevelSummary> getBucketedSoundPressureLevels(PcmSource source, boolean linear, double silenceThresholdDb, double resolution, double percentile) throws Exception {
+		Instrumentation.Timer total = Instrumentation.timer();
+		total.start();
+		BucketedLoudnessProcessor processor = new BucketedLoudnessProcessor(linear, silenceThresholdDb, resolution, percentile);
+		analyzeLoudness(getDispatcher(source, DEFAULT_LOUDNESS_SIZE, DEFAULT_LOUDNESS_OVERLAP), processor.silenceDetecor, processor, total);
+		return processor.finish();
+	}
+	
+	/**
+	 * Runs the silence detector and then <code>loudnessProcessor</code> over every buffer.
+	 * 
+	 * @param total the started timer of the whole analysis
+	 */
+	static void analyzeLoudness(AudioDispatcher dispatcher, SilenceDetector silenceDetector, AudioProcessor loudnessProcessor, Instrumentation.Timer total) throws InterruptedException {
+		dispatcher.addAudioProcessor(new InterruptionProcessor(dispatcher));
+		TimingProcessor timing = TimingProcessor.time(dispatcher, silenceDetector, loudnessProcessor);
+		dispatcher.run();
+		AsyncTasks.checkInterrupted();
+		total.stop();
+		if (timing != null) Instrumentation.record(COMPONENT, "decode", total, "loudness", timing.timer, timing.frames);
+	}
+	
+	@Override
+	public long extractFeatures(URI audioUri, File featureFile) throws Exception {
+		return extractFeatures(audioUri, featureFile, DEFAULT_FEATURE_SIZE, DEFAULT_FEATURE_OVERLAP);
+	}
+
+	public long extractFeatures(URI audioUri, File featureFile, int size, int overlap) throws Exception {
+		Instrumentation.Timer total = Instrumentation.timer();
+		total.start();
+		long rows = extractFeatures(getDispatcher(audioUri, size, overlap), featureFile, size, overlap, total);
+		log.debug("extracted {} feature frames from {}", rows, audioUri);
+		return rows;
+	}
+	
+	@Override
+	public long extractFeatures(PcmSource source, File featureFile) throws Exception {
+		return extractFeatures(source, featureFile, DEFAULT_FEATURE_SIZE, DEFAULT_FEATURE_OVERLAP);
+	}
+
+	public long extractFeatures(PcmSource source, File featureFile, int size, int overlap) throws Exception {
+		Instrumentation.Timer total = Instrumentation.timer();
+		total.start();
+		return extractFeatures(getDispatcher(source, size, overlap), featureFile, size, overlap, total);
+	}
+	
+	/**
+	 * @param total the started timer of the whole extraction
+	 */
+	long extractFeatures(AudioDispatcher dispatcher, File featureFile, int size, int overlap, Instrumentation.Timer total) throws IOException, InterruptedException {
+		float sampleRate = dispatcher.getFormat().getSampleRate();
+		try (FeatureFile.Writer writer = new FeatureFile.Writer(featureFile, Feature.columnNames(), sampleRate, size - overlap)) {
+			FeatureProcessor featureProcessor = new FeatureProcessor(writer, size, sampleRate);
+			dispatcher.addAudioProcessor(new InterruptionProcessor(dispatcher));
+			TimingProcessor timing = TimingProcessor.time(dispatcher, featureProcessor);
+			dispatcher.run();
+			AsyncTasks.checkInterrupted();
+			total.stop();
+			if (timing != null) Instrumentation.record(COMPONENT, "decode", total, "features", timing.timer, timing.frames);
+			if (featureProcessor.error != null) throw featureProcessor.error;
+			return writer.getRowCount();
+		}
+	}
+	
+	/**
+	 * @return a dispatcher over the memory-mapped data for local WAVE files,
+	 * or over <code>AudioSystem</code> for anything else
+	 */
+	static AudioDispatcher getDispatcher(URI audioUri, int size, int overlap) throws Exception {
+		MappedWaveFile wave = MappedWaveFile.openIfWave(audioUri);
+		// the dispatcher closes the stream, and with it the mapping, when it is done
+		if (wave != null) return new AudioDispatcher(new JVMAudioInputStream(wave.getAudioInputStream(true)), size, overlap);
+		return AudioDispatcherFactory.fromURL(audioUri.toURL(), size, overlap);
+	}
+
+	/**
+	 * @return a dispatcher over the samples of <code>source</code> as 16 bit
+	 * PCM, the same input a 16 bit file gives the dispatcher
+	 */
+	static AudioDispatcher getDispatcher(PcmSource source, int size, int overlap) {
+		return new AudioDispatcher(new JVMAudioInputStream(source.getAudioInputStream(16)), size, overlap);
+	}
+
+	/**
+	 * Stops the dispatcher once the analyzing thread is interrupted, such as
+	 * by the cancellation of an asynchronous analysis.
+	 */
+	static class InterruptionProcessor implements AudioProcessor {
+		
+		final AudioDispatcher dispatcher;
+		
+		InterruptionProcessor(AudioDispatcher dispatcher) {
+			this.dispatcher = dispatcher;
+		}
+		
+		@Override
+		public boolean process(AudioEvent audioEvent) {
+			if (!Thread.currentThread().isInterrupted()) return true;
+			dispatcher.stop();
+			return false;
+		}
+		
+		@Override
+		public void processingFinished() {}
+		
+	}
+	
+	/**
+	 * Times the processors between its start and stop markers, so that the
+	 * time spent in them can be told from the time the dispatcher spends
+	 * reading and decoding.
+	 */
+	static class TimingProcessor implements AudioProcessor {
+		
+		final Instrumentation.Timer timer = Instrumentation.timer();
+		long frames = 0;
+		
+		/**
+		 * Adds <code>processors</code> to <code>dispatcher</code>, timed if instrumentation is enabled.
+		 * 
+		 * @return the stop marker holding the timings, or null if not timed
+		 */
+		static TimingProcessor time(AudioDispatcher dispatcher, AudioProcessor... processors) {
+			if (!Instrumentation.isEnabled()) {
+				for (AudioProcessor processor : processors) dispatcher.addAudioProcessor(processor);
+				return null;
+			}
+			TimingProcessor stop = new TimingProcessor();
+			dispatcher.addAudioProcessor(new AudioProcessor() {
+				
+				@Override
+				public boolean process(AudioEvent audioEvent) {
+					stop.timer.start();
+					return true;
+				}
+				
+				@Override
+				public void processingFinished() {}
+				
+			});
+			for (AudioProcessor processor : processors) dispatcher.addAudioProcessor(processor);
+			dispatcher.addAudioProcessor(stop);
+			return stop;
+		}
+		
+		@Override
+		public boolean process(AudioEvent audioEvent) {
+			timer.stop();
+			frames += audioEvent.getBufferSize() - audioEvent.getOverlap();
+			return true;
+		}
+		
+		@Override
+		public void processingFinished() {}
+		
+	}
+	
+	/**
+	 * Computes all {@link AnalysisService.Feature}s from one FFT per buffer and
+	 * appends them as a row to the feature file.
+	 */
+	static class FeatureProcessor implements AudioProcessor {
+		
+		final static double ROLLOFF = 0.85;
+		final static double MIN_CHROMA_HZ = 27.5;
+		final static double MAX_CHROMA_HZ = 4186.0;
+		
+		final FeatureFile.Writer writer;
+		final int size;
+		final FFT fft;
+		final float[] transform;
+		final float[] magnitudes;
+		final float[] previous;
+		final float[] frequencies;
+		final int[] pitchClasses;
+		final float[] chroma = new float[12];
+		final float[] row = new float[Feature.values().length];
+		IOException error;
+		
+		public FeatureProcessor(FeatureFile.Writer writer, int size, float sampleRate) {
+			this.writer = writer;
+			this.size = size;
+			this.fft = new FFT(size, new HannWindow());
+			this.transform = new float[size];
+			this.magnitudes = new float[size / 2];
+			this.previous = new float[size / 2];
+			this.frequencies = new float[size / 2];
+			this.pitchClasses = new int[size / 2];
+			for (int k = 0; k < frequencies.length; k++) {
+				double hz = k * (double) sampleRate / size;
+				frequencies[k] = (float) hz;
+				pitchClasses[k] = hz < MIN_CHROMA_HZ || hz > MAX_CHROMA_HZ ? -1 : Math.floorMod((int) Math.round(12 * Math.log(hz / 440.0) / Math.log(2)) + 9, 12);
+			}
+		}
+
+		@Override
+		public boolean process(AudioEvent audioEvent) {
+			if (error != null) return false;
+			float[] buffer = audioEvent.getFloatBuffer();
+			int n = Math.min(buffer.length, size);
+			
+			int crossings = 0;
+			for (int i = 1; i < n; i++) {
+				if ((buffer[i - 1] >= 0) != (buffer[i] >= 0)) crossings++;
+			}
+			
+			System.arraycopy(buffer, 0, transform, 0, n);
+			for (int i = n; i < size; i++) transform[i] = 0;
+			fft.forwardTransform(transform);
+			fft.modulus(transform, magnitudes);
+			
+			double magnitudeSum = 0, weightedSum = 0, energy = 0, flux = 0;
+			Arrays.fill(chroma, 0);
+			for (int k = 0; k < magnitudes.length; k++) {
+				float m = magnitudes[k];
+				magnitudeSum += m;
+				weightedSum += m * frequencies[k];
+				energy += m * m;
+				float rise = m - previous[k];
+				if (rise > 0) flux += rise * rise;
+				if (pitchClasses[k] >= 0) chroma[pitchClasses[k]] += m * m;
+				previous[k] = m;
+			}
+			
+			double rolloff = 0, cumulative = 0;
+			for (int k = 0; k < magnitudes.length; k++) {
+				cumulative += magnitudes[k] * magnitudes[k];
+				if (cumulative >= ROLLOFF * energy) {
+					rolloff = frequencies[k];
+					break;
+				}
+			}
+			
+			float maxChroma = 0;
+			for (float c : chroma) maxChroma = Math.max(maxChroma, c);
+			
+			row[Feature.SPECTRAL_CENTROID.ordinal()] = magnitudeSum > 0 ? (float) (weightedSum / magnitudeSum) : 0f;
+			row[Feature.SPECTRAL_ROLLOFF.ordinal()] = (float) rolloff;
+			row[Feature.SPECTRAL_FLUX.ordinal()] = (float) Math.sqrt(flux);
+			row[Feature.ZERO_CROSSING_RATE.ordinal()] = n > 1 ? crossings / (float) (n - 1) : 0f;
+			for (int c = 0; c < 12; c++) {
+				row[Feature.CHROMA_C.ordinal() + c] = maxChroma > 0 ? chroma[c] / maxChroma : 0f;
+			}
+			
+			try {
+				writer.append(row);
+			} catch (IOException e) {
+				error = e;
+				return false;
+			}
+			return true;
+		}
+
+		@Override
+		public void processingFinished() {}
+		
+	}
+	
 	static class LoudnessProcessor extends TreeMap<Double, Double> implements AudioProcessor {
 		
 		private static final long serialVersionUID = 5409110729077631745L;
@@ -63,6 +366,32 @@ public class TarsosAnalysisService implements AnalysisService {
 		
 	}
 	
+	/**
+	 * Aggregates the levels into buckets as the dispatcher reports them,
+	 * rather than collecting every level as {@link LoudnessProcessor} does.
+	 */
+	static class BucketedLoudnessProcessor extends LevelSummary.Aggregator implements AudioProcessor {
+		
+		final boolean linear;
+		final SilenceDetector silenceDetecor;
+		
+		public BucketedLoudnessProcessor(boolean linear, double silenceThresholdDb, double resolution, double percentile) {
+			super(linear, resolution, percentile);
+			this.linear = linear;
+			this.silenceDetecor = new SilenceDetector(silenceThresholdDb, false);
+		}
+		
+		@Override
+		public void processingFinished() {}
+		
+		@Override
+		public boolean process(AudioEvent audioEvent) {
+			add(audioEvent.getTimeStamp(), linear ? silenceDetecor.currentLinearSPL() : silenceDetecor.currentSPL());
+			return true;
+		}
+		
+	}
+	
 	/**
 	 * The continuing silence detector does not break the audio processing pipeline when silence is detected.
 	 */
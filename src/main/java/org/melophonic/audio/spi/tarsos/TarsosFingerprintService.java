@@ -0,0 +1,387 @@
+package org.melophonic.audio.spi.tarsos;
+
+import java.io.File;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import org.melophonic.audio.spi.FingerprintService;
+import org.melophonic.audio.spi.tarsos.TarsosAnalysisService.InterruptionProcessor;
+import org.melophonic.audio.spi.tarsos.TarsosAnalysisService.TimingProcessor;
+import org.melophonic.audio.util.AsyncTasks;
+import org.melophonic.audio.util.AudioConverter;
+import org.melophonic.audio.util.ConversionPlanner;
+import org.melophonic.audio.util.Instrumentation;
+import org.melophonic.audio.util.MappedWaveFile;
+import org.melophonic.audio.util.PcmSource;
+
+import be.tarsos.dsp.AudioDispatcher;
+import be.tarsos.dsp.AudioEvent;
+import be.tarsos.dsp.AudioProcessor;
+import be.tarsos.dsp.io.jvm.JVMAudioInputStream;
+import be.tarsos.dsp.util.fft.FFT;
+import be.tarsos.dsp.util.fft.HannWindow;
+
+/**
+ * Fingerprints audio by the constellation of its spectral peaks, streamed
+ * through a TarsosDSP <code>AudioDispatcher</code> as 8 kHz mono. Each peak
+ * is paired with the next few peaks shortly after it, and each pair hashed
+ * to an int of (anchor bin, target bin, frame delta). A fingerprint is the
+ * list of (hash, anchor frame) entries sorted by hash, so two fingerprints
+ * are compared by merging them, and many are searched by looking their
+ * hashes up in a {@link ConstellationIndex}. Either way, the matching
+ * entries vote for the frame offset between the two recordings, and the
+ * share of entries agreeing on the best offset is the similarity.
+ *
+ * Unlike the whole-spectrum comparison of musicg, the peaks survive noise,
+ * lossy encoding and equalization, and an excerpt matches the recording it
+ * was cut from.
+ */
+public class TarsosFingerprintService implements FingerprintService {
+
+	/** the component name of the stages reported to {@link Instrumentation} */
+	public static final String COMPONENT = "constellation";
+
+	public static final float SAMPLE_RATE = 8000F;
+	public static final int FRAME_SIZE = 1024;
+	public static final int HOP_SIZE = 256;
+
+	/** the first bytes of a fingerprint, followed by the number of entries */
+	static final int MAGIC = 0x54465031;
+	static final int HEADER_SIZE = 8;
+	static final int ENTRY_SIZE = 8;
+
+	/** the bins searched for peaks, about 80 Hz to 3.5 kHz */
+	static final int MIN_BIN = 10, MAX_BIN = 448;
+	/** a peak is the maximum of the frames and bins this close to it */
+	static final int PEAK_FRAMES = 3, PEAK_BINS = 12;
+	static final int PEAKS_PER_FRAME = 3;
+	/** how far a peak must rise above the mean log magnitude of its frame */
+	static final float PEAK_THRESHOLD = (float) Math.log(4);
+	/** the log magnitude below which a frame is silent */
+	static final float SILENCE = (float) Math.log(1E-3);
+
+	/** the number of later peaks each peak is paired with, and how far they may be */
+	static final int FAN_OUT = 5, MAX_FRAME_DELTA = 63, MAX_BIN_DELTA = 127;
+
+	@Override
+	public byte[] calculateFingerprint(URI audioUri) throws Exception {
+		return calculateFingerprint(open(audioUri));
+	}
+
+	@Override
+	public byte[] calculateFingerprint(PcmSource source) throws Exception {
+		return calculateFingerprint(source.getAudioInputStream(16));
+	}
+
+	/**
+	 * Fingerprints <code>stream</code>, which is converted to 16 bit mono at
+	 * {@link #SAMPLE_RATE} on the way and closed.
+	 */
+	public byte[] calculateFingerprint(AudioInputStream stream) throws Exception {
+		Instrumentation.Timer total = Instrumentation.timer();
+		total.start();
+		AudioConverter.Parameters params = new AudioConverter.Parameters(AudioFormat.Encoding.PCM_SIGNED, null, SAMPLE_RATE, 16);
+		params.setChannels(1);
+		params.setBigEndian(false);
+		params.setEndianessDesired(true);
+		AudioDispatcher dispatcher = new AudioDispatcher(new JVMAudioInputStream(AudioConverter.getConvertedStream(stream, params)), FRAME_SIZE,
+				FRAME_SIZE - HOP_SIZE);
+		ConstellationProcessor constellation = new ConstellationProcessor();
+		dispatcher.addAudioProcessor(new InterruptionProcessor(dispatcher));
+		TimingProcessor timing = TimingProcessor.time(dispatcher, constellation);
+		try {
+			dispatcher.run();
+		} finally {
+			stream.close();
+		}
+		AsyncTasks.checkInterrupted();
+		byte[] fingerprint = constellation.toFingerprint();
+		total.stop();
+		if (timing != null) Instrumentation.record(COMPONENT, "decode", total, "peaks", timing.timer, timing.frames);
+		return fingerprint;
+	}
+
+	/**
+	 * @return a stream over the memory-mapped data of local WAVE files, or
+	 * from the readers of the {@link ConversionPlanner} for anything else
+	 */
+	static AudioInputStream open(URI audioUri) throws Exception {
+		MappedWaveFile wave = MappedWaveFile.openIfWave(audioUri);
+		if (wave != null) return wave.getAudioInputStream(true);
+		if ("file".equals(audioUri.getScheme())) return ConversionPlanner.getInstance().getAudioInputStream(new File(audioUri));
+		return AudioSystem.getAudioInputStream(audioUri.toURL());
+	}
+
+	@Override
+	public FingerprintComparison compareFingerprints(byte[] a, byte[] b) throws Exception {
+		Instrumentation.Stage stage = Instrumentation.start(COMPONENT, "compare");
+		int countA = getEntryCount(a), countB = getEntryCount(b);
+		int[] votes = new int[getMaxFrame(a) + getMaxFrame(b) + 1];
+		int zero = getMaxFrame(b);
+		// both are sorted by hash: every pair of entries with equal hashes votes for their offset
+		int i = 0, j = 0;
+		while (i < countA && j < countB) {
+			int hashA = getHash(a, i), hashB = getHash(b, j);
+			if (hashA < hashB) {
+				i++;
+			} else if (hashA > hashB) {
+				j++;
+			} else {
+				int endA = i, endB = j;
+				while (endA < countA && getHash(a, endA) == hashA) endA++;
+				while (endB < countB && getHash(b, endB) == hashB) endB++;
+				for (int x = i; x < endA; x++) {
+					int frame = getFrame(a, x) + zero;
+					for (int y = j; y < endB; y++) votes[frame - getFrame(b, y)]++;
+				}
+				i = endA;
+				j = endB;
+			}
+		}
+		int best = 0, bestScore = 0;
+		for (int d = 0; d < votes.length; d++) {
+			int score = getScore(votes, d);
+			if (score > bestScore || (score == bestScore && votes[d] > votes[best])) {
+				best = d;
+				bestScore = score;
+			}
+		}
+		Comparison comparison = new Comparison(getSimilarity(bestScore, Math.min(countA, countB)), best - zero);
+		stage.end(-1);
+		return comparison;
+	}
+
+	/**
+	 * @return the votes for an offset and its neighbours, which catch the
+	 * entries whose peaks moved by a frame
+	 */
+	static int getScore(int[] votes, int offset) {
+		int score = votes[offset];
+		if (offset > 0) score += votes[offset - 1];
+		if (offset + 1 < votes.length) score += votes[offset + 1];
+		return score;
+	}
+
+	static double getSimilarity(int score, int entries) {
+		return entries == 0 ? 0 : Math.min(1.0, score / (double) entries);
+	}
+
+	/**
+	 * @return the number of entries of a fingerprint
+	 * @throws IllegalArgumentException if it was not calculated by this service
+	 */
+	public static int getEntryCount(byte[] fingerprint) {
+		if (fingerprint.length < HEADER_SIZE || ByteBuffer.wrap(fingerprint).getInt(0) != MAGIC) {
+			throw new IllegalArgumentException("Not a constellation fingerprint");
+		}
+		int count = ByteBuffer.wrap(fingerprint).getInt(4);
+		if (count < 0 || fingerprint.length != HEADER_SIZE + count * ENTRY_SIZE) throw new IllegalArgumentException("Truncated constellation fingerprint");
+		return count;
+	}
+
+	public static int getHash(byte[] fingerprint, int entry) {
+		return getInt(fingerprint, HEADER_SIZE + entry * ENTRY_SIZE);
+	}
+
+	public static int getFrame(byte[] fingerprint, int entry) {
+		return getInt(fingerprint, HEADER_SIZE + entry * ENTRY_SIZE + 4);
+	}
+
+	static int getMaxFrame(byte[] fingerprint) {
+		int max = 0;
+		for (int i = getEntryCount(fingerprint) - 1; i >= 0; i--) max = Math.max(max, getFrame(fingerprint, i));
+		return max;
+	}
+
+	static int getInt(byte[] b, int offset) {
+		return (b[offset] & 0xff) << 24 | (b[offset + 1] & 0xff) << 16 | (b[offset + 2] & 0xff) << 8 | (b[offset + 3] & 0xff);
+	}
+
+	/**
+	 * @return the hash of a pair of peaks, 24 bits wide
+	 */
+	static int hash(int anchorBin, int targetBin, int frameDelta) {
+		return anchorBin << 15 | targetBin << 6 | frameDelta;
+	}
+
+	/**
+	 * @return the time in seconds of a frame, or of an offset in frames
+	 */
+	public static double toSeconds(int frames) {
+		return frames * HOP_SIZE / (double) SAMPLE_RATE;
+	}
+
+	static class Comparison implements FingerprintComparison {
+
+		final double similarity;
+		final int frame;
+
+		Comparison(double similarity, int frame) {
+			this.similarity = similarity;
+			this.frame = frame;
+		}
+
+		@Override
+		public double getSimilarity() {
+			return similarity;
+		}
+
+		@Override
+		public double getMostSimilarTime() {
+			return toSeconds(frame);
+		}
+
+		@Override
+		public int getMostSimilarFrame() {
+			return frame;
+		}
+
+		@Override
+		public String toString() {
+			return "Comparison [similarity=" + similarity + ", frame=" + frame + "]";
+		}
+
+	}
+
+	/**
+	 * Finds the peaks of each frame once the frames after it are known,
+	 * pairs them with the peaks that follow and collects the hashes.
+	 */
+	static class ConstellationProcessor implements AudioProcessor {
+
+		static final int WINDOW = 2 * PEAK_FRAMES + 1;
+
+		final FFT fft = new FFT(FRAME_SIZE, new HannWindow());
+		final float[] transform = new float[FRAME_SIZE];
+		final float[] magnitudes = new float[FRAME_SIZE / 2];
+		/** the log magnitudes of the last frames, and their maxima over the neighbouring bins */
+		final float[][] spectra = new float[WINDOW][MAX_BIN];
+		final float[][] maxima = new float[WINDOW][MAX_BIN];
+		final float[] thresholds = new float[WINDOW];
+		final int[] peakBins = new int[PEAKS_PER_FRAME];
+		final float[] peakValues = new float[PEAKS_PER_FRAME];
+		final ArrayDeque<Anchor> anchors = new ArrayDeque<>();
+		int frames = 0;
+		long[] entries = new long[1024];
+		int size = 0;
+
+		@Override
+		public boolean process(AudioEvent audioEvent) {
+			float[] buffer = audioEvent.getFloatBuffer();
+			int n = Math.min(buffer.length, FRAME_SIZE);
+			System.arraycopy(buffer, 0, transform, 0, n);
+			Arrays.fill(transform, n, FRAME_SIZE, 0f);
+			fft.forwardTransform(transform);
+			fft.modulus(transform, magnitudes);
+
+			int slot = frames % WINDOW;
+			float[] spectrum = spectra[slot];
+			double sum = 0;
+			for (int k = MIN_BIN; k < MAX_BIN; k++) {
+				spectrum[k] = (float) Math.log(magnitudes[k] + 1E-9);
+				sum += spectrum[k];
+			}
+			thresholds[slot] = Math.max((float) (sum / (MAX_BIN - MIN_BIN)) + PEAK_THRESHOLD, SILENCE);
+			maxOverBins(spectrum, maxima[slot]);
+			frames++;
+			if (frames > PEAK_FRAMES) findPeaks(frames - 1 - PEAK_FRAMES);
+			return true;
+		}
+
+		@Override
+		public void processingFinished() {
+			for (int frame = Math.max(0, frames - PEAK_FRAMES); frame < frames; frame++) findPeaks(frame);
+		}
+
+		static void maxOverBins(float[] spectrum, float[] maxima) {
+			for (int k = MIN_BIN; k < MAX_BIN; k++) {
+				float max = Float.NEGATIVE_INFINITY;
+				for (int j = Math.max(MIN_BIN, k - PEAK_BINS), end = Math.min(MAX_BIN, k + PEAK_BINS + 1); j < end; j++) max = Math.max(max, spectrum[j]);
+				maxima[k] = max;
+			}
+		}
+
+		/**
+		 * Keeps the strongest bins of <code>frame</code> that are the maximum
+		 * of their neighbourhood in the frames seen so far.
+		 */
+		void findPeaks(int frame) {
+			int slot = frame % WINDOW;
+			float[] spectrum = spectra[slot];
+			int peaks = 0;
+			for (int k = MIN_BIN; k < MAX_BIN; k++) {
+				float value = spectrum[k];
+				if (value < thresholds[slot] || value < maxima[slot][k]) continue;
+				boolean peak = true;
+				for (int f = Math.max(0, frame - PEAK_FRAMES), end = Math.min(frames, frame + PEAK_FRAMES + 1); f < end && peak; f++) {
+					if (f != frame && maxima[f % WINDOW][k] >= value) peak = false;
+				}
+				if (!peak) continue;
+				// insertion into the strongest peaks so far
+				int p = Math.min(peaks, PEAKS_PER_FRAME - 1);
+				if (peaks == PEAKS_PER_FRAME && value <= peakValues[p]) continue;
+				while (p > 0 && peakValues[p - 1] < value) {
+					peakValues[p] = peakValues[p - 1];
+					peakBins[p] = peakBins[p - 1];
+					p--;
+				}
+				peakValues[p] = value;
+				peakBins[p] = k;
+				if (peaks < PEAKS_PER_FRAME) peaks++;
+			}
+			// pair in order of frequency, so that the hashes do not depend on the relative strength of the peaks
+			Arrays.sort(peakBins, 0, peaks);
+			for (int p = 0; p < peaks; p++) addPeak(frame, peakBins[p]);
+		}
+
+		void addPeak(int frame, int bin) {
+			for (Iterator<Anchor> i = anchors.iterator(); i.hasNext();) {
+				Anchor anchor = i.next();
+				int delta = frame - anchor.frame;
+				if (delta > MAX_FRAME_DELTA) {
+					i.remove();
+					continue;
+				}
+				if (delta == 0 || Math.abs(bin - anchor.bin) > MAX_BIN_DELTA) continue;
+				add(hash(anchor.bin, bin, delta), anchor.frame);
+				if (++anchor.pairs == FAN_OUT) i.remove();
+			}
+			anchors.add(new Anchor(frame, bin));
+		}
+
+		void add(int hash, int frame) {
+			if (size == entries.length) entries = Arrays.copyOf(entries, size * 2);
+			entries[size++] = (long) hash << 32 | frame;
+		}
+
+		byte[] toFingerprint() {
+			Arrays.sort(entries, 0, size);
+			ByteBuffer fingerprint = ByteBuffer.allocate(HEADER_SIZE + size * ENTRY_SIZE);
+			fingerprint.putInt(MAGIC).putInt(size);
+			for (int i = 0; i < size; i++) fingerprint.putLong(entries[i]);
+			return fingerprint.array();
+		}
+
+	}
+
+	static class Anchor {
+
+		final int frame;
+		final int bin;
+		int pairs;
+
+		Anchor(int frame, int bin) {
+			this.frame = frame;
+			this.bin = bin;
+		}
+
+	}
+
+}
@@ -0,0 +1,195 @@
+package org.melophonic.audio.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs blocking service calls as <code>CompletableFuture</code>s. The
+ * futures returned by {@link #supply} can be cancelled or timed out while
+ * the call runs: its thread is interrupted, which the decoding loops of this
+ * library check between buffers, so an abandoned request stops using CPU.
+ *
+ * The default executor runs every task on its own virtual thread when the
+ * runtime has them (Java 21 and later), so thousands of concurrent requests
+ * waiting on I/O cost no platform threads. On older runtimes it is a fixed
+ * pool of daemon threads, sized by the system property
+ * <code>org.melophonic.audio.async.threads</code> (the number of
+ * processors by default), with an unbounded queue.
+ */
+public final class AsyncTasks {
+
+	final static Logger log = LoggerFactory.getLogger(AsyncTasks.class);
+
+	public static final String THREADS_PROPERTY = "org.melophonic.audio.async.threads";
+
+	static volatile Executor defaultExecutor;
+
+	private AsyncTasks() {}
+
+	/**
+	 * @return the executor used by the service methods without an executor argument
+	 */
+	public static Executor getDefaultExecutor() {
+		Executor executor = defaultExecutor;
+		if (executor == null) {
+			synchronized (AsyncTasks.class) {
+				executor = defaultExecutor;
+				if (executor == null) defaultExecutor = executor = createDefaultExecutor();
+			}
+		}
+		return executor;
+	}
+
+	/**
+	 * Replaces the default executor. The previous one is not shut down.
+	 */
+	public static void setDefaultExecutor(Executor executor) {
+		defaultExecutor = executor;
+	}
+
+	static ExecutorService createDefaultExecutor() {
+		ExecutorService virtual = newVirtualThreadExecutor();
+		if (virtual != null) return virtual;
+		int threads = Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+		AtomicInteger count = new AtomicInteger();
+		return Executors.newFixedThreadPool(threads, r -> {
+			Thread thread = new Thread(r, "audio-async-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * @return an executor starting a virtual thread per task, or null if the runtime has no virtual threads
+	 */
+	public static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (NoSuchMethodException e) {
+			return null;
+		} catch (Exception e) {
+			log.debug("Virtual threads not available: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Runs <code>task</code> on <code>executor</code>.
+	 *
+	 * @return a future completed with the result or the exception of the
+	 * task; cancelling it with <code>mayInterruptIfRunning</code> interrupts
+	 * the task
+	 */
+	public static <T> CompletableFuture<T> supply(Callable<T> task, Executor executor) {
+		Task<T> future = new Task<>(task);
+		try {
+			executor.execute(future);
+		} catch (RuntimeException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * Fails <code>future</code> with a <code>TimeoutException</code> if it
+	 * is not done within <code>timeout</code>, interrupting its task if it
+	 * was returned by {@link #supply}.
+	 *
+	 * @return <code>future</code>
+	 */
+	public static <T> CompletableFuture<T> withTimeout(CompletableFuture<T> future, long timeout, TimeUnit unit) {
+		if (future.isDone()) return future;
+		ScheduledFuture<?> expiry = Timeouts.scheduler.schedule(() -> {
+			if (future.completeExceptionally(new TimeoutException("Timed out after " + timeout + " " + unit.toString().toLowerCase()))
+					&& future instanceof Task) {
+				((Task<?>) future).interrupt();
+			}
+		}, timeout, unit);
+		future.whenComplete((result, e) -> expiry.cancel(false));
+		return future;
+	}
+
+	/**
+	 * @throws InterruptedException if the current thread was interrupted, clearing its interrupt status
+	 */
+	public static void checkInterrupted() throws InterruptedException {
+		if (Thread.interrupted()) throw new InterruptedException();
+	}
+
+	/**
+	 * The timer thread, started on the first timeout.
+	 */
+	static class Timeouts {
+
+		static final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+			Thread thread = new Thread(r, "audio-async-timeout");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		static {
+			// thousands of requests finishing in time must not leave their timeouts queued
+			scheduler.setRemoveOnCancelPolicy(true);
+		}
+
+	}
+
+	/**
+	 * A future that runs its task and remembers the running thread, so that
+	 * it can be interrupted once the future is completed from outside.
+	 */
+	static class Task<T> extends CompletableFuture<T> implements Runnable {
+
+		final Callable<T> callable;
+		Thread runner;
+
+		Task(Callable<T> callable) {
+			this.callable = callable;
+		}
+
+		@Override
+		public void run() {
+			synchronized (this) {
+				if (isDone()) return;
+				runner = Thread.currentThread();
+			}
+			try {
+				complete(callable.call());
+			} catch (Throwable e) {
+				completeExceptionally(e);
+			} finally {
+				synchronized (this) {
+					runner = null;
+					// an interrupt meant for this task must not reach the next task of a pooled thread
+					Thread.interrupted();
+				}
+			}
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			if (cancelled && mayInterruptIfRunning) interrupt();
+			return cancelled;
+		}
+
+		synchronized void interrupt() {
+			if (runner != null) runner.interrupt();
+		}
+
+	}
+
+}
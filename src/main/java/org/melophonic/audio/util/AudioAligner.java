@@ -0,0 +1,344 @@
+package org.melophonic.audio.util;
+
+import java.io.IOException;
+import java.net.URI;
+
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import org.melophonic.audio.spi.FingerprintService.FingerprintComparison;
+
+/**
+ * Aligns two versions of the same recording to a fraction of a sample,
+ * starting from the coarse offset of a fingerprint comparison, which is
+ * only as precise as the fingerprint frames. The offset is refined in two
+ * cross-correlations, each computed by FFT in O(n log n) rather than by
+ * sliding one signal along the other:
+ * <ol>
+ * <li>of the amplitude envelopes at 1 kHz, over a window of B and the part
+ * of A within the search radius of the coarse offset, to a millisecond;</li>
+ * <li>of the mono waveforms at the sample rate of A, over the loudest part
+ * of that window and within two envelope blocks of the first estimate.</li>
+ * </ol>
+ * Both peaks are interpolated by a parabola through their neighbours.
+ *
+ * Versions at different sample rates are aligned by reading B at the rate
+ * of A. Neither stage corrects for drift, so the two versions must play at
+ * the same speed.
+ */
+public class AudioAligner {
+
+	/** the component name of the stages reported to {@link Instrumentation} */
+	public static final String COMPONENT = "aligner";
+
+	/** how far in seconds the true offset may be from the coarse one */
+	public static final double DEFAULT_SEARCH_RADIUS = 2.0;
+	/** the seconds of B correlated with A */
+	public static final double DEFAULT_WINDOW = 30.0;
+
+	/** the envelope blocks per second */
+	static final int ENVELOPE_RATE = 1000;
+	/** the envelope blocks the waveform stage searches on either side of the envelope peak */
+	static final int FINE_RADIUS_BLOCKS = 2;
+	/** the frames of B correlated in the waveform stage */
+	static final int FINE_WINDOW = 1 << 15;
+
+	double searchRadius = DEFAULT_SEARCH_RADIUS;
+	double window = DEFAULT_WINDOW;
+
+	/**
+	 * Aligns B to A by the offset of a comparison of their fingerprints.
+	 */
+	public Alignment align(URI a, URI b, FingerprintComparison comparison) throws IOException, UnsupportedAudioFileException {
+		return align(a, b, comparison.getMostSimilarTime());
+	}
+
+	/**
+	 * @param coarseOffset the time in seconds of A at which B starts, as
+	 * {@link FingerprintComparison#getMostSimilarTime()}
+	 */
+	public Alignment align(URI a, URI b, double coarseOffset) throws IOException, UnsupportedAudioFileException {
+		return align(PcmSource.open(a), PcmSource.open(b), coarseOffset);
+	}
+
+	/**
+	 * As {@link #align(URI, URI, double)}, for decoded audio.
+	 */
+	public Alignment align(PcmSource a, PcmSource b, double coarseOffset) {
+		Instrumentation.Stage stage = Instrumentation.start(COMPONENT, "correlate");
+		// the window of B, within B and, at the coarse offset, within A
+		double start = Math.max(0, -coarseOffset);
+		double end = Math.min(b.getDurationInSeconds(), a.getDurationInSeconds() - coarseOffset);
+		if (end - start > window) {
+			start += (end - start - window) / 2;
+			end = start + window;
+		}
+		int blocks = (int) ((end - start) * ENVELOPE_RATE);
+		int radius = (int) (searchRadius * ENVELOPE_RATE);
+		if (blocks < 2) {
+			stage.end(0);
+			return new Alignment(coarseOffset, coarseOffset, 0);
+		}
+
+		double[] envelopeB = envelope(b, start, blocks);
+		double aStart = start + coarseOffset - radius / (double) ENVELOPE_RATE;
+		double[] envelopeA = envelope(a, aStart, blocks + 2 * radius);
+		double[] r = correlate(envelopeA, envelopeB);
+		int k = argmax(r);
+		double offset = aStart - start + (k + interpolate(r, k)) / ENVELOPE_RATE;
+		double correlation = pearson(envelopeA, k, envelopeB);
+
+		// the waveforms over the loudest part of the window, at the rate of A
+		float rate = a.getFormat().getSampleRate();
+		int frames = (int) Math.min(FINE_WINDOW, (end - start) * rate);
+		int fineRadius = (int) Math.ceil(FINE_RADIUS_BLOCKS * rate / ENVELOPE_RATE);
+		float rateB = b.getFormat().getSampleRate();
+		long bFrame = Math.round((start + loudest(envelopeB, (int) (frames * (double) ENVELOPE_RATE / rate)) / (double) ENVELOPE_RATE) * rateB);
+		double fineStart = bFrame / (double) rateB;
+		double[] waveB = new double[frames];
+		for (int n = 0; n < frames; n++) waveB[n] = mono(b, bFrame + n * (double) rateB / rate);
+		long aFrame = Math.round((fineStart + offset) * rate) - fineRadius;
+		double[] waveA = new double[frames + 2 * fineRadius];
+		for (int n = 0; n < waveA.length; n++) waveA[n] = mono(a, aFrame + n);
+		double[] fine = correlate(waveA, waveB);
+		int j = argmax(fine);
+		// a peak on the edge of the range is not a peak; keep the envelope estimate
+		if (j > 0 && j < fine.length - 1) {
+			offset = (aFrame + j + interpolate(fine, j)) / rate - fineStart;
+			correlation = pearson(waveA, j, waveB);
+		}
+		stage.end(blocks + frames);
+		return new Alignment(coarseOffset, offset, correlation);
+	}
+
+	/**
+	 * @return the mean absolute mono amplitude of <code>blocks</code> blocks
+	 * of 1 / {@link #ENVELOPE_RATE} seconds from <code>start</code>, which
+	 * may lie outside the source
+	 */
+	static double[] envelope(PcmSource source, double start, int blocks) {
+		float rate = source.getFormat().getSampleRate();
+		double[] envelope = new double[blocks];
+		for (int i = 0; i < blocks; i++) {
+			long from = Math.round((start + i / (double) ENVELOPE_RATE) * rate);
+			long to = Math.round((start + (i + 1) / (double) ENVELOPE_RATE) * rate);
+			double sum = 0;
+			for (long frame = from; frame < to; frame++) sum += Math.abs(mono(source, frame));
+			envelope[i] = to > from ? sum / (to - from) : 0;
+		}
+		return envelope;
+	}
+
+	/**
+	 * @return the mean of the channels of a frame, 0 outside the source
+	 */
+	static double mono(PcmSource source, long frame) {
+		if (frame < 0 || frame >= source.getFrameLength()) return 0;
+		int channels = source.getChannels();
+		double sum = 0;
+		for (int c = 0; c < channels; c++) sum += source.getSample(frame, c);
+		return sum / channels;
+	}
+
+	/**
+	 * @return the linearly interpolated mono sample at a fractional frame
+	 */
+	static double mono(PcmSource source, double frame) {
+		long floor = (long) Math.floor(frame);
+		double fraction = frame - floor;
+		double sample = mono(source, floor);
+		return fraction == 0 ? sample : sample + fraction * (mono(source, floor + 1) - sample);
+	}
+
+	/**
+	 * @return the first block of the <code>length</code> blocks of
+	 * <code>envelope</code> with the largest sum
+	 */
+	static int loudest(double[] envelope, int length) {
+		if (length >= envelope.length) return 0;
+		double sum = 0;
+		for (int i = 0; i < length; i++) sum += envelope[i];
+		double max = sum;
+		int best = 0;
+		for (int i = length; i < envelope.length; i++) {
+			sum += envelope[i] - envelope[i - length];
+			if (sum > max) {
+				max = sum;
+				best = i - length + 1;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return the cross-correlation of the mean-free <code>a</code> and
+	 * <code>b</code> at the lags at which <code>b</code> lies within
+	 * <code>a</code>, from 0 to <code>a.length - b.length</code>
+	 */
+	static double[] correlate(double[] a, double[] b) {
+		int n = Integer.highestOneBit(Math.max(1, a.length - 1)) << 1;
+		double[] re = new double[n], im = new double[n];
+		double[] reB = new double[n], imB = new double[n];
+		double meanA = mean(a), meanB = mean(b);
+		for (int i = 0; i < a.length; i++) re[i] = a[i] - meanA;
+		for (int i = 0; i < b.length; i++) reB[i] = b[i] - meanB;
+		fft(re, im, false);
+		fft(reB, imB, false);
+		// A times the conjugate of B
+		for (int i = 0; i < n; i++) {
+			double r = re[i] * reB[i] + im[i] * imB[i];
+			im[i] = im[i] * reB[i] - re[i] * imB[i];
+			re[i] = r;
+		}
+		fft(re, im, true);
+		// n >= a.length, so these lags do not wrap around
+		double[] r = new double[a.length - b.length + 1];
+		for (int i = 0; i < r.length; i++) r[i] = re[i] / n;
+		return r;
+	}
+
+	/**
+	 * An in-place iterative radix-2 FFT; the inverse is not scaled.
+	 */
+	static void fft(double[] re, double[] im, boolean inverse) {
+		int n = re.length;
+		for (int i = 1, j = 0; i < n; i++) {
+			int bit = n >> 1;
+			for (; (j & bit) != 0; bit >>= 1) j ^= bit;
+			j ^= bit;
+			if (i < j) {
+				double t = re[i];
+				re[i] = re[j];
+				re[j] = t;
+				t = im[i];
+				im[i] = im[j];
+				im[j] = t;
+			}
+		}
+		for (int length = 2; length <= n; length <<= 1) {
+			double angle = (inverse ? 2 : -2) * Math.PI / length;
+			double wRe = Math.cos(angle), wIm = Math.sin(angle);
+			for (int i = 0; i < n; i += length) {
+				double uRe = 1, uIm = 0;
+				for (int k = 0; k < length / 2; k++) {
+					int p = i + k, q = p + length / 2;
+					double tRe = re[q] * uRe - im[q] * uIm, tIm = re[q] * uIm + im[q] * uRe;
+					re[q] = re[p] - tRe;
+					im[q] = im[p] - tIm;
+					re[p] += tRe;
+					im[p] += tIm;
+					double u = uRe * wRe - uIm * wIm;
+					uIm = uRe * wIm + uIm * wRe;
+					uRe = u;
+				}
+			}
+		}
+	}
+
+	static int argmax(double[] values) {
+		int best = 0;
+		for (int i = 1; i < values.length; i++) {
+			if (values[i] > values[best]) best = i;
+		}
+		return best;
+	}
+
+	/**
+	 * @return the offset, within half a step, of the vertex of the parabola
+	 * through the peak at <code>k</code> and its neighbours
+	 */
+	static double interpolate(double[] values, int k) {
+		if (k == 0 || k == values.length - 1) return 0;
+		double left = values[k - 1], peak = values[k], right = values[k + 1];
+		double curvature = left - 2 * peak + right;
+		return curvature >= 0 ? 0 : Math.max(-0.5, Math.min(0.5, (left - right) / (2 * curvature)));
+	}
+
+	/**
+	 * @return the correlation coefficient of <code>b</code> and the part of
+	 * <code>a</code> from <code>lag</code>
+	 */
+	static double pearson(double[] a, int lag, double[] b) {
+		double meanA = 0, meanB = mean(b);
+		for (int i = 0; i < b.length; i++) meanA += a[lag + i];
+		meanA /= b.length;
+		double ab = 0, aa = 0, bb = 0;
+		for (int i = 0; i < b.length; i++) {
+			double x = a[lag + i] - meanA, y = b[i] - meanB;
+			ab += x * y;
+			aa += x * x;
+			bb += y * y;
+		}
+		return aa == 0 || bb == 0 ? 0 : ab / Math.sqrt(aa * bb);
+	}
+
+	static double mean(double[] values) {
+		double sum = 0;
+		for (double value : values) sum += value;
+		return values.length == 0 ? 0 : sum / values.length;
+	}
+
+	public double getSearchRadius() {
+		return searchRadius;
+	}
+
+	public void setSearchRadius(double searchRadius) {
+		this.searchRadius = searchRadius;
+	}
+
+	public double getWindow() {
+		return window;
+	}
+
+	public void setWindow(double window) {
+		this.window = window;
+	}
+
+	/**
+	 * The refined offset of B in A.
+	 */
+	public static class Alignment {
+
+		final double coarseOffset;
+		final double offset;
+		final double correlation;
+
+		Alignment(double coarseOffset, double offset, double correlation) {
+			this.coarseOffset = coarseOffset;
+			this.offset = offset;
+			this.correlation = correlation;
+		}
+
+		/**
+		 * @return the time in seconds of A at which B starts, to a fraction of a sample
+		 */
+		public double getOffset() {
+			return offset;
+		}
+
+		/**
+		 * @return the offset in frames at <code>sampleRate</code>, rounded
+		 */
+		public long getOffsetFrames(float sampleRate) {
+			return Math.round(offset * sampleRate);
+		}
+
+		public double getCoarseOffset() {
+			return coarseOffset;
+		}
+
+		/**
+		 * @return the correlation coefficient of the aligned signals of the
+		 * last stage, near 1 for versions of the same recording
+		 */
+		public double getCorrelation() {
+			return correlation;
+		}
+
+		@Override
+		public String toString() {
+			return "Alignment [offset=" + offset + ", coarseOffset=" + coarseOffset + ", correlation=" + correlation + "]";
+		}
+
+	}
+
+}
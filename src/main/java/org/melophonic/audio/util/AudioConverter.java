@@ -4,8 +4,31 @@ import static org.melophonic.audio.util.AudioUtil.getAudioFileFormatType;
 import static org.melophonic.audio.util.AudioUtil.getSupportedAudioFileFormatTypes;
 import gnu.getopt.Getopt;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import javax.sound.sampled.AudioFileFormat;
 import javax.sound.sampled.AudioFormat;
@@ -13,6 +36,7 @@ import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.UnsupportedAudioFileException;
 
+import org.melophonic.audio.spi.resample.SincResamplerProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,6 +54,13 @@ public class AudioConverter {
 
 	final static Logger log = LoggerFactory.getLogger(AudioConverter.class);
 	
+	final static SincResamplerProvider resampler = new SincResamplerProvider();
+
+	final static int BUFFER_SIZE = 1 << 16;
+
+	/** the component name of the stages reported to {@link Instrumentation} */
+	public final static String COMPONENT = "conversion";
+	
 	
 	public static class Parameters implements Cloneable {
 
@@ -113,6 +144,35 @@ public class AudioConverter {
 		    return super.clone();
 		}
 
+		public Parameters copy() {
+			try {
+				return (Parameters) clone();
+			} catch (CloneNotSupportedException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof Parameters)) return false;
+			Parameters p = (Parameters) o;
+			return channels == p.channels && sampleSizeInBits == p.sampleSizeInBits && Float.compare(sampleRate, p.sampleRate) == 0
+					&& bigEndian == p.bigEndian && endianessDesired == p.endianessDesired
+					&& Objects.equals(encoding, p.encoding) && Objects.equals(fileType, p.fileType);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(channels, sampleSizeInBits, sampleRate, bigEndian, endianessDesired, encoding, fileType);
+		}
+
+		@Override
+		public String toString() {
+			return "Parameters [encoding=" + encoding + ", fileType=" + fileType + ", sampleRate=" + sampleRate + ", sampleSizeInBits=" + sampleSizeInBits
+					+ ", channels=" + channels + (endianessDesired ? ", bigEndian=" + bigEndian : "") + "]";
+		}
+
 		public int getChannels() {
 			return channels;
 		}
@@ -174,16 +234,194 @@ public class AudioConverter {
 	
 
 	public static int convert(File inputFile, File outputFile, Parameters parameters) throws Exception {
-		AudioFileFormat inputFileFormat = AudioSystem.getAudioFileFormat(inputFile);
-		AudioFileFormat.Type defaultFileType = inputFileFormat.getType();
-		AudioInputStream stream = AudioSystem.getAudioInputStream(inputFile);
+		return convert(inputFile, outputFile, parameters, (ConversionHandle) null);
+	}
+
+	/**
+	 * Converts <code>inputFile</code> from the samples <code>cache</code>
+	 * holds for it at the target sample rate and channels, decoding and
+	 * storing them on a miss. Converting a file to several sample sizes or
+	 * file types, or converting it again, then decodes it only once.
+	 * 
+	 * @return the number of bytes written
+	 */
+	public static int convert(File inputFile, File outputFile, Parameters parameters, DecodeCache cache) throws Exception {
+		PcmSource source = cache.get(inputFile, parameters.sampleRate, parameters.channels);
+		AudioFormat sourceFormat = source.getSourceFormat();
+		Parameters params = parameters.copy();
+		if (params.encoding == null) params.encoding = sourceFormat.getEncoding();
+		if (params.sampleSizeInBits == AudioSystem.NOT_SPECIFIED) params.sampleSizeInBits = sourceFormat.getSampleSizeInBits();
+		AudioFileFormat.Type targetFileType = params.fileType != null ? params.fileType
+				: ConversionPlanner.getInstance().getAudioFileFormat(inputFile).getType();
+		// integer PCM of the target size, leaving signedness, endianess and encoding to the usual steps
+		int bits = Math.max(8, Math.min(32, (params.sampleSizeInBits + 7) / 8 * 8));
+		AudioInputStream stream = getConvertedStream(source.getAudioInputStream(bits), params);
+		return write(stream, targetFileType, outputFile);
+	}
+
+	/**
+	 * Starts converting <code>inputFile</code> on <code>executor</code>.
+	 * 
+	 * @return a handle reporting the progress of the conversion, which can be
+	 * used to wait for or cancel it
+	 */
+	public static ConversionHandle submit(File inputFile, File outputFile, Parameters parameters, Executor executor) {
+		return ConversionHandle.submit(inputFile, outputFile, parameters, executor);
+	}
+
+	/**
+	 * @param handle the handle to report progress to and check for cancellation, or null
+	 */
+	static int convert(File inputFile, File outputFile, Parameters parameters, ConversionHandle handle) throws Exception {
+		/*
+		 * PCM WAVE input (most of a normalized corpus) is memory-mapped rather
+		 * than read through AudioSystem.
+		 */
+		Instrumentation.Stage stage = Instrumentation.start(COMPONENT, "open");
+		try (MappedWaveFile wave = MappedWaveFile.openIfWave(inputFile.toURI())) {
+			AudioFileFormat.Type defaultFileType;
+			AudioInputStream source;
+			if (wave != null) {
+				defaultFileType = AudioFileFormat.Type.WAVE;
+				source = wave.getAudioInputStream();
+			} else {
+				defaultFileType = ConversionPlanner.getInstance().getAudioFileFormat(inputFile).getType();
+				source = ConversionPlanner.getInstance().getAudioInputStream(inputFile);
+			}
+			AudioInputStream stream = getConvertedStream(source, parameters);
+			if (handle != null) stream = handle.monitor(stream);
+
+			/*
+			 * Since we now know that we are dealing with PCM, we know that the
+			 * frame rate is the same as the sample rate.
+			 */
+			// float fTargetFrameRate = fTargetSampleRate;
+
+			// /* Here, we are constructing the desired format of the
+			// audio data (as the result of the conversion should be).
+			// We take over all values besides the sample/frame rate.
+			// */
+
+			/*
+			 * And finally, we are trying to write the converted audio data to a new
+			 * file.
+			 */
+			int nWrittenBytes;
+			AudioFileFormat.Type targetFileType = (parameters.fileType != null) ? parameters.fileType : defaultFileType;
+			if (AudioFileFormat.Type.WAVE.equals(targetFileType) && stream == source && wave != null && MappedWaveWriter.isSupported(wave.getFormat())
+					&& wave.getDataLength() <= MappedWaveWriter.MAX_DATA_LENGTH) {
+				stage = stage.next("copy", -1);
+				nWrittenBytes = MappedWaveWriter.write(wave, outputFile);
+				stage.end(wave.getFrameLength());
+				log.debug("Written bytes: " + nWrittenBytes);
+				return nWrittenBytes;
+			}
+		
+			stage.end(-1);
+			return write(stream, targetFileType, outputFile);
+		}
+	}
+
+	/**
+	 * Writes <code>stream</code> to <code>outputFile</code>, reporting the
+	 * time spent in reads of <code>stream</code> as decoding and the rest of
+	 * the write as encoding.
+	 * 
+	 * @return the number of bytes written
+	 */
+	static int write(AudioInputStream stream, AudioFileFormat.Type targetFileType, File outputFile) throws IOException {
+		int nWrittenBytes;
+		Instrumentation.Timer total = Instrumentation.timer(), decode = Instrumentation.timer();
+		Instrumentation.TimedInputStream timed = null;
+		if (Instrumentation.isEnabled()) {
+			timed = new Instrumentation.TimedInputStream(stream, decode);
+			stream = new AudioInputStream(timed, stream.getFormat(), stream.getFrameLength());
+		}
+		total.start();
+		if (AudioFileFormat.Type.WAVE.equals(targetFileType) && stream.getFrameLength() != AudioSystem.NOT_SPECIFIED
+				&& stream.getFrameLength() * stream.getFormat().getFrameSize() <= MappedWaveWriter.MAX_DATA_LENGTH
+				&& StreamingAudioFileWriter.isSupported(targetFileType, stream.getFormat())) {
+			nWrittenBytes = MappedWaveWriter.write(stream, outputFile);
+		} else {
+			nWrittenBytes = ConversionPlanner.getInstance().write(stream, targetFileType, outputFile);
+		}
+		total.stop();
+		if (timed != null) {
+			int frameSize = stream.getFormat().getFrameSize();
+			Instrumentation.record(COMPONENT, "encode", total, "decode", decode, frameSize > 0 ? timed.bytesRead / frameSize : -1);
+		}
+		log.debug("Written bytes: " + nWrittenBytes);
+		return nWrittenBytes;
+	}
+
+	/**
+	 * Converts audio read from <code>input</code> and writes it to
+	 * <code>output</code> without temporary files. WAVE and AIFF output of
+	 * unknown length is written with a streaming header, which is patched
+	 * afterwards if <code>output</code> is a <code>FileOutputStream</code>.
+	 * Neither stream is closed.
+	 * 
+	 * @return the number of bytes written
+	 */
+	public static long convert(InputStream input, OutputStream output, Parameters parameters) throws Exception {
+		InputStream in = input.markSupported() ? input : new BufferedInputStream(input, BUFFER_SIZE);
+		AudioFileFormat.Type targetFileType = (parameters.fileType != null) ? parameters.fileType : AudioSystem.getAudioFileFormat(in).getType();
+		AudioInputStream stream = getConvertedStream(AudioSystem.getAudioInputStream(in), parameters);
+		long nWrittenBytes = write(stream, targetFileType, output);
+		log.debug("Written bytes: " + nWrittenBytes);
+		return nWrittenBytes;
+	}
 
+	/**
+	 * Converts the remaining bytes of <code>input</code> into
+	 * <code>output</code>, advancing the position of both buffers.
+	 * 
+	 * @return the number of bytes written
+	 * @throws java.nio.BufferOverflowException if <code>output</code> is too small
+	 */
+	public static int convert(ByteBuffer input, ByteBuffer output, Parameters parameters) throws Exception {
+		return (int) convert(new StreamingAudioFileWriter.ByteBufferInputStream(input), new StreamingAudioFileWriter.ByteBufferOutputStream(output), parameters);
+	}
+
+	/**
+	 * Writes <code>stream</code> to <code>output</code>, using
+	 * {@link StreamingAudioFileWriter} for PCM WAVE and AIFF since the
+	 * <code>AudioSystem</code> writers need to know the length in advance.
+	 */
+	static long write(AudioInputStream stream, AudioFileFormat.Type fileType, OutputStream output) throws IOException {
+		if (StreamingAudioFileWriter.isSupported(fileType, stream.getFormat())) {
+			return StreamingAudioFileWriter.write(stream, fileType, output);
+		}
+		OutputStream out = new BufferedOutputStream(output, BUFFER_SIZE);
+		long nWrittenBytes = AudioSystem.write(stream, fileType, out);
+		out.flush();
+		return nWrittenBytes;
+	}
+
+	/**
+	 * Applies steps 1 to 5 of the conversion to <code>stream</code>, leaving
+	 * the <code>Parameters</code> unchanged. The providers for each step are
+	 * resolved once per source format and parameters by the shared
+	 * {@link ConversionPlanner}.
+	 * 
+	 * @return a stream in the target format, ready to be written
+	 */
+	public static AudioInputStream getConvertedStream(AudioInputStream stream, Parameters parameters) throws Exception {
+		return ConversionPlanner.getInstance().convert(stream, parameters);
+	}
+
+	/**
+	 * Performs steps 1 to 5 on <code>stream</code>, resolving each conversion
+	 * with <code>planner</code> and appending it to <code>steps</code> so the
+	 * same conversion can be replayed on other streams of the same format.
+	 */
+	static AudioInputStream plan(AudioInputStream stream, Parameters parameters, ConversionPlanner planner, List<ConversionPlanner.Step> steps) throws Exception {
 		AudioFormat format = stream.getFormat();
 		log.debug("source format: " + format);
 		//AudioFormat targetFormat = null;
 
 		// clone before populating with defaults so Parameters can be reused
-		Parameters params = (Parameters) parameters.clone();
+		Parameters params = parameters.copy();
 		params.setDefaults(format);
 
 		/*
@@ -196,7 +434,7 @@ public class AudioConverter {
 			 * audio data are unsigned, while 16 bit data are signed.
 			 */
 			AudioFormat.Encoding targetEncoding = (format.getSampleSizeInBits() == 8) ? AudioFormat.Encoding.PCM_UNSIGNED : AudioFormat.Encoding.PCM_SIGNED;
-			stream = convertEncoding(targetEncoding, stream);
+			stream = apply(planner.getStep(targetEncoding, stream.getFormat()), stream, steps);
 			log.debug("stream: " + stream);
 			log.debug("format: " + stream.getFormat());
 
@@ -214,12 +452,67 @@ public class AudioConverter {
 			}
 		}
 
+		/*
+		 * Steps 2 and 3: if the target is PCM, convert the number of channels,
+		 * sample size, endianess and signedness in a single pass.
+		 */
+		AudioFormat pcmFormat = new AudioFormat(params.encoding, stream.getFormat().getSampleRate(), params.sampleSizeInBits, params.channels,
+				calculateFrameSize(params.channels, params.sampleSizeInBits), stream.getFormat().getFrameRate(), params.bigEndian);
+		if (AudioUtil.isPcm(params.encoding) && PcmFormatConverter.isSupported(stream.getFormat(), pcmFormat)) {
+			if (!PcmFormatConverter.isIdentity(stream.getFormat(), pcmFormat)) {
+				log.debug("converting channels, sample size and endianess...");
+				stream = apply(s -> PcmFormatConverter.convert(pcmFormat, s), stream, steps);
+				log.debug("stream: " + stream);
+				log.debug("format: " + stream.getFormat());
+			}
+		} else {
+			stream = convertChannelsAndSampleSize(params, stream, planner, steps);
+		}
+
+		/*
+		 * Step 4: convert sample rate, if necessary.
+		 */
+		if (!AudioUtil.equals(stream.getFormat().getSampleRate(), params.sampleRate)) {
+			log.debug("converting sample rate...");
+			stream = apply(getSampleRateStep(params.sampleRate, stream.getFormat(), planner), stream, steps);
+			log.debug("stream: " + stream);
+			log.debug("format: " + stream.getFormat());
+		}
+
+		/*
+		 * Step 5: convert to non-PCM encoding, if necessary. Writers that encode
+		 * themselves (such as FLAC) take PCM, so only convert if a codec exists
+		 * or the writer cannot take the PCM stream.
+		 */
+		if (!stream.getFormat().getEncoding().equals(params.encoding)
+				&& (planner.isConversionSupported(params.encoding, stream.getFormat())
+						|| params.fileType == null || planner.getWriter(params.fileType, stream.getFormat()) == null)) {
+			log.debug("converting to " + params.encoding + "...");
+			stream = apply(planner.getStep(params.encoding, stream.getFormat()), stream, steps);
+			log.debug("format: " + stream.getFormat());
+		}
+		return stream;
+	}
+
+	static AudioInputStream apply(ConversionPlanner.Step step, AudioInputStream stream, List<ConversionPlanner.Step> steps) throws Exception {
+		steps.add(step);
+		return step.apply(stream);
+	}
+
+	/**
+	 * Steps 2 and 3 of <code>convert</code> using a separate
+	 * <code>AudioSystem</code> conversion for each step, for targets the
+	 * {@link PcmFormatConverter} does not handle.
+	 */
+	static AudioInputStream convertChannelsAndSampleSize(Parameters params, AudioInputStream stream, ConversionPlanner planner,
+			List<ConversionPlanner.Step> steps) throws Exception {
 		/*
 		 * Step 2: convert number of channels, if necessary.
 		 */
 		if (stream.getFormat().getChannels() != params.channels) {
 			log.debug("converting channels...");
-			stream = convertChannels(params.channels, stream);
+			AudioFormat targetFormat = getChannelsFormat(params.channels, stream.getFormat());
+			stream = apply(planner.getStep(targetFormat, stream.getFormat()), stream, steps);
 			log.debug("stream: " + stream);
 			log.debug("format: " + stream.getFormat());
 		}
@@ -231,84 +524,313 @@ public class AudioConverter {
 		boolean bDoConvertEndianess = (stream.getFormat().isBigEndian() != params.bigEndian);
 		if (bDoConvertSampleSize || bDoConvertEndianess) {
 			log.debug("converting sample size and endianess...");
-			stream = convertSampleSizeAndEndianess(params.sampleSizeInBits, params.bigEndian, stream);
+			AudioFormat targetFormat = getSampleSizeAndEndianessFormat(params.sampleSizeInBits, params.bigEndian, stream.getFormat());
+			stream = apply(planner.getStep(targetFormat, stream.getFormat()), stream, steps);
 			log.debug("stream: " + stream);
 			log.debug("format: " + stream.getFormat());
 		}
+		return stream;
+	}
 
-		/*
-		 * Step 4: convert sample rate, if necessary.
+	/**
+	 * The outcome of a <code>convertDirectory</code> run.
+	 */
+	public static class BatchResult {
+		
+		final LongAdder converted = new LongAdder();
+		final LongAdder skipped = new LongAdder();
+		final LongAdder failed = new LongAdder();
+		final LongAdder bytesRead = new LongAdder();
+		final LongAdder bytesWritten = new LongAdder();
+		final Queue<File> conflicts = new ConcurrentLinkedQueue<>();
+		long elapsedNanos;
+		
+		public long getConverted() {
+			return converted.sum();
+		}
+		
+		public long getSkipped() {
+			return skipped.sum();
+		}
+		
+		public long getFailed() {
+			return failed.sum();
+		}
+		
+		/**
+		 * @return the source files that were not converted because another
+		 * source in the same directory maps to the same target name, such as
+		 * <code>a.flac</code> and <code>a.wav</code> with a WAVE file type;
+		 * they are also counted as failed
 		 */
-		if (!AudioUtil.equals(stream.getFormat().getSampleRate(), params.sampleRate)) {
-			log.debug("converting sample rate...");
-			stream = convertSampleRate(params.sampleRate, stream);
-			log.debug("stream: " + stream);
-			log.debug("format: " + stream.getFormat());
+		public List<File> getConflicts() {
+			return new ArrayList<>(conflicts);
 		}
-
-		/*
-		 * Step 5: convert to non-PCM encoding, if necessary.
+		
+		public long getBytesRead() {
+			return bytesRead.sum();
+		}
+		
+		public long getBytesWritten() {
+			return bytesWritten.sum();
+		}
+		
+		public double getElapsedSeconds() {
+			return elapsedNanos / 1E9;
+		}
+		
+		public double getFilesPerSecond() {
+			return getConverted() / getElapsedSeconds();
+		}
+		
+		/**
+		 * @return source megabytes converted per second
 		 */
-		if (!stream.getFormat().getEncoding().equals(params.encoding)) {
-			log.debug("converting to " + params.encoding + "...");
-			stream = convertEncoding(params.encoding, stream);
-			log.debug("format: " + stream.getFormat());
+		public double getMegabytesPerSecond() {
+			return getBytesRead() / (double) (1 << 20) / getElapsedSeconds();
 		}
+		
+		@Override
+		public String toString() {
+			return String.format("converted %d, skipped %d, failed %d (%d conflicting) in %.1f s (%.1f files/s, %.1f MB/s)", 
+					getConverted(), getSkipped(), getFailed(), conflicts.size(), getElapsedSeconds(), getFilesPerSecond(), getMegabytesPerSecond());
+		}
+		
+	}
+	
+	/**
+	 * Converts every supported audio file below <code>inputDir</code> into the
+	 * same relative location below <code>outputDir</code>, on a work-stealing
+	 * pool with one thread per core.
+	 * 
+	 * @see #convertDirectory(File, File, Parameters, ForkJoinPool)
+	 */
+	public static BatchResult convertDirectory(File inputDir, File outputDir, Parameters parameters) throws Exception {
+		ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		try {
+			return convertDirectory(inputDir, outputDir, parameters, pool);
+		} finally {
+			pool.shutdown();
+			pool.awaitTermination(1, TimeUnit.MINUTES);
+		}
+	}
 
-		/*
-		 * Since we now know that we are dealing with PCM, we know that the
-		 * frame rate is the same as the sample rate.
-		 */
-		// float fTargetFrameRate = fTargetSampleRate;
+	/**
+	 * Recursively converts every file accepted by
+	 * {@link AudioUtil#getSupportedAudioFileFilter()} below <code>inputDir</code>,
+	 * mirroring the directory tree below <code>outputDir</code>. If the 
+	 * parameters specify a file type, output files get its extension. Outputs 
+	 * that are at least as recent as their source are skipped, and each output 
+	 * is written to a temporary file first so an interrupted run never leaves 
+	 * a partial file that looks up to date. Files that fail to convert are 
+	 * logged and counted, and do not stop the batch. Sources whose target
+	 * names collide (ignoring case) are all failed rather than left to
+	 * overwrite each other, and are listed in {@link BatchResult#getConflicts()}.
+	 * 
+	 * @param inputDir the root of the source tree
+	 * @param outputDir the root of the target tree, created if necessary
+	 * @param parameters conversion parameters applied to every file
+	 * @param pool the pool to run conversions on
+	 * @return the counts and throughput of the batch
+	 * @throws Exception
+	 */
+	public static BatchResult convertDirectory(File inputDir, File outputDir, Parameters parameters, ForkJoinPool pool) throws Exception {
+		if (!inputDir.isDirectory()) throw new IOException("Not a directory: " + inputDir);
+		BatchResult result = new BatchResult();
+		long start = System.nanoTime();
+		pool.invoke(new DirectoryConversion(inputDir, outputDir, parameters, AudioUtil.getSupportedAudioFileFilter(), result));
+		result.elapsedNanos = System.nanoTime() - start;
+		log.info("Batch " + inputDir + " -> " + outputDir + ": " + result);
+		return result;
+	}
+	
+	static class DirectoryConversion extends RecursiveAction {
 
-		// /* Here, we are constructing the desired format of the
-		// audio data (as the result of the conversion should be).
-		// We take over all values besides the sample/frame rate.
-		// */
+		private static final long serialVersionUID = 1L;
+		
+		final File inputDir;
+		final File outputDir;
+		final Parameters parameters;
+		final FileFilter filter;
+		final BatchResult result;
+		
+		DirectoryConversion(File inputDir, File outputDir, Parameters parameters, FileFilter filter, BatchResult result) {
+			this.inputDir = inputDir;
+			this.outputDir = outputDir;
+			this.parameters = parameters;
+			this.filter = filter;
+			this.result = result;
+		}
 
-		/*
-		 * And finally, we are trying to write the converted audio data to a new
-		 * file.
-		 */
-		int nWrittenBytes = 0;
-		AudioFileFormat.Type targetFileType = (params.fileType != null) ? params.fileType : defaultFileType;
-		nWrittenBytes = AudioSystem.write(stream, targetFileType, outputFile);
-		log.debug("Written bytes: " + nWrittenBytes);
-		return nWrittenBytes;
+		@Override
+		protected void compute() {
+			File[] entries = inputDir.listFiles();
+			if (entries == null) {
+				log.warn("Unable to list " + inputDir);
+				return;
+			}
+			List<RecursiveAction> tasks = new ArrayList<>();
+			Map<String, List<File>> targets = new LinkedHashMap<>();
+			for (File entry : entries) {
+				if (entry.isDirectory()) {
+					tasks.add(new DirectoryConversion(entry, new File(outputDir, entry.getName()), parameters, filter, result));
+				} else if (filter.accept(entry)) {
+					// case-insensitive file systems would collide as well
+					targets.computeIfAbsent(getTargetName(entry.getName(), parameters).toLowerCase(Locale.ROOT), k -> new ArrayList<>()).add(entry);
+				}
+			}
+			for (List<File> sources : targets.values()) {
+				if (sources.size() == 1) {
+					File entry = sources.get(0);
+					tasks.add(new FileConversion(entry, new File(outputDir, getTargetName(entry.getName(), parameters)), parameters, result));
+				} else {
+					log.error("Not converting " + sources + ", they would be written to the same file in " + outputDir);
+					result.conflicts.addAll(sources);
+					result.failed.add(sources.size());
+				}
+			}
+			invokeAll(tasks);
+		}
+		
+	}
+	
+	static class FileConversion extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+		
+		final File inputFile;
+		final File outputFile;
+		final Parameters parameters;
+		final BatchResult result;
+		
+		FileConversion(File inputFile, File outputFile, Parameters parameters, BatchResult result) {
+			this.inputFile = inputFile;
+			this.outputFile = outputFile;
+			this.parameters = parameters;
+			this.result = result;
+		}
+
+		@Override
+		protected void compute() {
+			if (outputFile.exists() && outputFile.lastModified() >= inputFile.lastModified()) {
+				result.skipped.increment();
+				return;
+			}
+			File partFile = new File(outputFile.getParentFile(), "." + outputFile.getName() + ".part");
+			try {
+				outputFile.getParentFile().mkdirs();
+				int written = convert(inputFile, partFile, parameters);
+				Files.move(partFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				result.converted.increment();
+				result.bytesRead.add(inputFile.length());
+				result.bytesWritten.add(written);
+			} catch (Exception e) {
+				log.error("Error converting " + inputFile, e);
+				partFile.delete();
+				result.failed.increment();
+			}
+		}
 		
 	}
+	
+	static String getTargetName(String sourceName, Parameters parameters) {
+		if (parameters.fileType == null) return sourceName;
+		int dot = sourceName.lastIndexOf('.');
+		String baseName = dot > 0 ? sourceName.substring(0, dot) : sourceName;
+		return baseName + "." + parameters.fileType.getExtension();
+	}
 
 	public static AudioInputStream convertEncoding(AudioFormat.Encoding targetEncoding, AudioInputStream sourceStream) {
 		return AudioSystem.getAudioInputStream(targetEncoding, sourceStream);
 	}
 
 	public static AudioInputStream convertChannels(int nChannels, AudioInputStream sourceStream) {
-		AudioFormat sourceFormat = sourceStream.getFormat();
-		AudioFormat targetFormat = new AudioFormat(sourceFormat.getEncoding(), sourceFormat.getSampleRate(), sourceFormat.getSampleSizeInBits(), nChannels,
+		return AudioSystem.getAudioInputStream(getChannelsFormat(nChannels, sourceStream.getFormat()), sourceStream);
+	}
+
+	static AudioFormat getChannelsFormat(int nChannels, AudioFormat sourceFormat) {
+		return new AudioFormat(sourceFormat.getEncoding(), sourceFormat.getSampleRate(), sourceFormat.getSampleSizeInBits(), nChannels,
 				calculateFrameSize(nChannels, sourceFormat.getSampleSizeInBits()), sourceFormat.getFrameRate(), sourceFormat.isBigEndian());
-		return AudioSystem.getAudioInputStream(targetFormat, sourceStream);
 	}
 
 	public static AudioInputStream convertSampleSizeAndEndianess(int nSampleSizeInBits, boolean bBigEndian, AudioInputStream sourceStream) {
-		AudioFormat sourceFormat = sourceStream.getFormat();
-		AudioFormat targetFormat = new AudioFormat(sourceFormat.getEncoding(), sourceFormat.getSampleRate(), nSampleSizeInBits, sourceFormat.getChannels(),
+		return AudioSystem.getAudioInputStream(getSampleSizeAndEndianessFormat(nSampleSizeInBits, bBigEndian, sourceStream.getFormat()), sourceStream);
+	}
+
+	static AudioFormat getSampleSizeAndEndianessFormat(int nSampleSizeInBits, boolean bBigEndian, AudioFormat sourceFormat) {
+		return new AudioFormat(sourceFormat.getEncoding(), sourceFormat.getSampleRate(), nSampleSizeInBits, sourceFormat.getChannels(),
 				calculateFrameSize(sourceFormat.getChannels(), nSampleSizeInBits), sourceFormat.getFrameRate(), bBigEndian);
-		return AudioSystem.getAudioInputStream(targetFormat, sourceStream);
 	}
 
+	/**
+	 * Converts the sample rate with the {@link SincResamplerProvider} if it
+	 * supports the formats, and with any installed provider otherwise.
+	 */
 	public static AudioInputStream convertSampleRate(float fSampleRate, AudioInputStream sourceStream) {
 		AudioFormat sourceFormat = sourceStream.getFormat();
-		AudioFormat targetFormat = new AudioFormat(sourceFormat.getEncoding(), fSampleRate, sourceFormat.getSampleSizeInBits(), sourceFormat.getChannels(),
-				sourceFormat.getFrameSize(), fSampleRate, sourceFormat.isBigEndian());
+		AudioFormat targetFormat = getSampleRateFormat(fSampleRate, sourceFormat);
+		if (resampler.isConversionSupported(targetFormat, sourceFormat)) {
+			return resampler.getAudioInputStream(targetFormat, sourceStream);
+		}
 		return AudioSystem.getAudioInputStream(targetFormat, sourceStream);
 	}
 
+	static ConversionPlanner.Step getSampleRateStep(float fSampleRate, AudioFormat sourceFormat, ConversionPlanner planner) {
+		AudioFormat targetFormat = getSampleRateFormat(fSampleRate, sourceFormat);
+		if (resampler.isConversionSupported(targetFormat, sourceFormat)) {
+			return stream -> resampler.getAudioInputStream(targetFormat, stream);
+		}
+		return planner.getStep(targetFormat, sourceFormat);
+	}
+
+	static AudioFormat getSampleRateFormat(float fSampleRate, AudioFormat sourceFormat) {
+		return new AudioFormat(sourceFormat.getEncoding(), fSampleRate, sourceFormat.getSampleSizeInBits(), sourceFormat.getChannels(),
+				sourceFormat.getFrameSize(), fSampleRate, sourceFormat.isBigEndian());
+	}
+
 	public static int calculateFrameSize(int nChannels, int nSampleSizeInBits) {
 		return ((nSampleSizeInBits + 7) / 8) * nChannels;
 	}
 
 
 
+	/**
+	 * Applies one of the command line options <code>-c -s -e -f -t -B -L</code>
+	 * to <code>params</code>.
+	 * 
+	 * @throws IllegalArgumentException if the option or its argument is invalid
+	 */
+	public static void setOption(Parameters params, int option, String arg) {
+		switch (option) {
+		case 'c':
+			params.channels = Integer.parseInt(arg);
+			break;
+		case 's':
+			params.sampleSizeInBits = Integer.parseInt(arg);
+			break;
+		case 'e':
+			params.encoding = new AudioFormat.Encoding(arg);
+			break;
+		case 'f':
+			params.sampleRate = Float.parseFloat(arg);
+			break;
+		case 't':
+			params.fileType = getAudioFileFormatType(arg);
+			if (params.fileType == null) throw new IllegalArgumentException("Unknown target file type: " + arg);
+			break;
+		case 'B':
+			params.bigEndian = true;
+			params.endianessDesired = true;
+			break;
+		case 'L':
+			params.bigEndian = false;
+			params.endianessDesired = true;
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown option: " + (char) option);
+		}
+	}
+
 	private static void printUsageAndExit() {
 		log.info("AudioConverter: usage:");
 		log.info("\tjava AudioConverter -h");
@@ -320,17 +842,23 @@ public class AudioConverter {
 		log.info("\t\t[-f <sample_rate>]");
 		log.info("\t\t[-t <file_type>]");
 		log.info("\t\t[-B|-L]");
+		log.info("\t\t[-j <threads>]");
 		log.info("\t\t<sourcefile> <targetfile>");
+		log.info("\t\t(use - for standard input or output, and -t to set the output file type)");
+		log.info("\tjava AudioConverter [options] -r <sourcedir> <targetdir>");
+		log.info("\t(instrumentation is off unless -D" + Instrumentation.PROPERTY + "=true is given)");
 		System.exit(1);
 	}
 
 	public static void main(String[] args) throws UnsupportedAudioFileException, IOException {
 		Parameters params = new Parameters();
+		boolean recursive = false;
+		int threads = 1;
 		try {
 			/*
 			 * Parsing of command-line options takes place...
 			 */
-			Getopt g = new Getopt("AudioConverter", args, "hlc:s:e:f:t:BLD");
+			Getopt g = new Getopt("AudioConverter", args, "hlc:s:e:f:t:BLDrj:");
 			int c;
 			while ((c = g.getopt()) != -1) {
 				switch (c) {
@@ -345,39 +873,26 @@ public class AudioConverter {
 					System.exit(0);
 
 				case 'c':
-					params.channels = Integer.parseInt(g.getOptarg());
-					break;
-
 				case 's':
-					params.sampleSizeInBits = Integer.parseInt(g.getOptarg());
-					break;
-
 				case 'e':
-					String strEncodingName = g.getOptarg();
-					params.encoding = new AudioFormat.Encoding(strEncodingName);
-					break;
-
 				case 'f':
-					params.sampleRate = Float.parseFloat(g.getOptarg());
-					break;
-
 				case 't':
-					String strExtension = g.getOptarg();
-					params.fileType = getAudioFileFormatType(strExtension);
-					if (params.fileType == null) {
-						log.info("Unknown target file type. Check with 'AudioConverter -l'.");
+				case 'B':
+				case 'L':
+					try {
+						setOption(params, c, g.getOptarg());
+					} catch (IllegalArgumentException e) {
+						log.info(e.getMessage() + " (see 'AudioConverter -l' for file types)");
 						System.exit(1);
 					}
 					break;
 
-				case 'B':
-					params.bigEndian = true;
-					params.endianessDesired = true;
+				case 'r':
+					recursive = true;
 					break;
 
-				case 'L':
-					params.bigEndian = true;
-					params.endianessDesired = true;
+				case 'j':
+					threads = Integer.parseInt(g.getOptarg());
 					break;
 
 				case '?':
@@ -391,7 +906,7 @@ public class AudioConverter {
 
 			/*
 			 * We make shure that there are only two more arguments, which we take
-			 * as the input and output filenames.
+			 * as the input and output filenames (or directories with -r).
 			 */
 			if (args.length - g.getOptind() < 2) {
 				printUsageAndExit();
@@ -400,7 +915,20 @@ public class AudioConverter {
 			File inputFile = new File(args[g.getOptind()]);
 			File outputFile = new File(args[g.getOptind() + 1]);
 
-			convert(inputFile, outputFile, params);
+			if (recursive) {
+				BatchResult result = threads > 1 ? convertDirectory(inputFile, outputFile, params, new ForkJoinPool(threads))
+						: convertDirectory(inputFile, outputFile, params);
+				if (result.getFailed() > 0) System.exit(2);
+			} else if (inputFile.getPath().equals("-") || outputFile.getPath().equals("-")) {
+				try (InputStream in = inputFile.getPath().equals("-") ? System.in : new FileInputStream(inputFile);
+						OutputStream out = outputFile.getPath().equals("-") ? System.out : new FileOutputStream(outputFile)) {
+					convert(in, out, params);
+				}
+			} else if (threads > 1) {
+				SegmentedConverter.convert(inputFile, outputFile, params, new ForkJoinPool(threads));
+			} else {
+				convert(inputFile, outputFile, params);
+			}
 		} catch (Exception e) {
 			log.error("Error converting audio", e);
 		}
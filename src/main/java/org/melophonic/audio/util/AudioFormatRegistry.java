@@ -0,0 +1,181 @@
+package org.melophonic.audio.util;
+
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.Line;
+import javax.sound.sampled.Mixer;
+import javax.sound.sampled.SourceDataLine;
+import javax.sound.sampled.TargetDataLine;
+
+import org.apache.commons.io.filefilter.SuffixFileFilter;
+import org.melophonic.audio.spi.flac.FlacAudioFileWriter;
+
+/**
+ * The file types and mixers installed in <code>AudioSystem</code>, looked up
+ * once and then served from memory. Provider discovery scans the class path
+ * and mixer enumeration may open devices, so neither belongs on hot paths
+ * such as corpus scans that need the file filter for every directory.
+ *
+ * File types are resolved on first use, mixers separately on first use of a
+ * mixer lookup. Call {@link #invalidate()} after installing providers or
+ * devices at runtime. The types every JVM can write are known without any
+ * provider lookup, so that a command line naming one does not instantiate
+ * every writer.
+ */
+public class AudioFormatRegistry {
+
+	static volatile AudioFormatRegistry instance;
+
+	/** the types written by the JDK's own writers and by {@link FlacAudioFileWriter}, by extension */
+	static final Map<String, AudioFileFormat.Type> builtInFileTypes = new HashMap<>();
+
+	static {
+		for (AudioFileFormat.Type type : new AudioFileFormat.Type[] { AudioFileFormat.Type.WAVE, AudioFileFormat.Type.AU, AudioFileFormat.Type.AIFF,
+				FlacAudioFileWriter.FLAC }) {
+			builtInFileTypes.put(type.getExtension(), type);
+		}
+	}
+
+	final AudioFileFormat.Type[] fileTypes;
+	final Map<String, AudioFileFormat.Type> fileTypesByExtension;
+	final FileFilter fileFilter;
+
+	volatile Mixers mixers;
+
+	AudioFormatRegistry() {
+		Map<String, AudioFileFormat.Type> types = new LinkedHashMap<>();
+		for (AudioFileFormat.Type type : AudioSystem.getAudioFileTypes()) types.put(type.toString(), type);
+		// FLAC is always writable, even if the service file was not found by this class loader
+		if (!types.containsKey(FlacAudioFileWriter.FLAC.toString())) types.put(FlacAudioFileWriter.FLAC.toString(), FlacAudioFileWriter.FLAC);
+		this.fileTypes = types.values().toArray(new AudioFileFormat.Type[types.size()]);
+
+		Map<String, AudioFileFormat.Type> byExtension = new HashMap<>();
+		List<String> suffixes = new ArrayList<>();
+		for (AudioFileFormat.Type type : fileTypes) {
+			byExtension.putIfAbsent(type.getExtension(), type);
+			byExtension.putIfAbsent(type.getExtension().toLowerCase(Locale.ROOT), type);
+			suffixes.add("." + type.getExtension());
+		}
+		this.fileTypesByExtension = byExtension;
+		this.fileFilter = new SuffixFileFilter(suffixes);
+	}
+
+	/**
+	 * @return the registry, built on the first call after creation or {@link #invalidate()}
+	 */
+	public static AudioFormatRegistry getInstance() {
+		AudioFormatRegistry registry = instance;
+		if (registry == null) {
+			synchronized (AudioFormatRegistry.class) {
+				registry = instance;
+				if (registry == null) instance = registry = new AudioFormatRegistry();
+			}
+		}
+		return registry;
+	}
+
+	/**
+	 * Forgets the installed file types and mixers, so that they are looked up again on next use.
+	 */
+	public static void invalidate() {
+		synchronized (AudioFormatRegistry.class) {
+			instance = null;
+		}
+	}
+
+	/**
+	 * @return the file types that can be written, in <code>AudioSystem</code> order
+	 */
+	public AudioFileFormat.Type[] getFileTypes() {
+		return fileTypes.clone();
+	}
+
+	/**
+	 * @return the file type for <code>extension</code>, matched exactly or
+	 * ignoring case, or null if there is none
+	 */
+	public AudioFileFormat.Type getFileType(String extension) {
+		AudioFileFormat.Type type = fileTypesByExtension.get(extension);
+		return type != null || extension == null ? type : fileTypesByExtension.get(extension.toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * @return the built-in file type for <code>extension</code>, matched
+	 * ignoring case, or null if it is not built in; does not look up the
+	 * installed providers
+	 */
+	public static AudioFileFormat.Type getBuiltInFileType(String extension) {
+		return extension == null ? null : builtInFileTypes.get(extension.toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * @return a filter accepting files with the extension of a writable file type
+	 */
+	public FileFilter getFileFilter() {
+		return fileFilter;
+	}
+
+	/**
+	 * @return the mixer named <code>name</code>, or null if there is none
+	 */
+	public Mixer.Info getMixerInfo(String name) {
+		return getMixers().byName.get(name);
+	}
+
+	/**
+	 * @param sourceTarget if not null, only mixers supporting SourceDataLine (true) or TargetDataLine (false)
+	 */
+	public List<Mixer.Info> getMixers(Boolean sourceTarget) {
+		Mixers mixers = getMixers();
+		if (sourceTarget == null) return mixers.all;
+		return sourceTarget ? mixers.sources : mixers.targets;
+	}
+
+	Mixers getMixers() {
+		Mixers result = mixers;
+		if (result == null) {
+			synchronized (this) {
+				result = mixers;
+				if (result == null) mixers = result = new Mixers();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * The installed mixers, grouped by the lines they support.
+	 */
+	static class Mixers {
+
+		final List<Mixer.Info> all;
+		final List<Mixer.Info> sources;
+		final List<Mixer.Info> targets;
+		final Map<String, Mixer.Info> byName = new HashMap<>();
+
+		Mixers() {
+			Mixer.Info[] infos = AudioSystem.getMixerInfo();
+			List<Mixer.Info> sources = new ArrayList<>(), targets = new ArrayList<>();
+			for (Mixer.Info info : infos) {
+				byName.putIfAbsent(info.getName(), info);
+				Mixer mixer = AudioSystem.getMixer(info);
+				if (mixer.isLineSupported(new Line.Info(SourceDataLine.class))) sources.add(info);
+				if (mixer.isLineSupported(new Line.Info(TargetDataLine.class))) targets.add(info);
+			}
+			this.all = Collections.unmodifiableList(Arrays.asList(infos));
+			this.sources = Collections.unmodifiableList(sources);
+			this.targets = Collections.unmodifiableList(targets);
+		}
+
+	}
+
+}
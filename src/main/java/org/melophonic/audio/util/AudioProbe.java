@@ -0,0 +1,583 @@
+package org.melophonic.audio.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import org.melophonic.audio.spi.flac.FlacAudioFileWriter;
+
+/**
+ * The format and exact length of an audio file, read from its container
+ * headers only: RIFF/RF64 WAVE, AIFF and AIFF-C, FLAC STREAMINFO, MP4
+ * (<code>mdhd</code> and <code>stsd</code>, including the ALAC
+ * configuration) and MP3 (Xing/Info with the LAME gapless fields, VBRI, or
+ * the frame headers). No audio is decoded and, apart from the frame header
+ * scan of untagged VBR MP3s, only a few kilobytes of each file are read.
+ */
+public class AudioProbe {
+
+	public static final AudioFileFormat.Type MP3 = new AudioFileFormat.Type("MP3", "mp3");
+	public static final AudioFileFormat.Type MP4 = new AudioFileFormat.Type("MP4", "m4a");
+
+	public static final AudioFormat.Encoding FLAC = new AudioFormat.Encoding("FLAC");
+	public static final AudioFormat.Encoding ALAC = new AudioFormat.Encoding("ALAC");
+	public static final AudioFormat.Encoding AAC = new AudioFormat.Encoding("AAC");
+
+	static final int HEADER_LENGTH = 1 << 16;
+	/** the largest <code>moov</code> box read */
+	static final int MAX_BOX_LENGTH = 1 << 26;
+	/** MP3 frames compared before assuming a constant bit rate */
+	static final int CBR_CHECK_FRAMES = 8;
+
+	static final int[][] MP3_BITRATES = {
+		{0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448}, // MPEG 1 layer 1
+		{0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384}, // MPEG 1 layer 2
+		{0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320}, // MPEG 1 layer 3
+		{0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256}, // MPEG 2 layer 1
+		{0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160}, // MPEG 2 layers 2 and 3
+	};
+	static final int[] MP3_SAMPLE_RATES = {44100, 48000, 32000};
+
+	final File file;
+	final AudioFileFormat.Type type;
+	final AudioFormat.Encoding encoding;
+	final int channels;
+	final int sampleSizeInBits;
+	final float sampleRate;
+	final long frameLength;
+	final boolean bigEndian;
+
+	AudioProbe(File file, AudioFileFormat.Type type, AudioFormat.Encoding encoding, int channels, int sampleSizeInBits, float sampleRate,
+			long frameLength, boolean bigEndian) {
+		this.file = file;
+		this.type = type;
+		this.encoding = encoding;
+		this.channels = channels;
+		this.sampleSizeInBits = sampleSizeInBits;
+		this.sampleRate = sampleRate;
+		this.frameLength = frameLength;
+		this.bigEndian = bigEndian;
+	}
+
+	/**
+	 * Reads the headers of <code>file</code>.
+	 *
+	 * @throws UnsupportedAudioFileException if the container is not recognized
+	 * or its headers are incomplete
+	 */
+	public static AudioProbe probe(File file) throws IOException, UnsupportedAudioFileException {
+		try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+			Header header = new Header(file, in);
+			long start = header.skipId3();
+			String magic = header.fourCC(start);
+			if (start == 0 && ("RIFF".equals(magic) || "RF64".equals(magic)) && "WAVE".equals(header.fourCC(8))) return header.probeWave();
+			if (start == 0 && "FORM".equals(magic)) return header.probeAiff();
+			if ("fLaC".equals(magic)) return header.probeFlac(start);
+			if (start == 0 && "ftyp".equals(header.fourCC(4))) return header.probeMp4();
+			return header.probeMp3(start);
+		} catch (IndexOutOfBoundsException e) {
+			// a box or chunk claims more bytes than the header has
+			throw new UnsupportedAudioFileException("Corrupt header in " + file);
+		}
+	}
+
+	/**
+	 * @return the probe of <code>file</code>, or null if it is not a
+	 * supported audio file
+	 */
+	public static AudioProbe probeIfSupported(File file) throws IOException {
+		try {
+			return probe(file);
+		} catch (UnsupportedAudioFileException e) {
+			return null;
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public AudioFileFormat.Type getType() {
+		return type;
+	}
+
+	public AudioFormat.Encoding getEncoding() {
+		return encoding;
+	}
+
+	public int getChannels() {
+		return channels;
+	}
+
+	/**
+	 * @return the bit depth, or <code>AudioSystem.NOT_SPECIFIED</code> for lossy codecs
+	 */
+	public int getSampleSizeInBits() {
+		return sampleSizeInBits;
+	}
+
+	public float getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * @return the number of sample frames, or <code>AudioSystem.NOT_SPECIFIED</code>
+	 * if the headers do not state it
+	 */
+	public long getFrameLength() {
+		return frameLength;
+	}
+
+	/**
+	 * @return the duration in seconds, or <code>AudioSystem.NOT_SPECIFIED</code> if unknown
+	 */
+	public double getDurationInSeconds() {
+		if (frameLength == AudioSystem.NOT_SPECIFIED) return AudioSystem.NOT_SPECIFIED;
+		return frameLength / (double) sampleRate;
+	}
+
+	/**
+	 * @return the format of the stored audio, with the frame size only
+	 * specified for uncompressed encodings
+	 */
+	public AudioFormat getFormat() {
+		int frameSize = AudioUtil.isPcm(encoding) || AudioFormat.Encoding.PCM_FLOAT.equals(encoding) || AudioFormat.Encoding.ULAW.equals(encoding)
+				|| AudioFormat.Encoding.ALAW.equals(encoding) ? AudioConverter.calculateFrameSize(channels, sampleSizeInBits) : AudioSystem.NOT_SPECIFIED;
+		return new AudioFormat(encoding, sampleRate, sampleSizeInBits, channels, frameSize, sampleRate, bigEndian);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s %s %s, %d channels, %d bit, %.0f Hz, %d frames (%.3f s)", file.getName(), type, encoding, channels, sampleSizeInBits,
+				sampleRate, frameLength, getDurationInSeconds());
+	}
+
+	/**
+	 * Random access to the bytes of a file being probed.
+	 */
+	static class Header {
+
+		final File file;
+		final RandomAccessFile in;
+		final long length;
+
+		Header(File file, RandomAccessFile in) throws IOException {
+			this.file = file;
+			this.in = in;
+			this.length = in.length();
+		}
+
+		/**
+		 * @return up to <code>n</code> bytes from <code>position</code> on, big-endian
+		 */
+		ByteBuffer read(long position, int n) throws IOException {
+			byte[] bytes = new byte[(int) Math.max(0, Math.min(n, length - position))];
+			in.seek(position);
+			in.readFully(bytes);
+			return ByteBuffer.wrap(bytes);
+		}
+
+		ByteBuffer readFully(long position, int n) throws IOException, UnsupportedAudioFileException {
+			ByteBuffer buffer = read(position, n);
+			if (buffer.remaining() < n) throw new UnsupportedAudioFileException("Truncated header in " + file);
+			return buffer;
+		}
+
+		String fourCC(long position) throws IOException {
+			ByteBuffer buffer = read(position, 4);
+			return buffer.remaining() < 4 ? "" : fourCC(buffer, 0);
+		}
+
+		static String fourCC(ByteBuffer buffer, int offset) {
+			char[] chars = new char[4];
+			for (int i = 0; i < 4; i++) chars[i] = (char) (buffer.get(offset + i) & 0xFF);
+			return new String(chars);
+		}
+
+		/**
+		 * @return the offset after any ID3v2 tags at the start of the file
+		 */
+		long skipId3() throws IOException {
+			long position = 0;
+			ByteBuffer tag;
+			while ((tag = read(position, 10)).remaining() == 10 && tag.get(0) == 'I' && tag.get(1) == 'D' && tag.get(2) == '3') {
+				int size = (tag.get(6) & 0x7F) << 21 | (tag.get(7) & 0x7F) << 14 | (tag.get(8) & 0x7F) << 7 | (tag.get(9) & 0x7F);
+				boolean footer = (tag.get(5) & 0x10) != 0;
+				position += 10 + size + (footer ? 10 : 0);
+			}
+			return position;
+		}
+
+		AudioProbe probeWave() throws IOException, UnsupportedAudioFileException {
+			ByteBuffer header = read(0, HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+			boolean rf64 = "RF64".equals(fourCC(header, 0));
+			int tag = -1, channels = 0, bits = 0, blockAlign = 0;
+			long sampleRate = 0, byteRate = 0, dataLength = -1, factFrames = -1, ds64DataLength = -1, ds64Frames = -1;
+			long position = 12;
+			while (position + 8 <= header.limit()) {
+				String id = fourCC(header, (int) position);
+				long size = header.getInt((int) position + 4) & 0xFFFFFFFFL;
+				int body = (int) position + 8;
+				if ("fmt ".equals(id) && body + 16 <= header.limit()) {
+					tag = header.getShort(body) & 0xFFFF;
+					channels = header.getShort(body + 2) & 0xFFFF;
+					sampleRate = header.getInt(body + 4) & 0xFFFFFFFFL;
+					byteRate = header.getInt(body + 8) & 0xFFFFFFFFL;
+					blockAlign = header.getShort(body + 12) & 0xFFFF;
+					bits = header.getShort(body + 14) & 0xFFFF;
+					// WAVE_FORMAT_EXTENSIBLE: the sub format GUID starts with the format tag
+					if (tag == MappedWaveFile.WAVE_FORMAT_EXTENSIBLE && size >= 40 && body + 26 <= header.limit()) tag = header.getShort(body + 24) & 0xFFFF;
+				} else if ("ds64".equals(id) && body + 24 <= header.limit()) {
+					ds64DataLength = header.getLong(body + 8);
+					ds64Frames = header.getLong(body + 16);
+				} else if ("fact".equals(id) && body + 4 <= header.limit()) {
+					factFrames = header.getInt(body) & 0xFFFFFFFFL;
+				} else if ("data".equals(id)) {
+					dataLength = rf64 && size == 0xFFFFFFFFL ? ds64DataLength : size;
+					// streaming writers leave the length unset
+					if (dataLength < 0 || dataLength == 0xFFFFFFFFL || dataLength > length - body) dataLength = length - body;
+					break;
+				}
+				position += 8 + size + (size & 1);
+			}
+			if (tag < 0 || dataLength < 0 || channels == 0 || sampleRate == 0) throw new UnsupportedAudioFileException("Missing fmt or data chunk: " + file);
+
+			AudioFormat.Encoding encoding;
+			switch (tag) {
+			case MappedWaveFile.WAVE_FORMAT_PCM:
+				encoding = bits <= 8 ? AudioFormat.Encoding.PCM_UNSIGNED : AudioFormat.Encoding.PCM_SIGNED;
+				break;
+			case MappedWaveFile.WAVE_FORMAT_IEEE_FLOAT:
+				encoding = AudioFormat.Encoding.PCM_FLOAT;
+				break;
+			case 6:
+				encoding = AudioFormat.Encoding.ALAW;
+				break;
+			case 7:
+				encoding = AudioFormat.Encoding.ULAW;
+				break;
+			default:
+				encoding = new AudioFormat.Encoding(String.format("WAVE_FORMAT_0x%04X", tag));
+			}
+			long frames;
+			boolean uncompressed = tag == MappedWaveFile.WAVE_FORMAT_PCM || tag == MappedWaveFile.WAVE_FORMAT_IEEE_FLOAT || tag == 6 || tag == 7;
+			if (uncompressed && blockAlign > 0) frames = dataLength / blockAlign;
+			else if (rf64 && ds64Frames > 0) frames = ds64Frames;
+			else if (factFrames >= 0) frames = factFrames;
+			else if (byteRate > 0) frames = Math.round(dataLength * (double) sampleRate / byteRate);
+			else frames = AudioSystem.NOT_SPECIFIED;
+			return new AudioProbe(file, AudioFileFormat.Type.WAVE, encoding, channels, bits, sampleRate, frames, false);
+		}
+
+		AudioProbe probeAiff() throws IOException, UnsupportedAudioFileException {
+			String form = fourCC(8);
+			if (!"AIFF".equals(form) && !"AIFC".equals(form)) throw new UnsupportedAudioFileException("Not an AIFF file: " + file);
+			long position = 12;
+			while (position + 8 <= length) {
+				ByteBuffer chunk = readFully(position, 8);
+				long size = chunk.getInt(4) & 0xFFFFFFFFL;
+				if ("COMM".equals(fourCC(chunk, 0))) {
+					ByteBuffer comm = readFully(position + 8, "AIFC".equals(form) ? 22 : 18);
+					int channels = comm.getShort(0) & 0xFFFF;
+					long frames = comm.getInt(2) & 0xFFFFFFFFL;
+					int bits = comm.getShort(6) & 0xFFFF;
+					double rate = getExtended(comm, 8);
+					AudioFormat.Encoding encoding = AudioFormat.Encoding.PCM_SIGNED;
+					if ("AIFC".equals(form)) {
+						String compression = fourCC(comm, 18);
+						if ("ulaw".equals(compression) || "ULAW".equals(compression)) encoding = AudioFormat.Encoding.ULAW;
+						else if ("alaw".equals(compression) || "ALAW".equals(compression)) encoding = AudioFormat.Encoding.ALAW;
+						else if ("fl32".equals(compression) || "FL32".equals(compression) || "fl64".equals(compression)) encoding = AudioFormat.Encoding.PCM_FLOAT;
+						else if (!"NONE".equals(compression) && !"twos".equals(compression)) encoding = new AudioFormat.Encoding(compression);
+					}
+					return new AudioProbe(file, "AIFC".equals(form) ? AudioFileFormat.Type.AIFC : AudioFileFormat.Type.AIFF, encoding, channels, bits,
+							(float) rate, frames, true);
+				}
+				position += 8 + size + (size & 1);
+			}
+			throw new UnsupportedAudioFileException("Missing COMM chunk: " + file);
+		}
+
+		AudioProbe probeFlac(long start) throws IOException, UnsupportedAudioFileException {
+			// the STREAMINFO block must come first
+			ByteBuffer block = readFully(start + 4, 4 + 34);
+			if ((block.get(0) & 0x7F) != 0) throw new UnsupportedAudioFileException("Missing STREAMINFO block: " + file);
+			long bits = block.getLong(4 + 10);
+			int sampleRate = (int) (bits >>> 44);
+			int channels = (int) (bits >>> 41 & 0x7) + 1;
+			int bitsPerSample = (int) (bits >>> 36 & 0x1F) + 1;
+			long totalSamples = bits & 0xFFFFFFFFFL;
+			return new AudioProbe(file, FlacAudioFileWriter.FLAC, FLAC, channels, bitsPerSample, sampleRate,
+					totalSamples == 0 ? AudioSystem.NOT_SPECIFIED : totalSamples, false);
+		}
+
+		AudioProbe probeMp4() throws IOException, UnsupportedAudioFileException {
+			// the moov box may follow the media data, so walk the top level boxes
+			long position = 0;
+			while (position + 8 <= length) {
+				ByteBuffer box = readFully(position, 16);
+				long size = box.getInt(0) & 0xFFFFFFFFL;
+				int headerSize = 8;
+				if (size == 1) {
+					size = box.getLong(8);
+					headerSize = 16;
+				} else if (size == 0) {
+					size = length - position;
+				}
+				if (size < headerSize) break;
+				if ("moov".equals(fourCC(box, 4))) {
+					if (size > MAX_BOX_LENGTH) throw new UnsupportedAudioFileException("moov box too large in " + file);
+					ByteBuffer moov = readFully(position + headerSize, (int) (size - headerSize));
+					AudioProbe probe = probeMoov(moov);
+					if (probe != null) return probe;
+					break;
+				}
+				position += size;
+			}
+			throw new UnsupportedAudioFileException("No sound track in " + file);
+		}
+
+		/**
+		 * @return the probe of the first sound track in <code>moov</code>, or null
+		 */
+		AudioProbe probeMoov(ByteBuffer moov) {
+			for (int trak = findBox(moov, 0, moov.limit(), "trak"); trak >= 0; trak = findBox(moov, nextBox(moov, trak), moov.limit(), "trak")) {
+				int trakEnd = nextBox(moov, trak);
+				int mdia = findBox(moov, trak + 8, trakEnd, "mdia");
+				if (mdia < 0) continue;
+				int mdiaEnd = nextBox(moov, mdia);
+				int hdlr = findBox(moov, mdia + 8, mdiaEnd, "hdlr");
+				if (hdlr < 0 || !"soun".equals(fourCC(moov, hdlr + 16))) continue;
+
+				int mdhd = findBox(moov, mdia + 8, mdiaEnd, "mdhd");
+				long timescale = 0, duration = -1;
+				if (mdhd >= 0) {
+					if (moov.get(mdhd + 8) == 1) {
+						timescale = moov.getInt(mdhd + 28) & 0xFFFFFFFFL;
+						duration = moov.getLong(mdhd + 32);
+					} else {
+						timescale = moov.getInt(mdhd + 20) & 0xFFFFFFFFL;
+						duration = moov.getInt(mdhd + 24) & 0xFFFFFFFFL;
+					}
+				}
+
+				int stsd = findPath(moov, mdia + 8, mdiaEnd, "minf", "stbl", "stsd");
+				if (stsd < 0) continue;
+				int entry = stsd + 16;
+				String codec = fourCC(moov, entry + 4);
+				int version = moov.getShort(entry + 16) & 0xFFFF;
+				int channels = moov.getShort(entry + 24) & 0xFFFF;
+				int bits = moov.getShort(entry + 26) & 0xFFFF;
+				// 16.16 fixed point, which cannot hold rates above 65535
+				long sampleRate = (moov.getInt(entry + 32) & 0xFFFFFFFFL) >>> 16;
+				AudioFormat.Encoding encoding = new AudioFormat.Encoding(codec);
+				if ("alac".equals(codec)) {
+					encoding = ALAC;
+					int children = entry + 36 + (version == 1 ? 16 : version == 2 ? 36 : 0);
+					int alac = findBox(moov, children, nextBox(moov, entry), "alac");
+					if (alac >= 0 && nextBox(moov, alac) - alac >= 36) {
+						bits = moov.get(alac + 17) & 0xFF;
+						channels = moov.get(alac + 21) & 0xFF;
+						sampleRate = moov.getInt(alac + 32) & 0xFFFFFFFFL;
+					}
+				} else if ("mp4a".equals(codec)) {
+					encoding = AAC;
+					bits = AudioSystem.NOT_SPECIFIED;
+				}
+				if (sampleRate == 0) sampleRate = timescale;
+				long frames = AudioSystem.NOT_SPECIFIED;
+				if (duration >= 0 && timescale > 0) {
+					frames = timescale == sampleRate ? duration : Math.round(duration * (double) sampleRate / timescale);
+				}
+				return new AudioProbe(file, MP4, encoding, channels, bits, sampleRate, frames, true);
+			}
+			return null;
+		}
+
+		/**
+		 * @return the offset of the first box of type <code>type</code> between
+		 * <code>start</code> and <code>end</code>, or -1
+		 */
+		static int findBox(ByteBuffer buffer, int start, int end, String type) {
+			int position = start;
+			while (position >= 0 && position + 8 <= end) {
+				if (type.equals(fourCC(buffer, position + 4))) return position;
+				position = nextBox(buffer, position);
+			}
+			return -1;
+		}
+
+		static int findPath(ByteBuffer buffer, int start, int end, String... path) {
+			int box = -1;
+			for (String type : path) {
+				box = findBox(buffer, start, end, type);
+				if (box < 0) return -1;
+				start = box + 8;
+				end = nextBox(buffer, box);
+			}
+			return box;
+		}
+
+		/**
+		 * @return the offset after the box at <code>position</code>, or -1 if its size is invalid
+		 */
+		static int nextBox(ByteBuffer buffer, int position) {
+			long size = buffer.getInt(position) & 0xFFFFFFFFL;
+			if (size == 0) return buffer.limit();
+			if (size < 8 || position + size > buffer.limit()) return -1;
+			return (int) (position + size);
+		}
+
+		AudioProbe probeMp3(long start) throws IOException, UnsupportedAudioFileException {
+			ByteBuffer buffer = read(start, HEADER_LENGTH);
+			int offset = 0;
+			FrameHeader frame = null;
+			// the first frame header followed by a second one where it says
+			for (; offset + 4 <= buffer.limit(); offset++) {
+				frame = FrameHeader.parse(buffer, offset);
+				if (frame != null && isFollowed(buffer, start, offset, frame)) break;
+				frame = null;
+			}
+			if (frame == null) throw new UnsupportedAudioFileException("No MPEG audio frames in " + file);
+
+			long audioStart = start + offset;
+			long audioEnd = length;
+			if (length >= 128 && "TAG".equals(fourCC(length - 128).substring(0, 3))) audioEnd -= 128;
+			AudioFormat.Encoding encoding = new AudioFormat.Encoding(frame.getEncodingName());
+			long frames;
+
+			int xing = offset + 4 + frame.getSideInfoLength();
+			String id = xing + 4 <= buffer.limit() ? fourCC(buffer, xing) : "";
+			if (("Xing".equals(id) || "Info".equals(id)) && xing + 12 <= buffer.limit() && (buffer.getInt(xing + 4) & 1) != 0) {
+				int flags = buffer.getInt(xing + 4);
+				frames = (buffer.getInt(xing + 8) & 0xFFFFFFFFL) * frame.samples;
+				int lame = xing + 8 + ((flags & 1) != 0 ? 4 : 0) + ((flags & 2) != 0 ? 4 : 0) + ((flags & 4) != 0 ? 100 : 0) + ((flags & 8) != 0 ? 4 : 0);
+				if (lame + 24 <= buffer.limit() && ("LAME".equals(fourCC(buffer, lame)) || "Lavc".equals(fourCC(buffer, lame)) || "Lavf".equals(fourCC(buffer, lame)))) {
+					// encoder delay and padding, 12 bits each
+					int gapless = (buffer.get(lame + 21) & 0xFF) << 16 | (buffer.get(lame + 22) & 0xFF) << 8 | (buffer.get(lame + 23) & 0xFF);
+					frames = Math.max(0, frames - (gapless >>> 12) - (gapless & 0xFFF));
+				}
+			} else if (offset + 36 + 18 <= buffer.limit() && "VBRI".equals(fourCC(buffer, offset + 36))) {
+				frames = (buffer.getInt(offset + 36 + 14) & 0xFFFFFFFFL) * frame.samples;
+			} else if (isConstantBitRate(buffer, offset, frame)) {
+				frames = Math.round((audioEnd - audioStart) * 8.0 / frame.bitRate * frame.sampleRate);
+			} else {
+				frames = scanFrames(audioStart, audioEnd);
+			}
+			return new AudioProbe(file, MP3, encoding, frame.channels, AudioSystem.NOT_SPECIFIED, frame.sampleRate, frames, true);
+		}
+
+		/**
+		 * @return true if the frame at <code>offset</code> of <code>buffer</code>
+		 * is followed by another frame header, or ends exactly where the file or
+		 * its ID3v1 tag starts; a sync word alone is too common in other files
+		 */
+		boolean isFollowed(ByteBuffer buffer, long start, int offset, FrameHeader frame) throws IOException {
+			int next = offset + frame.length;
+			if (next + 4 <= buffer.limit()) return FrameHeader.parse(buffer, next) != null;
+			long position = start + next;
+			if (position == length || position == length - 128 && fourCC(position).startsWith("TAG")) return true;
+			return FrameHeader.parse(read(position, 4), 0) != null;
+		}
+
+		boolean isConstantBitRate(ByteBuffer buffer, int offset, FrameHeader first) {
+			FrameHeader frame = first;
+			for (int i = 0; i < CBR_CHECK_FRAMES && frame != null; i++) {
+				if (frame.bitRate != first.bitRate) return false;
+				offset += frame.length;
+				frame = FrameHeader.parse(buffer, offset);
+			}
+			return true;
+		}
+
+		/**
+		 * Counts the samples of every frame, reading only the frame headers.
+		 */
+		long scanFrames(long start, long end) throws IOException {
+			long samples = 0;
+			long position = start;
+			ByteBuffer buffer = ByteBuffer.allocate(0);
+			long bufferStart = 0;
+			while (position + 4 <= end) {
+				if (position + 4 > bufferStart + buffer.limit()) {
+					bufferStart = position;
+					buffer = read(position, HEADER_LENGTH);
+				}
+				FrameHeader frame = FrameHeader.parse(buffer, (int) (position - bufferStart));
+				if (frame == null) break;
+				samples += frame.samples;
+				position += frame.length;
+			}
+			return samples;
+		}
+
+		/**
+		 * Decodes an 80 bit IEEE 754 extended precision number.
+		 */
+		static double getExtended(ByteBuffer buffer, int offset) {
+			int exponent = buffer.getShort(offset) & 0x7FFF;
+			long mantissa = buffer.getLong(offset + 2);
+			if (exponent == 0 && mantissa == 0) return 0;
+			return (mantissa >>> 11) * Math.pow(2, exponent - 16383 - 52);
+		}
+
+	}
+
+	/**
+	 * An MPEG audio frame header.
+	 */
+	static class FrameHeader {
+
+		int version; // 1, 2 or 25 for MPEG 2.5
+		int layer;
+		int bitRate;
+		int sampleRate;
+		int channels;
+		int samples;
+		int length;
+
+		/**
+		 * @return the header at <code>offset</code>, or null if there is no valid header
+		 */
+		static FrameHeader parse(ByteBuffer buffer, int offset) {
+			if (offset < 0 || offset + 4 > buffer.limit()) return null;
+			int b1 = buffer.get(offset + 1) & 0xFF, b2 = buffer.get(offset + 2) & 0xFF, b3 = buffer.get(offset + 3) & 0xFF;
+			if ((buffer.get(offset) & 0xFF) != 0xFF || (b1 & 0xE0) != 0xE0) return null;
+			int versionBits = b1 >> 3 & 3, layerBits = b1 >> 1 & 3, bitRateIndex = b2 >> 4, sampleRateIndex = b2 >> 2 & 3;
+			if (versionBits == 1 || layerBits == 0 || bitRateIndex == 0 || bitRateIndex == 15 || sampleRateIndex == 3) return null;
+			FrameHeader header = new FrameHeader();
+			header.version = versionBits == 3 ? 1 : versionBits == 2 ? 2 : 25;
+			header.layer = 4 - layerBits;
+			int table = header.version == 1 ? header.layer - 1 : header.layer == 1 ? 3 : 4;
+			header.bitRate = MP3_BITRATES[table][bitRateIndex] * 1000;
+			header.sampleRate = MP3_SAMPLE_RATES[sampleRateIndex] / (header.version == 1 ? 1 : header.version == 2 ? 2 : 4);
+			header.channels = (b3 >> 6) == 3 ? 1 : 2;
+			header.samples = header.layer == 1 ? 384 : header.layer == 3 && header.version != 1 ? 576 : 1152;
+			int padding = b2 >> 1 & 1;
+			header.length = header.layer == 1 ? (12 * header.bitRate / header.sampleRate + padding) * 4
+					: header.samples / 8 * header.bitRate / header.sampleRate + padding;
+			return header;
+		}
+
+		int getSideInfoLength() {
+			if (version == 1) return channels == 1 ? 17 : 32;
+			return channels == 1 ? 9 : 17;
+		}
+
+		/**
+		 * @return the encoding name used by the MP3 service providers, such as MPEG1L3
+		 */
+		String getEncodingName() {
+			return "MPEG" + (version == 25 ? "2DOT5" : String.valueOf(version)) + "L" + layer;
+		}
+
+	}
+
+}
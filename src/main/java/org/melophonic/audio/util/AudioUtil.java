@@ -5,23 +5,17 @@ import java.io.FileFilter;
 import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import javax.sound.sampled.AudioFileFormat;
-import javax.sound.sampled.AudioFileFormat.Type;
 import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.DataLine;
-import javax.sound.sampled.Line;
 import javax.sound.sampled.LineUnavailableException;
 import javax.sound.sampled.Mixer;
-import javax.sound.sampled.SourceDataLine;
 import javax.sound.sampled.TargetDataLine;
 import javax.sound.sampled.UnsupportedAudioFileException;
 
-import org.apache.commons.io.filefilter.SuffixFileFilter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -36,16 +30,23 @@ public class AudioUtil {
 	public static final float DEFAULT_FLOAT_COMPARISON_THRESHOLD = 1E-9F;
 
 	/**
+	 * Reads the duration from the file's headers with {@link AudioProbe},
+	 * falling back to the frame length reported by the installed
+	 * <code>AudioFileReader</code>s for other containers.
 	 * 
 	 * @param file
-	 * @return the duration in seconds of the input file
+	 * @return the duration in seconds of the input file, or
+	 * <code>AudioSystem.NOT_SPECIFIED</code> if it cannot be determined
+	 * without decoding
 	 * @throws UnsupportedAudioFileException
 	 * @throws IOException
 	 */
 	public static double getDurationInSeconds(File file) throws UnsupportedAudioFileException, IOException {
-		AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(file);
-		AudioFormat format = audioInputStream.getFormat();
-		return getDurationInSeconds(format, file.length());
+		AudioProbe probe = AudioProbe.probeIfSupported(file);
+		if (probe != null) return probe.getDurationInSeconds();
+		AudioFileFormat fileFormat = AudioSystem.getAudioFileFormat(file);
+		if (fileFormat.getFrameLength() == AudioSystem.NOT_SPECIFIED) return AudioSystem.NOT_SPECIFIED;
+		return fileFormat.getFrameLength() / (double) fileFormat.getFormat().getFrameRate();
 	}
 	
 	/**
@@ -61,33 +62,29 @@ public class AudioUtil {
 	}
 	
 	
+	/**
+	 * @see AudioFormatRegistry#getFileTypes()
+	 */
 	public static AudioFileFormat.Type[] getSupportedAudioFileFormatTypes() {
-		List<AudioFileFormat.Type> types = new ArrayList<>(Arrays.asList(AudioSystem.getAudioFileTypes()));
-		types.add(new Type("FLAC", "flac")); // TODO:  this is a hack because the jflac doesn't register an AudioFileWriter
-		return types.toArray(new AudioFileFormat.Type[types.size()]);
+		return AudioFormatRegistry.getInstance().getFileTypes();
 	}
 	
+	/**
+	 * @see AudioFormatRegistry#getFileFilter()
+	 */
 	public static FileFilter getSupportedAudioFileFilter() {
-		List<String> exts = new ArrayList<>();
-		for (AudioFileFormat.Type type : getSupportedAudioFileFormatTypes()) exts.add(String.format(".%s", type.getExtension()));
-		return new SuffixFileFilter(exts);
+		return AudioFormatRegistry.getInstance().getFileFilter();
 	}
 
 	/**
-	 * Trying to get an audio file type for the passed extension. This works by
-	 * examining all available file types. For each type, if the extension this
-	 * type promises to handle matches the extension we are trying to find a
-	 * type for, this type is returned. If no appropriate type is found, null is
-	 * returned.
+	 * Trying to get an audio file type for the passed extension. If no
+	 * appropriate type is found, null is returned.
+	 * 
+	 * @see AudioFormatRegistry#getFileType(String)
 	 */
 	public static AudioFileFormat.Type getAudioFileFormatType(String strExtension) {
-		AudioFileFormat.Type[] aTypes = AudioSystem.getAudioFileTypes();
-		for (int i = 0; i < aTypes.length; i++) {
-			if (aTypes[i].getExtension().equals(strExtension)) {
-				return aTypes[i];
-			}
-		}
-		return null;
+		AudioFileFormat.Type type = AudioFormatRegistry.getBuiltInFileType(strExtension);
+		return type != null ? type : AudioFormatRegistry.getInstance().getFileType(strExtension);
 	}
 
 	public static List<Mixer.Info> getAvailableMixers() {
@@ -101,25 +98,11 @@ public class AudioUtil {
 	 * @return
 	 */
 	public static List<Mixer.Info> getAvailableMixers(Boolean sourceTarget) {
-		ArrayList<Mixer.Info> mixers = new ArrayList<>();
-		if (sourceTarget != null) {
-			for (Mixer.Info mixerInfo : AudioSystem.getMixerInfo()) {
-				Mixer mixer = AudioSystem.getMixer(mixerInfo);
-				Line.Info lineInfo = new Line.Info(sourceTarget ? SourceDataLine.class : TargetDataLine.class);
-				if (mixer.isLineSupported(lineInfo)) mixers.add(mixerInfo);				
-			}
-			
-		} else {
-			mixers.addAll(Arrays.asList(AudioSystem.getMixerInfo()));
-		}
-		return mixers;
+		return new ArrayList<>(AudioFormatRegistry.getInstance().getMixers(sourceTarget));
 	}
 
 	public static Mixer.Info getMixerInfo(String mixerName) {
-		for (Mixer.Info mixerInfo : AudioSystem.getMixerInfo()) {
-			if (mixerInfo.getName().equals(mixerName)) return mixerInfo;
-		}
-		return null;
+		return AudioFormatRegistry.getInstance().getMixerInfo(mixerName);
 	}
 
 	
@@ -0,0 +1,276 @@
+package org.melophonic.audio.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A file conversion that can be watched and cancelled while it runs. The
+ * converted stream handed to the file writer is wrapped in an
+ * {@link Instrumentation.TimedInputStream}, so that every read counts bytes,
+ * and the time spent inside those reads (reading and decoding the source plus
+ * any format conversions) is reported as decode time, the rest of the write
+ * as encode time.
+ *
+ * Cancellation is cooperative: the next read of the converted stream fails
+ * with an <code>InterruptedIOException</code>, which stops the writer. As in
+ * batch conversions, the output is written to a hidden <code>.part</code>
+ * file next to the target and renamed over it on success, so a cancelled or
+ * failed conversion deletes only its partial output and leaves an existing
+ * target untouched.
+ */
+public class ConversionHandle implements Runnable, Future<Long> {
+
+	final static Logger log = LoggerFactory.getLogger(ConversionHandle.class);
+
+	public enum State {
+		PENDING, RUNNING, DONE, FAILED, CANCELLED
+	}
+
+	final File inputFile;
+	final File outputFile;
+	final AudioConverter.Parameters parameters;
+	final CountDownLatch done = new CountDownLatch(1);
+	final Instrumentation.Timer decode = new Instrumentation.Timer(false);
+
+	// the counters are only written by the converting thread
+	volatile State state = State.PENDING;
+	volatile boolean cancelled = false;
+	volatile long totalFrames = AudioSystem.NOT_SPECIFIED;
+	volatile int frameSize = AudioSystem.NOT_SPECIFIED;
+	volatile Instrumentation.TimedInputStream monitored;
+	volatile long startNanos = 0;
+	volatile long endNanos = 0;
+	volatile long bytesWritten = 0;
+	volatile Exception failure;
+
+	public ConversionHandle(File inputFile, File outputFile, AudioConverter.Parameters parameters) {
+		this.inputFile = inputFile;
+		this.outputFile = outputFile;
+		this.parameters = parameters.copy();
+	}
+
+	/**
+	 * Starts converting <code>inputFile</code> on <code>executor</code>.
+	 *
+	 * @return the handle of the conversion
+	 */
+	public static ConversionHandle submit(File inputFile, File outputFile, AudioConverter.Parameters parameters, Executor executor) {
+		ConversionHandle handle = new ConversionHandle(inputFile, outputFile, parameters);
+		executor.execute(handle);
+		return handle;
+	}
+
+	/**
+	 * Runs the conversion on the calling thread, unless it was cancelled before it started.
+	 */
+	@Override
+	public void run() {
+		synchronized (this) {
+			if (state != State.PENDING) return;
+			state = State.RUNNING;
+		}
+		startNanos = System.nanoTime();
+		File partFile = new File(outputFile.getParentFile(), "." + outputFile.getName() + ".part");
+		try {
+			long written = AudioConverter.convert(inputFile, partFile, parameters, this);
+			// under the lock of cancel(), so that it cannot succeed once the output is in place
+			synchronized (this) {
+				if (cancelled) throw new InterruptedIOException("Conversion cancelled");
+				Files.move(partFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				bytesWritten = written;
+				finish(State.DONE);
+			}
+		} catch (Exception e) {
+			partFile.delete();
+			synchronized (this) {
+				if (cancelled) {
+					log.debug("cancelled " + inputFile + " after " + getFramesProcessed() + " frames");
+					finish(State.CANCELLED);
+				} else {
+					failure = e;
+					finish(State.FAILED);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Ends the conversion in <code>state</code>; called with the lock held.
+	 */
+	void finish(State state) {
+		endNanos = System.nanoTime();
+		this.state = state;
+		done.countDown();
+	}
+
+	/**
+	 * Wraps the converted stream so that reads are counted, timed and fail once cancelled.
+	 */
+	AudioInputStream monitor(AudioInputStream stream) {
+		totalFrames = stream.getFrameLength();
+		frameSize = stream.getFormat().getFrameSize();
+		monitored = new Instrumentation.TimedInputStream(stream, decode) {
+
+			@Override
+			void check() throws IOException {
+				if (cancelled) throw new InterruptedIOException("Conversion of " + inputFile + " cancelled");
+			}
+
+		};
+		return new AudioInputStream(monitored, stream.getFormat(), stream.getFrameLength());
+	}
+
+	/**
+	 * Asks the conversion to stop. A running conversion stops at its next
+	 * read; one that has not started never starts.
+	 *
+	 * @param mayInterruptIfRunning ignored, cancellation is always cooperative
+	 * @return false if the conversion had already finished, in which case
+	 * its output stays in place
+	 */
+	@Override
+	public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+		if (isDone()) return false;
+		cancelled = true;
+		if (state == State.PENDING) finish(State.CANCELLED);
+		return true;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return state == State.CANCELLED;
+	}
+
+	@Override
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	/**
+	 * @return the number of bytes written
+	 * @throws CancellationException if the conversion was cancelled
+	 * @throws ExecutionException if the conversion failed
+	 */
+	@Override
+	public Long get() throws InterruptedException, ExecutionException {
+		done.await();
+		return getResult();
+	}
+
+	@Override
+	public Long get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!done.await(timeout, unit)) throw new TimeoutException("Conversion of " + inputFile + " still running");
+		return getResult();
+	}
+
+	Long getResult() throws ExecutionException {
+		if (state == State.CANCELLED) throw new CancellationException("Conversion of " + inputFile + " cancelled");
+		if (state == State.FAILED) throw new ExecutionException(failure);
+		return bytesWritten;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public File getInputFile() {
+		return inputFile;
+	}
+
+	public File getOutputFile() {
+		return outputFile;
+	}
+
+	public long getFramesProcessed() {
+		return frameSize > 0 ? getBytesProcessed() / frameSize : 0;
+	}
+
+	/**
+	 * @return the number of frames of the converted stream, or
+	 * <code>AudioSystem.NOT_SPECIFIED</code> if it is not known
+	 */
+	public long getTotalFrames() {
+		return totalFrames;
+	}
+
+	/**
+	 * @return the fraction of frames processed, or NaN if the total is not known
+	 */
+	public double getProgress() {
+		if (state == State.DONE) return 1;
+		long total = totalFrames;
+		return total > 0 ? Math.min(1, getFramesProcessed() / (double) total) : Double.NaN;
+	}
+
+	/**
+	 * @return the number of converted bytes handed to the writer
+	 */
+	public long getBytesProcessed() {
+		Instrumentation.TimedInputStream stream = monitored;
+		return stream != null ? stream.bytesRead : 0;
+	}
+
+	/**
+	 * @return the length of the output file once the conversion is done
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	public double getElapsedSeconds() {
+		if (startNanos == 0) return 0;
+		return ((endNanos != 0 ? endNanos : System.nanoTime()) - startNanos) / 1E9;
+	}
+
+	/**
+	 * @return the time spent reading, decoding and converting the source
+	 */
+	public double getDecodeSeconds() {
+		return decode.getNanos() / 1E9;
+	}
+
+	/**
+	 * @return the time spent encoding and writing the output (and opening the source)
+	 */
+	public double getEncodeSeconds() {
+		return Math.max(0, getElapsedSeconds() - getDecodeSeconds());
+	}
+
+	/**
+	 * @return converted bytes processed per second
+	 */
+	public double getBytesPerSecond() {
+		double elapsed = getElapsedSeconds();
+		return elapsed > 0 ? getBytesProcessed() / elapsed : 0;
+	}
+
+	/**
+	 * @return the exception that stopped a failed conversion, or null
+	 */
+	public Exception getFailure() {
+		return failure;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s %s: %d/%d frames in %.1f s (%.1f MB/s, %.1f s decode, %.1f s encode)", state, inputFile, getFramesProcessed(),
+				totalFrames, getElapsedSeconds(), getBytesPerSecond() / (1 << 20), getDecodeSeconds(), getEncodeSeconds());
+	}
+
+}
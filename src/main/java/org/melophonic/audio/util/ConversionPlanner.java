@@ -0,0 +1,358 @@
+package org.melophonic.audio.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import javax.sound.sampled.spi.AudioFileReader;
+import javax.sound.sampled.spi.AudioFileWriter;
+import javax.sound.sampled.spi.FormatConversionProvider;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves the providers an {@link AudioConverter} conversion needs once per
+ * (source format, {@link AudioConverter.Parameters}) pair and caches the
+ * result as a {@link Plan}, so that repeated conversions of the same format
+ * pair call the chosen providers directly instead of having
+ * <code>AudioSystem</code> walk every installed provider at each step. The
+ * reader that last opened a file extension and the writer for each (file
+ * type, format) pair are cached the same way.
+ *
+ * Providers are tried in the order <code>AudioSystem</code> tries them, so
+ * that a plan picks the same provider <code>AudioSystem</code> would: those
+ * registered on the class path (jflac, the sinc resampler, ...) from last to
+ * first, then the JDK's own. They are instantiated through
+ * {@link LazyServiceLoader}s, only when a lookup first reaches them. The
+ * provider lists are fixed once read; create a new planner after installing
+ * providers at runtime.
+ */
+public class ConversionPlanner {
+
+	final static Logger log = LoggerFactory.getLogger(ConversionPlanner.class);
+
+	static final ConversionPlanner instance = new ConversionPlanner();
+
+	final LazyServiceLoader<FormatConversionProvider> converters = LazyServiceLoader.loadReversed(FormatConversionProvider.class);
+	final LazyServiceLoader<AudioFileReader> readers = LazyServiceLoader.loadReversed(AudioFileReader.class);
+	final LazyServiceLoader<AudioFileWriter> writers = LazyServiceLoader.loadReversed(AudioFileWriter.class);
+
+	final ConcurrentMap<PlanKey, Plan> plans = new ConcurrentHashMap<>();
+	final ConcurrentMap<String, AudioFileReader> readersByExtension = new ConcurrentHashMap<>();
+	final ConcurrentMap<WriterKey, AudioFileWriter> writersByFormat = new ConcurrentHashMap<>();
+
+	final LongAdder hits = new LongAdder();
+	final LongAdder misses = new LongAdder();
+
+	/**
+	 * @return the planner shared by the static <code>AudioConverter</code> methods
+	 */
+	public static ConversionPlanner getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Converts <code>stream</code> as {@link AudioConverter#getConvertedStream}
+	 * does, replaying a cached plan if one exists for the stream's format and
+	 * the parameters, and recording one otherwise.
+	 */
+	public AudioInputStream convert(AudioInputStream stream, AudioConverter.Parameters parameters) throws Exception {
+		PlanKey key = new PlanKey(stream.getFormat(), parameters);
+		Plan plan = plans.get(key);
+		if (plan != null) {
+			hits.increment();
+			return plan.apply(stream);
+		}
+		misses.increment();
+		List<Step> steps = new ArrayList<>();
+		AudioInputStream converted = AudioConverter.plan(stream, parameters, this, steps);
+		plans.putIfAbsent(key, new Plan(steps));
+		log.debug("planned " + steps.size() + " steps for " + key);
+		return converted;
+	}
+
+	/**
+	 * @return a step converting to <code>targetEncoding</code> with the first
+	 * provider supporting it, as <code>AudioSystem</code> would choose
+	 * @throws IllegalArgumentException if no provider supports the conversion
+	 */
+	Step getStep(final AudioFormat.Encoding targetEncoding, AudioFormat sourceFormat) {
+		for (final FormatConversionProvider provider : converters) {
+			if (provider.isConversionSupported(targetEncoding, sourceFormat)) {
+				return stream -> provider.getAudioInputStream(targetEncoding, stream);
+			}
+		}
+		throw new IllegalArgumentException("Unsupported conversion: " + targetEncoding + " from " + sourceFormat);
+	}
+
+	/**
+	 * @return a step converting to <code>targetFormat</code> with the first provider supporting it
+	 * @throws IllegalArgumentException if no provider supports the conversion
+	 */
+	Step getStep(final AudioFormat targetFormat, AudioFormat sourceFormat) {
+		if (sourceFormat.matches(targetFormat)) return stream -> stream;
+		for (final FormatConversionProvider provider : converters) {
+			if (provider.isConversionSupported(targetFormat, sourceFormat)) {
+				return stream -> provider.getAudioInputStream(targetFormat, stream);
+			}
+		}
+		throw new IllegalArgumentException("Unsupported conversion: " + targetFormat + " from " + sourceFormat);
+	}
+
+	boolean isConversionSupported(AudioFormat.Encoding targetEncoding, AudioFormat sourceFormat) {
+		if (sourceFormat.getEncoding().equals(targetEncoding)) return true;
+		for (FormatConversionProvider provider : converters) {
+			if (provider.isConversionSupported(targetEncoding, sourceFormat)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the first writer supporting the file type for streams in
+	 * <code>format</code>, or null if there is none
+	 */
+	public AudioFileWriter getWriter(AudioFileFormat.Type fileType, AudioFormat format) {
+		WriterKey key = new WriterKey(fileType, format);
+		AudioFileWriter writer = writersByFormat.get(key);
+		if (writer == null) {
+			AudioInputStream probe = new AudioInputStream(null, format, AudioSystem.NOT_SPECIFIED);
+			for (AudioFileWriter candidate : writers) {
+				if (candidate.isFileTypeSupported(fileType, probe)) {
+					writer = candidate;
+					writersByFormat.putIfAbsent(key, writer);
+					break;
+				}
+			}
+		}
+		return writer;
+	}
+
+	/**
+	 * Writes <code>stream</code> with the cached writer for its format.
+	 */
+	public int write(AudioInputStream stream, AudioFileFormat.Type fileType, File out) throws IOException {
+		AudioFileWriter writer = getWriter(fileType, stream.getFormat());
+		if (writer == null) throw new IllegalArgumentException("could not write audio file: file type not supported: " + fileType);
+		return writer.write(stream, fileType, out);
+	}
+
+	/**
+	 * Opens <code>file</code> with the reader that last opened a file with
+	 * the same extension, falling back to trying every reader.
+	 */
+	public AudioInputStream getAudioInputStream(File file) throws UnsupportedAudioFileException, IOException {
+		String extension = getExtension(file);
+		AudioFileReader cached = readersByExtension.get(extension);
+		if (cached != null) {
+			try {
+				return cached.getAudioInputStream(file);
+			} catch (UnsupportedAudioFileException e) {
+				// the extension lied: fall through and try every reader
+			}
+		}
+		for (AudioFileReader reader : readers) {
+			if (reader == cached) continue;
+			try {
+				AudioInputStream stream = reader.getAudioInputStream(file);
+				readersByExtension.put(extension, reader);
+				return stream;
+			} catch (UnsupportedAudioFileException e) {
+				// try the next reader
+			}
+		}
+		throw new UnsupportedAudioFileException("File of unsupported format: " + file);
+	}
+
+	/**
+	 * Reads the file format of <code>file</code> like {@link #getAudioInputStream(File)}.
+	 */
+	public AudioFileFormat getAudioFileFormat(File file) throws UnsupportedAudioFileException, IOException {
+		String extension = getExtension(file);
+		AudioFileReader cached = readersByExtension.get(extension);
+		if (cached != null) {
+			try {
+				return cached.getAudioFileFormat(file);
+			} catch (UnsupportedAudioFileException e) {
+				// the extension lied: fall through and try every reader
+			}
+		}
+		for (AudioFileReader reader : readers) {
+			if (reader == cached) continue;
+			try {
+				AudioFileFormat format = reader.getAudioFileFormat(file);
+				readersByExtension.put(extension, reader);
+				return format;
+			} catch (UnsupportedAudioFileException e) {
+				// try the next reader
+			}
+		}
+		throw new UnsupportedAudioFileException("File of unsupported format: " + file);
+	}
+
+	static String getExtension(File file) {
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		return dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Forgets all cached plans, readers and writers.
+	 */
+	public void clear() {
+		plans.clear();
+		readersByExtension.clear();
+		writersByFormat.clear();
+	}
+
+	public int getPlanCount() {
+		return plans.size();
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * One conversion in a plan.
+	 */
+	interface Step {
+		AudioInputStream apply(AudioInputStream stream) throws Exception;
+	}
+
+	/**
+	 * The resolved conversion steps for one (source format, parameters) pair.
+	 */
+	static class Plan {
+
+		final List<Step> steps;
+
+		Plan(List<Step> steps) {
+			this.steps = Collections.unmodifiableList(new ArrayList<>(steps));
+		}
+
+		AudioInputStream apply(AudioInputStream stream) throws Exception {
+			for (Step step : steps) stream = step.apply(stream);
+			return stream;
+		}
+
+	}
+
+	/**
+	 * Compares formats by value, since <code>AudioFormat</code> does not
+	 * implement <code>equals</code>.
+	 */
+	static class FormatKey {
+
+		final AudioFormat.Encoding encoding;
+		final float sampleRate;
+		final int sampleSizeInBits;
+		final int channels;
+		final int frameSize;
+		final float frameRate;
+		final boolean bigEndian;
+
+		FormatKey(AudioFormat format) {
+			this.encoding = format.getEncoding();
+			this.sampleRate = format.getSampleRate();
+			this.sampleSizeInBits = format.getSampleSizeInBits();
+			this.channels = format.getChannels();
+			this.frameSize = format.getFrameSize();
+			this.frameRate = format.getFrameRate();
+			this.bigEndian = format.isBigEndian();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof FormatKey)) return false;
+			FormatKey k = (FormatKey) o;
+			return encoding.equals(k.encoding) && Float.compare(sampleRate, k.sampleRate) == 0 && sampleSizeInBits == k.sampleSizeInBits
+					&& channels == k.channels && frameSize == k.frameSize && Float.compare(frameRate, k.frameRate) == 0
+					&& (bigEndian == k.bigEndian || sampleSizeInBits <= 8);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(encoding, sampleRate, sampleSizeInBits, channels, frameSize, frameRate);
+		}
+
+		@Override
+		public String toString() {
+			return encoding + " " + sampleRate + " Hz, " + sampleSizeInBits + " bit, " + channels + " channels" + (bigEndian ? ", big-endian" : "");
+		}
+
+	}
+
+	static class PlanKey {
+
+		final FormatKey format;
+		final AudioConverter.Parameters parameters;
+
+		PlanKey(AudioFormat format, AudioConverter.Parameters parameters) {
+			this.format = new FormatKey(format);
+			this.parameters = parameters.copy();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof PlanKey)) return false;
+			PlanKey k = (PlanKey) o;
+			return format.equals(k.format) && parameters.equals(k.parameters);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * format.hashCode() + parameters.hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return format + " -> " + parameters;
+		}
+
+	}
+
+	static class WriterKey {
+
+		final AudioFileFormat.Type fileType;
+		final FormatKey format;
+
+		WriterKey(AudioFileFormat.Type fileType, AudioFormat format) {
+			this.fileType = fileType;
+			this.format = new FormatKey(format);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof WriterKey)) return false;
+			WriterKey k = (WriterKey) o;
+			return fileType.equals(k.fileType) && format.equals(k.format);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * fileType.hashCode() + format.hashCode();
+		}
+
+	}
+
+}
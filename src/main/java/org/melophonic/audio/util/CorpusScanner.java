@@ -0,0 +1,381 @@
+package org.melophonic.audio.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import javax.sound.sampled.AudioFileFormat;
+
+import org.melophonic.audio.spi.flac.FlacAudioFileWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds audio files below a directory by their content rather than their
+ * name. Directories are walked in parallel on a fork-join pool, one task per
+ * directory (and per batch of files in large directories), and the first
+ * bytes of every regular file are sniffed for a RIFF WAVE, AIFF, FLAC, MP4
+ * or MPEG audio signature. Each audio file found is passed to a consumer as
+ * soon as it is classified, so results stream out while the walk continues.
+ *
+ * The consumer is called from the pool threads and must be thread-safe.
+ */
+public class CorpusScanner {
+
+	final static Logger log = LoggerFactory.getLogger(CorpusScanner.class);
+
+	/** the bytes needed to recognize every supported signature */
+	static final int SNIFF_LENGTH = 12;
+
+	/** files sniffed by one task */
+	static final int BATCH_SIZE = 256;
+
+	final ForkJoinPool pool;
+
+	/**
+	 * Creates a scanner running on the common fork-join pool.
+	 */
+	public CorpusScanner() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	public CorpusScanner(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Classifies every regular file below <code>root</code>, passing the
+	 * audio files to <code>consumer</code> in no particular order.
+	 *
+	 * @return the counts of the scan
+	 */
+	public ScanResult scan(Path root, Consumer<? super ScannedFile> consumer) throws IOException {
+		if (!Files.isDirectory(root)) throw new IOException("Not a directory: " + root);
+		ScanResult result = new ScanResult();
+		long start = System.nanoTime();
+		pool.invoke(new DirectoryScan(root, consumer, result));
+		result.elapsedNanos = System.nanoTime() - start;
+		log.debug("Scanned " + root + ": " + result);
+		return result;
+	}
+
+	/**
+	 * @return all audio files below <code>root</code>
+	 */
+	public List<ScannedFile> scan(Path root) throws IOException {
+		List<ScannedFile> files = new ArrayList<>();
+		scan(root, file -> {
+			synchronized (files) {
+				files.add(file);
+			}
+		});
+		return files;
+	}
+
+	/**
+	 * @return the type of audio file <code>file</code> starts like, or null
+	 */
+	public static AudioFileFormat.Type sniff(Path file) throws IOException {
+		try (SeekableByteChannel channel = Files.newByteChannel(file)) {
+			long position = 0;
+			ByteBuffer header = read(channel, position);
+			AudioFileFormat.Type type = sniff(header);
+			if (type == null && isId3(header)) {
+				// look behind the ID3v2 tag, which prefixes MP3 and sometimes FLAC
+				int size = (header.get(6) & 0x7F) << 21 | (header.get(7) & 0x7F) << 14 | (header.get(8) & 0x7F) << 7 | (header.get(9) & 0x7F);
+				boolean footer = (header.get(5) & 0x10) != 0;
+				position = 10L + size + (footer ? 10 : 0);
+				header = read(channel, position);
+				type = sniff(header);
+			}
+			if (type == AudioProbe.MP3 && !isFollowed(channel, position, AudioProbe.FrameHeader.parse(header, 0))) return null;
+			return type;
+		}
+	}
+
+	/**
+	 * A sync word alone is too common to tell MPEG audio by; a UTF-16LE byte
+	 * order mark starts like one. So the frame at <code>position</code> must
+	 * be followed by another frame header, or end the file or its ID3v1 tag.
+	 */
+	static boolean isFollowed(SeekableByteChannel channel, long position, AudioProbe.FrameHeader frame) throws IOException {
+		long next = position + frame.length;
+		long size = channel.size();
+		if (next == size) return true;
+		ByteBuffer header = read(channel, next);
+		if (next == size - 128 && header.remaining() >= 4 && fourCC(header, 0).startsWith("TAG")) return true;
+		return AudioProbe.FrameHeader.parse(header, 0) != null;
+	}
+
+	static ByteBuffer read(SeekableByteChannel channel, long position) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(SNIFF_LENGTH);
+		channel.position(position);
+		while (buffer.hasRemaining() && channel.read(buffer) > 0);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * @return the type of audio file whose first bytes are <code>header</code>,
+	 * or null; MPEG audio still has to be confirmed by the next frame header
+	 */
+	static AudioFileFormat.Type sniff(ByteBuffer header) {
+		if (header.remaining() >= 4 && "fLaC".equals(fourCC(header, 0))) return FlacAudioFileWriter.FLAC;
+		if (header.remaining() >= 4 && AudioProbe.FrameHeader.parse(header, 0) != null) return AudioProbe.MP3;
+		if (header.remaining() < 12) return null;
+		String magic = fourCC(header, 0), form = fourCC(header, 8);
+		if (("RIFF".equals(magic) || "RF64".equals(magic)) && "WAVE".equals(form)) return AudioFileFormat.Type.WAVE;
+		if ("FORM".equals(magic) && "AIFF".equals(form)) return AudioFileFormat.Type.AIFF;
+		if ("FORM".equals(magic) && "AIFC".equals(form)) return AudioFileFormat.Type.AIFC;
+		if ("ftyp".equals(fourCC(header, 4))) return AudioProbe.MP4;
+		return null;
+	}
+
+	static boolean isId3(ByteBuffer header) {
+		return header.remaining() >= 10 && header.get(0) == 'I' && header.get(1) == 'D' && header.get(2) == '3';
+	}
+
+	static String fourCC(ByteBuffer buffer, int offset) {
+		return AudioProbe.Header.fourCC(buffer, offset);
+	}
+
+	/**
+	 * An audio file found by a scan.
+	 */
+	public static class ScannedFile {
+
+		final Path path;
+		final AudioFileFormat.Type type;
+		final long size;
+		final long lastModified;
+
+		ScannedFile(Path path, AudioFileFormat.Type type, BasicFileAttributes attributes) {
+			this.path = path;
+			this.type = type;
+			this.size = attributes.size();
+			this.lastModified = attributes.lastModifiedTime().toMillis();
+		}
+
+		public Path getPath() {
+			return path;
+		}
+
+		/**
+		 * @return the type sniffed from the content
+		 */
+		public AudioFileFormat.Type getType() {
+			return type;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * @return true if the file name does not have an extension of its type
+		 */
+		public boolean isMisnamed() {
+			String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+			String extension = name.substring(name.lastIndexOf('.') + 1);
+			if (AudioFileFormat.Type.WAVE.equals(type)) return !extension.equals("wav") && !extension.equals("wave");
+			if (AudioFileFormat.Type.AIFF.equals(type) || AudioFileFormat.Type.AIFC.equals(type)) {
+				return !extension.equals("aif") && !extension.equals("aiff") && !extension.equals("aifc");
+			}
+			if (AudioProbe.MP4.equals(type)) return !extension.equals("m4a") && !extension.equals("mp4") && !extension.equals("m4b");
+			return !extension.equals(type.getExtension());
+		}
+
+		@Override
+		public String toString() {
+			return type + " " + path;
+		}
+
+	}
+
+	/**
+	 * The counts of a scan, updated while it runs.
+	 */
+	public static class ScanResult {
+
+		final LongAdder directories = new LongAdder();
+		final LongAdder files = new LongAdder();
+		final LongAdder audioFiles = new LongAdder();
+		final LongAdder misnamed = new LongAdder();
+		final LongAdder failed = new LongAdder();
+		long elapsedNanos;
+
+		public long getDirectories() {
+			return directories.sum();
+		}
+
+		public long getFiles() {
+			return files.sum();
+		}
+
+		public long getAudioFiles() {
+			return audioFiles.sum();
+		}
+
+		/**
+		 * @return audio files whose extension does not match their content
+		 */
+		public long getMisnamed() {
+			return misnamed.sum();
+		}
+
+		/**
+		 * @return files and directories that could not be read
+		 */
+		public long getFailed() {
+			return failed.sum();
+		}
+
+		public double getElapsedSeconds() {
+			return elapsedNanos / 1E9;
+		}
+
+		public double getFilesPerSecond() {
+			return getFiles() / getElapsedSeconds();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d audio files (%d misnamed) of %d files in %d directories, %d failed, in %.1f s (%.0f files/s)", getAudioFiles(),
+					getMisnamed(), getFiles(), getDirectories(), getFailed(), getElapsedSeconds(), getFilesPerSecond());
+		}
+
+	}
+
+	static class DirectoryScan extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		final Path directory;
+		final Consumer<? super ScannedFile> consumer;
+		final ScanResult result;
+
+		DirectoryScan(Path directory, Consumer<? super ScannedFile> consumer, ScanResult result) {
+			this.directory = directory;
+			this.consumer = consumer;
+			this.result = result;
+		}
+
+		@Override
+		protected void compute() {
+			final List<RecursiveAction> tasks = new ArrayList<>();
+			final List<Path> batch = new ArrayList<>();
+			final List<BasicFileAttributes> batchAttributes = new ArrayList<>();
+			result.directories.increment();
+			try {
+				// depth 1 lists the entries with their attributes, without descending
+				Files.walkFileTree(directory, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>() {
+
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+						if (attributes.isDirectory()) {
+							tasks.add(new DirectoryScan(file, consumer, result));
+						} else if (attributes.isRegularFile()) {
+							batch.add(file);
+							batchAttributes.add(attributes);
+							if (batch.size() == BATCH_SIZE) {
+								tasks.add(new FileScan(new ArrayList<>(batch), new ArrayList<>(batchAttributes), consumer, result));
+								batch.clear();
+								batchAttributes.clear();
+							}
+						}
+						return FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult visitFileFailed(Path file, IOException e) {
+						log.warn("Unable to read " + file + ": " + e);
+						result.failed.increment();
+						return FileVisitResult.CONTINUE;
+					}
+
+				});
+			} catch (IOException e) {
+				log.warn("Unable to list " + directory + ": " + e);
+				result.failed.increment();
+			}
+			if (!batch.isEmpty()) tasks.add(new FileScan(batch, batchAttributes, consumer, result));
+			invokeAll(tasks);
+		}
+
+	}
+
+	static class FileScan extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		final List<Path> files;
+		final List<BasicFileAttributes> attributes;
+		final Consumer<? super ScannedFile> consumer;
+		final ScanResult result;
+
+		FileScan(List<Path> files, List<BasicFileAttributes> attributes, Consumer<? super ScannedFile> consumer, ScanResult result) {
+			this.files = files;
+			this.attributes = attributes;
+			this.consumer = consumer;
+			this.result = result;
+		}
+
+		@Override
+		protected void compute() {
+			for (int i = 0; i < files.size(); i++) {
+				Path file = files.get(i);
+				result.files.increment();
+				AudioFileFormat.Type type;
+				try {
+					type = sniff(file);
+				} catch (IOException e) {
+					log.warn("Unable to read " + file + ": " + e);
+					result.failed.increment();
+					continue;
+				}
+				if (type == null) continue;
+				ScannedFile scanned = new ScannedFile(file, type, attributes.get(i));
+				result.audioFiles.increment();
+				if (scanned.isMisnamed()) result.misnamed.increment();
+				consumer.accept(scanned);
+			}
+		}
+
+	}
+
+	/**
+	 * Prints the audio files below a directory with their sniffed types.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			log.info("usage: java CorpusScanner <directory>");
+			System.exit(1);
+		}
+		ScanResult result = new CorpusScanner().scan(Paths.get(args[0]), file -> {
+			synchronized (System.out) {
+				System.out.println(file.getType() + "\t" + file.getPath());
+			}
+		});
+		log.info(result.toString());
+	}
+
+}
@@ -0,0 +1,432 @@
+package org.melophonic.audio.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A directory of decoded audio, so that files analyzed, fingerprinted or
+ * converted again skip their codec. Each entry holds the samples of one file
+ * at one target sample rate and channel count as little-endian float32
+ * behind a 32 byte header, named by the SHA-256 of the file content and the
+ * target format, and is read back by mapping it into a {@link PcmSource}.
+ * Renamed or copied files therefore share their entry, while an edited file
+ * gets a new one.
+ *
+ * Entries are written to a temporary file and moved into place, so several
+ * caches, also in other processes, can share a directory. When the entries
+ * exceed the size budget, the least recently used are deleted; the access
+ * order survives restarts as the modification time of the entries. Two
+ * threads missing the same entry at the same time both decode the file.
+ *
+ * Hashing reads the whole file, which costs about as much as decoding a WAVE
+ * file. The hashes are therefore appended to <code>hashes.txt</code> in the
+ * directory, keyed on the absolute path, size and modification time of the
+ * file, and reused while those stay the same, also after a restart. A file
+ * rewritten within the resolution of its modification time without changing
+ * its size keeps its old hash.
+ */
+public class DecodeCache {
+
+	final static Logger log = LoggerFactory.getLogger(DecodeCache.class);
+
+	/** the component name of the stages reported to {@link Instrumentation} */
+	public final static String COMPONENT = "cache";
+
+	static final String EXTENSION = ".f32";
+	static final int MAGIC = 0x464D4350; // "PCMF" little-endian
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 32;
+
+	/** the content hashes remembered for files that have not changed since */
+	static final int MAX_HASHES = 4096;
+	/** the file of content hashes, one line of size, modification time, hash and path per file */
+	static final String HASHES = "hashes.txt";
+
+	final Path directory;
+	final Path hashFile;
+	final long maxSize;
+
+	/** entry names by least recent use, with their sizes */
+	final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75F, true);
+	long size;
+
+	final Map<Path, ContentHash> hashes = new LinkedHashMap<Path, ContentHash>(16, 0.75F, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Path, ContentHash> eldest) {
+			return size() > MAX_HASHES;
+		}
+	};
+
+	final LongAdder hits = new LongAdder();
+	final LongAdder misses = new LongAdder();
+	final LongAdder evictions = new LongAdder();
+
+	/**
+	 * Opens the cache in <code>directory</code>, creating it if necessary.
+	 *
+	 * @param maxSize the bytes the entries may take up
+	 */
+	public DecodeCache(File directory, long maxSize) throws IOException {
+		this.directory = directory.toPath();
+		this.hashFile = this.directory.resolve(HASHES);
+		this.maxSize = maxSize;
+		Files.createDirectories(this.directory);
+		loadHashes();
+		List<File> files = new ArrayList<>();
+		File[] listed = directory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+		if (listed != null) for (File file : listed) files.add(file);
+		files.sort((a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+		synchronized (this) {
+			for (File file : files) add(file.getName(), file.length());
+			evict(null);
+		}
+		log.debug("Opened " + this);
+	}
+
+	/**
+	 * @return the samples of <code>file</code> at its own sample rate and channels
+	 */
+	public PcmSource get(File file) throws IOException, UnsupportedAudioFileException {
+		return get(file, AudioSystem.NOT_SPECIFIED, AudioSystem.NOT_SPECIFIED);
+	}
+
+	/**
+	 * Returns the samples of <code>file</code> from the cache, or decodes,
+	 * converts and stores them on a miss.
+	 *
+	 * @param sampleRate the sample rate to resample to, or <code>AudioSystem.NOT_SPECIFIED</code>
+	 * @param channels the channels to mix to, or <code>AudioSystem.NOT_SPECIFIED</code>
+	 */
+	public PcmSource get(File file, float sampleRate, int channels) throws IOException, UnsupportedAudioFileException {
+		Instrumentation.Stage stage = Instrumentation.start(COMPONENT, "hash");
+		String name = getEntryName(getContentHash(file), sampleRate, channels);
+		Path entry = directory.resolve(name);
+		PcmSource source = load(entry);
+		if (source != null) {
+			stage.next("load", -1).end(source.getFrameLength());
+			hits.increment();
+			touch(name, entry);
+			return source;
+		}
+		misses.increment();
+		stage = stage.next("decode", -1);
+		try {
+			source = decode(file, sampleRate, channels);
+		} catch (IOException | UnsupportedAudioFileException | RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Unable to convert " + file, e);
+		}
+		stage = stage.next("store", source.getFrameLength());
+		store(name, entry, source);
+		stage.end(source.getFrameLength());
+		return source;
+	}
+
+	/**
+	 * Decodes <code>file</code> to the target format.
+	 */
+	static PcmSource decode(File file, float sampleRate, int channels) throws Exception {
+		if (sampleRate == AudioSystem.NOT_SPECIFIED && channels == AudioSystem.NOT_SPECIFIED) return PcmSource.open(file);
+		MappedWaveFile wave = MappedWaveFile.openIfWave(file.toURI());
+		try (AudioInputStream stream = wave != null ? wave.getAudioInputStream(true) : ConversionPlanner.getInstance().getAudioInputStream(file)) {
+			AudioFormat format = stream.getFormat();
+			// a float source stays float, anything else is decoded to integer PCM first
+			AudioConverter.Parameters parameters = new AudioConverter.Parameters(
+					AudioFormat.Encoding.PCM_FLOAT.equals(format.getEncoding()) ? AudioFormat.Encoding.PCM_FLOAT : AudioFormat.Encoding.PCM_SIGNED, null,
+					sampleRate, AudioSystem.NOT_SPECIFIED);
+			parameters.setChannels(channels);
+			return PcmSource.decode(AudioConverter.getConvertedStream(stream, parameters));
+		}
+	}
+
+	/**
+	 * @return the source mapped from <code>entry</code>, or null if it does not exist or is invalid
+	 */
+	PcmSource load(Path entry) throws IOException {
+		MappedByteBuffer mapped;
+		try (FileChannel channel = FileChannel.open(entry, StandardOpenOption.READ)) {
+			if (channel.size() < HEADER_SIZE) return invalid(entry, "truncated header");
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+		mapped.order(ByteOrder.LITTLE_ENDIAN);
+		if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) return invalid(entry, "not a cache entry");
+		float sampleRate = mapped.getFloat(8);
+		int channels = mapped.getInt(12), bits = mapped.getInt(16), encoding = mapped.getInt(20);
+		long frames = mapped.getLong(24);
+		if (channels <= 0 || mapped.capacity() != HEADER_SIZE + frames * channels * 4) return invalid(entry, "truncated data");
+		AudioFormat sourceFormat = new AudioFormat(getEncoding(encoding & 0xFF), sampleRate, bits, channels, channels * ((bits + 7) / 8), sampleRate,
+				(encoding & 0x100) != 0);
+		mapped.position(HEADER_SIZE);
+		FloatBuffer samples = mapped.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+		return new PcmSource(samples.asReadOnlyBuffer(), sourceFormat, true);
+	}
+
+	PcmSource invalid(Path entry, String reason) {
+		log.warn("Ignoring cache entry " + entry + ": " + reason);
+		return null;
+	}
+
+	/**
+	 * Writes <code>source</code> to a temporary file moved to <code>entry</code>, then evicts old entries.
+	 */
+	void store(String name, Path entry, PcmSource source) throws IOException {
+		long length = HEADER_SIZE + source.getFrameLength() * source.getChannels() * 4;
+		if (length > maxSize) {
+			log.debug("Not caching " + name + ": " + length + " bytes exceed the cache size");
+			return;
+		}
+		Path temp = Files.createTempFile(directory, name, ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				ByteBuffer buffer = ByteBuffer.allocateDirect(PcmSource.DECODE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+				AudioFormat format = source.getSourceFormat();
+				buffer.putInt(MAGIC).putInt(VERSION).putFloat(source.getSampleRate()).putInt(source.getChannels())
+						.putInt(format.getSampleSizeInBits()).putInt(getEncodingCode(format.getEncoding()) | (format.isBigEndian() ? 0x100 : 0))
+						.putLong(source.getFrameLength());
+				FloatBuffer samples = source.getSamples();
+				while (true) {
+					FloatBuffer view = buffer.asFloatBuffer();
+					int count = Math.min(view.remaining(), samples.remaining());
+					for (int i = 0; i < count; i++) view.put(samples.get());
+					buffer.position(buffer.position() + count * 4);
+					buffer.flip();
+					while (buffer.hasRemaining()) channel.write(buffer);
+					buffer.clear();
+					if (!samples.hasRemaining()) break;
+				}
+			}
+			Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		synchronized (this) {
+			add(name, length);
+			evict(name);
+		}
+	}
+
+	synchronized void touch(String name, Path entry) {
+		if (entries.get(name) == null) add(name, entry.toFile().length());
+		if (!entry.toFile().setLastModified(System.currentTimeMillis())) log.debug("Unable to touch " + entry);
+	}
+
+	void add(String name, long length) {
+		Long previous = entries.put(name, length);
+		size += length - (previous != null ? previous : 0);
+	}
+
+	/**
+	 * Deletes the least recently used entries other than <code>keep</code> until the entries fit the budget.
+	 */
+	void evict(String keep) {
+		Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+		while (size > maxSize && iterator.hasNext()) {
+			Map.Entry<String, Long> eldest = iterator.next();
+			if (eldest.getKey().equals(keep)) continue;
+			iterator.remove();
+			size -= eldest.getValue();
+			evictions.increment();
+			try {
+				// entries still mapped elsewhere stay readable where the platform allows deleting them
+				Files.deleteIfExists(directory.resolve(eldest.getKey()));
+			} catch (IOException e) {
+				log.warn("Unable to evict " + eldest.getKey() + ": " + e);
+			}
+		}
+	}
+
+	/**
+	 * @return the hex SHA-256 of the content of <code>file</code>, remembered
+	 * while its size and modification time stay the same
+	 */
+	String getContentHash(File file) throws IOException {
+		Path path = file.toPath().toAbsolutePath();
+		long length = file.length(), lastModified = file.lastModified();
+		synchronized (hashes) {
+			ContentHash hash = hashes.get(path);
+			if (hash != null && hash.length == length && hash.lastModified == lastModified) return hash.hash;
+		}
+		String hash = hash(file);
+		ContentHash contentHash = new ContentHash(length, lastModified, hash);
+		synchronized (hashes) {
+			hashes.put(path, contentHash);
+			saveHash(path, contentHash);
+		}
+		return hash;
+	}
+
+	/**
+	 * Reads the hashes saved by this and other caches in the directory; later
+	 * lines replace earlier ones of the same path. A file grown to twice the
+	 * hashes kept is rewritten with only those.
+	 */
+	void loadHashes() {
+		List<String> lines;
+		try {
+			lines = Files.readAllLines(hashFile, StandardCharsets.UTF_8);
+		} catch (NoSuchFileException e) {
+			return;
+		} catch (IOException e) {
+			log.warn("Unable to read " + hashFile + ": " + e);
+			return;
+		}
+		synchronized (hashes) {
+			for (String line : lines) {
+				String[] fields = line.split("\t", 4);
+				if (fields.length < 4) continue;
+				try {
+					hashes.put(Paths.get(fields[3]), new ContentHash(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2]));
+				} catch (RuntimeException e) {
+					// a line cut short by another process
+				}
+			}
+			if (lines.size() > 2 * MAX_HASHES) {
+				try {
+					Path temp = Files.createTempFile(directory, HASHES, ".tmp");
+					List<String> kept = new ArrayList<>();
+					for (Map.Entry<Path, ContentHash> hash : hashes.entrySet()) kept.add(format(hash.getKey(), hash.getValue()));
+					Files.write(temp, kept, StandardCharsets.UTF_8);
+					Files.move(temp, hashFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				} catch (IOException e) {
+					log.warn("Unable to compact " + hashFile + ": " + e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Appends <code>hash</code> to the hash file, in one write so that the
+	 * lines of several processes do not interleave.
+	 */
+	void saveHash(Path path, ContentHash hash) {
+		String line = format(path, hash);
+		if (line.indexOf('\n') >= 0 || line.indexOf('\r') >= 0) return;
+		try {
+			Files.write(hashFile, (line + "\n").getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		} catch (IOException e) {
+			log.debug("Unable to save the hash of " + path + ": " + e);
+		}
+	}
+
+	static String format(Path path, ContentHash hash) {
+		return hash.length + "\t" + hash.lastModified + "\t" + hash.hash + "\t" + path;
+	}
+
+	static String hash(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		byte[] buffer = new byte[PcmSource.DECODE_BUFFER_SIZE];
+		try (InputStream in = Files.newInputStream(file.toPath())) {
+			int n;
+			while ((n = in.read(buffer)) != -1) digest.update(buffer, 0, n);
+		}
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest()) hex.append(String.format("%02x", b));
+		return hex.toString();
+	}
+
+	static String getEntryName(String hash, float sampleRate, int channels) {
+		String rate = sampleRate == AudioSystem.NOT_SPECIFIED ? "any" : sampleRate == (long) sampleRate ? Long.toString((long) sampleRate) : Float.toString(sampleRate);
+		return hash + "-" + rate + "-" + (channels == AudioSystem.NOT_SPECIFIED ? "any" : Integer.toString(channels)) + EXTENSION;
+	}
+
+	static int getEncodingCode(AudioFormat.Encoding encoding) {
+		if (AudioFormat.Encoding.PCM_UNSIGNED.equals(encoding)) return 1;
+		if (AudioFormat.Encoding.PCM_FLOAT.equals(encoding)) return 2;
+		return 0;
+	}
+
+	static AudioFormat.Encoding getEncoding(int code) {
+		return code == 1 ? AudioFormat.Encoding.PCM_UNSIGNED : code == 2 ? AudioFormat.Encoding.PCM_FLOAT : AudioFormat.Encoding.PCM_SIGNED;
+	}
+
+	public File getDirectory() {
+		return directory.toFile();
+	}
+
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @return the bytes taken up by the entries known to this cache
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public synchronized int getEntries() {
+		return entries.size();
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: %d entries, %d of %d bytes, %d hits, %d misses, %d evictions", directory, getEntries(), getSize(), maxSize, getHits(),
+				getMisses(), getEvictions());
+	}
+
+	static class ContentHash {
+
+		final long length;
+		final long lastModified;
+		final String hash;
+
+		ContentHash(long length, long lastModified, String hash) {
+			this.length = length;
+			this.lastModified = lastModified;
+			this.hash = hash;
+		}
+
+	}
+
+}
@@ -0,0 +1,279 @@
+package org.melophonic.audio.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A simple columnar binary file of float features, one column per feature and
+ * one row per analysis frame. The file is laid out as:
+ *
+ * <pre>
+ * "MFEA" | version:int | columns:int | rows:long | sampleRate:float | hopSize:int
+ * column names (length-prefixed UTF-8) | padding to 8 bytes
+ * column 0 (rows floats) | column 1 (rows floats) | ...
+ * </pre>
+ *
+ * All values are little-endian so columns can be memory-mapped and read as a
+ * <code>FloatBuffer</code> without copying. Each column is mapped on its
+ * own, so a file may exceed 2 GB as long as each column fits in one
+ * mapping, i.e. up to 2^29 rows. Files are created with a
+ * {@link Writer}, which spills each column in batches and assembles the
+ * final file on <code>close</code>.
+ */
+public class FeatureFile {
+
+	public static final int MAGIC = 0x4145464D; // "MFEA" read little-endian
+	public static final int VERSION = 1;
+	public static final int DEFAULT_BATCH_SIZE = 4096;
+
+	final File file;
+	final List<String> columnNames;
+	final long rowCount;
+	final float sampleRate;
+	final int hopSize;
+	final MappedByteBuffer[] columns;
+
+	FeatureFile(File file, List<String> columnNames, long rowCount, float sampleRate, int hopSize, MappedByteBuffer[] columns) {
+		this.file = file;
+		this.columnNames = columnNames;
+		this.rowCount = rowCount;
+		this.sampleRate = sampleRate;
+		this.hopSize = hopSize;
+		this.columns = columns;
+	}
+
+	/**
+	 * Memory-maps an existing feature file.
+	 *
+	 * @param file a file created by {@link Writer}
+	 * @return the mapped feature file
+	 * @throws IOException if the file cannot be read or is not a feature file
+	 */
+	public static FeatureFile open(File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			ByteBuffer header = read(channel, 0, 28);
+			if (header == null || header.getInt() != MAGIC) throw new IOException("not a feature file: " + file);
+			int version = header.getInt();
+			if (version != VERSION) throw new IOException("unsupported feature file version " + version + ": " + file);
+			int columns = header.getInt();
+			long rows = header.getLong();
+			float sampleRate = header.getFloat();
+			int hopSize = header.getInt();
+			if (columns < 0 || rows < 0) throw new IOException("not a feature file: " + file);
+			if (rows > Integer.MAX_VALUE / 4) throw new IOException("too many rows to map a column (" + rows + "): " + file);
+			long position = 28;
+			String[] names = new String[columns];
+			for (int i = 0; i < columns; i++) {
+				ByteBuffer length = read(channel, position, 2);
+				ByteBuffer name = length == null ? null : read(channel, position + 2, length.getShort() & 0xffff);
+				if (name == null) throw new IOException("truncated feature file: " + file);
+				names[i] = new String(name.array(), StandardCharsets.UTF_8);
+				position += 2 + name.capacity();
+			}
+			long dataOffset = align(position);
+			if (dataOffset + rows * columns * 4 > channel.size()) throw new IOException("truncated feature file: " + file);
+			MappedByteBuffer[] mapped = new MappedByteBuffer[columns];
+			for (int i = 0; i < columns; i++) mapped[i] = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + i * rows * 4, rows * 4);
+			return new FeatureFile(file, Collections.unmodifiableList(Arrays.asList(names)), rows, sampleRate, hopSize, mapped);
+		}
+	}
+
+	/**
+	 * @return <code>length</code> bytes of <code>channel</code> from
+	 * <code>position</code>, little-endian, or null if the file ends before
+	 */
+	static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) return null;
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * @param column the column index
+	 * @return a read-only view of the column, positioned at row 0
+	 */
+	public FloatBuffer getColumn(int column) {
+		if (column < 0 || column >= columnNames.size()) throw new IndexOutOfBoundsException("column " + column);
+		return columns[column].duplicate().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().asReadOnlyBuffer();
+	}
+
+	/**
+	 * @param name the column name
+	 * @return a read-only view of the named column
+	 */
+	public FloatBuffer getColumn(String name) {
+		int column = columnNames.indexOf(name);
+		if (column < 0) throw new IllegalArgumentException("no such column: " + name);
+		return getColumn(column);
+	}
+
+	/**
+	 * @param row a row index
+	 * @return the start time in seconds of the analysis frame for the row
+	 */
+	public double getTime(long row) {
+		return row * hopSize / (double) sampleRate;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public List<String> getColumnNames() {
+		return columnNames;
+	}
+
+	public long getRowCount() {
+		return rowCount;
+	}
+
+	public float getSampleRate() {
+		return sampleRate;
+	}
+
+	public int getHopSize() {
+		return hopSize;
+	}
+
+	static long align(long position) {
+		return (position + 7) & ~7;
+	}
+
+	/**
+	 * Appends rows to a feature file. Rows are buffered per column and
+	 * flushed in batches to one spill file per column, which are concatenated
+	 * behind the header when the writer is closed.
+	 */
+	public static class Writer implements Closeable {
+
+		final File file;
+		final String[] columnNames;
+		final float sampleRate;
+		final int hopSize;
+		final int batchSize;
+		final File[] spillFiles;
+		final FileChannel[] spills;
+		final ByteBuffer[] batches;
+		long rowCount = 0;
+		boolean closed = false;
+
+		public Writer(File file, String[] columnNames, float sampleRate, int hopSize) throws IOException {
+			this(file, columnNames, sampleRate, hopSize, DEFAULT_BATCH_SIZE);
+		}
+
+		public Writer(File file, String[] columnNames, float sampleRate, int hopSize, int batchSize) throws IOException {
+			this.file = file;
+			this.columnNames = columnNames.clone();
+			this.sampleRate = sampleRate;
+			this.hopSize = hopSize;
+			this.batchSize = batchSize;
+			this.spillFiles = new File[columnNames.length];
+			this.spills = new FileChannel[columnNames.length];
+			this.batches = new ByteBuffer[columnNames.length];
+			File dir = file.getAbsoluteFile().getParentFile();
+			if (dir != null && !dir.exists()) dir.mkdirs();
+			try {
+				for (int i = 0; i < columnNames.length; i++) {
+					spillFiles[i] = File.createTempFile(file.getName() + ".", ".col" + i, dir);
+					spills[i] = new FileOutputStream(spillFiles[i]).getChannel();
+					batches[i] = ByteBuffer.allocateDirect(batchSize * 4).order(ByteOrder.LITTLE_ENDIAN);
+				}
+			} catch (IOException e) {
+				discard();
+				throw e;
+			}
+		}
+
+		/**
+		 * Appends one row.
+		 *
+		 * @param row one value per column, in column order
+		 * @throws IOException if a batch cannot be flushed
+		 */
+		public void append(float[] row) throws IOException {
+			if (closed) throw new IOException("writer is closed");
+			if (row.length != columnNames.length) throw new IllegalArgumentException("expected " + columnNames.length + " values, got " + row.length);
+			for (int i = 0; i < row.length; i++) batches[i].putFloat(row[i]);
+			rowCount++;
+			if (!batches[0].hasRemaining()) flushBatches();
+		}
+
+		public long getRowCount() {
+			return rowCount;
+		}
+
+		void flushBatches() throws IOException {
+			for (int i = 0; i < batches.length; i++) {
+				batches[i].flip();
+				while (batches[i].hasRemaining()) spills[i].write(batches[i]);
+				batches[i].clear();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) return;
+			closed = true;
+			try {
+				flushBatches();
+				try (FileOutputStream out = new FileOutputStream(file)) {
+					writeHeader(out);
+					FileChannel target = out.getChannel();
+					for (int i = 0; i < spills.length; i++) {
+						spills[i].close();
+						try (FileChannel spill = new RandomAccessFile(spillFiles[i], "r").getChannel()) {
+							long position = 0, size = spill.size();
+							while (position < size) position += spill.transferTo(position, size - position, target);
+						}
+					}
+				}
+			} finally {
+				discard();
+			}
+		}
+
+		void writeHeader(FileOutputStream out) throws IOException {
+			ByteBuffer header = ByteBuffer.allocate(headerSize()).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION).putInt(columnNames.length).putLong(rowCount).putFloat(sampleRate).putInt(hopSize);
+			for (String name : columnNames) {
+				byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+				header.putShort((short) bytes.length).put(bytes);
+			}
+			out.write(header.array());
+		}
+
+		int headerSize() {
+			int size = 28;
+			for (String name : columnNames) size += 2 + name.getBytes(StandardCharsets.UTF_8).length;
+			return (int) align(size);
+		}
+
+		void discard() {
+			for (int i = 0; i < spills.length; i++) {
+				try {
+					if (spills[i] != null) spills[i].close();
+				} catch (IOException e) {
+					// ignore, the spill file is removed below
+				}
+				if (spillFiles[i] != null) spillFiles[i].delete();
+			}
+		}
+
+	}
+
+}
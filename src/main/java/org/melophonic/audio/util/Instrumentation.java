@@ -0,0 +1,301 @@
+package org.melophonic.audio.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.melophonic.audio.spi.InstrumentationListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reports stage timings to the installed {@link InstrumentationListener}s.
+ * Instrumentation is off unless asked for: listeners are discovered once
+ * through <code>ServiceLoader</code> only if the system property
+ * <code>org.melophonic.audio.instrumentation</code> is <code>true</code>,
+ * and can be added at runtime with {@link #addListener}.
+ * 
+ * Without listeners a stage costs a volatile read, and the management
+ * classes used to count allocations are not loaded at all. With listeners it costs
+ * two <code>nanoTime</code> calls and, on JVMs that count them, two reads of
+ * the bytes allocated by the current thread.
+ */
+public final class Instrumentation {
+
+	final static Logger log = LoggerFactory.getLogger(Instrumentation.class);
+
+	public static final String PROPERTY = "org.melophonic.audio.instrumentation";
+
+	static final List<InstrumentationListener> listeners = new CopyOnWriteArrayList<>();
+	static volatile boolean enabled;
+
+	/** the stage returned while there are no listeners */
+	static final Stage DISABLED = new Stage(null, null, 0, 0) {
+
+		@Override
+		public long end(long frames) {
+			return 0;
+		}
+
+	};
+
+	static {
+		if ("true".equals(System.getProperty(PROPERTY))) {
+			try {
+				for (InstrumentationListener listener : ServiceLoader.load(InstrumentationListener.class)) listeners.add(listener);
+			} catch (Throwable e) {
+				log.warn("Unable to load instrumentation listeners: " + e);
+			}
+		}
+		enabled = !listeners.isEmpty();
+	}
+
+	private Instrumentation() {}
+
+	static com.sun.management.ThreadMXBean getAllocationCounter() {
+		try {
+			java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			if (threads instanceof com.sun.management.ThreadMXBean) {
+				com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) threads;
+				if (counter.isThreadAllocatedMemorySupported() && counter.isThreadAllocatedMemoryEnabled()) return counter;
+			}
+		} catch (Throwable e) {
+			log.debug("Allocation counting not available: " + e);
+		}
+		return null;
+	}
+
+	public static void addListener(InstrumentationListener listener) {
+		listeners.add(listener);
+		enabled = true;
+	}
+
+	public static void removeListener(InstrumentationListener listener) {
+		listeners.remove(listener);
+		enabled = !listeners.isEmpty();
+	}
+
+	public static List<InstrumentationListener> getListeners() {
+		return listeners;
+	}
+
+	/**
+	 * @return true if stages are reported to at least one listener
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Starts timing a stage on the current thread.
+	 * 
+	 * @return the stage to {@link Stage#end(long) end} on the same thread
+	 */
+	public static Stage start(String component, String stage) {
+		if (!enabled) return DISABLED;
+		return new Stage(component, stage, System.nanoTime(), allocatedBytes());
+	}
+
+	/**
+	 * @return a timer accumulating the time and allocations of separate
+	 * sections on the current thread
+	 */
+	public static Timer timer() {
+		return enabled ? new Timer() : Timer.DISABLED;
+	}
+
+	/**
+	 * Reports the sections timed by <code>inner</code> as one stage, and the
+	 * rest of the time and allocations of <code>outer</code> as another.
+	 */
+	public static void record(String component, String outerStage, Timer outer, String innerStage, Timer inner, long frames) {
+		if (!enabled || outer == Timer.DISABLED || inner == Timer.DISABLED) return;
+		long bytes = outer.bytesAllocated < 0 || inner.bytesAllocated < 0 ? -1 : outer.bytesAllocated - inner.bytesAllocated;
+		record(component, innerStage, inner.nanos, frames, inner.bytesAllocated);
+		record(component, outerStage, outer.nanos - inner.nanos, frames, bytes);
+	}
+
+	/**
+	 * Reports a stage that was timed by the caller.
+	 */
+	public static void record(String component, String stage, long nanos, long frames, long bytesAllocated) {
+		for (InstrumentationListener listener : listeners) {
+			try {
+				listener.stageCompleted(component, stage, nanos, frames, bytesAllocated);
+			} catch (RuntimeException e) {
+				log.warn("Instrumentation listener " + listener + " failed: " + e);
+			}
+		}
+	}
+
+	/**
+	 * @return the bytes allocated so far by the current thread, or -1 if not counted
+	 */
+	static long allocatedBytes() {
+		com.sun.management.ThreadMXBean counter = AllocationCounter.instance;
+		return counter != null ? counter.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+	}
+
+	/**
+	 * Holds the allocation counter, so that the management classes are only
+	 * loaded once a stage is timed.
+	 */
+	static class AllocationCounter {
+
+		static final com.sun.management.ThreadMXBean instance = getAllocationCounter();
+
+	}
+
+	/**
+	 * A stage being timed.
+	 */
+	public static class Stage {
+
+		final String component;
+		final String stage;
+		final long startNanos;
+		final long startBytes;
+
+		Stage(String component, String stage, long startNanos, long startBytes) {
+			this.component = component;
+			this.stage = stage;
+			this.startNanos = startNanos;
+			this.startBytes = startBytes;
+		}
+
+		/**
+		 * Reports the stage to the listeners.
+		 * 
+		 * @param frames the number of audio frames processed, or -1
+		 * @return the duration of the stage in nanoseconds
+		 */
+		public long end(long frames) {
+			long nanos = System.nanoTime() - startNanos;
+			long bytes = startBytes < 0 ? -1 : allocatedBytes() - startBytes;
+			record(component, stage, nanos, frames, bytes);
+			return nanos;
+		}
+
+		/**
+		 * Ends this stage and starts the next stage of the same component.
+		 */
+		public Stage next(String nextStage, long frames) {
+			end(frames);
+			return start(component, nextStage);
+		}
+
+	}
+
+	/**
+	 * Accumulates the time and allocations between calls of {@link #start()}
+	 * and {@link #stop()}, which must be made on the same thread.
+	 */
+	public static class Timer {
+
+		static final Timer DISABLED = new Timer() {
+
+			@Override
+			public void start() {}
+
+			@Override
+			public void stop() {}
+
+		};
+
+		final boolean countAllocations;
+		// read by other threads watching a conversion
+		volatile long nanos = 0;
+		long bytesAllocated = 0;
+		long startNanos;
+		long startBytes;
+
+		public Timer() {
+			this(true);
+		}
+
+		/**
+		 * @param countAllocations false to only measure time, without loading
+		 * the management classes
+		 */
+		Timer(boolean countAllocations) {
+			this.countAllocations = countAllocations;
+		}
+
+		public void start() {
+			startBytes = countAllocations ? allocatedBytes() : -1;
+			startNanos = System.nanoTime();
+		}
+
+		public void stop() {
+			nanos += System.nanoTime() - startNanos;
+			if (startBytes < 0 || bytesAllocated < 0) bytesAllocated = -1;
+			else bytesAllocated += allocatedBytes() - startBytes;
+		}
+
+		public long getNanos() {
+			return nanos;
+		}
+
+		/**
+		 * @return the bytes allocated between starts and stops, or -1 if not measured
+		 */
+		public long getBytesAllocated() {
+			return bytesAllocated;
+		}
+
+	}
+
+	/**
+	 * Times and counts the reads through it, so that a stream consumed by a
+	 * writer can be split into the stages before and after it.
+	 */
+	static class TimedInputStream extends FilterInputStream {
+
+		final Timer timer;
+		// only written by the reading thread
+		volatile long bytesRead = 0;
+
+		TimedInputStream(InputStream in, Timer timer) {
+			super(in);
+			this.timer = timer;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		/**
+		 * Called before every read and skip; a subclass may throw to stop the reader.
+		 */
+		void check() throws IOException {}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			check();
+			timer.start();
+			try {
+				int n = in.read(b, off, len);
+				if (n > 0) bytesRead += n;
+				return n;
+			} finally {
+				timer.stop();
+			}
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			check();
+			long skipped = in.skip(n);
+			bytesRead += skipped;
+			return skipped;
+		}
+
+	}
+
+}
@@ -0,0 +1,236 @@
+package org.melophonic.audio.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A thread-safe <code>ServiceLoader</code> that instantiates providers only
+ * when an iteration first reaches them, and keeps the instances for later
+ * iterations. Looking up the first provider that supports something thus
+ * never loads the classes of the providers after it, e.g. the jflac or
+ * Tarsos classes when converting a WAVE file.
+ *
+ * Providers that cannot be loaded, typically because an optional codec
+ * library is missing from the class path, are logged and skipped.
+ *
+ * A loader created by {@link #loadReversed(Class)} iterates the providers in
+ * the order <code>AudioSystem</code> tries them, which is the reverse of
+ * <code>ServiceLoader</code>'s.
+ */
+public class LazyServiceLoader<T> implements Iterable<T> {
+
+	final static Logger log = LoggerFactory.getLogger(LazyServiceLoader.class);
+
+	final Class<T> service;
+	final ClassLoader classLoader;
+	final boolean reversed;
+	final List<T> providers = new CopyOnWriteArrayList<>();
+	Iterator<T> pending;
+	boolean exhausted;
+
+	LazyServiceLoader(Class<T> service, ClassLoader classLoader, boolean reversed) {
+		this.service = service;
+		this.classLoader = classLoader != null ? classLoader : ClassLoader.getSystemClassLoader();
+		this.reversed = reversed;
+	}
+
+	/**
+	 * @return a loader of the providers of <code>service</code> visible to
+	 * the context class loader, as <code>ServiceLoader.load</code>; nothing
+	 * is read until the loader is first iterated
+	 */
+	public static <T> LazyServiceLoader<T> load(Class<T> service) {
+		return new LazyServiceLoader<>(service, Thread.currentThread().getContextClassLoader(), false);
+	}
+
+	public static <T> LazyServiceLoader<T> load(Class<T> service, ClassLoader classLoader) {
+		return new LazyServiceLoader<>(service, classLoader, false);
+	}
+
+	/**
+	 * @return a loader of the providers of <code>service</code> in the order
+	 * the <code>AudioSystem</code> tries them: the providers registered on the
+	 * class path from last to first, then those installed in the JVM. Only
+	 * the class path providers are instantiated on demand; the installed ones
+	 * are instantiated together once an iteration reaches them.
+	 */
+	public static <T> LazyServiceLoader<T> loadReversed(Class<T> service) {
+		return new LazyServiceLoader<>(service, Thread.currentThread().getContextClassLoader(), true);
+	}
+
+	public static <T> LazyServiceLoader<T> loadReversed(Class<T> service, ClassLoader classLoader) {
+		return new LazyServiceLoader<>(service, classLoader, true);
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		return new Iterator<T>() {
+
+			int index;
+
+			@Override
+			public boolean hasNext() {
+				return index < providers.size() || advance(index);
+			}
+
+			@Override
+			public T next() {
+				if (!hasNext()) throw new NoSuchElementException();
+				return providers.get(index++);
+			}
+
+		};
+	}
+
+	/**
+	 * Instantiates providers until there are more than <code>index</code>.
+	 *
+	 * @return false if there are no more providers
+	 */
+	synchronized boolean advance(int index) {
+		if (pending == null && !exhausted) pending = reversed ? new ReversedIterator() : ServiceLoader.load(service, classLoader).iterator();
+		while (providers.size() <= index && !exhausted) {
+			try {
+				if (!pending.hasNext()) {
+					exhausted = true;
+					break;
+				}
+			} catch (ServiceConfigurationError | LinkageError e) {
+				log.warn("Unable to read the providers of " + service.getName() + ": " + e);
+				exhausted = true;
+				break;
+			}
+			try {
+				providers.add(pending.next());
+			} catch (ServiceConfigurationError | LinkageError e) {
+				log.warn("Skipping provider of " + service.getName() + ": " + e);
+			}
+		}
+		if (exhausted) pending = null;
+		return providers.size() > index;
+	}
+
+	/**
+	 * @return the first provider, or null if there is none
+	 */
+	public T first() {
+		Iterator<T> i = iterator();
+		return i.hasNext() ? i.next() : null;
+	}
+
+	/**
+	 * @return the provider of class <code>type</code>, or null if it is not
+	 * installed; the providers before it are instantiated on the way
+	 */
+	public <S extends T> S get(Class<S> type) {
+		for (T provider : this) {
+			if (provider.getClass().equals(type)) return type.cast(provider);
+		}
+		return null;
+	}
+
+	/**
+	 * @return the providers instantiated so far
+	 */
+	public List<T> getInstantiated() {
+		return new ArrayList<>(providers);
+	}
+
+	public Class<T> getService() {
+		return service;
+	}
+
+	/**
+	 * Reads the provider names from the <code>META-INF/services</code> files
+	 * (on Java 8 including those of the JDK), and instantiates them from last
+	 * to first. The JDK's providers are modules from Java 9 on and not listed
+	 * in those files; they are appended from
+	 * <code>ServiceLoader.loadInstalled</code>, also reversed.
+	 */
+	class ReversedIterator implements Iterator<T> {
+
+		List<String> names;
+		int index;
+		Iterator<T> installed;
+
+		@Override
+		public boolean hasNext() {
+			if (names == null) names = readProviderNames();
+			if (index < names.size()) return true;
+			if (installed == null) installed = loadInstalled().iterator();
+			return installed.hasNext();
+		}
+
+		@Override
+		public T next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			if (index < names.size()) return instantiate(names.get(names.size() - 1 - index++));
+			return installed.next();
+		}
+
+		List<String> readProviderNames() {
+			Set<String> names = new LinkedHashSet<>();
+			try {
+				Enumeration<URL> configs = classLoader.getResources("META-INF/services/" + service.getName());
+				while (configs.hasMoreElements()) {
+					try (BufferedReader in = new BufferedReader(new InputStreamReader(configs.nextElement().openStream(), StandardCharsets.UTF_8))) {
+						String line;
+						while ((line = in.readLine()) != null) {
+							int comment = line.indexOf('#');
+							String name = (comment < 0 ? line : line.substring(0, comment)).trim();
+							if (!name.isEmpty()) names.add(name);
+						}
+					}
+				}
+			} catch (IOException e) {
+				throw new ServiceConfigurationError(service.getName() + ": unable to read the provider configuration", e);
+			}
+			return new ArrayList<>(names);
+		}
+
+		T instantiate(String name) {
+			try {
+				Class<?> type = Class.forName(name, true, classLoader);
+				if (!service.isAssignableFrom(type)) throw new ServiceConfigurationError(service.getName() + ": " + name + " is not a subtype");
+				return service.cast(type.getDeclaredConstructor().newInstance());
+			} catch (ReflectiveOperationException e) {
+				throw new ServiceConfigurationError(service.getName() + ": provider " + name + " could not be instantiated", e);
+			}
+		}
+
+		List<T> loadInstalled() {
+			List<T> providers = new ArrayList<>();
+			Iterator<T> i = ServiceLoader.loadInstalled(service).iterator();
+			while (true) {
+				try {
+					if (!i.hasNext()) break;
+					T provider = i.next();
+					if (!names.contains(provider.getClass().getName())) providers.add(provider);
+				} catch (ServiceConfigurationError | LinkageError e) {
+					log.warn("Skipping provider of " + service.getName() + ": " + e);
+				}
+			}
+			Collections.reverse(providers);
+			return providers;
+		}
+
+	}
+
+}
@@ -0,0 +1,64 @@
+package org.melophonic.audio.util;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Releases memory mappings without waiting for the garbage collector, which
+ * keeps a file mapped (and on Windows, locked against truncation and
+ * deletion) for as long as its buffer is reachable. The buffer and every
+ * view of it must not be used once it is unmapped.
+ */
+class MappedBuffers {
+
+	final static Logger log = LoggerFactory.getLogger(MappedBuffers.class);
+
+	static final Unmapper unmapper = createUnmapper();
+
+	interface Unmapper {
+		void unmap(ByteBuffer buffer) throws Exception;
+	}
+
+	/**
+	 * Unmaps <code>buffer</code> if the JVM allows it, otherwise leaves it to
+	 * the garbage collector.
+	 */
+	static void unmap(ByteBuffer buffer) {
+		if (buffer == null || !buffer.isDirect() || unmapper == null) return;
+		try {
+			unmapper.unmap(buffer);
+		} catch (Exception e) {
+			log.debug("Unable to unmap buffer", e);
+		}
+	}
+
+	static Unmapper createUnmapper() {
+		try {
+			// Java 9 and later
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			Object unsafe = theUnsafe.get(null);
+			return buffer -> invokeCleaner.invoke(unsafe, buffer);
+		} catch (Exception e) {
+			// Java 8
+		}
+		try {
+			Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+			Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+			return buffer -> {
+				Object c = cleaner.invoke(buffer);
+				if (c != null) clean.invoke(c);
+			};
+		} catch (Exception e) {
+			log.debug("Mapped buffers are left to the garbage collector", e);
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,353 @@
+package org.melophonic.audio.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * A PCM WAVE file whose data chunk is memory-mapped rather than copied onto
+ * the heap. The RIFF chunks are parsed directly, so files with extra chunks
+ * (LIST, bext, ...) and <code>WAVE_FORMAT_EXTENSIBLE</code> headers are
+ * handled, as are streaming files whose data length is the 0xFFFFFFFF
+ * sentinel and RF64 files, whose data length is in their ds64 chunk.
+ *
+ * The data chunk is mapped in windows of up to 2 GB, each a whole number of
+ * frames. Streams and {@link #getSample} read across windows; the buffer
+ * views ({@link #getData()}, {@link #asShortBuffer()}, ...) need the data
+ * to fit into one.
+ *
+ * {@link #close()} only drops this file's references to the mapping, which
+ * the garbage collector releases once the buffers and streams handed out
+ * are unreachable too. They thus stay readable after the file is closed,
+ * but on Windows, the file cannot be deleted until they are collected.
+ */
+public class MappedWaveFile implements Closeable {
+
+	static final int WAVE_FORMAT_PCM = 1;
+	static final int WAVE_FORMAT_IEEE_FLOAT = 3;
+	static final int WAVE_FORMAT_EXTENSIBLE = 0xFFFE;
+	static final int MAX_HEADER_LENGTH = 1 << 16;
+	static final long MAX_WINDOW_LENGTH = Integer.MAX_VALUE;
+
+	final File file;
+	final AudioFormat format;
+	final long dataOffset;
+	final long dataLength;
+	final long windowLength;
+	volatile MappedByteBuffer[] windows;
+
+	MappedWaveFile(File file, AudioFormat format, long dataOffset, long dataLength, long windowLength, MappedByteBuffer[] windows) {
+		this.file = file;
+		this.format = format;
+		this.dataOffset = dataOffset;
+		this.dataLength = dataLength;
+		this.windowLength = windowLength;
+		this.windows = windows;
+	}
+
+	/**
+	 * Parses the RIFF header of <code>file</code> and maps its data chunk.
+	 *
+	 * @throws UnsupportedAudioFileException if the file is not an integer or float PCM WAVE file
+	 */
+	public static MappedWaveFile open(File file) throws IOException, UnsupportedAudioFileException {
+		return open(file, MAX_WINDOW_LENGTH);
+	}
+
+	static MappedWaveFile open(File file, long maxWindowLength) throws IOException, UnsupportedAudioFileException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long fileLength = channel.size();
+			ByteBuffer header = ByteBuffer.allocate((int) Math.min(fileLength, MAX_HEADER_LENGTH)).order(ByteOrder.LITTLE_ENDIAN);
+			while (header.hasRemaining() && channel.read(header) != -1);
+			header.flip();
+			if (header.remaining() < 12 || (header.getInt(0) != fourCC("RIFF") && header.getInt(0) != fourCC("RF64"))
+					|| header.getInt(8) != fourCC("WAVE")) {
+				throw new UnsupportedAudioFileException("Not a RIFF WAVE file: " + file);
+			}
+
+			AudioFormat format = null;
+			long dataOffset = -1, dataLength = 0, ds64DataLength = -1;
+			long position = 12;
+			while (position + 8 <= header.limit() && (format == null || dataOffset < 0)) {
+				int id = header.getInt((int) position);
+				long size = header.getInt((int) position + 4) & 0xFFFFFFFFL;
+				if (id == fourCC("fmt ")) {
+					if (position + 8 + Math.min(size, 40) > header.limit()) break;
+					format = parseFormat(header, (int) position + 8, (int) Math.min(size, 40), file);
+				} else if (id == fourCC("ds64") && position + 24 <= header.limit()) {
+					ds64DataLength = header.getLong((int) position + 16);
+				} else if (id == fourCC("data")) {
+					dataOffset = position + 8;
+					dataLength = fileLength - dataOffset;
+					// the sentinel of a streaming file reaches to its end
+					if (size != 0xFFFFFFFFL) dataLength = Math.min(size, dataLength);
+					else if (ds64DataLength >= 0) dataLength = Math.min(ds64DataLength, dataLength);
+				}
+				position += 8 + size + (size & 1);
+			}
+			if (format == null || dataOffset < 0) throw new UnsupportedAudioFileException("Missing fmt or data chunk: " + file);
+
+			int frameSize = format.getFrameSize();
+			dataLength -= dataLength % frameSize;
+			long windowLength = maxWindowLength - maxWindowLength % frameSize;
+			MappedByteBuffer[] windows = new MappedByteBuffer[(int) Math.max(1, (dataLength + windowLength - 1) / windowLength)];
+			for (int i = 0; i < windows.length; i++) {
+				long start = i * windowLength;
+				windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + start, Math.min(windowLength, dataLength - start));
+				windows[i].order(ByteOrder.LITTLE_ENDIAN);
+			}
+			return new MappedWaveFile(file, format, dataOffset, dataLength, windowLength, windows);
+		}
+	}
+
+	/**
+	 * @return the mapped file if <code>audioUri</code> is a local file with a
+	 * RIFF WAVE header this class supports, null otherwise
+	 */
+	public static MappedWaveFile openIfWave(URI audioUri) throws IOException {
+		if (!"file".equals(audioUri.getScheme())) return null;
+		File file = new File(audioUri);
+		if (!file.isFile()) return null;
+		try {
+			return open(file);
+		} catch (UnsupportedAudioFileException e) {
+			return null;
+		}
+	}
+
+	static AudioFormat parseFormat(ByteBuffer header, int offset, int size, File file) throws UnsupportedAudioFileException {
+		if (size < 16) throw new UnsupportedAudioFileException("Truncated fmt chunk: " + file);
+		int tag = header.getShort(offset) & 0xFFFF;
+		int channels = header.getShort(offset + 2) & 0xFFFF;
+		float sampleRate = header.getInt(offset + 4) & 0xFFFFFFFFL;
+		int blockAlign = header.getShort(offset + 12) & 0xFFFF;
+		int bits = header.getShort(offset + 14) & 0xFFFF;
+		if (tag == WAVE_FORMAT_EXTENSIBLE && size >= 40) {
+			// the sub format GUID starts with the format tag
+			tag = header.getShort(offset + 24) & 0xFFFF;
+		}
+		if (channels == 0 || bits == 0 || blockAlign != channels * ((bits + 7) / 8)) {
+			throw new UnsupportedAudioFileException("Unsupported WAVE layout in " + file);
+		}
+		AudioFormat.Encoding encoding;
+		if (tag == WAVE_FORMAT_PCM) {
+			encoding = bits <= 8 ? AudioFormat.Encoding.PCM_UNSIGNED : AudioFormat.Encoding.PCM_SIGNED;
+		} else if (tag == WAVE_FORMAT_IEEE_FLOAT && (bits == 32 || bits == 64)) {
+			encoding = AudioFormat.Encoding.PCM_FLOAT;
+		} else {
+			throw new UnsupportedAudioFileException("Unsupported WAVE format tag " + tag + " in " + file);
+		}
+		return new AudioFormat(encoding, sampleRate, bits, channels, blockAlign, sampleRate, false);
+	}
+
+	static int fourCC(String id) {
+		return id.charAt(0) | id.charAt(1) << 8 | id.charAt(2) << 16 | id.charAt(3) << 24;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public AudioFormat getFormat() {
+		return format;
+	}
+
+	/**
+	 * @return the offset of the audio data from the start of the file
+	 */
+	public long getDataOffset() {
+		return dataOffset;
+	}
+
+	public long getFrameLength() {
+		return dataLength / format.getFrameSize();
+	}
+
+	/**
+	 * @return the length of the data chunk in bytes, a whole number of frames
+	 */
+	public long getDataLength() {
+		return dataLength;
+	}
+
+	/**
+	 * @return the number of windows the data chunk is mapped in
+	 */
+	public int getWindowCount() {
+		return windows().length;
+	}
+
+	/**
+	 * @return a read-only little-endian view of the data chunk
+	 * @throws IllegalStateException if the data chunk is mapped in more than one window
+	 */
+	public ByteBuffer getData() {
+		MappedByteBuffer[] windows = windows();
+		if (windows.length > 1) throw new IllegalStateException("Data chunk of " + dataLength + " bytes exceeds one window: " + file);
+		return view(windows[0]);
+	}
+
+	/**
+	 * @return a read-only little-endian view of window <code>index</code>,
+	 * which starts at frame <code>index * getWindowFrameLength()</code>
+	 */
+	public ByteBuffer getWindow(int index) {
+		return view(windows()[index]);
+	}
+
+	/**
+	 * @return the number of frames in each window but the last
+	 */
+	public long getWindowFrameLength() {
+		return windowLength / format.getFrameSize();
+	}
+
+	static ByteBuffer view(MappedByteBuffer window) {
+		return window.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	MappedByteBuffer[] windows() {
+		MappedByteBuffer[] windows = this.windows;
+		if (windows == null) throw new IllegalStateException("Closed: " + file);
+		return windows;
+	}
+
+	/**
+	 * @return the interleaved samples of a 16 bit file
+	 */
+	public ShortBuffer asShortBuffer() {
+		checkSampleType(16, false);
+		return getData().asShortBuffer();
+	}
+
+	/**
+	 * @return the interleaved samples of a 32 bit integer file
+	 */
+	public IntBuffer asIntBuffer() {
+		checkSampleType(32, false);
+		return getData().asIntBuffer();
+	}
+
+	/**
+	 * @return the interleaved samples of a 32 bit float file
+	 */
+	public FloatBuffer asFloatBuffer() {
+		checkSampleType(32, true);
+		return getData().asFloatBuffer();
+	}
+
+	void checkSampleType(int bits, boolean floating) {
+		if (format.getSampleSizeInBits() != bits || AudioFormat.Encoding.PCM_FLOAT.equals(format.getEncoding()) != floating) {
+			throw new IllegalStateException("Not a " + bits + " bit " + (floating ? "float" : "integer") + " file: " + format);
+		}
+	}
+
+	/**
+	 * @return the sample at <code>frame</code> in <code>channel</code>, scaled to [-1, 1)
+	 */
+	public float getSample(long frame, int channel) {
+		int bytes = format.getFrameSize() / format.getChannels();
+		long offset = frame * format.getFrameSize();
+		MappedByteBuffer data = windows()[(int) (offset / windowLength)];
+		int index = (int) (offset % windowLength) + channel * bytes;
+		if (AudioFormat.Encoding.PCM_FLOAT.equals(format.getEncoding())) {
+			return bytes == 4 ? data.getFloat(index) : (float) data.getDouble(index);
+		}
+		switch (bytes) {
+		case 1:
+			return ((data.get(index) & 0xFF) - 128) / 128F;
+		case 2:
+			return data.getShort(index) / 32768F;
+		case 3:
+			return ((data.get(index) & 0xFF) << 8 | (data.get(index + 1) & 0xFF) << 16 | data.get(index + 2) << 24) / 2147483648F;
+		default:
+			return data.getInt(index) / 2147483648F;
+		}
+	}
+
+	/**
+	 * @return a stream over the mapped data, with a known frame length
+	 */
+	public AudioInputStream getAudioInputStream() {
+		return new AudioInputStream(newInputStream(), format, getFrameLength());
+	}
+
+	InputStream newInputStream() {
+		MappedByteBuffer[] windows = windows();
+		if (windows.length == 1) return new StreamingAudioFileWriter.ByteBufferInputStream(view(windows[0]));
+		List<InputStream> streams = new ArrayList<>(windows.length);
+		for (MappedByteBuffer window : windows) streams.add(new StreamingAudioFileWriter.ByteBufferInputStream(view(window)));
+		return new SequenceInputStream(Collections.enumeration(streams));
+	}
+
+	/**
+	 * @param closeFile whether closing the stream closes this file, for
+	 * streams handed to code that reads them to the end and closes them
+	 * @return a stream over the mapped data, with a known frame length
+	 */
+	public AudioInputStream getAudioInputStream(boolean closeFile) {
+		if (!closeFile) return getAudioInputStream();
+		return new AudioInputStream(newInputStream(), format, getFrameLength()) {
+			@Override
+			public void close() throws IOException {
+				MappedWaveFile.this.close();
+			}
+		};
+	}
+
+	/**
+	 * @return true if the data is 8 or 16 bit integer PCM, the only layouts
+	 * readers of the canonical 44 byte header (such as musicg) accept
+	 */
+	public boolean isCanonical() {
+		return !AudioFormat.Encoding.PCM_FLOAT.equals(format.getEncoding()) && format.getSampleSizeInBits() <= 16;
+	}
+
+	/**
+	 * @return a canonical 44 byte PCM WAVE header describing this file's data,
+	 * without any of the extra chunks the file may contain
+	 */
+	public byte[] getCanonicalHeader() {
+		return StreamingAudioFileWriter.createWaveHeader(format, dataLength);
+	}
+
+	/**
+	 * @return a heap copy of the data chunk
+	 * @throws IllegalStateException if the data chunk is mapped in more than one window
+	 */
+	public byte[] toByteArray() {
+		ByteBuffer data = getData();
+		byte[] bytes = new byte[data.remaining()];
+		data.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Drops this file's references to the mapping; further calls fail with
+	 * <code>IllegalStateException</code>. Closing a closed file has no
+	 * effect.
+	 */
+	@Override
+	public void close() {
+		windows = null;
+	}
+
+}
@@ -0,0 +1,153 @@
+package org.melophonic.audio.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+/**
+ * Writes a PCM WAVE file of known length by memory-mapping it: the canonical
+ * 44 byte header is written up front and samples are put into the mapped
+ * data chunk, so they go straight into the page cache without passing
+ * through an <code>OutputStream</code>.
+ *
+ * The mapping is released eagerly on {@link #close()}, before the file is
+ * truncated, so it is never handed out: only the static <code>write</code>
+ * methods and this package use it.
+ */
+public class MappedWaveWriter implements Closeable {
+
+	static final int BUFFER_SIZE = 1 << 16;
+
+	/** the largest data chunk that can be mapped with its header and padding */
+	public static final long MAX_DATA_LENGTH = Integer.MAX_VALUE - StreamingAudioFileWriter.WAVE_HEADER_LENGTH - 1;
+
+	final File file;
+	final AudioFormat format;
+	final FileChannel channel;
+	MappedByteBuffer mapped;
+	ByteBuffer data;
+	long length;
+
+	/**
+	 * Creates (or truncates) <code>file</code> and maps room for <code>frameLength</code> frames.
+	 *
+	 * @param format little-endian PCM, unsigned at 8 bits, as accepted by {@link #isSupported(AudioFormat)}
+	 */
+	MappedWaveWriter(File file, AudioFormat format, long frameLength) throws IOException {
+		if (!isSupported(format)) throw new IllegalArgumentException("Unsupported format: " + format);
+		long dataLength = frameLength * format.getFrameSize();
+		long fileLength = StreamingAudioFileWriter.WAVE_HEADER_LENGTH + dataLength + (dataLength & 1);
+		if (frameLength < 0 || dataLength > MAX_DATA_LENGTH) throw new IllegalArgumentException("Unsupported length: " + frameLength + " frames");
+		this.file = file;
+		this.format = format;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		this.mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileLength);
+		mapped.put(StreamingAudioFileWriter.createWaveHeader(format, dataLength));
+		ByteBuffer slice = mapped.slice();
+		slice.limit((int) dataLength);
+		this.data = slice.order(ByteOrder.LITTLE_ENDIAN);
+		this.length = fileLength;
+	}
+
+	/**
+	 * @return true if <code>format</code> is laid out the way WAVE stores integer PCM
+	 */
+	public static boolean isSupported(AudioFormat format) {
+		return AudioUtil.isPcm(format.getEncoding()) && !AudioFormat.Encoding.PCM_FLOAT.equals(format.getEncoding())
+				&& StreamingAudioFileWriter.getTargetFormat(AudioFileFormat.Type.WAVE, format).matches(format)
+				&& format.getFrameSize() == format.getChannels() * ((format.getSampleSizeInBits() + 7) / 8);
+	}
+
+	/**
+	 * @return the writable data chunk, positioned at the next frame to
+	 * write, which must not be used once the writer is closed
+	 */
+	ByteBuffer getData() {
+		return data;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Writes all of <code>stream</code> to <code>file</code>, converting the
+	 * byte order and signedness if necessary.
+	 *
+	 * @param stream a PCM stream with a known frame length
+	 * @return the length of the file, which is shortened if the stream ends
+	 * before its frame length
+	 */
+	public static int write(AudioInputStream stream, File file) throws IOException {
+		AudioFormat targetFormat = StreamingAudioFileWriter.getTargetFormat(AudioFileFormat.Type.WAVE, stream.getFormat());
+		if (stream.getFrameLength() == AudioSystem.NOT_SPECIFIED) throw new IllegalArgumentException("Stream length not specified");
+		if (!PcmFormatConverter.isIdentity(stream.getFormat(), targetFormat)) stream = PcmFormatConverter.convert(targetFormat, stream);
+		try (MappedWaveWriter writer = new MappedWaveWriter(file, targetFormat, stream.getFrameLength())) {
+			ByteBuffer data = writer.getData();
+			byte[] buffer = new byte[BUFFER_SIZE - BUFFER_SIZE % targetFormat.getFrameSize()];
+			while (data.hasRemaining()) {
+				int n = stream.read(buffer, 0, Math.min(buffer.length, data.remaining()));
+				if (n == -1) {
+					writer.truncate();
+					break;
+				}
+				data.put(buffer, 0, n);
+			}
+			return (int) writer.length;
+		}
+	}
+
+	/**
+	 * Copies a mapped WAVE file buffer to buffer, without an intermediate heap array.
+	 *
+	 * @return the length of the file
+	 */
+	public static int write(MappedWaveFile source, File file) throws IOException {
+		try (MappedWaveWriter writer = new MappedWaveWriter(file, source.getFormat(), source.getFrameLength())) {
+			writer.getData().put(source.getData());
+			return (int) writer.length;
+		}
+	}
+
+	/**
+	 * Ends the file after the frames written so far, rewriting the header.
+	 */
+	public void truncate() {
+		long dataLength = data.position() - data.position() % format.getFrameSize();
+		byte[] header = StreamingAudioFileWriter.createWaveHeader(format, dataLength);
+		for (int i = 0; i < header.length; i++) mapped.put(i, header[i]);
+		if ((dataLength & 1) == 1) mapped.put((int) (header.length + dataLength), (byte) 0);
+		length = header.length + dataLength + (dataLength & 1);
+	}
+
+	/**
+	 * Flushes the mapped pages to disk, unmaps them and closes the file. It
+	 * is truncated only once unmapped, which Windows requires.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (mapped == null) return;
+		try {
+			mapped.force();
+			MappedByteBuffer unmapped = mapped;
+			mapped = null;
+			data = null;
+			MappedBuffers.unmap(unmapped);
+			if (channel.size() > length) channel.truncate(length);
+		} finally {
+			channel.close();
+		}
+	}
+
+}
@@ -0,0 +1,194 @@
+package org.melophonic.audio.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
+/**
+ * Converts PCM audio between channel counts, sample sizes, signedness and
+ * endianess in a single pass. This replaces the chain of
+ * <code>AudioSystem.getAudioInputStream</code> conversions for steps 2 and 3
+ * of {@link AudioConverter#convert}, each of which copies the data once more
+ * and converts every sample through its own virtual calls.
+ *
+ * Each sample is decoded into a left-aligned 32 bit integer, remapped across
+ * channels and re-encoded in the target layout (rounded to the nearest value
+ * when the sample size shrinks), using buffers that are
+ * allocated once per stream. Channels are remapped the same way the JDK's
+ * converter does: downmixing to mono averages all channels, a mono source is
+ * copied to every target channel, and otherwise channels are copied by index
+ * with any extra target channels left silent.
+ */
+public class PcmFormatConverter extends InputStream {
+
+	public static final int DEFAULT_BUFFER_FRAMES = 4096;
+
+	final InputStream source;
+	final int sourceChannels, targetChannels;
+	final int sourceBytes, targetBytes;
+	final boolean sourceBigEndian, targetBigEndian;
+	final boolean sourceSigned, targetSigned;
+	final int sourceFrameSize, targetFrameSize;
+	final int rounding;
+
+	final byte[] sourceBuffer;
+	final int[] frame;
+	int buffered = 0;
+	boolean eof = false;
+
+	PcmFormatConverter(InputStream source, AudioFormat sourceFormat, AudioFormat targetFormat, int bufferFrames) {
+		this.source = source;
+		this.sourceChannels = sourceFormat.getChannels();
+		this.targetChannels = targetFormat.getChannels();
+		this.sourceBytes = sourceFormat.getFrameSize() / sourceChannels;
+		this.targetBytes = targetFormat.getFrameSize() / targetChannels;
+		this.sourceBigEndian = sourceFormat.isBigEndian();
+		this.targetBigEndian = targetFormat.isBigEndian();
+		this.sourceSigned = AudioFormat.Encoding.PCM_SIGNED.equals(sourceFormat.getEncoding());
+		this.targetSigned = AudioFormat.Encoding.PCM_SIGNED.equals(targetFormat.getEncoding());
+		this.sourceFrameSize = sourceFormat.getFrameSize();
+		this.targetFrameSize = targetFormat.getFrameSize();
+		this.rounding = targetBytes < sourceBytes ? 1 << (31 - 8 * targetBytes) : 0;
+		this.sourceBuffer = new byte[bufferFrames * sourceFrameSize];
+		this.frame = new int[Math.max(sourceChannels, targetChannels)];
+	}
+
+	/**
+	 * @return true if the conversion from source to target format only
+	 * changes channels, sample size, signedness or endianess of PCM data
+	 */
+	public static boolean isSupported(AudioFormat sourceFormat, AudioFormat targetFormat) {
+		return isSupported(sourceFormat) && isSupported(targetFormat)
+				&& AudioUtil.equals(sourceFormat.getSampleRate(), targetFormat.getSampleRate());
+	}
+
+	static boolean isSupported(AudioFormat format) {
+		if (!AudioUtil.isPcm(format.getEncoding())) return false;
+		int channels = format.getChannels();
+		int bits = format.getSampleSizeInBits();
+		if (channels <= 0 || bits <= 0 || bits > 32) return false;
+		return format.getFrameSize() == AudioConverter.calculateFrameSize(channels, bits);
+	}
+
+	/**
+	 * @return true if converting between the formats would not change the data
+	 */
+	public static boolean isIdentity(AudioFormat sourceFormat, AudioFormat targetFormat) {
+		return sourceFormat.getChannels() == targetFormat.getChannels()
+				&& sourceFormat.getSampleSizeInBits() == targetFormat.getSampleSizeInBits()
+				&& sourceFormat.getEncoding().equals(targetFormat.getEncoding())
+				&& (sourceFormat.isBigEndian() == targetFormat.isBigEndian() || sourceFormat.getSampleSizeInBits() <= 8);
+	}
+
+	/**
+	 * Creates a stream of <code>sourceStream</code> converted to
+	 * <code>targetFormat</code>.
+	 *
+	 * @param targetFormat a PCM format with the source sample rate
+	 * @param sourceStream a PCM stream
+	 * @return the converted stream
+	 * @throws IllegalArgumentException if the conversion is not supported
+	 */
+	public static AudioInputStream convert(AudioFormat targetFormat, AudioInputStream sourceStream) {
+		return convert(targetFormat, sourceStream, DEFAULT_BUFFER_FRAMES);
+	}
+
+	public static AudioInputStream convert(AudioFormat targetFormat, AudioInputStream sourceStream, int bufferFrames) {
+		AudioFormat sourceFormat = sourceStream.getFormat();
+		if (!isSupported(sourceFormat, targetFormat)) {
+			throw new IllegalArgumentException("Unsupported conversion: " + sourceFormat + " to " + targetFormat);
+		}
+		AudioFormat format = new AudioFormat(targetFormat.getEncoding(), sourceFormat.getSampleRate(), targetFormat.getSampleSizeInBits(),
+				targetFormat.getChannels(), targetFormat.getFrameSize(), sourceFormat.getFrameRate(), targetFormat.isBigEndian());
+		PcmFormatConverter converter = new PcmFormatConverter(sourceStream, sourceFormat, format, bufferFrames);
+		return new AudioInputStream(converter, format, sourceStream.getFrameLength());
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int frames = Math.min(len / targetFrameSize, sourceBuffer.length / sourceFrameSize);
+		if (frames == 0) {
+			if (len == 0) return 0;
+			throw new IOException("read length " + len + " is smaller than the frame size " + targetFrameSize);
+		}
+
+		// fill the source buffer with at least one whole frame
+		int wanted = frames * sourceFrameSize;
+		while (!eof && buffered < sourceFrameSize) {
+			int n = source.read(sourceBuffer, buffered, wanted - buffered);
+			if (n == -1) eof = true;
+			else buffered += n;
+		}
+		frames = Math.min(frames, buffered / sourceFrameSize);
+		if (frames == 0) return -1;
+
+		int in = 0, out = off;
+		for (int f = 0; f < frames; f++) {
+			for (int c = 0; c < sourceChannels; c++) {
+				frame[c] = decode(sourceBuffer, in);
+				in += sourceBytes;
+			}
+			remap();
+			for (int c = 0; c < targetChannels; c++) {
+				encode(frame[c], b, out);
+				out += targetBytes;
+			}
+		}
+
+		// keep any trailing partial frame for the next read
+		buffered -= in;
+		if (buffered > 0) System.arraycopy(sourceBuffer, in, sourceBuffer, 0, buffered);
+		return out - off;
+	}
+
+	int decode(byte[] buffer, int offset) {
+		int value = 0;
+		for (int i = 0; i < sourceBytes; i++) {
+			int shift = sourceBigEndian ? 24 - 8 * i : 24 - 8 * (sourceBytes - 1 - i);
+			value |= (buffer[offset + i] & 0xff) << shift;
+		}
+		return sourceSigned ? value : value ^ 0x80000000;
+	}
+
+	void encode(int value, byte[] buffer, int offset) {
+		// round to the nearest target sample, saturating at full scale
+		if (rounding != 0) value = value > Integer.MAX_VALUE - rounding ? Integer.MAX_VALUE : value + rounding;
+		if (!targetSigned) value ^= 0x80000000;
+		for (int i = 0; i < targetBytes; i++) {
+			int shift = targetBigEndian ? 24 - 8 * i : 24 - 8 * (targetBytes - 1 - i);
+			buffer[offset + i] = (byte) (value >> shift);
+		}
+	}
+
+	void remap() {
+		if (sourceChannels == targetChannels) return;
+		if (targetChannels == 1) {
+			long sum = 0;
+			for (int c = 0; c < sourceChannels; c++) sum += frame[c];
+			frame[0] = (int) (sum / sourceChannels);
+		} else if (sourceChannels == 1) {
+			for (int c = 1; c < targetChannels; c++) frame[c] = frame[0];
+		} else {
+			for (int c = sourceChannels; c < targetChannels; c++) frame[c] = 0;
+		}
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (buffered + source.available()) / sourceFrameSize * targetFrameSize;
+	}
+
+	@Override
+	public void close() throws IOException {
+		source.close();
+	}
+
+}
@@ -0,0 +1,337 @@
+package org.melophonic.audio.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * Decoded audio as interleaved float samples in [-1, 1), held off-heap in a
+ * direct buffer, or mapped in place for 32 bit float WAVE files. A source is
+ * decoded once and can then be handed to any number of services, such as a
+ * fingerprint and an analysis of the same file, each reading the samples
+ * through its own view. Sources are immutable and safe to share between
+ * threads.
+ *
+ * Integer PCM is scaled the same way as {@link MappedWaveFile#getSample},
+ * so converting back to the original sample size restores the original
+ * samples exactly. Decoding stops with an <code>InterruptedIOException</code>
+ * when the decoding thread is interrupted.
+ */
+public class PcmSource {
+
+	/** the bytes of source audio converted per read while decoding */
+	static final int DECODE_BUFFER_SIZE = 1 << 16;
+
+	final FloatBuffer samples;
+	final AudioFormat format;
+	final AudioFormat sourceFormat;
+	final boolean mapped;
+
+	PcmSource(FloatBuffer samples, AudioFormat sourceFormat, boolean mapped) {
+		this.samples = samples;
+		this.sourceFormat = sourceFormat;
+		this.format = new AudioFormat(AudioFormat.Encoding.PCM_FLOAT, sourceFormat.getSampleRate(), 32, sourceFormat.getChannels(),
+				4 * sourceFormat.getChannels(), sourceFormat.getSampleRate(), false);
+		this.mapped = mapped;
+	}
+
+	/**
+	 * Decodes a local audio file. 32 bit float WAVE data is mapped rather than copied.
+	 */
+	public static PcmSource open(File file) throws IOException, UnsupportedAudioFileException {
+		return open(file.toURI());
+	}
+
+	/**
+	 * Decodes the audio at <code>audioUri</code>. 32 bit float WAVE data of
+	 * local files is mapped rather than copied, and stays mapped as long as
+	 * the source is reachable.
+	 */
+	public static PcmSource open(URI audioUri) throws IOException, UnsupportedAudioFileException {
+		MappedWaveFile wave = MappedWaveFile.openIfWave(audioUri);
+		if (wave != null) {
+			AudioFormat format = wave.getFormat();
+			if (AudioFormat.Encoding.PCM_FLOAT.equals(format.getEncoding()) && format.getSampleSizeInBits() == 32 && wave.getWindowCount() == 1) {
+				return new PcmSource(wave.asFloatBuffer(), format, true);
+			}
+			try (MappedWaveFile mapped = wave) {
+				return decode(mapped.getAudioInputStream());
+			}
+		}
+		if ("file".equals(audioUri.getScheme())) {
+			try (AudioInputStream stream = ConversionPlanner.getInstance().getAudioInputStream(new File(audioUri))) {
+				return decode(stream);
+			}
+		}
+		try (AudioInputStream stream = AudioSystem.getAudioInputStream(audioUri.toURL())) {
+			return decode(stream);
+		}
+	}
+
+	/**
+	 * Decodes all of <code>stream</code>, which is not closed. Encoded
+	 * streams are decoded to PCM through <code>AudioSystem</code> first.
+	 */
+	public static PcmSource decode(AudioInputStream stream) throws IOException {
+		AudioFormat format = stream.getFormat();
+		if (!isPcm(format)) {
+			int bits = format.getSampleSizeInBits() > 0 ? format.getSampleSizeInBits() : 16;
+			AudioFormat pcm = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, format.getSampleRate(), bits, format.getChannels(),
+					format.getChannels() * ((bits + 7) / 8), format.getSampleRate(), false);
+			stream = AudioSystem.getAudioInputStream(pcm, stream);
+			format = stream.getFormat();
+		}
+		int frameSize = format.getFrameSize();
+		int channels = format.getChannels();
+		long frameLength = stream.getFrameLength();
+		FloatBuffer samples = allocate(frameLength != AudioSystem.NOT_SPECIFIED ? frameLength * channels : DECODE_BUFFER_SIZE);
+
+		byte[] buffer = new byte[Math.max(1, DECODE_BUFFER_SIZE / frameSize) * frameSize];
+		int buffered = 0;
+		int n;
+		while ((n = stream.read(buffer, buffered, buffer.length - buffered)) != -1) {
+			if (Thread.currentThread().isInterrupted()) throw new InterruptedIOException("Decoding interrupted");
+			buffered += n;
+			int whole = buffered - buffered % frameSize;
+			if (whole == 0) continue;
+			int count = whole / (frameSize / channels);
+			if (samples.remaining() < count) samples = grow(samples, count);
+			decodeSamples(buffer, whole, format, samples);
+			System.arraycopy(buffer, whole, buffer, 0, buffered - whole);
+			buffered -= whole;
+		}
+		samples.flip();
+		return new PcmSource(samples.asReadOnlyBuffer(), format, false);
+	}
+
+	/**
+	 * Wraps samples decoded elsewhere, without copying them.
+	 *
+	 * @param samples interleaved samples, from position to limit
+	 */
+	public static PcmSource wrap(FloatBuffer samples, float sampleRate, int channels) {
+		if (samples.remaining() % channels != 0) throw new IllegalArgumentException(samples.remaining() + " samples are not a whole number of " + channels + " channel frames");
+		AudioFormat format = new AudioFormat(AudioFormat.Encoding.PCM_FLOAT, sampleRate, 32, channels, 4 * channels, sampleRate, false);
+		return new PcmSource(samples.slice().asReadOnlyBuffer(), format, false);
+	}
+
+	static boolean isPcm(AudioFormat format) {
+		AudioFormat.Encoding encoding = format.getEncoding();
+		return (AudioFormat.Encoding.PCM_SIGNED.equals(encoding) || AudioFormat.Encoding.PCM_UNSIGNED.equals(encoding)
+				|| AudioFormat.Encoding.PCM_FLOAT.equals(encoding)) && format.getFrameSize() > 0;
+	}
+
+	static FloatBuffer allocate(long length) throws IOException {
+		if (length > Integer.MAX_VALUE / 4) throw new IOException("Too many samples to decode into memory: " + length);
+		return ByteBuffer.allocateDirect((int) length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+	}
+
+	static FloatBuffer grow(FloatBuffer samples, int needed) throws IOException {
+		long capacity = Math.max((long) samples.capacity() * 2, (long) samples.position() + needed);
+		FloatBuffer grown = allocate(Math.min(capacity, Integer.MAX_VALUE / 4));
+		if (grown.capacity() - samples.position() < needed) throw new IOException("Too many samples to decode into memory");
+		samples.flip();
+		grown.put(samples);
+		return grown;
+	}
+
+	/**
+	 * Appends the samples of <code>length</code> bytes of PCM to <code>samples</code>.
+	 */
+	static void decodeSamples(byte[] bytes, int length, AudioFormat format, FloatBuffer samples) {
+		int size = format.getFrameSize() / format.getChannels();
+		boolean bigEndian = format.isBigEndian();
+		if (AudioFormat.Encoding.PCM_FLOAT.equals(format.getEncoding())) {
+			ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length).order(bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+			if (size == 4) {
+				while (buffer.hasRemaining()) samples.put(buffer.getFloat());
+			} else {
+				while (buffer.hasRemaining()) samples.put((float) buffer.getDouble());
+			}
+			return;
+		}
+		boolean signed = AudioFormat.Encoding.PCM_SIGNED.equals(format.getEncoding());
+		if (size == 1) {
+			for (int i = 0; i < length; i++) samples.put(signed ? bytes[i] / 128F : ((bytes[i] & 0xFF) - 128) / 128F);
+			return;
+		}
+		for (int i = 0; i < length; i += size) {
+			// the sample left-aligned in an int, sign in the top bit
+			int value = 0;
+			for (int b = 0; b < size && b < 4; b++) {
+				int shift = 24 - 8 * b;
+				value |= (bytes[bigEndian ? i + b : i + size - 1 - b] & 0xFF) << shift;
+			}
+			if (!signed) value ^= Integer.MIN_VALUE;
+			samples.put(value / 2147483648F);
+		}
+	}
+
+	/**
+	 * @return the format of the samples: 32 bit float at the source rate and channels
+	 */
+	public AudioFormat getFormat() {
+		return format;
+	}
+
+	/**
+	 * @return the format the samples were decoded from
+	 */
+	public AudioFormat getSourceFormat() {
+		return sourceFormat;
+	}
+
+	public float getSampleRate() {
+		return format.getSampleRate();
+	}
+
+	public int getChannels() {
+		return format.getChannels();
+	}
+
+	public long getFrameLength() {
+		return samples.limit() / format.getChannels();
+	}
+
+	public double getDurationInSeconds() {
+		return getFrameLength() / (double) format.getSampleRate();
+	}
+
+	/**
+	 * @return true if the samples are mapped from a float WAVE file or a
+	 * {@link DecodeCache} entry rather than decoded
+	 */
+	public boolean isMapped() {
+		return mapped;
+	}
+
+	/**
+	 * @return a read-only view of the interleaved samples, positioned at the first
+	 */
+	public FloatBuffer getSamples() {
+		FloatBuffer view = samples.duplicate();
+		view.rewind();
+		return view;
+	}
+
+	public float getSample(long frame, int channel) {
+		return samples.get((int) (frame * format.getChannels()) + channel);
+	}
+
+	/**
+	 * @return a stream of the samples as signed little-endian integer PCM of
+	 * <code>sampleSizeInBits</code> (8 to 32), rounded and clipped
+	 */
+	public AudioInputStream getAudioInputStream(int sampleSizeInBits) {
+		AudioFormat pcm = getPcmFormat(sampleSizeInBits);
+		return new AudioInputStream(new IntegerPcmInputStream(getSamples(), sampleSizeInBits), pcm, getFrameLength());
+	}
+
+	/**
+	 * @return the samples as signed little-endian integer PCM of <code>sampleSizeInBits</code>
+	 */
+	public byte[] toByteArray(int sampleSizeInBits) throws IOException {
+		long length = getFrameLength() * getPcmFormat(sampleSizeInBits).getFrameSize();
+		if (length > Integer.MAX_VALUE) throw new IOException("Too many samples for an array: " + getFrameLength() + " frames");
+		byte[] bytes = new byte[(int) length];
+		try (InputStream in = new IntegerPcmInputStream(getSamples(), sampleSizeInBits)) {
+			int offset = 0, n;
+			while (offset < bytes.length && (n = in.read(bytes, offset, bytes.length - offset)) != -1) offset += n;
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return a canonical 44 byte PCM WAVE header describing the bytes of
+	 * {@link #toByteArray(int)}, for readers such as musicg
+	 */
+	public byte[] getCanonicalHeader(int sampleSizeInBits) {
+		AudioFormat pcm = getPcmFormat(sampleSizeInBits);
+		return StreamingAudioFileWriter.createWaveHeader(pcm, getFrameLength() * pcm.getFrameSize());
+	}
+
+	/**
+	 * Writes the samples to a temporary 16 bit WAVE file, for services that
+	 * only read URIs. The caller deletes the file.
+	 */
+	public File writeTemporaryWaveFile() throws IOException {
+		File file = File.createTempFile("pcm-source", ".wav");
+		try (AudioInputStream stream = getAudioInputStream(16)) {
+			AudioSystem.write(stream, AudioFileFormat.Type.WAVE, file);
+		} catch (IOException | RuntimeException e) {
+			file.delete();
+			throw e;
+		}
+		return file;
+	}
+
+	AudioFormat getPcmFormat(int sampleSizeInBits) {
+		if (sampleSizeInBits < 8 || sampleSizeInBits > 32 || sampleSizeInBits % 8 != 0) {
+			throw new IllegalArgumentException("Unsupported sample size: " + sampleSizeInBits);
+		}
+		return new AudioFormat(getSampleRate(), sampleSizeInBits, getChannels(), true, false);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d frames of %s%s", getFrameLength(), sourceFormat, mapped ? " (mapped)" : "");
+	}
+
+	/**
+	 * Encodes float samples as signed little-endian integers while they are read.
+	 */
+	static class IntegerPcmInputStream extends InputStream {
+
+		final FloatBuffer samples;
+		final int bytesPerSample;
+		final double scale;
+		final long min, max;
+
+		IntegerPcmInputStream(FloatBuffer samples, int sampleSizeInBits) {
+			this.samples = samples;
+			this.bytesPerSample = sampleSizeInBits / 8;
+			this.scale = 1L << (sampleSizeInBits - 1);
+			this.min = -(1L << (sampleSizeInBits - 1));
+			this.max = (1L << (sampleSizeInBits - 1)) - 1;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int count = Math.min(len / bytesPerSample, samples.remaining());
+			if (count == 0) {
+				if (!samples.hasRemaining()) return -1;
+				if (len == 0) return 0;
+				throw new IOException("Read of " + len + " bytes is less than a sample");
+			}
+			for (int i = 0; i < count; i++) {
+				long value = Math.max(min, Math.min(max, Math.round(samples.get() * scale)));
+				for (int j = 0; j < bytesPerSample; j++) b[off++] = (byte) (value >> (8 * j));
+			}
+			return count * bytesPerSample;
+		}
+
+		@Override
+		public int available() {
+			return samples.remaining() * bytesPerSample;
+		}
+
+	}
+
+}
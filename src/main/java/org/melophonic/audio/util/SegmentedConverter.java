@@ -0,0 +1,208 @@
+package org.melophonic.audio.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import org.melophonic.audio.spi.resample.PolyphaseFilterBank;
+import org.melophonic.audio.spi.resample.ResamplingInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Converts a single large PCM WAVE file on several cores by splitting it into
+ * frame-aligned segments of the output. Each segment maps only its region of
+ * the input, runs the same conversion steps as
+ * {@link AudioConverter#convert(File, File, AudioConverter.Parameters)} and
+ * writes its frames at their final offset in the output file, behind a WAVE
+ * header written up front. Inputs of any length are split into segments of
+ * at most {@link #MAX_SEGMENT_LENGTH} input bytes, and outputs whose data
+ * exceeds what a RIFF header can describe are written as RF64.
+ *
+ * Channel, sample size and encoding conversions are frame-local, so segments
+ * need no overlap. Resampling segments re-read the filter history around
+ * their boundaries (see {@link ResamplingInputStream}), so the output is
+ * bit-identical to a single-threaded conversion in either case.
+ *
+ * Conversions that cannot be segmented (non-WAVE input or output, resampling
+ * through another provider, non-PCM targets) and inputs too short to be worth
+ * splitting are converted by <code>AudioConverter</code> on the calling thread.
+ * That includes FLAC input: its frames can only be located by decoding from
+ * the start or through a seek table, which this class does not attempt.
+ */
+public class SegmentedConverter {
+
+	final static Logger log = LoggerFactory.getLogger(SegmentedConverter.class);
+
+	/** the fewest output frames worth converting as a separate segment */
+	public static final long MIN_SEGMENT_FRAMES = 1 << 16;
+
+	/** segments per pool thread, so that uneven segments balance out */
+	static final int SEGMENTS_PER_THREAD = 4;
+
+	/** the largest data chunk a RIFF header can describe; longer ones are written as RF64 */
+	static final long MAX_DATA_LENGTH = 0xFFFFFFFFL - 36 - 1;
+
+	/** the most input bytes a segment maps, well below the 2 GB a mapping can hold */
+	public static final long MAX_SEGMENT_LENGTH = 1 << 30;
+
+	static final int BUFFER_SIZE = 1 << 16;
+
+	final MappedWaveFile wave;
+	/** the parameters of the conversion before resampling */
+	final AudioConverter.Parameters segmentParameters;
+	/** the filter bank if the sample rate is converted, null otherwise */
+	final PolyphaseFilterBank bank;
+	final AudioFormat convertedFormat;
+	final AudioFormat targetFormat;
+	final long frameLength;
+	long maxRiffDataLength = MAX_DATA_LENGTH;
+
+	SegmentedConverter(MappedWaveFile wave, AudioConverter.Parameters segmentParameters, PolyphaseFilterBank bank, AudioFormat convertedFormat,
+			long frameLength) {
+		this.wave = wave;
+		this.segmentParameters = segmentParameters;
+		this.bank = bank;
+		this.convertedFormat = convertedFormat;
+		this.targetFormat = StreamingAudioFileWriter.getTargetFormat(AudioFileFormat.Type.WAVE, convertedFormat);
+		this.frameLength = frameLength;
+	}
+
+	/**
+	 * Converts <code>inputFile</code> to <code>outputFile</code> in segments
+	 * on <code>pool</code>, or on the calling thread if it cannot be segmented.
+	 *
+	 * @return the number of bytes written
+	 */
+	public static long convert(File inputFile, File outputFile, AudioConverter.Parameters parameters, ForkJoinPool pool) throws Exception {
+		try (MappedWaveFile wave = MappedWaveFile.openIfWave(inputFile.toURI())) {
+			SegmentedConverter converter = wave == null ? null : create(wave, parameters);
+			int segments = converter == null ? 1 : converter.getSegmentCount(pool.getParallelism());
+			if (segments > 1) return converter.write(outputFile, segments, pool);
+		}
+		log.debug("converting " + inputFile + " on one thread");
+		return AudioConverter.convert(inputFile, outputFile, parameters);
+	}
+
+	/**
+	 * @return a converter for <code>wave</code>, or null if the conversion
+	 * cannot be split into independent segments
+	 */
+	static SegmentedConverter create(MappedWaveFile wave, AudioConverter.Parameters parameters) throws Exception {
+		if (parameters.fileType != null && !AudioFileFormat.Type.WAVE.equals(parameters.fileType)) return null;
+		AudioFormat sourceFormat = wave.getFormat();
+		AudioInputStream converted = AudioConverter.getConvertedStream(wave.getAudioInputStream(), parameters);
+		AudioFormat format = converted.getFormat();
+		if (converted.getFrameLength() == AudioSystem.NOT_SPECIFIED || !StreamingAudioFileWriter.isSupported(AudioFileFormat.Type.WAVE, format)) {
+			return null;
+		}
+		if (AudioUtil.equals(sourceFormat.getSampleRate(), format.getSampleRate())) {
+			return new SegmentedConverter(wave, parameters, null, format, converted.getFrameLength());
+		}
+
+		/*
+		 * Resampling segments only if it is done by the polyphase resampler as
+		 * the last step, which is the case if converting everything but the
+		 * sample rate and then resampling gives the same format.
+		 */
+		AudioConverter.Parameters segmentParameters = parameters.copy();
+		segmentParameters.setSampleRate(sourceFormat.getSampleRate());
+		AudioFormat segmentFormat = AudioConverter.getConvertedStream(new AudioInputStream(new ByteArrayInputStream(new byte[0]), sourceFormat, 0),
+				segmentParameters).getFormat();
+		AudioFormat resampledFormat = AudioConverter.getSampleRateFormat(format.getSampleRate(), segmentFormat);
+		if (!AudioConverter.resampler.isConversionSupported(resampledFormat, segmentFormat) || !resampledFormat.matches(format)) return null;
+		PolyphaseFilterBank bank = PolyphaseFilterBank.get((int) segmentFormat.getSampleRate(), (int) format.getSampleRate());
+		return new SegmentedConverter(wave, segmentParameters, bank, format, converted.getFrameLength());
+	}
+
+	int getSegmentCount(int threads) {
+		long segments = Math.max(1, Math.min((long) threads * SEGMENTS_PER_THREAD, frameLength / MIN_SEGMENT_FRAMES));
+		return (int) Math.max(segments, (wave.getDataLength() + MAX_SEGMENT_LENGTH - 1) / MAX_SEGMENT_LENGTH);
+	}
+
+	/**
+	 * Writes the header, converts the segments in parallel and pads the data
+	 * chunk to an even length. A partially written file is deleted.
+	 *
+	 * @return the length of the file
+	 */
+	long write(File outputFile, int segments, ForkJoinPool pool) throws Exception {
+		long dataLength = frameLength * targetFormat.getFrameSize();
+		byte[] header = dataLength > maxRiffDataLength ? StreamingAudioFileWriter.createRf64Header(targetFormat, dataLength)
+				: StreamingAudioFileWriter.createWaveHeader(targetFormat, dataLength);
+		log.debug("converting " + wave.getFile() + " in " + segments + " segments");
+		boolean complete = false;
+		try (FileChannel input = FileChannel.open(wave.getFile().toPath(), StandardOpenOption.READ);
+				FileChannel channel = FileChannel.open(outputFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+			writeFully(channel, ByteBuffer.wrap(header), 0);
+			List<Callable<Void>> tasks = new ArrayList<>();
+			for (int i = 0; i < segments; i++) {
+				final long first = frameLength * i / segments, end = frameLength * (i + 1) / segments;
+				tasks.add(() -> {
+					convertSegment(first, end, input, channel, header.length);
+					return null;
+				});
+			}
+			for (Future<Void> future : pool.invokeAll(tasks)) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+				}
+			}
+			if ((dataLength & 1) == 1) writeFully(channel, ByteBuffer.wrap(new byte[1]), header.length + dataLength);
+			complete = true;
+			return header.length + dataLength + (dataLength & 1);
+		} finally {
+			if (!complete) outputFile.delete();
+		}
+	}
+
+	/**
+	 * Converts output frames <code>first</code> to <code>end</code>, mapping
+	 * the input frames they need from <code>input</code>, and writes them at
+	 * their offset in <code>channel</code>.
+	 */
+	void convertSegment(long first, long end, FileChannel input, FileChannel channel, long dataOffset) throws Exception {
+		AudioFormat sourceFormat = wave.getFormat();
+		long inputStart = bank == null ? first : ResamplingInputStream.getSegmentStart(bank, first);
+		long inputEnd = bank == null ? end : Math.min(wave.getFrameLength(), bank.getWindowEnd(end - 1));
+		ByteBuffer data = input.map(FileChannel.MapMode.READ_ONLY, wave.getDataOffset() + inputStart * sourceFormat.getFrameSize(),
+				(inputEnd - inputStart) * sourceFormat.getFrameSize());
+		AudioInputStream stream = AudioConverter.getConvertedStream(
+				new AudioInputStream(new StreamingAudioFileWriter.ByteBufferInputStream(data), sourceFormat, inputEnd - inputStart), segmentParameters);
+		if (bank != null) stream = new AudioInputStream(new ResamplingInputStream(stream, bank, first, end - first), convertedFormat, end - first);
+		if (!PcmFormatConverter.isIdentity(stream.getFormat(), targetFormat)) stream = PcmFormatConverter.convert(targetFormat, stream);
+
+		int frameSize = targetFormat.getFrameSize();
+		long position = dataOffset + first * frameSize, remaining = (end - first) * frameSize;
+		byte[] buffer = new byte[BUFFER_SIZE - BUFFER_SIZE % frameSize];
+		while (remaining > 0) {
+			int n = stream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if (n == -1) throw new IOException("Segment at frame " + first + " of " + wave.getFile() + " ended " + remaining + " bytes early");
+			writeFully(channel, ByteBuffer.wrap(buffer, 0, n), position);
+			position += n;
+			remaining -= n;
+		}
+	}
+
+	static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) position += channel.write(buffer, position);
+	}
+
+}
@@ -0,0 +1,311 @@
+package org.melophonic.audio.util;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes PCM audio as WAVE or AIFF to an <code>OutputStream</code> whose
+ * length is not known in advance, which the <code>AudioSystem</code> writers
+ * refuse to do. If the stream length is unknown the header is written with
+ * sentinel lengths (<code>0xFFFFFFFF</code>, as most streaming decoders
+ * expect), and patched once all data is written if the output is a
+ * <code>FileOutputStream</code> or a {@link ByteBufferOutputStream}.
+ */
+public class StreamingAudioFileWriter {
+
+	final static Logger log = LoggerFactory.getLogger(StreamingAudioFileWriter.class);
+
+	static final long UNKNOWN_LENGTH = 0xFFFFFFFFL;
+	static final int WAVE_HEADER_LENGTH = 44;
+	static final int RF64_HEADER_LENGTH = 80;
+	static final int AIFF_HEADER_LENGTH = 54;
+	static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * @return true if the file type is WAVE or AIFF and the format is integer PCM
+	 */
+	public static boolean isSupported(AudioFileFormat.Type fileType, AudioFormat format) {
+		return (AudioFileFormat.Type.WAVE.equals(fileType) || AudioFileFormat.Type.AIFF.equals(fileType))
+				&& AudioUtil.isPcm(format.getEncoding()) && PcmFormatConverter.isSupported(format, getTargetFormat(fileType, format));
+	}
+
+	/**
+	 * @return the format the data chunk of the file type is written in:
+	 * little-endian for WAVE (unsigned at 8 bits), big-endian signed for AIFF
+	 */
+	static AudioFormat getTargetFormat(AudioFileFormat.Type fileType, AudioFormat format) {
+		boolean wave = AudioFileFormat.Type.WAVE.equals(fileType);
+		int bits = format.getSampleSizeInBits();
+		AudioFormat.Encoding encoding = wave && bits == 8 ? AudioFormat.Encoding.PCM_UNSIGNED : AudioFormat.Encoding.PCM_SIGNED;
+		return new AudioFormat(encoding, format.getSampleRate(), bits, format.getChannels(), format.getFrameSize(), format.getFrameRate(), !wave);
+	}
+
+	/**
+	 * Writes the stream to <code>out</code>, converting the byte order and
+	 * signedness to what the file type requires.
+	 *
+	 * @return the number of bytes written, including the header
+	 * @throws IOException
+	 */
+	public static long write(AudioInputStream stream, AudioFileFormat.Type fileType, OutputStream out) throws IOException {
+		AudioFormat targetFormat = getTargetFormat(fileType, stream.getFormat());
+		if (!isSupported(fileType, stream.getFormat())) {
+			throw new IllegalArgumentException("Unsupported file type " + fileType + " for " + stream.getFormat());
+		}
+		if (!PcmFormatConverter.isIdentity(stream.getFormat(), targetFormat)) stream = PcmFormatConverter.convert(targetFormat, stream);
+
+		long frameLength = stream.getFrameLength();
+		long dataLength = frameLength == AudioSystem.NOT_SPECIFIED ? UNKNOWN_LENGTH : frameLength * targetFormat.getFrameSize();
+		Patcher patcher = Patcher.of(out);
+		byte[] header = createHeader(fileType, targetFormat, dataLength);
+		out.write(header);
+
+		long written = copy(stream, out);
+		if ((written & 1) == 1) {
+			// chunks are padded to an even length
+			out.write(0);
+		}
+		out.flush();
+		if (written != dataLength) {
+			if (patcher != null) {
+				patcher.patch(createHeader(fileType, targetFormat, written));
+			} else if (dataLength != UNKNOWN_LENGTH) {
+				log.warn("Expected " + dataLength + " bytes of audio but wrote " + written + "; header left unpatched");
+			}
+		}
+		return header.length + written + (written & 1);
+	}
+
+	static long copy(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long count = 0;
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			out.write(buffer, 0, n);
+			count += n;
+		}
+		return count;
+	}
+
+	/**
+	 * @param dataLength the length of the audio data in bytes, or {@link #UNKNOWN_LENGTH}
+	 */
+	static byte[] createHeader(AudioFileFormat.Type fileType, AudioFormat format, long dataLength) {
+		return AudioFileFormat.Type.WAVE.equals(fileType) ? createWaveHeader(format, dataLength) : createAiffHeader(format, dataLength);
+	}
+
+	static byte[] createWaveHeader(AudioFormat format, long dataLength) {
+		boolean unknown = dataLength >= UNKNOWN_LENGTH;
+		ByteBuffer header = ByteBuffer.allocate(WAVE_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(ascii("RIFF"));
+		header.putInt((int) (unknown ? UNKNOWN_LENGTH : 36 + dataLength + (dataLength & 1)));
+		header.put(ascii("WAVE"));
+		header.put(ascii("fmt "));
+		header.putInt(16);
+		header.putShort((short) 1); // WAVE_FORMAT_PCM
+		header.putShort((short) format.getChannels());
+		header.putInt((int) format.getSampleRate());
+		header.putInt((int) format.getSampleRate() * format.getFrameSize());
+		header.putShort((short) format.getFrameSize());
+		header.putShort((short) format.getSampleSizeInBits());
+		header.put(ascii("data"));
+		header.putInt((int) (unknown ? UNKNOWN_LENGTH : dataLength));
+		return header.array();
+	}
+
+	/**
+	 * @return an RF64 header (EBU Tech 3306) for a data chunk of any length:
+	 * a WAVE header whose 32 bit sizes are 0xFFFFFFFF, with the real sizes in
+	 * a ds64 chunk before the fmt chunk
+	 */
+	static byte[] createRf64Header(AudioFormat format, long dataLength) {
+		ByteBuffer header = ByteBuffer.allocate(RF64_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(ascii("RF64"));
+		header.putInt((int) UNKNOWN_LENGTH);
+		header.put(ascii("WAVE"));
+		header.put(ascii("ds64"));
+		header.putInt(28);
+		header.putLong(RF64_HEADER_LENGTH - 8 + dataLength + (dataLength & 1));
+		header.putLong(dataLength);
+		header.putLong(dataLength / format.getFrameSize());
+		header.putInt(0); // no table of other chunk sizes
+		header.put(ascii("fmt "));
+		header.putInt(16);
+		header.putShort((short) 1); // WAVE_FORMAT_PCM
+		header.putShort((short) format.getChannels());
+		header.putInt((int) format.getSampleRate());
+		header.putInt((int) format.getSampleRate() * format.getFrameSize());
+		header.putShort((short) format.getFrameSize());
+		header.putShort((short) format.getSampleSizeInBits());
+		header.put(ascii("data"));
+		header.putInt((int) UNKNOWN_LENGTH);
+		return header.array();
+	}
+
+	static byte[] createAiffHeader(AudioFormat format, long dataLength) {
+		boolean unknown = dataLength >= UNKNOWN_LENGTH;
+		ByteBuffer header = ByteBuffer.allocate(AIFF_HEADER_LENGTH).order(ByteOrder.BIG_ENDIAN);
+		header.put(ascii("FORM"));
+		header.putInt((int) (unknown ? UNKNOWN_LENGTH : AIFF_HEADER_LENGTH - 8 + dataLength + (dataLength & 1)));
+		header.put(ascii("AIFF"));
+		header.put(ascii("COMM"));
+		header.putInt(18);
+		header.putShort((short) format.getChannels());
+		header.putInt((int) (unknown ? UNKNOWN_LENGTH : dataLength / format.getFrameSize()));
+		header.putShort((short) format.getSampleSizeInBits());
+		putExtended(header, format.getSampleRate());
+		header.put(ascii("SSND"));
+		header.putInt((int) (unknown ? UNKNOWN_LENGTH : dataLength + 8));
+		header.putInt(0); // offset
+		header.putInt(0); // block size
+		return header.array();
+	}
+
+	/**
+	 * Writes an 80 bit IEEE 754 extended precision number, as used for the AIFF sample rate.
+	 */
+	static void putExtended(ByteBuffer buffer, double value) {
+		if (value <= 0) {
+			buffer.put(new byte[10]);
+			return;
+		}
+		int exponent = Math.getExponent(value);
+		long mantissa = ((Double.doubleToLongBits(value) & 0xFFFFFFFFFFFFFL) | (1L << 52)) << 11;
+		buffer.putShort((short) (16383 + exponent));
+		buffer.putLong(mantissa);
+	}
+
+	static byte[] ascii(String s) {
+		byte[] bytes = new byte[s.length()];
+		for (int i = 0; i < bytes.length; i++) bytes[i] = (byte) s.charAt(i);
+		return bytes;
+	}
+
+	/**
+	 * Rewrites a header at the position the output stream had when the
+	 * patcher was created, without moving the stream.
+	 */
+	static abstract class Patcher {
+
+		abstract void patch(byte[] header) throws IOException;
+
+		static Patcher of(OutputStream out) throws IOException {
+			if (out instanceof FileOutputStream) {
+				final FileChannel channel = ((FileOutputStream) out).getChannel();
+				final long position = channel.position();
+				return new Patcher() {
+					@Override
+					void patch(byte[] header) throws IOException {
+						channel.write(ByteBuffer.wrap(header), position);
+					}
+				};
+			}
+			if (out instanceof ByteBufferOutputStream) {
+				final ByteBuffer buffer = ((ByteBufferOutputStream) out).buffer;
+				final int position = buffer.position();
+				return new Patcher() {
+					@Override
+					void patch(byte[] header) {
+						for (int i = 0; i < header.length; i++) buffer.put(position + i, header[i]);
+					}
+				};
+			}
+			return null;
+		}
+
+	}
+
+	/**
+	 * An <code>OutputStream</code> writing into a <code>ByteBuffer</code>,
+	 * throwing <code>BufferOverflowException</code> when it is full.
+	 */
+	public static class ByteBufferOutputStream extends OutputStream {
+
+		final ByteBuffer buffer;
+
+		public ByteBufferOutputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public void write(int b) {
+			buffer.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			buffer.put(b, off, len);
+		}
+
+	}
+
+	/**
+	 * An <code>InputStream</code> reading the remaining bytes of a <code>ByteBuffer</code>.
+	 */
+	public static class ByteBufferInputStream extends InputStream {
+
+		final ByteBuffer buffer;
+		int mark = -1;
+
+		public ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) return 0;
+			if (!buffer.hasRemaining()) return -1;
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public long skip(long n) {
+			int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+			buffer.position(buffer.position() + skipped);
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+
+		@Override
+		public boolean markSupported() {
+			return true;
+		}
+
+		@Override
+		public synchronized void mark(int readlimit) {
+			mark = buffer.position();
+		}
+
+		@Override
+		public synchronized void reset() throws IOException {
+			if (mark < 0) throw new IOException("mark not set");
+			buffer.position(mark);
+		}
+
+	}
+
+}
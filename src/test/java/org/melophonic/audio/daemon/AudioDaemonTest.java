@@ -0,0 +1,207 @@
+package org.melophonic.audio.daemon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AudioDaemonTest {
+
+	final static File outputPath = new File("./target/daemon");
+
+	final static File tokenFile = new File(outputPath, "token");
+
+	AudioDaemon daemon;
+	File source;
+
+	@Before
+	public void setUp() throws Exception {
+		daemon = new AudioDaemon(0, 1, 1, 3, tokenFile).start();
+		FileUtils.forceMkdir(outputPath);
+		source = new File(outputPath, "clip.wav");
+		AudioFormat format = new AudioFormat(48000F, 16, 2, true, false);
+		byte[] pcm = new byte[4800 * format.getFrameSize()];
+		new Random(0).nextBytes(pcm);
+		AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(pcm), format, 4800), AudioFileFormat.Type.WAVE, source);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		daemon.close();
+	}
+
+	@Test
+	public void testPing() throws Exception {
+		try (AudioDaemonClient client = client()) {
+			AudioDaemon.Response response = client.execute("ping");
+			assertTrue(response.isOk());
+			assertEquals("pong", response.getMessage());
+			assertEquals(AudioDaemon.Response.ERROR, client.execute("nonsense").getStatus());
+			// the connection survives an error
+			assertTrue(client.execute("ping").isOk());
+		}
+	}
+
+	@Test
+	public void testConvert() throws Exception {
+		File target = new File(outputPath, "converted.wav");
+		try (AudioDaemonClient client = client()) {
+			AudioDaemon.Response response = client.execute("convert", source.getAbsolutePath(), target.getAbsolutePath());
+			assertTrue(response.getMessage(), response.isOk());
+			assertEquals(target.length(), Long.parseLong(response.getMessage()));
+			assertEquals(4800, AudioSystem.getAudioFileFormat(target).getFrameLength());
+
+			AudioDaemon.Response missing = client.execute("convert", new File(outputPath, "missing.wav").getAbsolutePath(), target.getAbsolutePath());
+			assertEquals(AudioDaemon.Response.ERROR, missing.getStatus());
+		}
+	}
+
+	@Test
+	public void testAuthentication() throws Exception {
+		String token = AudioDaemon.readToken(tokenFile);
+		assertEquals(2 * AudioDaemon.TOKEN_LENGTH, token.length());
+		if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+			assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(tokenFile.toPath())));
+		}
+		try (AudioDaemonClient client = new AudioDaemonClient(daemon.getPort(), token.replace(token.charAt(0), token.charAt(0) == 'a' ? 'b' : 'a'))) {
+			fail();
+		} catch (AudioDaemonClient.RefusedException e) {
+			assertEquals(AudioDaemon.Response.ERROR, e.getResponse().getStatus());
+		}
+
+		// a connection that skips authentication is closed without running anything
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort())) {
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			AudioDaemon.writeRequest(out, Arrays.asList("shutdown"));
+			out.flush();
+			assertEquals(AudioDaemon.Response.ERROR, AudioDaemon.Response.read(in).getStatus());
+			assertEquals(-1, in.read());
+		}
+		assertTrue(daemon.isRunning());
+	}
+
+	/**
+	 * With the only job thread blocked and the one queue slot taken, a third
+	 * job is refused.
+	 */
+	@Test
+	public void testBusyJobs() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		daemon.commands.put("block", args -> {
+			release.await();
+			return AudioDaemon.Response.ok("released");
+		});
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try (AudioDaemonClient first = client(); AudioDaemonClient second = client(); AudioDaemonClient third = client()) {
+			Future<AudioDaemon.Response> running = executor.submit(() -> first.execute("block"));
+			while (daemon.jobs.getActiveCount() < 1) Thread.sleep(1);
+			Future<AudioDaemon.Response> queued = executor.submit(() -> second.execute("block"));
+			while (daemon.jobs.getQueue().size() < 1) Thread.sleep(1);
+
+			assertEquals(AudioDaemon.Response.BUSY, third.execute("ping").getStatus());
+			release.countDown();
+			assertEquals("released", running.get().getMessage());
+			assertEquals("released", queued.get().getMessage());
+			assertTrue(third.execute("ping").isOk());
+		} finally {
+			release.countDown();
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * A connection that sends nothing is closed after the authentication
+	 * timeout, freeing its slot.
+	 */
+	@Test
+	public void testAuthenticationTimeout() throws Exception {
+		daemon.authTimeout = 100;
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort())) {
+			socket.setSoTimeout(10000);
+			assertEquals(-1, socket.getInputStream().read());
+		}
+		while (daemon.connections.getActiveCount() > 0) Thread.sleep(1);
+	}
+
+	/**
+	 * A connection beyond the maximum is answered with BUSY, even while
+	 * another refused connection has yet to send its request, and accepted
+	 * again once another one is closed.
+	 */
+	@Test
+	public void testBusyConnections() throws Exception {
+		List<AudioDaemonClient> clients = new ArrayList<>();
+		try (Socket silent = new Socket()) {
+			for (int i = 0; i < 3; i++) clients.add(client());
+			silent.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), daemon.getPort()));
+			long start = System.nanoTime();
+			try (AudioDaemonClient client = client()) {
+				fail();
+			} catch (AudioDaemonClient.RefusedException e) {
+				assertEquals(AudioDaemon.Response.BUSY, e.getResponse().getStatus());
+			}
+			assertTrue((System.nanoTime() - start) / 1000000 < AudioDaemon.REFUSAL_TIMEOUT);
+			clients.remove(0).close();
+			while (daemon.connections.getActiveCount() > 2) Thread.sleep(1);
+			try (AudioDaemonClient client = client()) {
+				assertTrue(client.execute("ping").isOk());
+			}
+		} finally {
+			for (AudioDaemonClient client : clients) client.close();
+		}
+	}
+
+	@Test
+	public void testShutdown() throws Exception {
+		try (AudioDaemonClient client = client()) {
+			assertTrue(client.execute("shutdown").isOk());
+		}
+		daemon.awaitTermination();
+		assertFalse(daemon.isRunning());
+		assertFalse(tokenFile.exists());
+	}
+
+	AudioDaemonClient client() throws Exception {
+		return new AudioDaemonClient(daemon.getPort(), tokenFile);
+	}
+
+	@Test
+	public void testResolvePaths() {
+		String[] resolved = AudioDaemonClient.resolvePaths(new String[] {"convert", "-c", "1", "a.wav", "b.wav"});
+		assertEquals("-c", resolved[1]);
+		assertEquals(new File("a.wav").getAbsolutePath(), resolved[3]);
+		assertEquals(new File("x.wav").toURI().toString(), AudioDaemonClient.resolvePaths(new String[] {"fingerprint", "x.wav"})[1]);
+		assertEquals("http://host/x.wav", AudioDaemonClient.resolvePaths(new String[] {"analyze", "http://host/x.wav"})[1]);
+	}
+
+}
@@ -0,0 +1,266 @@
+package org.melophonic.audio.ingest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.melophonic.audio.spi.AnalysisService;
+import org.melophonic.audio.spi.FingerprintService;
+import org.melophonic.audio.util.PcmSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class IngestPipelineTest {
+
+	final static Logger log = LoggerFactory.getLogger(IngestPipelineTest.class);
+
+	final static File basePath = new File("./src/test/resources/audio");
+	final static File outputPath = new File("./target/ingest");
+
+	@Test
+	public void testCorpus() throws Exception {
+		List<CatalogRecord> records = Collections.synchronizedList(new ArrayList<>());
+		IngestPipeline pipeline = new IngestPipeline(new SumFingerprintService(), new PeakAnalysisService(), records::add);
+		IngestPipeline.IngestResult result = pipeline.run(basePath.toPath());
+		log.info(result.toString());
+
+		assertEquals(10, records.size());
+		assertEquals(10, result.getRecords());
+		for (CatalogRecord record : records) {
+			assertNotNull(record.getPath() + " not probed", record.getProbe());
+			if (record.getPath().toString().endsWith(".wav")) {
+				assertTrue(record + " failed", !record.isFailed());
+				assertNotNull(record.getFingerprint());
+				assertEquals(1, record.getSoundPressureLevels().size());
+			}
+			if (record.isFailed()) {
+				assertNull(record.getFingerprint());
+				assertNull(record.getSoundPressureLevels());
+			}
+			assertNull(record.source);
+		}
+		for (IngestPipeline.StageStatistics stage : result.getStages()) {
+			assertEquals(stage.getStage().getName(), 10, stage.getProcessed());
+			assertEquals(0, stage.getQueueDepth());
+		}
+	}
+
+	@Test
+	public void testFailures() throws Exception {
+		File root = new File(outputPath, "failures");
+		if (root.exists()) FileUtils.cleanDirectory(root);
+		FileUtils.forceMkdir(root);
+		File wav = new File(basePath, "naim-jazz/naim-test-1-wav-16-44100.wav");
+		Files.copy(wav.toPath(), new File(root, "good.wav").toPath(), StandardCopyOption.REPLACE_EXISTING);
+		Files.copy(wav.toPath(), new File(root, "unlucky.wav").toPath(), StandardCopyOption.REPLACE_EXISTING);
+		// sniffed as WAVE, but without a format chunk
+		Files.write(new File(root, "broken.wav").toPath(), "RIFF\0\0\0\0WAVEdata".getBytes("US-ASCII"));
+
+		Map<String, CatalogRecord> records = Collections.synchronizedMap(new HashMap<>());
+		FingerprintService failing = new SumFingerprintService() {
+			@Override
+			public byte[] calculateFingerprint(PcmSource source) throws Exception {
+				// both copies have the same samples, so fail every second call
+				synchronized (this) {
+					if (calls++ % 2 == 1) throw new IllegalStateException("unlucky");
+				}
+				return super.calculateFingerprint(source);
+			}
+		};
+		IngestPipeline pipeline = new IngestPipeline(failing, new PeakAnalysisService(), record -> records.put(record.getPath().getFileName().toString(), record));
+		pipeline.setThreads(IngestPipeline.Stage.FINGERPRINT, 1);
+		IngestPipeline.IngestResult result = pipeline.run(root.toPath());
+
+		assertEquals(3, records.size());
+		assertEquals("probe", records.get("broken.wav").getFailedStage());
+		assertEquals(2, result.getFailed());
+		int failedFingerprints = 0;
+		for (String name : new String[] { "good.wav", "unlucky.wav" }) {
+			CatalogRecord record = records.get(name);
+			if (record.isFailed()) {
+				assertEquals("fingerprint", record.getFailedStage());
+				assertNull(record.getSoundPressureLevels());
+				failedFingerprints++;
+			} else {
+				assertNotNull(record.getSoundPressureLevels());
+			}
+		}
+		assertEquals(1, failedFingerprints);
+		assertEquals(1, result.getStage(IngestPipeline.Stage.FINGERPRINT).getFailed());
+	}
+
+	/**
+	 * Holds the fingerprint stage, with one thread per stage and room for two
+	 * records per queue: each stage before it fills the queue after it and
+	 * blocks putting one record more, so the counts of the stalled pipeline
+	 * are exact.
+	 */
+	@Test
+	public void testBackpressure() throws Exception {
+		File root = createFiles("backpressure", 60);
+		CountDownLatch gate = new CountDownLatch(1);
+		FingerprintService held = new SumFingerprintService() {
+			@Override
+			public byte[] calculateFingerprint(PcmSource source) throws Exception {
+				gate.await();
+				return super.calculateFingerprint(source);
+			}
+		};
+		List<CatalogRecord> records = Collections.synchronizedList(new ArrayList<>());
+		IngestPipeline pipeline = new IngestPipeline(held, new PeakAnalysisService(), records::add);
+		pipeline.setQueueCapacity(2);
+		for (IngestPipeline.Stage stage : IngestPipeline.Stage.values()) pipeline.setThreads(stage, 1);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<IngestPipeline.IngestResult> future = executor.submit(() -> pipeline.run(root.toPath()));
+			// one record being fingerprinted, two queued for it and one waiting for room
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+			while (getStatistics(pipeline, IngestPipeline.Stage.DECODE).getProcessed() < 4
+					|| getStatistics(pipeline, IngestPipeline.Stage.PROBE).getProcessed() < 7
+					|| getStatistics(pipeline, IngestPipeline.Stage.SCAN).getProcessed() < 10) {
+				assertTrue("pipeline did not fill up", System.nanoTime() < deadline);
+				Thread.sleep(1);
+			}
+			// and nothing more gets through
+			Thread.sleep(100);
+			assertEquals(0, getStatistics(pipeline, IngestPipeline.Stage.FINGERPRINT).getProcessed());
+			assertEquals(2, getStatistics(pipeline, IngestPipeline.Stage.FINGERPRINT).getQueueDepth());
+			assertEquals(4, getStatistics(pipeline, IngestPipeline.Stage.DECODE).getProcessed());
+			assertEquals(2, getStatistics(pipeline, IngestPipeline.Stage.DECODE).getQueueDepth());
+			assertEquals(7, getStatistics(pipeline, IngestPipeline.Stage.PROBE).getProcessed());
+			assertEquals(2, getStatistics(pipeline, IngestPipeline.Stage.PROBE).getQueueDepth());
+			assertEquals(10, getStatistics(pipeline, IngestPipeline.Stage.SCAN).getProcessed());
+
+			gate.countDown();
+			IngestPipeline.IngestResult result = future.get(1, TimeUnit.MINUTES);
+			log.info(result.toString());
+			assertEquals(60, records.size());
+			for (IngestPipeline.StageStatistics stage : result.getStages()) {
+				assertEquals(stage.getStage().getName(), 60, stage.getProcessed());
+				assertEquals(0, stage.getQueueDepth());
+			}
+			assertEquals(2, result.getStage(IngestPipeline.Stage.DECODE).getQueueCapacity());
+			// decoding waited for room while fingerprinting was held
+			assertTrue(result.getStage(IngestPipeline.Stage.DECODE).getBlocked() > 0);
+		} finally {
+			gate.countDown();
+			executor.shutdown();
+		}
+	}
+
+	static IngestPipeline.StageStatistics getStatistics(IngestPipeline pipeline, IngestPipeline.Stage stage) {
+		for (IngestPipeline.StageStatistics statistics : pipeline.getStatistics()) {
+			if (statistics.getStage() == stage) return statistics;
+		}
+		// not started yet
+		return new IngestPipeline.StageStatistics(stage, 0, 0, 0, 0, 0, 0, 0, 0);
+	}
+
+	/**
+	 * Writes <code>count</code> one second 16 bit stereo WAVE files of a sine.
+	 */
+	static File createFiles(String name, int count) throws Exception {
+		File root = new File(outputPath, name);
+		FileUtils.forceMkdir(root);
+		AudioFormat format = new AudioFormat(44100F, 16, 2, true, false);
+		ByteBuffer pcm = ByteBuffer.allocate(44100 * 4).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < 44100; i++) {
+			short sample = (short) (Math.sin(i * 2 * Math.PI * 440 / 44100) * 10000);
+			pcm.putShort(sample).putShort(sample);
+		}
+		for (int i = 0; i < count; i++) {
+			File file = new File(root, i + ".wav");
+			if (file.exists()) continue;
+			AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(pcm.array()), format, 44100), AudioFileFormat.Type.WAVE, file);
+		}
+		return root;
+	}
+
+	/**
+	 * Sums the samples.
+	 */
+	static class SumFingerprintService implements FingerprintService {
+
+		int calls;
+
+		@Override
+		public byte[] calculateFingerprint(URI audioUri) throws Exception {
+			return calculateFingerprint(PcmSource.open(audioUri));
+		}
+
+		@Override
+		public byte[] calculateFingerprint(PcmSource source) throws Exception {
+			double sum = 0;
+			FloatBuffer samples = source.getSamples();
+			while (samples.hasRemaining()) sum += samples.get();
+			return ByteBuffer.allocate(8).putDouble(sum).array();
+		}
+
+		@Override
+		public FingerprintComparison compareFingerprints(byte[] a, byte[] b) throws Exception {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+	/**
+	 * Reports the peak level at time 0.
+	 */
+	static class PeakAnalysisService implements AnalysisService {
+
+		@Override
+		public Map<Double, Double> getSoundPressureLevels(URI audioUri, boolean linear, double silenceThresholdDb) throws Exception {
+			return getSoundPressureLevels(PcmSource.open(audioUri), linear, silenceThresholdDb);
+		}
+
+		@Override
+		public Map<Double, Double> getSoundPressureLevels(PcmSource source, boolean linear, double silenceThresholdDb) throws Exception {
+			float peak = 0;
+			FloatBuffer samples = source.getSamples();
+			while (samples.hasRemaining()) peak = Math.max(peak, Math.abs(samples.get()));
+			Map<Double, Double> levels = new TreeMap<>();
+			levels.put(0.0, linear ? peak : 20 * Math.log10(peak));
+			return levels;
+		}
+
+		@Override
+		public long extractFeatures(URI audioUri, File featureFile) throws Exception {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public long extractFeatures(PcmSource source, File featureFile) throws Exception {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+}
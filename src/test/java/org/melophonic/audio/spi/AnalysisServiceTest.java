@@ -1,14 +1,19 @@
 package org.melophonic.audio.spi;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.File;
 import java.net.URI;
+import java.nio.FloatBuffer;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.ServiceLoader;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import javax.sound.sampled.AudioFileFormat;
 import javax.sound.sampled.AudioFormat.Encoding;
@@ -18,7 +23,11 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameters;
+import org.melophonic.audio.spi.AnalysisService.Feature;
 import org.melophonic.audio.util.AudioConverter;
+import org.melophonic.audio.util.AudioUtil;
+import org.melophonic.audio.util.FeatureFile;
+import org.melophonic.audio.util.PcmSource;
 import org.uncommons.maths.combinatorics.CombinationGenerator;
 
 @RunWith(Parameterized.class)
@@ -78,6 +87,74 @@ public abstract class AnalysisServiceTest<S extends AnalysisService> extends Abs
 
 	}
 	
+	@Test
+	public void testExtractFeatures() throws Exception {
+		for (URI audio : normalizedFiles.keySet()) {
+			File featureFile = new File("./target/features/" + AudioUtil.getResourceName(audio) + ".features");
+			long rows = service.extractFeatures(audio, featureFile);
+			assertTrue(rows > 0);
+			
+			FeatureFile features = FeatureFile.open(featureFile);
+			assertEquals(rows, features.getRowCount());
+			assertEquals(Feature.values().length, features.getColumnNames().size());
+			
+			FloatBuffer centroids = features.getColumn(Feature.SPECTRAL_CENTROID.name());
+			while (centroids.hasRemaining()) {
+				float centroid = centroids.get();
+				assertTrue(centroid >= 0 && centroid <= features.getSampleRate() / 2);
+			}
+		}
+	}
+	
+	@Test
+	public void testPcmSource() throws Exception {
+		for (URI audio : normalizedFiles.keySet()) {
+			// the normalized files are 16 bit, so the decoded samples give the dispatcher the same input
+			PcmSource source = PcmSource.open(audio);
+			assertEquals(service.getSoundPressureLevels(audio, linear, silenceThresholdDb), service.getSoundPressureLevels(source, linear, silenceThresholdDb));
+			
+			File featureFile = new File("./target/features/" + AudioUtil.getResourceName(audio) + ".pcm.features");
+			assertEquals(service.extractFeatures(audio, new File(featureFile.getPath() + ".uri")), service.extractFeatures(source, featureFile));
+		}
+	}
+	
+	@Test
+	public void testBucketedSoundPressureLevels() throws Exception {
+		for (URI audio : normalizedFiles.keySet()) {
+			for (boolean linear : new boolean[] { true, false }) {
+				Map<Double, Double> levels = service.getSoundPressureLevels(audio, linear, silenceThresholdDb);
+				for (double resolution : new double[] { 0.1, 1.0 }) {
+					Map<Double, LevelSummary> buckets = service.getBucketedSoundPressureLevels(audio, linear, silenceThresholdDb, resolution);
+					log.info("{} buckets of {} s from {} levels", buckets.size(), resolution, levels.size());
+					assertTrue(buckets.size() < levels.size());
+					assertSummaries(LevelSummary.aggregate(levels, linear, resolution, AnalysisService.DEFAULT_LEVEL_PERCENTILE), buckets);
+					assertSummaries(buckets, service.getBucketedSoundPressureLevels(PcmSource.open(audio), linear, silenceThresholdDb, resolution,
+							AnalysisService.DEFAULT_LEVEL_PERCENTILE));
+				}
+			}
+		}
+	}
+	
+	static void assertSummaries(Map<Double, LevelSummary> expected, Map<Double, LevelSummary> actual) {
+		assertEquals(expected.keySet(), actual.keySet());
+		for (Map.Entry<Double, LevelSummary> bucket : expected.entrySet()) {
+			LevelSummary e = bucket.getValue(), a = actual.get(bucket.getKey());
+			assertEquals(e.getCount(), a.getCount());
+			assertEquals(e.getMean(), a.getMean(), 1E-9);
+			assertEquals(e.getMin(), a.getMin(), 0);
+			assertEquals(e.getMax(), a.getMax(), 0);
+			assertEquals(e.getPercentile(), a.getPercentile(), 1E-9);
+		}
+	}
+	
+	@Test
+	public void testAsync() throws Exception {
+		for (URI audio : normalizedFiles.keySet()) {
+			CompletableFuture<Map<Double, Double>> future = service.getSoundPressureLevelsAsync(audio, linear, silenceThresholdDb);
+			assertEquals(service.getSoundPressureLevels(audio, linear, silenceThresholdDb), future.get(1, TimeUnit.MINUTES));
+		}
+	}
+	
 	public static double avg(Collection<Double> values) {
 		double total = 0.0;
 		for (Double value : values) total += value;
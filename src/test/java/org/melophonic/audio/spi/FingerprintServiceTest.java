@@ -1,15 +1,18 @@
 package org.melophonic.audio.spi;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.fail;
 import static org.melophonic.audio.util.AudioUtil.DEFAULT_FLOAT_COMPARISON_THRESHOLD;
 
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
-import java.util.ServiceLoader;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import javax.sound.sampled.AudioFileFormat;
 import javax.sound.sampled.AudioFormat.Encoding;
@@ -22,6 +25,8 @@ import org.junit.runners.Parameterized.Parameters;
 import org.melophonic.audio.spi.FingerprintService.FingerprintComparison;
 import org.melophonic.audio.util.AudioConverter;
 import org.melophonic.audio.util.AudioUtil;
+import org.melophonic.audio.util.LazyServiceLoader;
+import org.melophonic.audio.util.PcmSource;
 import org.uncommons.maths.combinatorics.CombinationGenerator;
 
 @RunWith(Parameterized.class)
@@ -29,7 +34,7 @@ public abstract class FingerprintServiceTest<S extends FingerprintService> exten
 
 	final static AudioConverter.Parameters normalizeParams = new AudioConverter.Parameters(Encoding.PCM_SIGNED, AudioFileFormat.Type.WAVE, 44100F, 16);
 
-	final AudioFileSet<byte[]> normalizedFiles;
+	protected final AudioFileSet<byte[]> normalizedFiles;
 
 	protected S service;
 
@@ -45,18 +50,10 @@ public abstract class FingerprintServiceTest<S extends FingerprintService> exten
 		return wrapParameters(getAudioFileSets(normalizeParams, ".wav"));
 	}
 
-	@SuppressWarnings("unchecked")
 	@Before
 	public void setup() throws Exception {
-		ServiceLoader<FingerprintService> loader = ServiceLoader.load(FingerprintService.class);
-		for (Iterator<FingerprintService> i = loader.iterator(); i.hasNext();) {
-			FingerprintService fs = i.next();
-			if (fs.getClass().equals(getServiceClass())) {
-				service = (S) fs;
-				return;
-			}
-		}
-		fail("Unable to load " + getServiceClass().getName());
+		service = LazyServiceLoader.load(FingerprintService.class).get(getServiceClass());
+		if (service == null) fail("Unable to load " + getServiceClass().getName());
 	}
 
 	@Test
@@ -82,10 +79,37 @@ public abstract class FingerprintServiceTest<S extends FingerprintService> exten
 
 			log.info(String.format("Comparison[%s v. %s] Similarity %s at %s secs. (%s ms)", _a, _b, fc.getSimilarity(), fc.getMostSimilarTime(), elapsed));
 			assertNotNull(fc);
-			assertEquals(1.0f, fc.getSimilarity(), DEFAULT_FLOAT_COMPARISON_THRESHOLD);
-			assertEquals(0.0f, fc.getMostSimilarTime(), 1.1f); //TODO one of these is 1.0 secs longer 
+			assertSameRecording(fc);
 		}
 
 	}
 
+	/**
+	 * Checks the comparison of two versions of the same recording.
+	 */
+	protected void assertSameRecording(FingerprintComparison fc) {
+		assertEquals(1.0f, fc.getSimilarity(), DEFAULT_FLOAT_COMPARISON_THRESHOLD);
+		assertEquals(0.0f, fc.getMostSimilarTime(), 1.1f); //TODO one of these is 1.0 secs longer 
+	}
+
+	@Test
+	public void testPcmSource() throws Exception {
+		for (URI audio : normalizedFiles.keySet()) {
+			// a source decoded once gives the same fingerprint as the file
+			assertArrayEquals(service.calculateFingerprint(audio), service.calculateFingerprint(PcmSource.open(audio)));
+		}
+	}
+
+	@Test
+	public void testAsync() throws Exception {
+		List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+		for (URI audio : normalizedFiles.keySet()) futures.add(service.calculateFingerprintAsync(audio));
+		Iterator<CompletableFuture<byte[]>> results = futures.iterator();
+		for (URI audio : normalizedFiles.keySet()) {
+			byte[] fingerprint = results.next().get(1, TimeUnit.MINUTES);
+			assertArrayEquals(service.calculateFingerprint(audio), fingerprint);
+			assertEquals(1.0f, service.compareFingerprintsAsync(fingerprint, fingerprint).get(1, TimeUnit.MINUTES).getSimilarity(), DEFAULT_FLOAT_COMPARISON_THRESHOLD);
+		}
+	}
+
 }
@@ -0,0 +1,127 @@
+package org.melophonic.audio.spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class LevelSummaryTest {
+
+	@Test
+	public void testAggregate() throws Exception {
+		Map<Double, Double> levels = new TreeMap<>();
+		// five levels in the first second, none in the second and two in the third
+		for (int i = 0; i < 5; i++) levels.put(i * 0.2, (double) i);
+		levels.put(2.0, -10.0);
+		levels.put(2.5, -20.0);
+		TreeMap<Double, LevelSummary> buckets = LevelSummary.aggregate(levels, 1.0, 50);
+		assertEquals(Arrays.asList(0.0, 2.0), Arrays.asList(buckets.keySet().toArray()));
+		LevelSummary first = buckets.get(0.0);
+		assertEquals(5, first.getCount());
+		assertEquals(energyMean(0, 1, 2, 3, 4), first.getMean(), 1E-9);
+		assertEquals(0.0, first.getMin(), 0);
+		assertEquals(4.0, first.getMax(), 0);
+		assertEquals(2.0, first.getPercentile(), 1E-9);
+		LevelSummary third = buckets.get(2.0);
+		assertEquals(2, third.getCount());
+		// the louder level dominates
+		assertEquals(10 * Math.log10((0.1 + 0.01) / 2), third.getMean(), 1E-9);
+		assertEquals(-15.0, third.getPercentile(), 1E-9);
+	}
+
+	@Test
+	public void testPercentile() throws Exception {
+		LevelSummary.Aggregator aggregator = new LevelSummary.Aggregator(10, 95);
+		for (int i = 100; i >= 0; i--) aggregator.add(i * 0.01, i);
+		LevelSummary summary = aggregator.finish().get(0.0);
+		assertEquals(101, summary.getCount());
+		assertEquals(95.0, summary.getPercentile(), 1E-9);
+		double[] levels = new double[101];
+		for (int i = 0; i < levels.length; i++) levels[i] = i;
+		assertEquals(energyMean(levels), summary.getMean(), 1E-9);
+		// between the closest ranks
+		aggregator = new LevelSummary.Aggregator(1, 90);
+		aggregator.add(0, 1);
+		aggregator.add(0.5, 2);
+		assertEquals(1.9, aggregator.finish().get(0.0).getPercentile(), 1E-9);
+	}
+
+	@Test
+	public void testDigitalSilence() throws Exception {
+		LevelSummary.Aggregator aggregator = new LevelSummary.Aggregator(1, 95);
+		for (int i = 0; i < 10; i++) aggregator.add(i * 0.1, i < 5 ? Double.NEGATIVE_INFINITY : -40);
+		LevelSummary summary = aggregator.finish().get(0.0);
+		assertEquals(Double.NEGATIVE_INFINITY, summary.getMin(), 0);
+		assertEquals(-40, summary.getMax(), 0);
+		assertEquals(-40, summary.getPercentile(), 0);
+		assertEquals(10, summary.getCount());
+		// the mean of the windows that are not silent
+		assertEquals(-40, summary.getMean(), 0);
+		aggregator = new LevelSummary.Aggregator(1, 95);
+		aggregator.add(0, -50);
+		aggregator.add(0.5, -30);
+		aggregator.add(1, Double.NEGATIVE_INFINITY);
+		TreeMap<Double, LevelSummary> buckets = aggregator.finish();
+		assertEquals(energyMean(-50, -30), buckets.get(0.0).getMean(), 1E-9);
+		assertEquals(Double.NEGATIVE_INFINITY, buckets.get(1.0).getMean(), 0);
+	}
+
+	/**
+	 * Linear levels are averaged as power too, and digital silence (0) is
+	 * left out as it is in dB, so both scales give the same mean.
+	 */
+	@Test
+	public void testLinear() throws Exception {
+		LevelSummary.Aggregator linear = new LevelSummary.Aggregator(true, 1, 95);
+		LevelSummary.Aggregator db = new LevelSummary.Aggregator(false, 1, 95);
+		double[] levels = { 0, 0, 0.1, 0.3, 0.02 };
+		for (int i = 0; i < levels.length; i++) {
+			linear.add(i * 0.1, levels[i]);
+			db.add(i * 0.1, 20 * Math.log10(levels[i]));
+		}
+		linear.add(1, 0);
+		db.add(1, Double.NEGATIVE_INFINITY);
+		TreeMap<Double, LevelSummary> buckets = linear.finish();
+		LevelSummary summary = buckets.get(0.0);
+		assertEquals(5, summary.getCount());
+		assertEquals(Math.sqrt((0.01 + 0.09 + 0.0004) / 3), summary.getMean(), 1E-12);
+		assertEquals(0, summary.getMin(), 0);
+		assertEquals(0.3, summary.getMax(), 0);
+		assertEquals(20 * Math.log10(summary.getMean()), db.finish().get(0.0).getMean(), 1E-9);
+		assertEquals(0, buckets.get(1.0).getMean(), 0);
+	}
+
+	static double energyMean(double... levels) {
+		double power = 0;
+		for (double level : levels) power += Math.pow(10, level / 10);
+		return 10 * Math.log10(power / levels.length);
+	}
+
+	@Test
+	public void testBucketTimes() throws Exception {
+		LevelSummary.Aggregator aggregator = new LevelSummary.Aggregator(0.1, 95);
+		for (int i = 0; i < 100; i++) aggregator.add(i * 2048 / 44100.0, i);
+		TreeMap<Double, LevelSummary> buckets = aggregator.finish();
+		assertTrue(buckets.containsKey(0.3));
+		assertTrue(buckets.containsKey(4.5));
+		assertEquals(46, buckets.size());
+		int count = 0;
+		for (LevelSummary summary : buckets.values()) count += summary.getCount();
+		assertEquals(100, count);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testResolution() throws Exception {
+		new LevelSummary.Aggregator(0, 95);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testPercentileRange() throws Exception {
+		new LevelSummary.Aggregator(1, 101);
+	}
+
+}
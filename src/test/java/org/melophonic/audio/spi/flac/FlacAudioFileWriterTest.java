@@ -0,0 +1,188 @@
+package org.melophonic.audio.spi.flac;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.melophonic.audio.util.AudioTestUtil.readAll;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.melophonic.audio.spi.AbstractAudioTest;
+
+@RunWith(Parameterized.class)
+public class FlacAudioFileWriterTest extends AbstractAudioTest {
+
+	final static File outputPath = new File("./target/flac");
+
+	final AudioFileSet<Double> audioFiles;
+
+	public FlacAudioFileWriterTest(AudioFileSet<Double> audioFiles) {
+		super();
+		this.audioFiles = audioFiles;
+	}
+
+	@Parameters
+	public static Collection<Object[]> data() throws Exception {
+		return wrapParameters(getAudioFileSets(".wav"));
+	}
+
+	@Test
+	public void testRegistered() {
+		assertTrue(AudioSystem.isFileTypeSupported(FlacAudioFileWriter.FLAC));
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		FileUtils.forceMkdir(outputPath);
+		for (URI uri : audioFiles.keySet()) {
+			File audioFile = new File(uri);
+			File flacFile = new File(outputPath, audioFile.getName().replaceAll("\\.wav$", ".flac"));
+			AudioFormat format;
+			byte[] expected;
+			try (AudioInputStream in = AudioSystem.getAudioInputStream(audioFile)) {
+				format = in.getFormat();
+				expected = readAll(in);
+			}
+
+			int length;
+			try (AudioInputStream in = AudioSystem.getAudioInputStream(audioFile)) {
+				length = AudioSystem.write(in, FlacAudioFileWriter.FLAC, flacFile);
+			}
+			log.info(String.format("%s: %d -> %d bytes", audioFile.getName(), expected.length, length));
+			assertEquals(flacFile.length(), length);
+			assertTrue(length < expected.length);
+
+			// the MD5 is of signed little-endian samples, as in the 16 bit WAVE files
+			assertEquals(16, format.getSampleSizeInBits());
+			assertFalse(format.isBigEndian());
+			StreamInfo info = new StreamInfo(FileUtils.readFileToByteArray(flacFile));
+			long samples = expected.length / format.getFrameSize();
+			assertEquals(samples, info.totalSamples);
+			assertArrayEquals(MessageDigest.getInstance("MD5").digest(expected), info.md5);
+			long frames = (samples + FlacEncoder.DEFAULT_BLOCK_SIZE - 1) / FlacEncoder.DEFAULT_BLOCK_SIZE;
+			assertTrue(info.minFrameSize > 0 && info.minFrameSize <= info.maxFrameSize);
+			assertTrue(info.minFrameSize * frames <= length - FlacEncoder.HEADER_LENGTH);
+			assertTrue(info.maxFrameSize * frames >= length - FlacEncoder.HEADER_LENGTH);
+
+			// the FLAC stream itself is encoded, so decode it to the PCM format of the source
+			try (AudioInputStream flac = AudioSystem.getAudioInputStream(flacFile);
+					AudioInputStream decoded = AudioSystem.getAudioInputStream(format, flac)) {
+				assertEquals(format.getChannels(), decoded.getFormat().getChannels());
+				assertEquals(format.getSampleRate(), decoded.getFormat().getSampleRate(), 0);
+				assertArrayEquals(expected, readAll(decoded));
+			}
+		}
+	}
+
+	/**
+	 * The frame sizes noted by the encoder are those of the frames it writes.
+	 */
+	@Test
+	public void testFrameSizes() throws Exception {
+		for (URI uri : audioFiles.keySet()) {
+			List<Integer> sizes = new ArrayList<>();
+			OutputStream frames = new OutputStream() {
+
+				@Override
+				public void write(int b) {
+					throw new UnsupportedOperationException();
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) {
+					sizes.add(len);
+				}
+
+			};
+			FlacEncoder.StreamInfo info;
+			long samples;
+			try (AudioInputStream in = AudioSystem.getAudioInputStream(new File(uri))) {
+				samples = in.getFrameLength();
+				info = new FlacEncoder(in.getFormat(), FlacAudioFileWriter.getExecutor(), 4).encode(in, frames);
+			}
+			assertEquals((samples + FlacEncoder.DEFAULT_BLOCK_SIZE - 1) / FlacEncoder.DEFAULT_BLOCK_SIZE, sizes.size());
+			assertEquals(samples, info.getTotalSamples());
+			assertEquals((int) Collections.min(sizes), info.getMinFrameSize());
+			assertEquals((int) Collections.max(sizes), info.getMaxFrameSize());
+		}
+	}
+
+	/**
+	 * A stream cannot be rewound, so only the sample count known in advance
+	 * is set, and the MD5 and frame sizes are left unknown.
+	 */
+	@Test
+	public void testOutputStream() throws Exception {
+		for (URI uri : audioFiles.keySet()) {
+			File audioFile = new File(uri);
+			byte[] expected;
+			try (AudioInputStream in = AudioSystem.getAudioInputStream(audioFile)) {
+				expected = readAll(in);
+			}
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			AudioFormat format;
+			int length;
+			try (AudioInputStream in = AudioSystem.getAudioInputStream(audioFile)) {
+				format = in.getFormat();
+				length = AudioSystem.write(in, FlacAudioFileWriter.FLAC, out);
+			}
+			assertEquals(out.size(), length);
+			StreamInfo info = new StreamInfo(out.toByteArray());
+			assertEquals(expected.length / format.getFrameSize(), info.totalSamples);
+			assertArrayEquals(new byte[16], info.md5);
+			assertEquals(0, info.minFrameSize);
+			assertEquals(0, info.maxFrameSize);
+
+			try (AudioInputStream flac = AudioSystem.getAudioInputStream(new ByteArrayInputStream(out.toByteArray()));
+					AudioInputStream decoded = AudioSystem.getAudioInputStream(format, flac)) {
+				assertArrayEquals(expected, readAll(decoded));
+			}
+		}
+	}
+
+	/**
+	 * The STREAMINFO block of a FLAC file, read independently of
+	 * {@link FlacEncoder.StreamInfo}.
+	 */
+	static class StreamInfo {
+
+		final int minFrameSize;
+		final int maxFrameSize;
+		final long totalSamples;
+		final byte[] md5 = new byte[16];
+
+		StreamInfo(byte[] flac) {
+			ByteBuffer buffer = ByteBuffer.wrap(flac);
+			assertEquals(0x664C6143, buffer.getInt()); // fLaC
+			assertEquals(0, buffer.get() & 0x7F); // STREAMINFO first
+			assertEquals(34, buffer.get() << 16 | buffer.getShort() & 0xffff);
+			buffer.getInt(); // block sizes
+			minFrameSize = (buffer.get() & 0xff) << 16 | buffer.getShort() & 0xffff;
+			maxFrameSize = (buffer.get() & 0xff) << 16 | buffer.getShort() & 0xffff;
+			totalSamples = buffer.getLong() & 0xFFFFFFFFFL;
+			buffer.get(md5);
+		}
+
+	}
+
+}
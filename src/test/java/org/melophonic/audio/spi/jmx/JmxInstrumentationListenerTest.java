@@ -0,0 +1,59 @@
+package org.melophonic.audio.spi.jmx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class JmxInstrumentationListenerTest {
+
+	@Test
+	public void testHistogram() {
+		for (long value : new long[] { 0, 1, 7, 8, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE }) {
+			int bucket = Histogram.bucket(value);
+			assertTrue(value + " above its bucket", value <= Histogram.upperBound(bucket));
+			assertTrue(value + " in a higher bucket", bucket == 0 || value > Histogram.upperBound(bucket - 1));
+		}
+		Histogram histogram = new Histogram();
+		assertEquals(0, histogram.getPercentile(50));
+		Random random = new Random(1);
+		for (int i = 0; i < 100000; i++) histogram.record(1000000 + random.nextInt(1000000));
+		// within the resolution of the buckets
+		assertEquals(1500000, histogram.getPercentile(50), 1500000 / Histogram.SUB_BUCKETS);
+		assertEquals(1990000, histogram.getPercentile(99), 1990000 / Histogram.SUB_BUCKETS);
+		histogram.reset();
+		assertEquals(0, histogram.getPercentile(99));
+	}
+
+	@Test
+	public void testStatistics() throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		JmxInstrumentationListener listener = new JmxInstrumentationListener(server);
+		assertNull(listener.getStatistics("jmx-test", "stage"));
+		for (int i = 1; i <= 100; i++) listener.stageCompleted("jmx-test", "stage", i * 1000000L, 44100, 1024);
+		listener.stageCompleted("jmx-test", "stage", 1000000L, -1, -1);
+
+		StageStatisticsMXBean stats = listener.getStatistics("jmx-test", "stage");
+		assertEquals(101, stats.getCount());
+		assertEquals(100 * 44100, stats.getFrames());
+		assertEquals(100 * 1024, stats.getBytesAllocated());
+		assertEquals(100, stats.getMaxMillis(), 0);
+		assertEquals(50, stats.getMedianMillis(), 50 / Histogram.SUB_BUCKETS);
+		assertEquals(100 * 44100 / (5050 / 1E3), stats.getFramesPerSecond(), 1);
+
+		ObjectName name = JmxInstrumentationListener.getObjectName("jmx-test", "stage");
+		assertTrue(server.isRegistered(name));
+		assertEquals(101L, server.getAttribute(name, "Count"));
+		server.invoke(name, "reset", null, null);
+		assertEquals(0, stats.getCount());
+		server.unregisterMBean(name);
+	}
+
+}
@@ -0,0 +1,210 @@
+package org.melophonic.audio.spi.musicg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat.Encoding;
+
+import org.apache.commons.io.filefilter.FileFilterUtils;
+import org.junit.Test;
+import org.melophonic.audio.spi.FingerprintService;
+import org.melophonic.audio.util.AudioConverter;
+import org.melophonic.audio.util.AudioTestUtil;
+import org.melophonic.audio.util.PcmSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class MGDuplicateFinderTest {
+
+	final static Logger log = LoggerFactory.getLogger(MGDuplicateFinderTest.class);
+
+	final static File basePath = new File("./src/test/resources/audio");
+	final static File outputPath = new File("./target/duplicates");
+
+	/** frames of a synthetic fingerprint and the frequency bins of its peaks */
+	static final int FRAMES = 400, POINTS_PER_FRAME = 4, BINS = 512, MAX_SHIFT = 8;
+
+	@Test
+	public void testSyntheticCorpus() throws Exception {
+		Random random = new Random(42);
+		MGDuplicateFinder<String> finder = new MGDuplicateFinder<>(new PointMatchService());
+		Map<String, byte[]> fingerprints = new HashMap<>();
+		Set<Set<String>> expected = new HashSet<>();
+		int recordings = 1000;
+		for (int r = 0; r < recordings; r++) {
+			int[][] bins = createRecording(random);
+			// a quarter of the recordings are unique, the others have up to three copies
+			Set<String> copies = new LinkedHashSet<>();
+			for (int v = 0; v <= r % 4; v++) {
+				String key = r + "-" + v;
+				byte[] fingerprint = createVariant(bins, random, v == 0 ? 0 : 0.1, v == 0 ? 0 : random.nextInt(MAX_SHIFT));
+				fingerprints.put(key, fingerprint);
+				assertTrue(finder.add(key, fingerprint));
+				copies.add(key);
+			}
+			if (copies.size() > 1) expected.add(copies);
+		}
+		List<Set<String>> clusters = finder.findDuplicates(fingerprints::get);
+		assertEquals(expected, new HashSet<>(clusters));
+		// nowhere near the half million pairs of all against all
+		log.info(String.format("%d fingerprints: %d candidates, %d comparisons", finder.size(), finder.getCandidates(), finder.getComparisons()));
+		assertTrue(finder.getComparisons() < 5 * finder.size());
+	}
+
+	@Test
+	public void testEmptyFingerprints() throws Exception {
+		MGDuplicateFinder<String> finder = new MGDuplicateFinder<>(new PointMatchService());
+		assertFalse(finder.add("empty", new byte[0]));
+		// peaks in a single frame make no pairs
+		assertFalse(finder.add("single", createVariant(new int[][] { { 1, 2, 3, 4 } }, new Random(), 0, 0)));
+		assertEquals(0, finder.size());
+		assertTrue(finder.findDuplicates(key -> null).isEmpty());
+	}
+
+	@Test
+	public void testMapOfFingerprints() throws Exception {
+		Random random = new Random(7);
+		int[][] bins = createRecording(random);
+		Map<String, byte[]> fingerprints = new LinkedHashMap<>();
+		fingerprints.put("a", createVariant(bins, random, 0, 0));
+		fingerprints.put("other", createVariant(createRecording(random), random, 0, 0));
+		fingerprints.put("b", createVariant(bins, random, 0.2, 3));
+		List<Set<String>> clusters = MGDuplicateFinder.findDuplicates(fingerprints, new PointMatchService());
+		assertEquals(1, clusters.size());
+		assertEquals(Arrays.asList("a", "b"), new ArrayList<>(clusters.get(0)));
+	}
+
+	/**
+	 * The naim corpus holds two recordings in several formats.
+	 */
+	@Test
+	public void testCorpus() throws Exception {
+		MGFingerprintService service = new MGFingerprintService();
+		AudioConverter.Parameters normalizeParams = new AudioConverter.Parameters(Encoding.PCM_SIGNED, AudioFileFormat.Type.WAVE, 44100F, 16);
+		Map<URI, byte[]> fingerprints = new LinkedHashMap<>();
+		Map<URI, String> recordings = new HashMap<>();
+		for (File setPath : basePath.listFiles((FileFilter) FileFilterUtils.directoryFileFilter())) {
+			File normalizedPath = new File(outputPath, setPath.getName());
+			normalizedPath.mkdirs();
+			for (File file : setPath.listFiles()) {
+				File normalized = new File(normalizedPath, file.getName() + ".wav");
+				try {
+					AudioConverter.convert(file, normalized, normalizeParams);
+				} catch (Exception e) {
+					log.info("Skipping " + file + ": " + e);
+					continue;
+				}
+				fingerprints.put(normalized.toURI(), service.calculateFingerprint(normalized.toURI()));
+				recordings.put(normalized.toURI(), setPath.getName());
+			}
+		}
+		List<Set<URI>> clusters = MGDuplicateFinder.findDuplicates(fingerprints, service);
+		assertEquals(2, clusters.size());
+		for (Set<URI> cluster : clusters) {
+			String recording = recordings.get(cluster.iterator().next());
+			for (URI uri : cluster) assertEquals(recording, recordings.get(uri));
+			assertEquals(recordings.values().stream().filter(recording::equals).count(), cluster.size());
+		}
+	}
+
+	static int[][] createRecording(Random random) {
+		return AudioTestUtil.randomPeaks(random, FRAMES, POINTS_PER_FRAME, BINS);
+	}
+
+	/**
+	 * @return a fingerprint in the format of {@link MGFingerprintService} of
+	 * <code>bins</code>, starting <code>shift</code> frames late and with a
+	 * share of the peaks moved to other bins, as by lossy encoding
+	 */
+	static byte[] createVariant(int[][] bins, Random random, double changed, int shift) {
+		byte[] fingerprint = new byte[(bins.length - shift) * POINTS_PER_FRAME * MGDuplicateFinder.POINT_SIZE];
+		int offset = 0;
+		for (int x = 0; x < bins.length - shift; x++) {
+			for (int bin : bins[x + shift]) {
+				int y = random.nextDouble() < changed ? random.nextInt(BINS) : bin;
+				int intensity = random.nextInt(Integer.MAX_VALUE);
+				fingerprint[offset++] = (byte) (x >> 8);
+				fingerprint[offset++] = (byte) x;
+				fingerprint[offset++] = (byte) (y >> 8);
+				fingerprint[offset++] = (byte) y;
+				fingerprint[offset++] = (byte) (intensity >> 24);
+				fingerprint[offset++] = (byte) (intensity >> 16);
+				fingerprint[offset++] = (byte) (intensity >> 8);
+				fingerprint[offset++] = (byte) intensity;
+			}
+		}
+		return fingerprint;
+	}
+
+	/**
+	 * Compares fingerprints by the share of peaks found at the same bin at the best time offset.
+	 */
+	static class PointMatchService implements FingerprintService {
+
+		@Override
+		public byte[] calculateFingerprint(URI audioUri) throws Exception {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public byte[] calculateFingerprint(PcmSource source) throws Exception {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public FingerprintComparison compareFingerprints(byte[] a, byte[] b) throws Exception {
+			Set<Integer> points = new HashSet<>();
+			int pointsA = a.length / MGDuplicateFinder.POINT_SIZE, pointsB = b.length / MGDuplicateFinder.POINT_SIZE;
+			for (int i = 0; i < pointsA; i++) points.add(MGDuplicateFinder.getFrame(a, i) << 16 | MGDuplicateFinder.getBin(a, i));
+			int best = 0, bestOffset = 0;
+			for (int offset = -MAX_SHIFT; offset <= MAX_SHIFT; offset++) {
+				int matches = 0;
+				for (int i = 0; i < pointsB; i++) {
+					if (points.contains((MGDuplicateFinder.getFrame(b, i) + offset) << 16 | MGDuplicateFinder.getBin(b, i))) matches++;
+				}
+				if (matches > best) {
+					best = matches;
+					bestOffset = offset;
+				}
+			}
+			double similarity = best / (double) Math.max(1, Math.min(pointsA, pointsB));
+			int frame = bestOffset;
+			return new FingerprintComparison() {
+
+				@Override
+				public double getSimilarity() {
+					return similarity;
+				}
+
+				@Override
+				public double getMostSimilarTime() {
+					return frame;
+				}
+
+				@Override
+				public int getMostSimilarFrame() {
+					return frame;
+				}
+
+			};
+		}
+
+	}
+
+}
@@ -0,0 +1,109 @@
+package org.melophonic.audio.spi.resample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.melophonic.audio.util.AudioTestUtil.readAll;
+
+import java.io.ByteArrayInputStream;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class SincResamplerProviderTest {
+
+	final static Logger log = LoggerFactory.getLogger(SincResamplerProviderTest.class);
+
+	final static int SECONDS = 5;
+	final static double AMPLITUDE = 0.5;
+
+	final SincResamplerProvider provider = new SincResamplerProvider();
+
+	@Test
+	public void testRegistered() {
+		AudioFormat source = new AudioFormat(96000F, 24, 2, true, false);
+		AudioFormat target = new AudioFormat(44100F, 24, 2, true, false);
+		assertTrue(AudioSystem.isConversionSupported(target, source));
+	}
+
+	@Test
+	public void testPassband() throws Exception {
+		int[][] rates = { {96000, 44100}, {44100, 48000}, {48000, 44100}, {44100, 96000} };
+		for (int[] rate : rates) {
+			for (double frequency : new double[] {1000, 10000, 18000}) {
+				double[] out = resample(rate[0], rate[1], frequency);
+				double errorDb = errorDb(out, rate[1], frequency);
+				log.info(String.format("%d -> %d Hz, %.0f Hz tone: error %.1f dB", rate[0], rate[1], frequency, errorDb));
+				assertTrue(errorDb < -80);
+			}
+		}
+	}
+
+	@Test
+	public void testStopband() throws Exception {
+		double[] out = resample(96000, 44100, 30000);
+		double levelDb = levelDb(out, 44100);
+		log.info(String.format("96000 -> 44100 Hz, 30 kHz tone: level %.1f dB", levelDb));
+		assertTrue(levelDb < -80);
+	}
+
+	@Test
+	public void testOutputLength() throws Exception {
+		assertEquals(44100 * SECONDS, resample(96000, 44100, 1000).length);
+		assertEquals(48000 * SECONDS, resample(44100, 48000, 1000).length);
+	}
+
+	/**
+	 * Resamples a 24 bit mono sine tone and returns the output normalized to full scale.
+	 */
+	double[] resample(int sourceRate, int targetRate, double frequency) throws Exception {
+		int frames = sourceRate * SECONDS;
+		double scale = (1 << 23) - 1;
+		byte[] pcm = new byte[frames * 3];
+		for (int i = 0; i < frames; i++) {
+			int value = (int) Math.round(scale * AMPLITUDE * Math.sin(2 * Math.PI * frequency * i / sourceRate));
+			pcm[3 * i] = (byte) value;
+			pcm[3 * i + 1] = (byte) (value >> 8);
+			pcm[3 * i + 2] = (byte) (value >> 16);
+		}
+		AudioFormat source = new AudioFormat(sourceRate, 24, 1, true, false);
+		AudioFormat target = new AudioFormat(targetRate, 24, 1, true, false);
+		AudioInputStream stream = provider.getAudioInputStream(target, new AudioInputStream(new ByteArrayInputStream(pcm), source, frames));
+		byte[] out = readAll(stream);
+		assertEquals(stream.getFrameLength(), out.length / 3);
+		double[] samples = new double[out.length / 3];
+		for (int i = 0; i < samples.length; i++) {
+			int value = (out[3 * i] & 0xff) | (out[3 * i + 1] & 0xff) << 8 | out[3 * i + 2] << 16;
+			samples[i] = value / scale;
+		}
+		return samples;
+	}
+
+	/**
+	 * @return the error relative to the ideal tone in dB, ignoring the filter transients at either end
+	 */
+	static double errorDb(double[] samples, int rate, double frequency) {
+		double error = 0, signal = 0;
+		for (int i = rate / 10; i < samples.length - rate / 10; i++) {
+			double ideal = AMPLITUDE * Math.sin(2 * Math.PI * frequency * i / rate);
+			error += (samples[i] - ideal) * (samples[i] - ideal);
+			signal += ideal * ideal;
+		}
+		return 10 * Math.log10(error / signal);
+	}
+
+	/**
+	 * @return the RMS level relative to the input tone in dB
+	 */
+	static double levelDb(double[] samples, int rate) {
+		double power = 0;
+		int n = 0;
+		for (int i = rate / 10; i < samples.length - rate / 10; i++, n++) power += samples[i] * samples[i];
+		return 10 * Math.log10(power / n / (AMPLITUDE * AMPLITUDE / 2));
+	}
+
+}
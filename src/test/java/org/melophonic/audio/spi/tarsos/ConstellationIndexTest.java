@@ -0,0 +1,107 @@
+package org.melophonic.audio.spi.tarsos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.melophonic.audio.util.AudioTestUtil;
+import org.melophonic.audio.util.PcmSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class ConstellationIndexTest {
+
+	final static Logger log = LoggerFactory.getLogger(ConstellationIndexTest.class);
+
+	final static File basePath = new File("./src/test/resources/audio");
+
+	/** frames of a synthetic fingerprint with one entry each, about as many entries as a minute of music */
+	static final int FRAMES = 8000;
+
+	@Test
+	public void testCorpus() throws Exception {
+		TarsosFingerprintService service = new TarsosFingerprintService();
+		ConstellationIndex<String> index = new ConstellationIndex<>();
+		List<PcmSource> sources = new ArrayList<>();
+		for (String name : Arrays.asList("naim-jazz/naim-test-1-wav-16-44100.wav", "naim-classical/naim-test-2-wav-16-44100.wav")) {
+			PcmSource source = PcmSource.open(new File(basePath, name));
+			sources.add(source);
+			index.add(name, service.calculateFingerprint(source));
+		}
+		Random random = new Random(3);
+		for (int i = 0; i < 100; i++) addRecording(index, "synthetic-" + i, random);
+		assertEquals(102, index.size());
+
+		for (PcmSource source : sources) {
+			String name = index.keys.get(sources.indexOf(source));
+			byte[] excerpt = service.calculateFingerprint(TarsosFingerprintServiceTest.excerpt(source, TarsosFingerprintServiceTest.EXCERPT_START, 5));
+			List<ConstellationIndex.Match<String>> matches = index.query(excerpt, 10, 5);
+			log.info(String.format("%s: %s", name, matches));
+			assertEquals(name, matches.get(0).getKey());
+			assertEquals(TarsosFingerprintServiceTest.EXCERPT_FRAME, matches.get(0).getFrame(), 1);
+			assertEquals(TarsosFingerprintServiceTest.EXCERPT_START, matches.get(0).getTime(), 0.05);
+			// the same as comparing the two
+			assertEquals(service.compareFingerprints(service.calculateFingerprint(source), excerpt).getSimilarity(), matches.get(0).getSimilarity(), 0.05);
+			if (matches.size() > 1) assertTrue(matches.get(1).getScore() < matches.get(0).getScore() / 4);
+		}
+	}
+
+	@Test
+	public void testSynthetic() throws Exception {
+		Random random = new Random(5);
+		ConstellationIndex<Integer> index = new ConstellationIndex<>();
+		List<long[]> recordings = new ArrayList<>();
+		for (int i = 0; i < 200; i++) recordings.add(addRecording(index, i, random));
+		for (int i = 0; i < recordings.size(); i += 17) {
+			// a tenth of the entries of frames 1000 to 2000, as of a noisy excerpt
+			long[] excerpt = Arrays.stream(recordings.get(i)).filter(e -> (int) e >= 1000 && (int) e < 2000 && random.nextInt(10) == 0)
+					.map(e -> e - 1000).toArray();
+			List<ConstellationIndex.Match<Integer>> matches = index.query(toFingerprint(excerpt), 5, 10);
+			assertEquals(1, matches.size());
+			assertEquals(i, (int) matches.get(0).getKey());
+			assertEquals(1000, matches.get(0).getFrame());
+			assertEquals(1.0, matches.get(0).getSimilarity(), 1E-9);
+		}
+		// an unknown recording
+		assertTrue(index.query(toFingerprint(createRecording(random)), 5, 10).isEmpty());
+		assertTrue(index.query(toFingerprint(new long[0]), 1, 10).isEmpty());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testForeignFingerprint() throws Exception {
+		new ConstellationIndex<String>().add("musicg", new byte[64]);
+	}
+
+	static <K> long[] addRecording(ConstellationIndex<K> index, K key, Random random) {
+		long[] entries = createRecording(random);
+		index.add(key, toFingerprint(entries));
+		return entries;
+	}
+
+	/**
+	 * @return the sorted (hash, frame) entries of a random recording, a
+	 * 24 bit hash of one peak per frame
+	 */
+	static long[] createRecording(Random random) {
+		int[][] peaks = AudioTestUtil.randomPeaks(random, FRAMES, 1, 1 << 24);
+		long[] entries = new long[FRAMES];
+		for (int i = 0; i < entries.length; i++) entries[i] = (long) peaks[i][0] << 32 | i;
+		Arrays.sort(entries);
+		return entries;
+	}
+
+	static byte[] toFingerprint(long[] entries) {
+		ByteBuffer fingerprint = ByteBuffer.allocate(TarsosFingerprintService.HEADER_SIZE + entries.length * TarsosFingerprintService.ENTRY_SIZE);
+		fingerprint.putInt(TarsosFingerprintService.MAGIC).putInt(entries.length);
+		for (long entry : entries) fingerprint.putLong(entry);
+		return fingerprint.array();
+	}
+
+}
@@ -0,0 +1,100 @@
+package org.melophonic.audio.spi.tarsos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.melophonic.audio.util.AudioTestUtil.degrade;
+
+import java.net.URI;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+import org.melophonic.audio.spi.FingerprintService.FingerprintComparison;
+import org.melophonic.audio.spi.FingerprintServiceTest;
+import org.melophonic.audio.util.AudioUtil;
+import org.melophonic.audio.util.PcmSource;
+
+public class TarsosFingerprintServiceTest extends FingerprintServiceTest<TarsosFingerprintService> {
+
+	/**
+	 * The least similarity of a noisy copy (20 and 10 dB SNR) or an excerpt.
+	 * Measured with TarsosDSP 2.4 on the corpus, these score 0.57 or more,
+	 * and the other track 0.002 (see the README).
+	 */
+	static final double MIN_SIMILARITY = 0.4;
+
+	/**
+	 * The least similarity of another version of the same recording. The
+	 * 24-bit 96 kHz FLAC, resampled on a different path, scores only 0.27
+	 * against the 16-bit 44.1 kHz WAVE.
+	 */
+	static final double MIN_VERSION_SIMILARITY = 0.2;
+
+	/** where the excerpts start, in seconds and in frames */
+	static final double EXCERPT_START = 3.3;
+	static final int EXCERPT_FRAME = (int) Math.round(EXCERPT_START * TarsosFingerprintService.SAMPLE_RATE / TarsosFingerprintService.HOP_SIZE);
+
+	public TarsosFingerprintServiceTest(AudioFileSet<byte[]> normalizedFiles) {
+		super(normalizedFiles);
+	}
+
+	protected Class<TarsosFingerprintService> getServiceClass() {
+		return TarsosFingerprintService.class;
+	}
+
+	/**
+	 * Lossy versions keep a share of the peaks, at the same offset.
+	 */
+	@Override
+	protected void assertSameRecording(FingerprintComparison fc) {
+		assertTrue(String.valueOf(fc), fc.getSimilarity() > MIN_VERSION_SIMILARITY);
+		assertEquals(0.0f, fc.getMostSimilarTime(), 0.1f);
+	}
+
+	@Test
+	public void testNoise() throws Exception {
+		Random random = new Random(1);
+		for (URI audio : normalizedFiles.keySet()) {
+			PcmSource source = PcmSource.open(audio);
+			byte[] fingerprint = service.calculateFingerprint(source);
+			for (double snr : new double[] { 20, 10 }) {
+				FingerprintComparison fc = service.compareFingerprints(fingerprint, service.calculateFingerprint(degrade(source, 1.0, snr, random)));
+				log.info(String.format("%s with noise at %s dB: %s", AudioUtil.getResourceName(audio), snr, fc));
+				assertTrue(String.valueOf(fc), fc.getSimilarity() > MIN_SIMILARITY);
+				assertEquals(0, fc.getMostSimilarFrame());
+			}
+			assertEquals(1.0, service.compareFingerprints(fingerprint, service.calculateFingerprint(degrade(source, 0.3, 200, random))).getSimilarity(), 0.05);
+		}
+	}
+
+	@Test
+	public void testExcerpt() throws Exception {
+		for (URI audio : normalizedFiles.keySet()) {
+			PcmSource source = PcmSource.open(audio);
+			byte[] fingerprint = service.calculateFingerprint(source);
+			byte[] excerpt = service.calculateFingerprint(excerpt(source, EXCERPT_START, 5));
+			FingerprintComparison fc = service.compareFingerprints(fingerprint, excerpt);
+			log.info(String.format("%s excerpt: %s", AudioUtil.getResourceName(audio), fc));
+			assertTrue(String.valueOf(fc), fc.getSimilarity() > MIN_SIMILARITY);
+			assertEquals(EXCERPT_FRAME, fc.getMostSimilarFrame(), 1);
+			assertEquals(EXCERPT_START, fc.getMostSimilarTime(), 0.05);
+			// the other way round the excerpt starts before the recording
+			assertEquals(-EXCERPT_FRAME, service.compareFingerprints(excerpt, fingerprint).getMostSimilarFrame(), 1);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testForeignFingerprint() throws Exception {
+		service.compareFingerprints(new byte[16], new byte[16]);
+	}
+
+	static PcmSource excerpt(PcmSource source, double start, double duration) {
+		FloatBuffer samples = source.getSamples();
+		int channels = source.getChannels();
+		int offset = (int) (start * source.getSampleRate()) * channels;
+		float[] excerpt = new float[(int) (duration * source.getSampleRate()) * channels];
+		for (int i = 0; i < excerpt.length; i++) excerpt[i] = samples.get(samples.position() + offset + i);
+		return PcmSource.wrap(FloatBuffer.wrap(excerpt), source.getSampleRate(), channels);
+	}
+
+}
@@ -0,0 +1,158 @@
+package org.melophonic.audio.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class AsyncTasksTest {
+
+	final static Logger log = LoggerFactory.getLogger(AsyncTasksTest.class);
+
+	@Test
+	public void testSupply() throws Exception {
+		assertEquals("done", AsyncTasks.supply(() -> "done", AsyncTasks.getDefaultExecutor()).get(10, TimeUnit.SECONDS));
+		try {
+			AsyncTasks.supply(() -> {
+				throw new IOException("failed");
+			}, AsyncTasks.getDefaultExecutor()).get(10, TimeUnit.SECONDS);
+			fail("Expected an ExecutionException");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+
+	@Test
+	public void testCancelInterrupts() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			CountDownLatch started = new CountDownLatch(1), interrupted = new CountDownLatch(1);
+			CompletableFuture<String> future = AsyncTasks.supply(() -> {
+				started.countDown();
+				try {
+					Thread.sleep(60000);
+				} catch (InterruptedException e) {
+					interrupted.countDown();
+				}
+				return "not cancelled";
+			}, executor);
+			assertTrue(started.await(10, TimeUnit.SECONDS));
+			assertTrue(future.cancel(true));
+			assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+			assertTrue(future.isCancelled());
+
+			// the pooled thread runs the next task without the interrupt
+			assertFalse(AsyncTasks.supply(() -> Thread.currentThread().isInterrupted(), executor).get(10, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testCancelBeforeStart() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			CountDownLatch release = new CountDownLatch(1);
+			executor.execute(() -> {
+				try {
+					release.await();
+				} catch (InterruptedException e) {}
+			});
+			AtomicReference<String> ran = new AtomicReference<>();
+			CompletableFuture<String> future = AsyncTasks.supply(() -> {
+				ran.set("ran");
+				return "ran";
+			}, executor);
+			future.cancel(true);
+			release.countDown();
+			executor.shutdown();
+			assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+			assertEquals(null, ran.get());
+			try {
+				future.get();
+				fail("Expected a CancellationException");
+			} catch (CancellationException e) {}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testTimeoutInterruptsDecoding() throws Exception {
+		// an endless stream, decoded until the timeout interrupts it
+		AudioFormat format = new AudioFormat(44100F, 16, 2, true, false);
+		InputStream silence = new InputStream() {
+
+			@Override
+			public int read() {
+				return 0;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) {
+				return len;
+			}
+
+		};
+		CountDownLatch finished = new CountDownLatch(1);
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		CompletableFuture<PcmSource> future = AsyncTasks.supply(() -> {
+			try {
+				return PcmSource.decode(new AudioInputStream(silence, format, AudioSystem.NOT_SPECIFIED));
+			} catch (Throwable e) {
+				failure.set(e);
+				throw e;
+			} finally {
+				finished.countDown();
+			}
+		}, AsyncTasks.getDefaultExecutor());
+		AsyncTasks.withTimeout(future, 200, TimeUnit.MILLISECONDS);
+		try {
+			future.get(10, TimeUnit.SECONDS);
+			fail("Expected a timeout");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof TimeoutException);
+		}
+		assertTrue(finished.await(10, TimeUnit.SECONDS));
+		assertTrue(failure.get() instanceof InterruptedIOException);
+	}
+
+	@Test
+	public void testTimeoutNotReached() throws Exception {
+		CompletableFuture<String> future = AsyncTasks.withTimeout(AsyncTasks.supply(() -> "done", AsyncTasks.getDefaultExecutor()), 10, TimeUnit.SECONDS);
+		assertEquals("done", future.get(10, TimeUnit.SECONDS));
+		// the expiry was removed from the timer
+		for (int i = 0; i < 100 && AsyncTasks.Timeouts.scheduler.getQueue().size() > 0; i++) Thread.sleep(10);
+		assertEquals(0, AsyncTasks.Timeouts.scheduler.getQueue().size());
+	}
+
+	@Test
+	public void testDefaultExecutor() {
+		assertNotNull(AsyncTasks.getDefaultExecutor());
+		boolean virtual = AsyncTasks.newVirtualThreadExecutor() != null;
+		log.info("virtual threads " + (virtual ? "available" : "not available") + " on Java " + System.getProperty("java.version"));
+	}
+
+}
@@ -0,0 +1,117 @@
+package org.melophonic.audio.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import javax.sound.sampled.AudioFormat;
+
+import org.junit.Test;
+import org.melophonic.audio.spi.FingerprintService;
+import org.melophonic.audio.spi.FingerprintService.FingerprintComparison;
+import org.melophonic.audio.spi.tarsos.TarsosFingerprintService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class AudioAlignerTest {
+
+	final static Logger log = LoggerFactory.getLogger(AudioAlignerTest.class);
+
+	final static File track = new File("./src/test/resources/audio/naim-jazz/naim-test-1-wav-16-44100.wav");
+
+	@Test
+	public void testCorrelate() throws Exception {
+		Random random = new Random(1);
+		double[] a = new double[1000], b = new double[300];
+		for (int i = 0; i < a.length; i++) a[i] = random.nextGaussian();
+		for (int i = 0; i < b.length; i++) b[i] = random.nextGaussian();
+		double meanA = AudioAligner.mean(a), meanB = AudioAligner.mean(b);
+		double[] expected = new double[a.length - b.length + 1];
+		for (int k = 0; k < expected.length; k++) {
+			for (int i = 0; i < b.length; i++) expected[k] += (a[k + i] - meanA) * (b[i] - meanB);
+		}
+		double[] r = AudioAligner.correlate(a, b);
+		assertEquals(expected.length, r.length);
+		for (int k = 0; k < r.length; k++) assertEquals(expected[k], r[k], 1E-9);
+	}
+
+	/**
+	 * A copy starting 1 s and 37 samples into the track, with noise, from
+	 * a coarse offset as far off as the one noted in FingerprintServiceTest.
+	 */
+	@Test
+	public void testExcerpt() throws Exception {
+		PcmSource a = PcmSource.open(track);
+		int frame = 44100 + 37;
+		PcmSource b = copy(a, frame, 10 * 44100, 0.5, 20, new Random(2));
+		AudioAligner.Alignment alignment = new AudioAligner().align(a, b, 0.0);
+		log.info(String.format("Excerpt: %s, %s frames off", alignment, alignment.getOffset() * 44100 - frame));
+		assertEquals(frame, alignment.getOffsetFrames(44100));
+		assertEquals(frame / 44100.0, alignment.getOffset(), 0.25 / 44100);
+		assertTrue(alignment.getCorrelation() > 0.9);
+	}
+
+	@Test
+	public void testLeadingSilence() throws Exception {
+		PcmSource a = PcmSource.open(track);
+		// half a second of silence and then the track
+		int frame = -22050;
+		PcmSource b = copy(a, frame, (int) a.getFrameLength(), 1.0, 60, new Random(3));
+		AudioAligner.Alignment alignment = new AudioAligner().align(a, b, -1.2);
+		log.info(String.format("Leading silence: %s", alignment));
+		assertEquals(frame, alignment.getOffsetFrames(44100));
+	}
+
+	/**
+	 * A copy resampled to 48 kHz, aligned to the samples of the original.
+	 */
+	@Test
+	public void testSampleRates() throws Exception {
+		PcmSource a = PcmSource.open(track);
+		int frame = 2 * 44100 + 1234;
+		AudioConverter.Parameters params = new AudioConverter.Parameters(AudioFormat.Encoding.PCM_SIGNED, null, 48000F, 16);
+		PcmSource b = PcmSource.decode(AudioConverter.getConvertedStream(copy(a, frame, 8 * 44100, 1.0, 60, new Random(4)).getAudioInputStream(16), params));
+		assertEquals(48000F, b.getSampleRate(), 0);
+		AudioAligner.Alignment alignment = new AudioAligner().align(a, b, 2.5);
+		log.info(String.format("Resampled: %s, %s frames off", alignment, alignment.getOffset() * 44100 - frame));
+		assertEquals(frame, alignment.getOffset() * 44100, 1);
+	}
+
+	/**
+	 * The fingerprint offset of an excerpt, refined to the sample.
+	 */
+	@Test
+	public void testFingerprintComparison() throws Exception {
+		FingerprintService service = new TarsosFingerprintService();
+		PcmSource a = PcmSource.open(track);
+		int frame = 3 * 44100 + 12345;
+		PcmSource b = copy(a, frame, 6 * 44100, 0.8, 30, new Random(5));
+		FingerprintComparison fc = service.compareFingerprints(service.calculateFingerprint(a), service.calculateFingerprint(b));
+		AudioAligner.Alignment alignment = new AudioAligner().align(a, b, fc.getMostSimilarTime());
+		log.info(String.format("Fingerprint offset %s secs., aligned %s", fc.getMostSimilarTime(), alignment));
+		assertEquals(frame, alignment.getOffsetFrames(44100));
+	}
+
+	@Test
+	public void testUris() throws Exception {
+		AudioAligner.Alignment alignment = new AudioAligner().align(track.toURI(), track.toURI(), 0.8);
+		assertEquals(0, alignment.getOffsetFrames(44100));
+		assertEquals(1.0, alignment.getCorrelation(), 1E-6);
+		assertEquals(0.8, alignment.getCoarseOffset(), 0);
+	}
+
+	/**
+	 * @return <code>frames</code> mono frames of <code>source</code> from
+	 * <code>start</code>, which may be negative, scaled by <code>gain</code>
+	 * and with white noise at <code>snr</code> dB
+	 */
+	static PcmSource copy(PcmSource source, int start, int frames, double gain, double snr, Random random) {
+		float[] samples = new float[frames];
+		for (int i = 0; i < frames; i++) samples[i] = (float) AudioAligner.mono(source, (long) start + i);
+		return AudioTestUtil.degrade(PcmSource.wrap(FloatBuffer.wrap(samples), source.getSampleRate(), 1), gain, snr, random);
+	}
+
+}
@@ -1,8 +1,20 @@
 package org.melophonic.audio.util;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
 
 import javax.sound.sampled.AudioFileFormat;
 import javax.sound.sampled.AudioFormat.Encoding;
@@ -41,4 +53,64 @@ public class AudioConverterTest extends AbstractAudioTest {
 		}
 	}
 	
+	@Test
+	public void testConvertStream() throws Exception {
+		AudioConverter.Parameters params = new AudioConverter.Parameters(Encoding.PCM_SIGNED, AudioFileFormat.Type.WAVE, 44100F, 16);
+		for (URI uri : normalizedFiles.keySet()) {
+			File audioFile = new File(uri);
+			File targetFile = new File("./target/converted." + audioFile.getName());
+			if (targetFile.exists()) FileUtils.forceDelete(targetFile);
+			AudioConverter.convert(audioFile, targetFile, params);
+			byte[] expected = FileUtils.readFileToByteArray(targetFile);
+
+			// a FileOutputStream lets the header be patched if the length is not known up front
+			File streamedFile = new File("./target/streamed." + audioFile.getName());
+			try (InputStream in = new FileInputStream(audioFile); OutputStream out = new FileOutputStream(streamedFile)) {
+				assertEquals(expected.length, AudioConverter.convert(in, out, params));
+			}
+			assertArrayEquals(expected, FileUtils.readFileToByteArray(streamedFile));
+
+			ByteBuffer buffer = ByteBuffer.allocate(expected.length);
+			assertEquals(expected.length, AudioConverter.convert(ByteBuffer.wrap(FileUtils.readFileToByteArray(audioFile)), buffer, params));
+			assertArrayEquals(expected, buffer.array());
+		}
+	}
+
+	@Test
+	public void testConvertDirectory() throws Exception {
+		File inputDir = new File(normalizedFiles.keySet().iterator().next()).getParentFile();
+		File outputDir = new File("./target/batch/" + normalizedFiles.id);
+		if (outputDir.exists()) FileUtils.forceDelete(outputDir);
+		AudioConverter.Parameters params = new AudioConverter.Parameters(Encoding.PCM_SIGNED, AudioFileFormat.Type.WAVE, 44100F, 16);
+		
+		AudioConverter.BatchResult result = AudioConverter.convertDirectory(inputDir, outputDir, params);
+		log.info(result.toString());
+		assertTrue(result.getConverted() > 0);
+		assertEquals(0, result.getSkipped());
+		
+		AudioConverter.BatchResult rerun = AudioConverter.convertDirectory(inputDir, outputDir, params);
+		assertEquals(0, rerun.getConverted());
+		assertEquals(result.getConverted() + result.getFailed(), rerun.getSkipped() + rerun.getFailed());
+	}
+
+	@Test
+	public void testConvertDirectoryConflicts() throws Exception {
+		File source = null;
+		for (URI uri : normalizedFiles.keySet()) if (uri.getPath().endsWith(".wav")) source = new File(uri);
+		if (source == null) return;
+		File inputDir = new File("./target/batch-conflicts/" + normalizedFiles.id);
+		File outputDir = new File("./target/batch-conflicts/" + normalizedFiles.id + "-out");
+		for (File dir : new File[] { inputDir, outputDir }) if (dir.exists()) FileUtils.forceDelete(dir);
+		// a.wav and a.aif would both be written to a.wav
+		for (String name : new String[] { "a.wav", "a.aif", "b.wav" }) FileUtils.copyFile(source, new File(inputDir, name));
+		AudioConverter.Parameters params = new AudioConverter.Parameters(Encoding.PCM_SIGNED, AudioFileFormat.Type.WAVE, 44100F, 16);
+
+		AudioConverter.BatchResult result = AudioConverter.convertDirectory(inputDir, outputDir, params);
+		assertEquals(1, result.getConverted());
+		assertEquals(2, result.getFailed());
+		assertEquals(new HashSet<>(Arrays.asList(new File(inputDir, "a.wav"), new File(inputDir, "a.aif"))), new HashSet<>(result.getConflicts()));
+		assertTrue(new File(outputDir, "b.wav").exists());
+		assertFalse(new File(outputDir, "a.wav").exists());
+	}
+	
 }
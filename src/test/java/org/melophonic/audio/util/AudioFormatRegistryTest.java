@@ -0,0 +1,57 @@
+package org.melophonic.audio.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.Mixer;
+
+import org.junit.Test;
+import org.melophonic.audio.spi.flac.FlacAudioFileWriter;
+
+public class AudioFormatRegistryTest {
+
+	@Test
+	public void testFileTypes() {
+		AudioFormatRegistry registry = AudioFormatRegistry.getInstance();
+		assertSame(registry, AudioFormatRegistry.getInstance());
+		assertEquals(AudioFileFormat.Type.WAVE, registry.getFileType("wav"));
+		assertEquals(AudioFileFormat.Type.WAVE, registry.getFileType("WAV"));
+		assertSame(FlacAudioFileWriter.FLAC, registry.getFileType("flac"));
+		assertNull(registry.getFileType("xyz"));
+		assertNull(registry.getFileType(null));
+		assertTrue(Arrays.asList(registry.getFileTypes()).containsAll(Arrays.asList(AudioSystem.getAudioFileTypes())));
+
+		assertSame(registry.getFileFilter(), AudioUtil.getSupportedAudioFileFilter());
+		assertTrue(registry.getFileFilter().accept(new File("a.flac")));
+		assertTrue(registry.getFileFilter().accept(new File("a.wav")));
+		assertFalse(registry.getFileFilter().accept(new File("a.txt")));
+	}
+
+	@Test
+	public void testInvalidate() {
+		AudioFormatRegistry registry = AudioFormatRegistry.getInstance();
+		AudioFormatRegistry.invalidate();
+		assertNotSame(registry, AudioFormatRegistry.getInstance());
+		assertEquals(registry.getFileType("wav"), AudioFormatRegistry.getInstance().getFileType("wav"));
+	}
+
+	@Test
+	public void testMixers() {
+		AudioFormatRegistry registry = AudioFormatRegistry.getInstance();
+		assertEquals(AudioSystem.getMixerInfo().length, registry.getMixers(null).size());
+		for (Mixer.Info info : registry.getMixers(null)) {
+			assertEquals(info.getName(), registry.getMixerInfo(info.getName()).getName());
+		}
+		assertNull(registry.getMixerInfo("no such mixer"));
+	}
+
+}
@@ -0,0 +1,180 @@
+package org.melophonic.audio.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.melophonic.audio.spi.flac.FlacAudioFileWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class AudioProbeTest {
+
+	final static Logger log = LoggerFactory.getLogger(AudioProbeTest.class);
+
+	final static File basePath = new File("./src/test/resources/audio");
+	final static File outputPath = new File("./target/probe");
+
+	@Test
+	public void testCorpus() throws Exception {
+		for (File setPath : basePath.listFiles(File::isDirectory)) {
+			// every lossless encoding of a track has the length of its WAVE version
+			Map<String, Long> frameLengths = new HashMap<>();
+			File[] files = setPath.listFiles(f -> f.getName().endsWith(".wav"));
+			for (File wav : files) {
+				AudioProbe probe = AudioProbe.probe(wav);
+				assertEquals(AudioSystem.getAudioFileFormat(wav).getFrameLength(), probe.getFrameLength());
+				frameLengths.put(wav.getName().replaceFirst("-wav-.*", ""), probe.getFrameLength());
+			}
+			for (File file : setPath.listFiles(f -> !f.getName().startsWith("."))) {
+				AudioProbe probe = AudioProbe.probe(file);
+				log.info(probe.toString());
+				assertEquals(2, probe.getChannels());
+				long expected = frameLengths.get(file.getName().replaceFirst("-(wav|flac|alac|mp3)-.*", ""));
+				double seconds = expected / 44100.0;
+				if (file.getName().endsWith(".mp3")) {
+					// without a LAME tag the encoder delay and padding are counted
+					assertEquals(AudioProbe.MP3, probe.getType());
+					assertEquals(seconds, probe.getDurationInSeconds(), 0.1);
+				} else {
+					int bits = Integer.parseInt(file.getName().replaceFirst(".*-(\\d+)-\\d+\\..*", "$1"));
+					float rate = Float.parseFloat(file.getName().replaceFirst(".*-(\\d+)\\..*", "$1"));
+					assertEquals(bits, probe.getSampleSizeInBits());
+					assertEquals(rate, probe.getSampleRate(), 0);
+					assertEquals(seconds, probe.getDurationInSeconds(), 1 / rate);
+				}
+				assertEquals(probe.getDurationInSeconds(), AudioUtil.getDurationInSeconds(file), 0);
+			}
+		}
+	}
+
+	@Test
+	public void testWrittenFiles() throws Exception {
+		FileUtils.forceMkdir(outputPath);
+		AudioFormat format = new AudioFormat(48000F, 16, 2, true, false);
+		byte[] pcm = new byte[12345 * format.getFrameSize()];
+		for (AudioFileFormat.Type type : new AudioFileFormat.Type[] { AudioFileFormat.Type.WAVE, AudioFileFormat.Type.AIFF, FlacAudioFileWriter.FLAC }) {
+			File file = new File(outputPath, "probe." + type.getExtension());
+			AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(pcm), format, 12345), type, file);
+			AudioProbe probe = AudioProbe.probe(file);
+			assertEquals(type.toString(), probe.getType().toString());
+			assertEquals(12345, probe.getFrameLength());
+			assertEquals(48000F, probe.getSampleRate(), 0);
+			assertEquals(16, probe.getSampleSizeInBits());
+		}
+
+		// a streaming WAVE header of unknown length
+		File streamed = new File(outputPath, "streamed.wav");
+		try (FileOutputStream out = new FileOutputStream(streamed)) {
+			out.write(StreamingAudioFileWriter.createWaveHeader(format, StreamingAudioFileWriter.UNKNOWN_LENGTH));
+			out.write(pcm);
+		}
+		assertEquals(12345, AudioProbe.probe(streamed).getFrameLength());
+
+		File text = new File(outputPath, "probe.txt");
+		Files.write(text.toPath(), "not audio".getBytes("US-ASCII"));
+		assertNull(AudioProbe.probeIfSupported(text));
+	}
+
+	@Test
+	public void testMp3Headers() throws Exception {
+		FileUtils.forceMkdir(outputPath);
+		// MPEG 1 layer 3, 128 kbit/s, 44.1 kHz, stereo: 417 byte frames of 1152 samples
+		byte[] header = { (byte) 0xFF, (byte) 0xFB, (byte) 0x90, 0x00 };
+
+		// an Info frame with the LAME encoder delay and padding
+		ByteBuffer info = ByteBuffer.allocate(417);
+		info.put(header);
+		info.position(36);
+		info.put("Info".getBytes("US-ASCII")).putInt(0x0F).putInt(100).putInt(101 * 417).put(new byte[100]).putInt(0);
+		info.put("LAME3.100".getBytes("US-ASCII")).put(new byte[12]);
+		info.put((byte) (576 >> 4)).put((byte) ((576 & 0xF) << 4 | 1000 >> 8)).put((byte) (1000 & 0xFF));
+		ByteArrayOutputStream tagged = new ByteArrayOutputStream();
+		tagged.write(info.array());
+		for (int i = 0; i < 100; i++) tagged.write(frame(header, 417));
+		AudioProbe probe = probe("tagged.mp3", tagged.toByteArray());
+		assertEquals(100 * 1152 - 576 - 1000, probe.getFrameLength());
+		assertNotNull(probe.getEncoding());
+		assertEquals("MPEG1L3", probe.getEncoding().toString());
+
+		// untagged variable bit rate: 128 and 160 kbit/s frames alternate, so every header is read
+		byte[] header160 = { (byte) 0xFF, (byte) 0xFB, (byte) 0xA0, 0x00 };
+		ByteArrayOutputStream vbr = new ByteArrayOutputStream();
+		for (int i = 0; i < 50; i++) {
+			vbr.write(frame(header, 417));
+			vbr.write(frame(header160, 522));
+		}
+		assertEquals(100 * 1152, probe("vbr.mp3", vbr.toByteArray()).getFrameLength());
+
+		// untagged constant bit rate, estimated from the length
+		ByteArrayOutputStream cbr = new ByteArrayOutputStream();
+		for (int i = 0; i < 100; i++) cbr.write(frame(header, 417));
+		assertEquals(100 * 1152, probe("cbr.mp3", cbr.toByteArray()).getFrameLength(), 1152);
+	}
+
+	/**
+	 * Random bytes hold plenty of sync words, but no two of them a frame
+	 * apart. Small files are read whole, so a sync word near their end claims
+	 * a frame running past the end of the file.
+	 */
+	@Test
+	public void testRandomBytes() throws Exception {
+		FileUtils.forceMkdir(outputPath);
+		Random random = new Random(7);
+		for (int i = 0; i < 20; i++) {
+			byte[] bytes = new byte[4096];
+			random.nextBytes(bytes);
+			File file = write("random.mp3", bytes);
+			assertNull(AudioProbe.probeIfSupported(file));
+			try {
+				AudioUtil.getDurationInSeconds(file);
+				fail("random bytes have a duration");
+			} catch (UnsupportedAudioFileException e) {
+				// expected
+			}
+		}
+
+		// a single frame is accepted where it ends the file, but not where it is cut short or something else follows
+		byte[] header = { (byte) 0xFF, (byte) 0xFB, (byte) 0x90, 0x00 };
+		assertEquals(1152, probe("single.mp3", frame(header, 417)).getFrameLength(), 1152);
+		assertNull(AudioProbe.probeIfSupported(write("truncated.mp3", frame(header, 200))));
+		assertNull(AudioProbe.probeIfSupported(write("followed.mp3", Arrays.copyOf(frame(header, 417), 417 + 100))));
+	}
+
+	static byte[] frame(byte[] header, int length) {
+		byte[] frame = new byte[length];
+		System.arraycopy(header, 0, frame, 0, header.length);
+		return frame;
+	}
+
+	static AudioProbe probe(String name, byte[] bytes) throws Exception {
+		return AudioProbe.probe(write(name, bytes));
+	}
+
+	static File write(String name, byte[] bytes) throws Exception {
+		File file = new File(outputPath, name);
+		Files.write(file.toPath(), bytes);
+		return file;
+	}
+
+}
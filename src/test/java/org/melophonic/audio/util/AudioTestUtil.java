@@ -0,0 +1,63 @@
+package org.melophonic.audio.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import javax.sound.sampled.AudioInputStream;
+
+/**
+ * Fixtures shared by the tests: draining streams, degrading audio and
+ * generating synthetic recordings.
+ */
+public final class AudioTestUtil {
+
+	private AudioTestUtil() {}
+
+	/**
+	 * Reads <code>stream</code> to its end and closes it.
+	 *
+	 * @return the bytes read
+	 */
+	public static byte[] readAll(AudioInputStream stream) throws IOException {
+		try (AudioInputStream in = stream) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1 << 16];
+			int n;
+			while ((n = in.read(buffer)) > 0) out.write(buffer, 0, n);
+			return out.toByteArray();
+		}
+	}
+
+	/**
+	 * @return <code>source</code> scaled by <code>gain</code>, with white
+	 * noise at <code>snr</code> dB below its power before scaling
+	 */
+	public static PcmSource degrade(PcmSource source, double gain, double snr, Random random) {
+		FloatBuffer samples = source.getSamples();
+		float[] degraded = new float[samples.remaining()];
+		double power = 0;
+		for (int i = 0; i < degraded.length; i++) {
+			degraded[i] = samples.get(samples.position() + i);
+			power += degraded[i] * degraded[i];
+		}
+		double sigma = Math.sqrt(power / degraded.length / Math.pow(10, snr / 10));
+		for (int i = 0; i < degraded.length; i++) degraded[i] = (float) (gain * degraded[i] + sigma * random.nextGaussian());
+		return PcmSource.wrap(FloatBuffer.wrap(degraded), source.getSampleRate(), source.getChannels());
+	}
+
+	/**
+	 * @return the spectral peaks of a synthetic recording: for each of
+	 * <code>frames</code> frames, <code>peaksPerFrame</code> random bins
+	 * below <code>bins</code>
+	 */
+	public static int[][] randomPeaks(Random random, int frames, int peaksPerFrame, int bins) {
+		int[][] peaks = new int[frames][peaksPerFrame];
+		for (int[] frame : peaks) {
+			for (int p = 0; p < frame.length; p++) frame[p] = random.nextInt(bins);
+		}
+		return peaks;
+	}
+
+}
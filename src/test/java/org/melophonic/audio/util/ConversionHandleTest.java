@@ -0,0 +1,163 @@
+package org.melophonic.audio.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioFormat.Encoding;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class ConversionHandleTest {
+
+	final static Logger log = LoggerFactory.getLogger(ConversionHandleTest.class);
+
+	final static File outputPath = new File("./target/handle");
+	final static File source = new File(outputPath, "source.wav");
+
+	static ExecutorService executor;
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		FileUtils.forceMkdir(outputPath);
+		AudioFormat format = new AudioFormat(48000F, 16, 2, true, false);
+		byte[] pcm = new byte[60 * 48000 * format.getFrameSize()];
+		new Random(0).nextBytes(pcm);
+		AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(pcm), format, pcm.length / format.getFrameSize()), AudioFileFormat.Type.WAVE,
+				source);
+		executor = Executors.newSingleThreadExecutor();
+	}
+
+	@AfterClass
+	public static void tearDown() {
+		executor.shutdown();
+	}
+
+	@Test
+	public void testProgress() throws Exception {
+		File target = new File(outputPath, "progress.wav");
+		AudioConverter.Parameters params = new AudioConverter.Parameters(Encoding.PCM_SIGNED, AudioFileFormat.Type.WAVE, 48000F, 16);
+		params.setChannels(1);
+		ConversionHandle handle = AudioConverter.submit(source, target, params, executor);
+		// whenever it is sampled, progress never goes back and never passes the total
+		long last = 0;
+		while (!handle.isDone()) {
+			long bytes = handle.getBytesProcessed();
+			assertTrue(bytes >= last);
+			assertTrue(bytes <= 60 * 48000 * 2);
+			last = bytes;
+			Thread.sleep(1);
+		}
+		long written = handle.get();
+		log.info(handle.toString());
+		assertEquals(ConversionHandle.State.DONE, handle.getState());
+		assertEquals(target.length(), written);
+		assertEquals(60 * 48000, handle.getTotalFrames());
+		assertEquals(handle.getTotalFrames(), handle.getFramesProcessed());
+		assertEquals(60 * 48000 * 2, handle.getBytesProcessed());
+		assertTrue(handle.getBytesProcessed() >= last);
+		assertEquals(1.0, handle.getProgress(), 0);
+		assertTrue(handle.getDecodeSeconds() > 0);
+		assertFalse(handle.cancel(true));
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		File target = new File(outputPath, "cancelled.wav");
+		AudioConverter.Parameters params = new AudioConverter.Parameters(Encoding.PCM_SIGNED, AudioFileFormat.Type.WAVE, 44100F, 16);
+		CountDownLatch started = new CountDownLatch(1), resume = new CountDownLatch(1);
+		// holds the conversion inside its first read until it has been cancelled
+		ConversionHandle handle = new ConversionHandle(source, target, params) {
+
+			@Override
+			AudioInputStream monitor(AudioInputStream stream) {
+				FilterInputStream blocking = new FilterInputStream(stream) {
+
+					@Override
+					public int read(byte[] b, int off, int len) throws IOException {
+						int n = super.read(b, off, len);
+						started.countDown();
+						try {
+							resume.await();
+						} catch (InterruptedException e) {
+							throw new InterruptedIOException();
+						}
+						return n;
+					}
+
+				};
+				return super.monitor(new AudioInputStream(blocking, stream.getFormat(), stream.getFrameLength()));
+			}
+
+		};
+		executor.execute(handle);
+		started.await();
+		assertTrue(handle.cancel(false));
+		resume.countDown();
+		try {
+			handle.get();
+			fail("cancelled conversion returned");
+		} catch (CancellationException e) {
+			// expected
+		}
+		log.info(handle.toString());
+		assertEquals(ConversionHandle.State.CANCELLED, handle.getState());
+		assertTrue(handle.getFramesProcessed() < handle.getTotalFrames());
+		assertFalse(target.exists());
+		assertFalse(new File(outputPath, ".cancelled.wav.part").exists());
+	}
+
+	@Test
+	public void testCancelBeforeStart() throws Exception {
+		File target = new File(outputPath, "pending.wav");
+		ConversionHandle handle = new ConversionHandle(source, target, new AudioConverter.Parameters());
+		assertTrue(handle.cancel(false));
+		handle.run();
+		assertTrue(handle.isCancelled());
+		assertFalse(target.exists());
+	}
+
+	@Test
+	public void testFailure() throws Exception {
+		File target = new File(outputPath, "failed.wav");
+		// an existing target survives the failed conversion
+		byte[] existing = { 1, 2, 3 };
+		Files.write(target.toPath(), existing);
+		ConversionHandle handle = new ConversionHandle(new File(outputPath, "missing.wav"), target, new AudioConverter.Parameters());
+		handle.run();
+		assertEquals(ConversionHandle.State.FAILED, handle.getState());
+		try {
+			handle.get();
+			fail("failed conversion returned");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() == handle.getFailure());
+		}
+		assertArrayEquals(existing, Files.readAllBytes(target.toPath()));
+		assertFalse(new File(outputPath, ".failed.wav.part").exists());
+	}
+
+}
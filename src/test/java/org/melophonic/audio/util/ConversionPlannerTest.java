@@ -0,0 +1,157 @@
+package org.melophonic.audio.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.melophonic.audio.util.AudioTestUtil.readAll;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioFormat.Encoding;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.spi.AudioFileWriter;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.melophonic.audio.spi.flac.FlacAudioFileWriter;
+import org.melophonic.audio.spi.resample.SincResamplerProvider;
+
+public class ConversionPlannerTest {
+
+	final static AudioFormat SOURCE_FORMAT = new AudioFormat(48000F, 24, 2, true, true);
+
+	final byte[] pcm = new byte[4800 * SOURCE_FORMAT.getFrameSize()];
+	{
+		new Random(0).nextBytes(pcm);
+	}
+
+	@Test
+	public void testPlanIsReused() throws Exception {
+		ConversionPlanner planner = new ConversionPlanner();
+		AudioConverter.Parameters params = new AudioConverter.Parameters(Encoding.PCM_SIGNED, AudioFileFormat.Type.WAVE, 44100F, 16);
+		params.setChannels(1);
+
+		byte[] first = readAll(planner.convert(source(), params));
+		assertEquals(1, planner.getMisses());
+		assertEquals(0, planner.getHits());
+
+		// a different but equal Parameters instance hits the same plan
+		AudioConverter.Parameters same = new AudioConverter.Parameters(Encoding.PCM_SIGNED, AudioFileFormat.Type.WAVE, 44100F, 16);
+		same.setChannels(1);
+		byte[] second = readAll(planner.convert(source(), same));
+		assertEquals(1, planner.getMisses());
+		assertEquals(1, planner.getHits());
+		assertEquals(1, planner.getPlanCount());
+		assertArrayEquals(first, second);
+
+		params.setSampleRate(22050F);
+		planner.convert(source(), params);
+		assertEquals(2, planner.getPlanCount());
+	}
+
+	@Test
+	public void testMatchesUnplannedConversion() throws Exception {
+		ConversionPlanner planner = new ConversionPlanner();
+		AudioConverter.Parameters params = new AudioConverter.Parameters(Encoding.PCM_SIGNED, AudioFileFormat.Type.WAVE, 44100F, 16);
+		params.setChannels(1);
+		AudioInputStream expected = AudioConverter.convertSampleRate(44100F,
+				PcmFormatConverter.convert(new AudioFormat(48000F, 16, 1, true, true), source()));
+		assertArrayEquals(readAll(expected), readAll(planner.convert(source(), params)));
+		assertArrayEquals(readAll(AudioConverter.convertSampleRate(44100F,
+				PcmFormatConverter.convert(new AudioFormat(48000F, 16, 1, true, true), source()))), readAll(planner.convert(source(), params)));
+	}
+
+	@Test
+	public void testReaderAndWriterCache() throws Exception {
+		ConversionPlanner planner = new ConversionPlanner();
+		File file = new File("./target/planner/test.wav");
+		FileUtils.forceMkdir(file.getParentFile());
+		AudioFormat format = new AudioFormat(44100F, 16, 2, true, false);
+		assertNotNull(planner.getWriter(AudioFileFormat.Type.WAVE, format));
+		assertSame(planner.getWriter(AudioFileFormat.Type.WAVE, format), planner.getWriter(AudioFileFormat.Type.WAVE, new AudioFormat(44100F, 16, 2, true, false)));
+
+		byte[] data = new byte[44100 * format.getFrameSize()];
+		new Random(1).nextBytes(data);
+		planner.write(new AudioInputStream(new ByteArrayInputStream(data), format, 44100), AudioFileFormat.Type.WAVE, file);
+		assertEquals(AudioFileFormat.Type.WAVE, planner.getAudioFileFormat(file).getType());
+		assertArrayEquals(data, readAll(planner.getAudioInputStream(file)));
+		assertEquals(1, planner.readersByExtension.size());
+	}
+
+	@Test
+	public void testProvidersAreLazy() throws Exception {
+		ConversionPlanner planner = new ConversionPlanner();
+		assertTrue(planner.converters.getInstantiated().isEmpty());
+		assertTrue(planner.readers.getInstantiated().isEmpty());
+		assertTrue(planner.writers.getInstantiated().isEmpty());
+
+		// the writers after the JDK's WAVE writer are not instantiated
+		planner.getWriter(AudioFileFormat.Type.WAVE, new AudioFormat(44100F, 16, 2, true, false));
+		List<AudioFileWriter> writers = planner.writers.getInstantiated();
+		assertTrue(writers.get(writers.size() - 1).getClass().getName().endsWith(".WaveFileWriter"));
+		for (AudioFileWriter writer : writers) assertFalse(writer.getClass().getName().endsWith(".AiffFileWriter"));
+		assertTrue(planner.readers.getInstantiated().isEmpty());
+	}
+
+	/**
+	 * The providers registered by this library and codec libraries on the
+	 * class path come before the JDK's, as in <code>AudioSystem</code>.
+	 */
+	@Test
+	public void testProviderOrder() throws Exception {
+		ConversionPlanner planner = new ConversionPlanner();
+		assertTrue(indexOf(planner.writers, FlacAudioFileWriter.class) < indexOfJdkProvider(planner.writers));
+		assertTrue(indexOf(planner.converters, SincResamplerProvider.class) < indexOfJdkProvider(planner.converters));
+		assertTrue(planner.getWriter(FlacAudioFileWriter.FLAC, new AudioFormat(44100F, 16, 2, true, false)) instanceof FlacAudioFileWriter);
+
+		// resampling goes through the sinc resampler rather than the JDK's converter
+		AudioFormat target = new AudioFormat(44100F, 24, 2, true, true);
+		byte[] expected = readAll(new SincResamplerProvider().getAudioInputStream(target, source()));
+		assertArrayEquals(expected, readAll(planner.getStep(target, SOURCE_FORMAT).apply(source())));
+		assertArrayEquals(expected, readAll(AudioSystem.getAudioInputStream(target, source())));
+	}
+
+	/**
+	 * FLAC files are read by the jflac reader, which is tried before the
+	 * JDK's readers.
+	 */
+	@Test
+	public void testFlacReader() throws Exception {
+		ConversionPlanner planner = new ConversionPlanner();
+		File flac = new File("./src/test/resources/audio/naim-jazz/naim-test-1-flac-16-44100.flac");
+		assertEquals(AudioSystem.getAudioFileFormat(flac).getType().toString(), planner.getAudioFileFormat(flac).getType().toString());
+		assertTrue(planner.readersByExtension.get("flac").getClass().getName().startsWith("org.jflac."));
+	}
+
+	static int indexOf(Iterable<?> providers, Class<?> type) {
+		int index = 0;
+		for (Object provider : providers) {
+			if (type.isInstance(provider)) return index;
+			index++;
+		}
+		return -1;
+	}
+
+	static int indexOfJdkProvider(Iterable<?> providers) {
+		int index = 0;
+		for (Object provider : providers) {
+			if (provider.getClass().getName().startsWith("com.sun.media.sound.")) return index;
+			index++;
+		}
+		return -1;
+	}
+
+	AudioInputStream source() {
+		return new AudioInputStream(new ByteArrayInputStream(pcm), SOURCE_FORMAT, pcm.length / SOURCE_FORMAT.getFrameSize());
+	}
+
+}
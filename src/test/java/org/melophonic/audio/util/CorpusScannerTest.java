@@ -0,0 +1,94 @@
+package org.melophonic.audio.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.sound.sampled.AudioFileFormat;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.melophonic.audio.spi.flac.FlacAudioFileWriter;
+
+public class CorpusScannerTest {
+
+	final static File basePath = new File("./src/test/resources/audio");
+	final static File outputPath = new File("./target/scanner");
+
+	@Test
+	public void testCorpus() throws Exception {
+		Map<String, AudioFileFormat.Type> expected = new HashMap<>();
+		expected.put("wav", AudioFileFormat.Type.WAVE);
+		expected.put("flac", FlacAudioFileWriter.FLAC);
+		expected.put("mp3", AudioProbe.MP3);
+		expected.put("m4a", AudioProbe.MP4);
+
+		List<CorpusScanner.ScannedFile> files = new CorpusScanner().scan(basePath.toPath());
+		assertEquals(10, files.size());
+		for (CorpusScanner.ScannedFile file : files) {
+			String name = file.getPath().getFileName().toString();
+			assertEquals(name, expected.get(name.substring(name.lastIndexOf('.') + 1)), file.getType());
+			assertFalse(file.isMisnamed());
+			assertEquals(Files.size(file.getPath()), file.getSize());
+		}
+	}
+
+	@Test
+	public void testMisnamedFiles() throws Exception {
+		File root = new File(outputPath, "misnamed");
+		if (root.exists()) FileUtils.cleanDirectory(root);
+		File nested = new File(root, "a/b/c");
+		FileUtils.forceMkdir(nested);
+		Path wav = new File(basePath, "naim-jazz/naim-test-1-wav-16-44100.wav").toPath();
+		Path flac = new File(basePath, "naim-jazz/naim-test-1-flac-16-44100.flac").toPath();
+		Files.copy(wav, new File(nested, "track.dat").toPath(), StandardCopyOption.REPLACE_EXISTING);
+		Files.copy(flac, new File(root, "a/track.wav").toPath(), StandardCopyOption.REPLACE_EXISTING);
+		Files.write(new File(root, "a/b/fake.wav").toPath(), "RIFF but not audio".getBytes("US-ASCII"));
+		Files.write(new File(root, "empty.mp3").toPath(), new byte[0]);
+
+		Map<String, AudioFileFormat.Type> types = new ConcurrentHashMap<>();
+		CorpusScanner.ScanResult result = new CorpusScanner().scan(root.toPath(), file -> {
+			assertTrue(file.isMisnamed());
+			types.put(file.getPath().getFileName().toString(), file.getType());
+		});
+		assertEquals(AudioFileFormat.Type.WAVE, types.get("track.dat"));
+		assertEquals(FlacAudioFileWriter.FLAC, types.get("track.wav"));
+		assertEquals(2, types.size());
+		assertEquals(4, result.getFiles());
+		assertEquals(2, result.getMisnamed());
+		assertEquals(4, result.getDirectories());
+		assertNull(CorpusScanner.sniff(new File(root, "empty.mp3").toPath()));
+	}
+
+	/**
+	 * The UTF-16LE byte order mark FF FE followed by a character is a valid
+	 * MPEG 1 layer 1 frame header, but no second header follows it.
+	 */
+	@Test
+	public void testText() throws Exception {
+		File root = new File(outputPath, "text");
+		FileUtils.forceMkdir(root);
+		StringBuilder text = new StringBuilder("\uFEFF");
+		for (int i = 0; i < 100; i++) text.append("Track ").append(i).append('\n');
+		Path utf16 = new File(root, "notes.txt").toPath();
+		Files.write(utf16, text.toString().getBytes("UTF-16LE"));
+		assertNotNull(AudioProbe.FrameHeader.parse(ByteBuffer.wrap(Files.readAllBytes(utf16)), 0));
+		assertNull(CorpusScanner.sniff(utf16));
+
+		Path mp3 = new File(basePath, "naim-jazz/naim-test-1-mp3-320.mp3").toPath();
+		assertEquals(AudioProbe.MP3, CorpusScanner.sniff(mp3));
+	}
+
+}
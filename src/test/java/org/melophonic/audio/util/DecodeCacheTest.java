@@ -0,0 +1,185 @@
+package org.melophonic.audio.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+public class DecodeCacheTest {
+
+	final static File basePath = new File("./src/test/resources/audio");
+	final static File outputPath = new File("./target/cache");
+
+	final static File classical = new File(basePath, "naim-classical/naim-test-2-wav-16-44100.wav");
+	final static File jazz = new File(basePath, "naim-jazz/naim-test-1-wav-16-44100.wav");
+	final static File flac = new File(basePath, "naim-jazz/naim-test-1-flac-16-44100.flac");
+
+	static File clean(String name) throws Exception {
+		File directory = new File(outputPath, name);
+		if (directory.exists()) FileUtils.cleanDirectory(directory);
+		return directory;
+	}
+
+	@Test
+	public void testHitAndMiss() throws Exception {
+		DecodeCache cache = new DecodeCache(clean("hits"), Long.MAX_VALUE);
+		PcmSource expected = PcmSource.open(jazz);
+		PcmSource decoded = cache.get(jazz);
+		assertEquals(1, cache.getMisses());
+		assertEquals(expected.getSamples(), decoded.getSamples());
+
+		PcmSource cached = cache.get(jazz);
+		assertEquals(1, cache.getHits());
+		assertTrue(cached.isMapped());
+		assertEquals(expected.getSamples(), cached.getSamples());
+		assertTrue(expected.getSourceFormat().matches(cached.getSourceFormat()));
+		assertArrayEquals(expected.toByteArray(16), cached.toByteArray(16));
+
+		// the entry is found by content, not by name
+		File copy = new File(outputPath, "copy.wav");
+		Files.copy(jazz.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		assertTrue(cache.get(copy).isMapped());
+		assertEquals(2, cache.getHits());
+		assertEquals(1, cache.getEntries());
+		assertEquals(new File(cache.getDirectory(), cache.getContentHash(jazz) + "-any-any.f32").length(), cache.getSize());
+	}
+
+	@Test
+	public void testTargetFormat() throws Exception {
+		DecodeCache cache = new DecodeCache(clean("format"), Long.MAX_VALUE);
+		PcmSource source = cache.get(jazz, 22050F, 1);
+		assertEquals(22050F, source.getSampleRate(), 0);
+		assertEquals(1, source.getChannels());
+		assertEquals(PcmSource.open(jazz).getFrameLength() / 2, source.getFrameLength(), 2);
+
+		PcmSource cached = cache.get(jazz, 22050F, 1);
+		assertTrue(cached.isMapped());
+		assertEquals(source.getSamples(), cached.getSamples());
+		cache.get(jazz);
+		assertEquals(2, cache.getMisses());
+		assertEquals(2, cache.getEntries());
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		File directory = clean("eviction");
+		// room for either entry, but not both
+		long budget = DecodeCache.HEADER_SIZE + 4L * Math.max(PcmSource.open(classical).getSamples().remaining(), PcmSource.open(jazz).getSamples().remaining());
+		DecodeCache cache = new DecodeCache(directory, budget);
+		cache.get(classical);
+		String first = DecodeCache.getEntryName(cache.getContentHash(classical), -1, -1);
+		assertTrue(new File(directory, first).exists());
+
+		cache.get(jazz);
+		assertEquals(1, cache.getEvictions());
+		assertEquals(1, cache.getEntries());
+		assertFalse(new File(directory, first).exists());
+
+		// entries larger than the budget are returned but not stored
+		DecodeCache small = new DecodeCache(clean("small"), 1024);
+		assertEquals(PcmSource.open(jazz).getSamples(), small.get(jazz).getSamples());
+		assertEquals(0, small.getEntries());
+		assertEquals(0, small.getDirectory().list((dir, name) -> name.endsWith(DecodeCache.EXTENSION)).length);
+
+		// a reopened cache knows the entries and their order
+		DecodeCache reopened = new DecodeCache(directory, budget);
+		assertEquals(1, reopened.getEntries());
+		assertTrue(reopened.get(jazz).isMapped());
+	}
+
+	@Test
+	public void testFlacHitAndMiss() throws Exception {
+		DecodeCache cache = new DecodeCache(clean("flac"), Long.MAX_VALUE);
+		// the FLAC file holds the same samples as the WAVE file, but is a different entry
+		PcmSource expected = PcmSource.open(jazz);
+		PcmSource decoded = cache.get(flac);
+		assertFalse(decoded.isMapped());
+		assertEquals(1, cache.getMisses());
+		assertEquals(expected.getSamples(), decoded.getSamples());
+
+		PcmSource cached = cache.get(flac);
+		assertEquals(1, cache.getHits());
+		assertTrue(cached.isMapped());
+		assertEquals(expected.getSamples(), cached.getSamples());
+		assertTrue(expected.getSourceFormat().matches(cached.getSourceFormat()));
+
+		cache.get(jazz);
+		assertEquals(2, cache.getMisses());
+		assertEquals(2, cache.getEntries());
+	}
+
+	@Test
+	public void testFlacTargetFormat() throws Exception {
+		DecodeCache cache = new DecodeCache(clean("flac-format"), Long.MAX_VALUE);
+		PcmSource source = cache.get(flac, 22050F, 1);
+		assertFalse(source.isMapped());
+		assertEquals(1, cache.getMisses());
+		assertEquals(22050F, source.getSampleRate(), 0);
+		assertEquals(1, source.getChannels());
+		assertEquals(cache.get(jazz, 22050F, 1).getSamples(), source.getSamples());
+
+		assertTrue(cache.get(flac, 22050F, 1).isMapped());
+		assertEquals(1, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+
+	@Test
+	public void testSavedHashes() throws Exception {
+		File directory = clean("hashes");
+		DecodeCache cache = new DecodeCache(directory, Long.MAX_VALUE);
+		String hash = cache.getContentHash(jazz);
+		assertEquals(hash, new DecodeCache(directory, Long.MAX_VALUE).hashes.get(jazz.toPath().toAbsolutePath()).hash);
+
+		// a saved hash is used while the size and modification time match, without reading the file
+		File copy = new File(outputPath, "hashed.wav");
+		Files.copy(jazz.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		Files.write(new File(directory, DecodeCache.HASHES).toPath(),
+				DecodeCache.format(copy.toPath().toAbsolutePath(), new DecodeCache.ContentHash(copy.length(), copy.lastModified(), "saved")).getBytes("UTF-8"));
+		assertEquals("saved", new DecodeCache(directory, Long.MAX_VALUE).getContentHash(copy));
+		assertTrue(copy.setLastModified(copy.lastModified() + 2000));
+		assertEquals(hash, new DecodeCache(directory, Long.MAX_VALUE).getContentHash(copy));
+	}
+
+	@Test
+	public void testInvalidEntry() throws Exception {
+		DecodeCache cache = new DecodeCache(clean("invalid"), Long.MAX_VALUE);
+		File entry = new File(cache.getDirectory(), DecodeCache.getEntryName(cache.getContentHash(jazz), -1, -1));
+		Files.write(entry.toPath(), new byte[100]);
+		assertFalse(cache.get(jazz).isMapped());
+		assertEquals(1, cache.getMisses());
+		assertTrue(cache.get(jazz).isMapped());
+	}
+
+	@Test
+	public void testConvert() throws Exception {
+		DecodeCache cache = new DecodeCache(clean("convert"), Long.MAX_VALUE);
+		File output = new File(outputPath, "converted.wav");
+		for (int round = 0; round < 2; round++) {
+			AudioConverter.convert(jazz, output, new AudioConverter.Parameters(null, AudioFileFormat.Type.WAVE, -1, -1), cache);
+			try (MappedWaveFile expected = MappedWaveFile.open(jazz); MappedWaveFile actual = MappedWaveFile.open(output)) {
+				assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+			}
+		}
+		assertEquals(1, cache.getHits());
+
+		AudioConverter.Parameters parameters = new AudioConverter.Parameters(AudioFormat.Encoding.PCM_SIGNED, AudioFileFormat.Type.WAVE, 22050F, 24);
+		parameters.setChannels(1);
+		AudioConverter.convert(jazz, output, parameters, cache);
+		try (MappedWaveFile wave = MappedWaveFile.open(output)) {
+			assertEquals(22050F, wave.getFormat().getSampleRate(), 0);
+			assertEquals(24, wave.getFormat().getSampleSizeInBits());
+			assertEquals(cache.get(jazz, 22050F, 1).getFrameLength(), wave.getFrameLength());
+		}
+	}
+
+}
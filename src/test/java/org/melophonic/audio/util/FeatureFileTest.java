@@ -0,0 +1,73 @@
+package org.melophonic.audio.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class FeatureFileTest {
+
+	@Test
+	public void testWriteAndMap() throws Exception {
+		File file = new File("./target/featurefile/test.features");
+		String[] columns = {"a", "b", "c"};
+		int rows = 10000;
+		try (FeatureFile.Writer writer = new FeatureFile.Writer(file, columns, 44100F, 1024, 333)) {
+			for (int i = 0; i < rows; i++) writer.append(new float[] {i, -i, i * 0.5f});
+		}
+		
+		FeatureFile features = FeatureFile.open(file);
+		assertEquals(Arrays.asList(columns), features.getColumnNames());
+		assertEquals(rows, features.getRowCount());
+		assertEquals(1024 / 44100.0, features.getTime(1), 1E-9);
+		
+		FloatBuffer b = features.getColumn("b");
+		assertEquals(rows, b.remaining());
+		for (int i = 0; i < rows; i++) assertEquals(-i, b.get(i), 0f);
+		assertEquals((rows - 1) * 0.5f, features.getColumn(2).get(rows - 1), 0f);
+		assertEquals(1, file.getParentFile().list().length);
+	}
+
+	/**
+	 * A sparse file of two columns of 1.2 GB each, with values written at
+	 * the start and end of the second column.
+	 */
+	@Test
+	public void testLargeFile() throws Exception {
+		File file = new File("./target/featurefile/large.features");
+		file.getParentFile().mkdirs();
+		long rows = 300_000_000L;
+		byte[] name = "x".getBytes(StandardCharsets.UTF_8);
+		long dataOffset = FeatureFile.align(28 + 2 * (2 + name.length));
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+			raf.setLength(dataOffset + 2 * rows * 4);
+			ByteBuffer header = ByteBuffer.allocate(36).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(FeatureFile.MAGIC).putInt(FeatureFile.VERSION).putInt(2).putLong(rows).putFloat(44100F).putInt(1024);
+			header.putShort((short) name.length).put(name).putShort((short) name.length).put(name);
+			header.flip();
+			channel.write(header, 0);
+			channel.write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putFloat(0, 1.5f), dataOffset + rows * 4);
+			channel.write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putFloat(0, 2.5f), dataOffset + 2 * rows * 4 - 4);
+		}
+		try {
+			FeatureFile features = FeatureFile.open(file);
+			assertEquals(rows, features.getRowCount());
+			FloatBuffer column = features.getColumn(1);
+			assertEquals(rows, column.remaining());
+			assertEquals(1.5f, column.get(0), 0f);
+			assertEquals(2.5f, column.get((int) rows - 1), 0f);
+			assertEquals(0f, features.getColumn(0).get((int) rows - 1), 0f);
+		} finally {
+			file.delete();
+		}
+	}
+	
+}
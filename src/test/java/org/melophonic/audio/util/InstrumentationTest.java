@@ -0,0 +1,162 @@
+package org.melophonic.audio.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat.Encoding;
+import javax.sound.sampled.AudioSystem;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.melophonic.audio.spi.InstrumentationListener;
+import org.melophonic.audio.spi.jmx.JmxInstrumentationListener;
+import org.melophonic.audio.spi.musicg.MGFingerprintService;
+
+public class InstrumentationTest {
+
+	final static File inputFile = new File("./src/test/resources/audio/naim-jazz/naim-test-1-wav-16-44100.wav");
+	final static File outputPath = new File("./target/instrumentation");
+
+	final RecordingListener listener = new RecordingListener();
+
+	@Before
+	public void addListener() {
+		Instrumentation.addListener(listener);
+	}
+
+	@After
+	public void removeListener() {
+		Instrumentation.removeListener(listener);
+	}
+
+	@Test
+	public void testConversionStages() throws Exception {
+		FileUtils.forceMkdir(outputPath);
+		long frames = AudioSystem.getAudioFileFormat(inputFile).getFrameLength();
+
+		AudioConverter.convert(inputFile, new File(outputPath, "8bit.wav"), new AudioConverter.Parameters(Encoding.PCM_SIGNED, AudioFileFormat.Type.WAVE, 44100F, 8));
+		assertEquals("[open, decode, encode]", listener.getStages(AudioConverter.COMPONENT).toString());
+		assertEquals(frames, listener.get(AudioConverter.COMPONENT, "decode").frames);
+		assertEquals(frames, listener.get(AudioConverter.COMPONENT, "encode").frames);
+
+		// a copy of mapped data has no separate decoding
+		listener.records.clear();
+		AudioConverter.convert(inputFile, new File(outputPath, "copy.wav"), new AudioConverter.Parameters(Encoding.PCM_SIGNED, AudioFileFormat.Type.WAVE, 44100F, 16));
+		assertEquals("[open, copy]", listener.getStages(AudioConverter.COMPONENT).toString());
+		assertEquals(frames, listener.get(AudioConverter.COMPONENT, "copy").frames);
+	}
+
+	@Test
+	public void testFingerprintStages() throws Exception {
+		MGFingerprintService service = new MGFingerprintService();
+		byte[] fingerprint = service.calculateFingerprint(inputFile.toURI());
+		service.compareFingerprints(fingerprint, fingerprint);
+		assertEquals("[decode, resample, spectrogram, peaks, serialize, compare]", listener.getStages(MGFingerprintService.COMPONENT).toString());
+		assertEquals(AudioSystem.getAudioFileFormat(inputFile).getFrameLength(), listener.get(MGFingerprintService.COMPONENT, "decode").frames);
+		for (Record record : listener.records) assertTrue(record.nanos > 0);
+	}
+
+	@Test
+	public void testDisabled() throws Exception {
+		Instrumentation.removeListener(listener);
+		// the services file installs the JMX listener only when asked for
+		boolean installed = !Instrumentation.getListeners().isEmpty();
+		assertEquals("true".equals(System.getProperty(Instrumentation.PROPERTY)), installed);
+		assertEquals(installed, Instrumentation.isEnabled());
+		List<InstrumentationListener> listeners = new ArrayList<>(Instrumentation.getListeners());
+		for (InstrumentationListener l : listeners) Instrumentation.removeListener(l);
+		try {
+			assertFalse(Instrumentation.isEnabled());
+			assertSame(Instrumentation.DISABLED, Instrumentation.start("test", "stage"));
+			assertSame(Instrumentation.Timer.DISABLED, Instrumentation.timer());
+			assertEquals(0, Instrumentation.start("test", "stage").end(1));
+		} finally {
+			for (InstrumentationListener l : listeners) Instrumentation.addListener(l);
+		}
+	}
+
+	@Test
+	public void testTimer() throws Exception {
+		Instrumentation.Timer outer = Instrumentation.timer(), inner = Instrumentation.timer();
+		outer.start();
+		inner.start();
+		byte[] allocated = new byte[1 << 20];
+		inner.stop();
+		Thread.sleep(10);
+		outer.stop();
+		assertEquals(1 << 20, allocated.length);
+		Instrumentation.record("test", "outer", outer, "inner", inner, 100);
+		Record o = listener.get("test", "outer"), i = listener.get("test", "inner");
+		assertTrue(o.nanos >= 10000000);
+		assertEquals(outer.getNanos() - inner.getNanos(), o.nanos);
+		assertEquals(100, i.frames);
+		if (i.bytesAllocated >= 0) assertTrue(i.bytesAllocated >= 1 << 20);
+	}
+
+	@Test
+	public void testJmxStatistics() {
+		Instrumentation.removeListener(listener);
+		JmxInstrumentationListener jmx = new JmxInstrumentationListener(null);
+		Instrumentation.addListener(jmx);
+		try {
+			for (int i = 0; i < 1000; i++) Instrumentation.start("test", "overhead").end(i);
+			assertEquals(1000, jmx.getStatistics("test", "overhead").getCount());
+		} finally {
+			Instrumentation.removeListener(jmx);
+		}
+	}
+
+	static class Record {
+
+		final String component;
+		final String stage;
+		final long nanos;
+		final long frames;
+		final long bytesAllocated;
+
+		Record(String component, String stage, long nanos, long frames, long bytesAllocated) {
+			this.component = component;
+			this.stage = stage;
+			this.nanos = nanos;
+			this.frames = frames;
+			this.bytesAllocated = bytesAllocated;
+		}
+
+	}
+
+	static class RecordingListener implements InstrumentationListener {
+
+		final List<Record> records = new ArrayList<>();
+
+		@Override
+		public synchronized void stageCompleted(String component, String stage, long nanos, long frames, long bytesAllocated) {
+			records.add(new Record(component, stage, nanos, frames, bytesAllocated));
+		}
+
+		synchronized List<String> getStages(String component) {
+			List<String> stages = new ArrayList<>();
+			for (Record record : records) {
+				if (record.component.equals(component)) stages.add(record.stage);
+			}
+			return stages;
+		}
+
+		synchronized Record get(String component, String stage) {
+			for (Record record : records) {
+				if (record.component.equals(component) && record.stage.equals(stage)) return record;
+			}
+			return null;
+		}
+
+	}
+
+}
@@ -0,0 +1,132 @@
+package org.melophonic.audio.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LazyServiceLoaderTest {
+
+	final static File servicesPath = new File("./target/services");
+
+	static final AtomicInteger firstInstances = new AtomicInteger();
+	static final AtomicInteger secondInstances = new AtomicInteger();
+
+	ClassLoader classLoader;
+
+	/**
+	 * Registers First, a class that is not on the class path, and Second as
+	 * providers of Codec, visible to a class loader of their own.
+	 */
+	@Before
+	public void setup() throws Exception {
+		FileUtils.writeLines(new File(servicesPath, "META-INF/services/" + Codec.class.getName()), StandardCharsets.UTF_8.name(),
+				Arrays.asList(First.class.getName(), "org.melophonic.audio.util.MissingCodec", Second.class.getName()));
+		classLoader = new URLClassLoader(new URL[] { servicesPath.toURI().toURL() }, getClass().getClassLoader());
+		firstInstances.set(0);
+		secondInstances.set(0);
+	}
+
+	@Test
+	public void testInstantiatesOnDemand() throws Exception {
+		LazyServiceLoader<Codec> loader = LazyServiceLoader.load(Codec.class, classLoader);
+		assertEquals(0, firstInstances.get());
+
+		Codec first = loader.first();
+		assertTrue(first instanceof First);
+		assertEquals(1, firstInstances.get());
+		assertEquals(0, secondInstances.get());
+		assertEquals(1, loader.getInstantiated().size());
+
+		// the missing provider is skipped, and nothing is instantiated twice
+		List<Codec> all = new ArrayList<>();
+		for (Codec codec : loader) all.add(codec);
+		assertEquals(2, all.size());
+		assertSame(first, all.get(0));
+		assertTrue(all.get(1) instanceof Second);
+		assertSame(all.get(1), loader.get(Second.class));
+		assertEquals(1, firstInstances.get());
+		assertEquals(1, secondInstances.get());
+	}
+
+	@Test
+	public void testGet() throws Exception {
+		LazyServiceLoader<Codec> loader = LazyServiceLoader.load(Codec.class, classLoader);
+		assertNull(loader.get(Third.class));
+		assertTrue(loader.get(Second.class) instanceof Second);
+		assertNull(LazyServiceLoader.load(Codec.class, getClass().getClassLoader()).first());
+	}
+
+	@Test
+	public void testReversed() throws Exception {
+		LazyServiceLoader<Codec> loader = LazyServiceLoader.loadReversed(Codec.class, classLoader);
+		assertTrue(loader.first() instanceof Second);
+		assertEquals(0, firstInstances.get());
+
+		List<Codec> all = new ArrayList<>();
+		for (Codec codec : loader) all.add(codec);
+		assertEquals(2, all.size());
+		assertTrue(all.get(1) instanceof First);
+		assertEquals(1, firstInstances.get());
+		assertEquals(1, secondInstances.get());
+	}
+
+	@Test
+	public void testConcurrentIteration() throws Exception {
+		LazyServiceLoader<Codec> loader = LazyServiceLoader.load(Codec.class, classLoader);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<List<Codec>>> results = new ArrayList<>();
+			for (int i = 0; i < 8; i++) {
+				results.add(executor.submit(() -> {
+					List<Codec> codecs = new ArrayList<>();
+					for (Codec codec : loader) codecs.add(codec);
+					return codecs;
+				}));
+			}
+			List<Codec> expected = results.get(0).get();
+			for (Future<List<Codec>> result : results) assertEquals(expected, result.get());
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(1, firstInstances.get());
+		assertEquals(1, secondInstances.get());
+	}
+
+	public interface Codec {}
+
+	public static class First implements Codec {
+
+		public First() {
+			firstInstances.incrementAndGet();
+		}
+
+	}
+
+	public static class Second implements Codec {
+
+		public Second() {
+			secondInstances.incrementAndGet();
+		}
+
+	}
+
+	public static class Third implements Codec {}
+
+}
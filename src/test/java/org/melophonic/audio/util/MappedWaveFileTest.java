@@ -0,0 +1,218 @@
+package org.melophonic.audio.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.melophonic.audio.util.AudioTestUtil.readAll;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.file.Files;
+import java.util.Collection;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.melophonic.audio.spi.AbstractAudioTest;
+
+@RunWith(Parameterized.class)
+public class MappedWaveFileTest extends AbstractAudioTest {
+
+	final static File outputPath = new File("./target/mapped");
+
+	final AudioFileSet<Double> audioFiles;
+
+	public MappedWaveFileTest(AudioFileSet<Double> audioFiles) {
+		super();
+		this.audioFiles = audioFiles;
+	}
+
+	@Parameters
+	public static Collection<Object[]> data() throws Exception {
+		return wrapParameters(getAudioFileSets(".wav"));
+	}
+
+	@Test
+	public void testReadMatchesAudioSystem() throws Exception {
+		for (URI uri : audioFiles.keySet()) {
+			File audioFile = new File(uri);
+			MappedWaveFile wave = MappedWaveFile.open(audioFile);
+			AudioInputStream expected = AudioSystem.getAudioInputStream(audioFile);
+			assertTrue(wave.getFormat().matches(expected.getFormat()));
+			assertEquals(expected.getFrameLength(), wave.getFrameLength());
+			assertArrayEquals(readAll(expected), wave.toByteArray());
+			assertArrayEquals(wave.toByteArray(), readAll(wave.getAudioInputStream()));
+
+			if (wave.getFormat().getSampleSizeInBits() == 16) {
+				ShortBuffer samples = wave.asShortBuffer();
+				for (int i = 0; i < 1000; i++) {
+					long frame = i * (wave.getFrameLength() / 1000);
+					assertEquals(samples.get((int) frame * wave.getFormat().getChannels()) / 32768F, wave.getSample(frame, 0), 0F);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testWriteMatchesAudioSystem() throws Exception {
+		FileUtils.forceMkdir(outputPath);
+		for (URI uri : audioFiles.keySet()) {
+			File audioFile = new File(uri);
+			File mappedFile = new File(outputPath, "mapped." + audioFile.getName());
+			File streamedFile = new File(outputPath, "streamed." + audioFile.getName());
+			try (MappedWaveFile wave = MappedWaveFile.open(audioFile)) {
+				MappedWaveWriter.write(wave, mappedFile);
+			}
+			MappedWaveWriter.write(AudioSystem.getAudioInputStream(audioFile), streamedFile);
+
+			byte[] expected = readAll(AudioSystem.getAudioInputStream(audioFile));
+			assertArrayEquals(expected, readAll(AudioSystem.getAudioInputStream(mappedFile)));
+			assertArrayEquals(FileUtils.readFileToByteArray(mappedFile), FileUtils.readFileToByteArray(streamedFile));
+		}
+	}
+
+	@Test
+	public void testExtensibleAndStreamingHeaders() throws Exception {
+		FileUtils.forceMkdir(outputPath);
+		File file = new File(outputPath, "extensible.wav");
+		short[] samples = new short[3001 * 2];
+		for (int i = 0; i < samples.length; i++) samples[i] = (short) (i * 7);
+
+		ByteBuffer header = ByteBuffer.allocate(12 + 8 + 26 + 8 + 40 + 8).order(ByteOrder.LITTLE_ENDIAN);
+		header.put("RIFF".getBytes("US-ASCII")).putInt(-1).put("WAVE".getBytes("US-ASCII"));
+		header.put("LIST".getBytes("US-ASCII")).putInt(25).put(new byte[26]);
+		header.put("fmt ".getBytes("US-ASCII")).putInt(40);
+		header.putShort((short) 0xFFFE).putShort((short) 2).putInt(48000).putInt(48000 * 4).putShort((short) 4).putShort((short) 16);
+		header.putShort((short) 22).putShort((short) 16).putInt(3).putShort((short) 1).put(new byte[14]);
+		header.put("data".getBytes("US-ASCII")).putInt(-1);
+		ByteBuffer data = ByteBuffer.allocate(samples.length * 2 + 1).order(ByteOrder.LITTLE_ENDIAN);
+		data.asShortBuffer().put(samples);
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			out.write(header.array());
+			out.write(data.array());
+		}
+
+		MappedWaveFile wave = MappedWaveFile.open(file);
+		assertEquals(new AudioFormat(48000F, 16, 2, true, false).toString(), wave.getFormat().toString());
+		assertEquals(3001, wave.getFrameLength());
+		ShortBuffer mapped = wave.asShortBuffer();
+		for (int i = 0; i < samples.length; i++) assertEquals(samples[i], mapped.get(i));
+		assertNull(MappedWaveFile.openIfWave(new File(outputPath, "missing.wav").toURI()));
+	}
+
+	@Test
+	public void testClose() throws Exception {
+		File audioFile = new File(audioFiles.keySet().iterator().next());
+		MappedWaveFile wave = MappedWaveFile.open(audioFile);
+		long frameLength = wave.getFrameLength();
+		byte[] expected = wave.toByteArray();
+		// closing a stream that owns the file unmaps it
+		assertArrayEquals(expected, readAll(wave.getAudioInputStream(true)));
+		assertEquals(frameLength, wave.getFrameLength());
+		try {
+			wave.getData();
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		wave.close();
+	}
+
+	@Test
+	public void testReadAfterClose() throws Exception {
+		File audioFile = new File(audioFiles.keySet().iterator().next());
+		MappedWaveFile wave = MappedWaveFile.open(audioFile);
+		byte[] expected = wave.toByteArray();
+		ByteBuffer data = wave.getData();
+		AudioInputStream stream = wave.getAudioInputStream();
+		wave.close();
+		// the mapping outlives the file until the views are collected
+		byte[] bytes = new byte[data.remaining()];
+		data.get(bytes);
+		assertArrayEquals(expected, bytes);
+		assertArrayEquals(expected, readAll(stream));
+	}
+
+	@Test
+	public void testWindows() throws Exception {
+		for (URI uri : audioFiles.keySet()) {
+			File audioFile = new File(uri);
+			try (MappedWaveFile wave = MappedWaveFile.open(audioFile);
+					MappedWaveFile windowed = MappedWaveFile.open(audioFile, 100003)) {
+				int frameSize = wave.getFormat().getFrameSize();
+				assertEquals(100003 / frameSize, windowed.getWindowFrameLength());
+				assertEquals((wave.getDataLength() + 100003 / frameSize * frameSize - 1) / (100003 / frameSize * frameSize), windowed.getWindowCount());
+				assertEquals(wave.getFrameLength(), windowed.getFrameLength());
+				assertArrayEquals(wave.toByteArray(), readAll(windowed.getAudioInputStream()));
+				for (long frame = 0; frame < wave.getFrameLength(); frame += 997) {
+					for (int channel = 0; channel < wave.getFormat().getChannels(); channel++) {
+						assertEquals(wave.getSample(frame, channel), windowed.getSample(frame, channel), 0F);
+					}
+				}
+				try {
+					windowed.getData();
+					fail();
+				} catch (IllegalStateException e) {
+					// expected
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testLargeFile() throws Exception {
+		FileUtils.forceMkdir(outputPath);
+		File file = new File(outputPath, "large.wav");
+		AudioFormat format = new AudioFormat(48000F, 16, 2, true, false);
+		// a sparse file whose data chunk is 2.5 GB
+		long frameLength = 5L << 27;
+		try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+			out.write(StreamingAudioFileWriter.createWaveHeader(format, frameLength * 4));
+			out.setLength(44 + frameLength * 4);
+			out.seek(44 + (frameLength - 1) * 4);
+			out.write(new byte[] { 0, 0x40, 0, (byte) 0xC0 });
+		}
+		try (MappedWaveFile wave = MappedWaveFile.open(file)) {
+			assertEquals(frameLength, wave.getFrameLength());
+			assertEquals(2, wave.getWindowCount());
+			assertEquals(0.5F, wave.getSample(frameLength - 1, 0), 0F);
+			assertEquals(-0.5F, wave.getSample(frameLength - 1, 1), 0F);
+			assertEquals(0F, wave.getSample(frameLength - 2, 0), 0F);
+			ByteBuffer window = wave.getWindow(1);
+			assertEquals(frameLength * 4, wave.getWindowFrameLength() * 4 + window.remaining());
+			assertEquals(0xC0004000, window.getInt(window.limit() - 4));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testTruncate() throws Exception {
+		FileUtils.forceMkdir(outputPath);
+		File file = new File(outputPath, "truncated.wav");
+		AudioFormat format = new AudioFormat(44100F, 16, 2, true, false);
+		// the stream ends 100 frames before its frame length
+		AudioInputStream stream = new AudioInputStream(new ByteArrayInputStream(new byte[900 * 4]), format, 1000);
+		int length = MappedWaveWriter.write(stream, file);
+		assertEquals(44 + 900 * 4, length);
+		assertEquals(length, file.length());
+		assertEquals(900, AudioSystem.getAudioFileFormat(file).getFrameLength());
+		// the writer unmaps eagerly, so it can be deleted on any platform
+		Files.delete(file.toPath());
+	}
+
+}
@@ -0,0 +1,161 @@
+package org.melophonic.audio.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.melophonic.audio.util.AudioTestUtil.readAll;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Collection;
+import java.util.Random;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.SuffixFileFilter;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.junit.Test;
+
+public class PcmFormatConverterTest {
+
+	@Test
+	public void testStereo24LittleToMono16Big() throws Exception {
+		AudioFormat source = new AudioFormat(96000F, 24, 2, true, false);
+		AudioFormat target = new AudioFormat(96000F, 16, 1, true, true);
+		// L = 0x123456, R = 0x103456 -> mean 0x113456 -> rounded 0x1134
+		byte[] in = {0x56, 0x34, 0x12, 0x56, 0x34, 0x10};
+		assertArrayEquals(new byte[] {0x11, 0x34}, convert(in, source, target));
+	}
+
+	@Test
+	public void testMono8UnsignedToStereo16Signed() throws Exception {
+		AudioFormat source = new AudioFormat(AudioFormat.Encoding.PCM_UNSIGNED, 44100F, 8, 1, 1, 44100F, false);
+		AudioFormat target = new AudioFormat(44100F, 16, 2, true, false);
+		byte[] in = {(byte) 0x80, (byte) 0xff};
+		byte[] expected = {0, 0, 0, 0, 0, 0x7f, 0, 0x7f};
+		assertArrayEquals(expected, convert(in, source, target));
+	}
+
+	@Test
+	public void testSaturation() throws Exception {
+		AudioFormat source = new AudioFormat(44100F, 24, 1, true, true);
+		AudioFormat target = new AudioFormat(44100F, 16, 1, true, true);
+		byte[] in = {0x7f, (byte) 0xff, (byte) 0xff};
+		assertArrayEquals(new byte[] {0x7f, (byte) 0xff}, convert(in, source, target));
+	}
+
+	/**
+	 * Layout-only conversions give the same bytes as the chain of
+	 * <code>AudioSystem</code> conversions the fused converter replaces.
+	 * Conversions that change the sample size or downmix go through float in
+	 * the JDK, with its own scaling, so there they are compared with an exact
+	 * reference instead, and may differ from the chain by 2 steps when
+	 * narrowing. The JDK widens by scaling with the ratio of the full scales
+	 * (e.g. 32767/127) rather than shifting, so widening is compared with the
+	 * reference only.
+	 */
+	@Test
+	public void testMatchesChain() throws Exception {
+		Random random = new Random(42);
+		byte[] pcm = new byte[3 * 4 * 10000];
+		random.nextBytes(pcm);
+		int[][] conversions = { { 16, 2, 16, 2 }, { 16, 1, 16, 2 }, { 24, 2, 24, 2 }, { 16, 2, 16, 1 }, { 24, 2, 16, 1 }, { 24, 2, 16, 2 }, { 8, 2, 16, 2 },
+				{ 16, 2, 24, 1 } };
+		for (int[] conversion : conversions) {
+			for (boolean bigEndian : new boolean[] { true, false }) {
+				AudioFormat source = new AudioFormat(44100F, conversion[0], conversion[1], true, false);
+				AudioFormat target = new AudioFormat(44100F, conversion[2], conversion[3], true, bigEndian);
+				byte[] fused = convert(pcm, source, target);
+				assertArrayEquals(reference(pcm, source, target), fused);
+				byte[] chained = convertChain(pcm, source, target);
+				if (conversion[0] == conversion[2] && (conversion[1] == conversion[3] || conversion[1] == 1)) {
+					assertArrayEquals(chained, fused);
+				} else if (conversion[2] <= conversion[0]) {
+					assertEquals(chained.length, fused.length);
+					for (int i = 0; i < fused.length; i += target.getSampleSizeInBits() / 8) {
+						assertEquals(getSample(chained, i, target), getSample(fused, i, target), 2);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * The decoded 24/96 FLAC files of the test corpus, downmixed to 16 bit mono.
+	 */
+	@Test
+	public void testCorpus() throws Exception {
+		File basePath = new File(PcmFormatConverterTest.class.getResource("/audio").toURI());
+		Collection<File> files = FileUtils.listFiles(basePath, new SuffixFileFilter("-24-96000.flac"), TrueFileFilter.INSTANCE);
+		assertTrue(!files.isEmpty());
+		for (File file : files) {
+			byte[] pcm;
+			AudioFormat source;
+			try (AudioInputStream decoded = AudioConverter.convertEncoding(AudioFormat.Encoding.PCM_SIGNED, AudioSystem.getAudioInputStream(file))) {
+				source = decoded.getFormat();
+				pcm = readAll(decoded);
+			}
+			AudioFormat target = new AudioFormat(source.getSampleRate(), 16, 1, true, true);
+			assertArrayEquals(reference(pcm, source, target), convert(pcm, source, target));
+		}
+	}
+
+	static byte[] convertChain(byte[] in, AudioFormat source, AudioFormat target) throws Exception {
+		AudioInputStream chain = new AudioInputStream(new ByteArrayInputStream(in), source, in.length / source.getFrameSize());
+		if (source.getChannels() != target.getChannels()) chain = AudioConverter.convertChannels(target.getChannels(), chain);
+		chain = AudioConverter.convertSampleSizeAndEndianess(target.getSampleSizeInBits(), target.isBigEndian(), chain);
+		return readAll(chain);
+	}
+
+	/**
+	 * @return <code>in</code> converted sample by sample in double precision:
+	 * channels averaged or copied, and samples rounded to the nearest value
+	 * when they shrink, and floored otherwise
+	 */
+	static byte[] reference(byte[] in, AudioFormat source, AudioFormat target) {
+		int sourceBytes = source.getSampleSizeInBits() / 8, targetBytes = target.getSampleSizeInBits() / 8;
+		int sourceChannels = source.getChannels(), targetChannels = target.getChannels();
+		int frames = in.length / source.getFrameSize();
+		byte[] out = new byte[frames * target.getFrameSize()];
+		double[] frame = new double[sourceChannels];
+		for (int f = 0; f < frames; f++) {
+			for (int c = 0; c < sourceChannels; c++) frame[c] = getSample(in, (f * sourceChannels + c) * sourceBytes, source) / Math.pow(2, 8 * sourceBytes - 1);
+			for (int c = 0; c < targetChannels; c++) {
+				double x;
+				if (targetChannels == 1 && sourceChannels > 1) {
+					x = 0;
+					for (double sample : frame) x += sample;
+					x /= sourceChannels;
+				} else if (sourceChannels == 1) {
+					x = frame[0];
+				} else {
+					x = c < sourceChannels ? frame[c] : 0;
+				}
+				double scale = Math.pow(2, 8 * targetBytes - 1);
+				long value = (long) Math.floor(x * scale + (targetBytes < sourceBytes ? 0.5 : 0));
+				value = Math.max((long) -scale, Math.min((long) scale - 1, value));
+				int offset = (f * targetChannels + c) * targetBytes;
+				for (int b = 0; b < targetBytes; b++) {
+					out[offset + (target.isBigEndian() ? targetBytes - 1 - b : b)] = (byte) (value >> (8 * b));
+				}
+			}
+		}
+		return out;
+	}
+
+	static int getSample(byte[] bytes, int offset, AudioFormat format) {
+		int size = format.getSampleSizeInBits() / 8;
+		int value = 0;
+		for (int b = 0; b < size; b++) value = value << 8 | (bytes[offset + (format.isBigEndian() ? b : size - 1 - b)] & 0xff);
+		return value << (32 - 8 * size) >> (32 - 8 * size);
+	}
+
+	static byte[] convert(byte[] in, AudioFormat source, AudioFormat target) throws Exception {
+		AudioInputStream stream = new AudioInputStream(new ByteArrayInputStream(in), source, in.length / source.getFrameSize());
+		return readAll(PcmFormatConverter.convert(target, stream));
+	}
+
+}
@@ -0,0 +1,163 @@
+package org.melophonic.audio.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.melophonic.audio.spi.FingerprintService;
+
+public class PcmSourceTest {
+
+	final static File basePath = new File("./src/test/resources/audio");
+	final static File outputPath = new File("./target/pcm");
+
+	@Test
+	public void testWaveFiles() throws Exception {
+		for (File setPath : basePath.listFiles(File::isDirectory)) {
+			for (File file : setPath.listFiles(f -> f.getName().endsWith(".wav"))) {
+				MappedWaveFile wave = MappedWaveFile.open(file);
+				PcmSource source = PcmSource.open(file);
+				assertFalse(source.isMapped());
+				assertEquals(wave.getFrameLength(), source.getFrameLength());
+				assertEquals(wave.getFormat().getSampleRate(), source.getSampleRate(), 0);
+				assertTrue(wave.getFormat().matches(source.getSourceFormat()));
+				for (long frame = 0; frame < source.getFrameLength(); frame += 997) {
+					for (int channel = 0; channel < source.getChannels(); channel++) {
+						assertEquals(wave.getSample(frame, channel), source.getSample(frame, channel), 0);
+					}
+				}
+				// the 16 bit samples are restored exactly
+				assertArrayEquals(wave.toByteArray(), source.toByteArray(16));
+				assertArrayEquals(wave.getCanonicalHeader(), source.getCanonicalHeader(16));
+			}
+		}
+	}
+
+	@Test
+	public void testLosslessFiles() throws Exception {
+		File wav = new File(basePath, "naim-jazz/naim-test-1-wav-16-44100.wav");
+		File flac = new File(basePath, "naim-jazz/naim-test-1-flac-16-44100.flac");
+		PcmSource expected = PcmSource.open(wav), actual = PcmSource.open(flac);
+		assertEquals(expected.getFrameLength(), actual.getFrameLength());
+		assertEquals(expected.getSamples(), actual.getSamples());
+	}
+
+	@Test
+	public void testSampleFormats() throws Exception {
+		Random random = new Random(42);
+		int frames = 10000;
+		for (AudioFormat format : new AudioFormat[] { new AudioFormat(22050F, 8, 1, false, false), new AudioFormat(22050F, 8, 2, true, false),
+				new AudioFormat(44100F, 16, 2, true, true), new AudioFormat(48000F, 24, 2, true, false), new AudioFormat(48000F, 24, 1, true, true),
+				new AudioFormat(96000F, 32, 2, true, false) }) {
+			byte[] bytes = new byte[frames * format.getFrameSize()];
+			random.nextBytes(bytes);
+			// a stream of unknown length is decoded into a growing buffer
+			for (long length : new long[] { frames, AudioSystem.NOT_SPECIFIED }) {
+				PcmSource source = PcmSource.decode(new AudioInputStream(new ByteArrayInputStream(bytes), format, length));
+				assertEquals(frames, source.getFrameLength());
+				assertEquals(format.getChannels(), source.getChannels());
+				FloatBuffer samples = source.getSamples();
+				while (samples.hasRemaining()) {
+					float sample = samples.get();
+					assertTrue(format + ": " + sample, sample >= -1 && sample < 1);
+				}
+			}
+			if (format.getEncoding() == AudioFormat.Encoding.PCM_SIGNED && !format.isBigEndian() && format.getSampleSizeInBits() <= 24) {
+				PcmSource source = PcmSource.decode(new AudioInputStream(new ByteArrayInputStream(bytes), format, frames));
+				assertArrayEquals(bytes, source.toByteArray(format.getSampleSizeInBits()));
+			}
+		}
+	}
+
+	@Test
+	public void testMappedFloatWave() throws Exception {
+		FileUtils.forceMkdir(outputPath);
+		AudioFormat format = new AudioFormat(AudioFormat.Encoding.PCM_FLOAT, 48000F, 32, 2, 8, 48000F, false);
+		ByteBuffer data = ByteBuffer.allocate(4800 * 8).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < 4800; i++) data.putFloat((float) Math.sin(i / 10.0)).putFloat(0.25F);
+		File file = new File(outputPath, "float.wav");
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			byte[] header = StreamingAudioFileWriter.createWaveHeader(format, data.capacity());
+			header[20] = 3; // WAVE_FORMAT_IEEE_FLOAT
+			out.write(header);
+			out.write(data.array());
+		}
+		PcmSource source = PcmSource.open(file);
+		assertTrue(source.isMapped());
+		assertEquals(4800, source.getFrameLength());
+		assertEquals((float) Math.sin(100 / 10.0), source.getSample(100, 0), 0);
+		assertEquals(0.25F, source.getSample(100, 1), 0);
+	}
+
+	@Test
+	public void testWrap() throws Exception {
+		FloatBuffer samples = FloatBuffer.wrap(new float[] { 99, 0.5F, -0.5F, 1.5F, -1.5F, 0 });
+		samples.position(1);
+		PcmSource source = PcmSource.wrap(samples, 8000F, 1);
+		assertEquals(5, source.getFrameLength());
+		assertEquals(0.5F, source.getSample(0, 0), 0);
+
+		// out of range samples are clipped
+		ByteBuffer pcm = ByteBuffer.wrap(source.toByteArray(16)).order(ByteOrder.LITTLE_ENDIAN);
+		assertEquals(16384, pcm.getShort());
+		assertEquals(-16384, pcm.getShort());
+		assertEquals(Short.MAX_VALUE, pcm.getShort());
+		assertEquals(Short.MIN_VALUE, pcm.getShort());
+		assertEquals(0, pcm.getShort());
+
+		AudioInputStream stream = source.getAudioInputStream(24);
+		assertEquals(24, stream.getFormat().getSampleSizeInBits());
+		assertEquals(5, stream.getFrameLength());
+		assertEquals(15, stream.read(new byte[100]));
+	}
+
+	@Test
+	public void testTemporaryWaveFile() throws Exception {
+		PcmSource source = PcmSource.open(new File(basePath, "naim-jazz/naim-test-1-wav-16-44100.wav"));
+		File file = source.writeTemporaryWaveFile();
+		try {
+			assertArrayEquals(source.toByteArray(16), PcmSource.open(file).toByteArray(16));
+		} finally {
+			assertTrue(file.delete());
+		}
+	}
+
+	/**
+	 * A service that only reads URIs fingerprints decoded audio through the default method.
+	 */
+	@Test
+	public void testDefaultFingerprint() throws Exception {
+		File file = new File(basePath, "naim-jazz/naim-test-1-wav-16-44100.wav");
+		FingerprintService service = new FingerprintService() {
+
+			@Override
+			public byte[] calculateFingerprint(URI audioUri) throws Exception {
+				return PcmSource.open(audioUri).toByteArray(16);
+			}
+
+			@Override
+			public FingerprintComparison compareFingerprints(byte[] a, byte[] b) throws Exception {
+				throw new UnsupportedOperationException();
+			}
+
+		};
+		assertArrayEquals(service.calculateFingerprint(file.toURI()), service.calculateFingerprint(PcmSource.open(file)));
+	}
+
+}
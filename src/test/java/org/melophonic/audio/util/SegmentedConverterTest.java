@@ -0,0 +1,150 @@
+package org.melophonic.audio.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioFormat.Encoding;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class SegmentedConverterTest {
+
+	final static File outputPath = new File("./target/segmented");
+	final static File source = new File(outputPath, "source.wav");
+
+	static ForkJoinPool pool;
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		FileUtils.forceMkdir(outputPath);
+		// ten seconds of noise over a sine, so that resampling has something to filter
+		AudioFormat format = new AudioFormat(48000F, 16, 2, true, false);
+		int frames = 480001;
+		byte[] pcm = new byte[frames * format.getFrameSize()];
+		Random random = new Random(0);
+		for (int i = 0; i < frames; i++) {
+			short sample = (short) (8000 * Math.sin(2 * Math.PI * 440 * i / 48000.0) + random.nextInt(2000) - 1000);
+			for (int c = 0; c < 2; c++) {
+				pcm[4 * i + 2 * c] = (byte) sample;
+				pcm[4 * i + 2 * c + 1] = (byte) (sample >> 8);
+			}
+		}
+		AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(pcm), format, frames), AudioFileFormat.Type.WAVE, source);
+		pool = new ForkJoinPool(4);
+	}
+
+	@AfterClass
+	public static void tearDown() {
+		pool.shutdown();
+	}
+
+	@Test
+	public void testChannelsAndSampleSize() throws Exception {
+		AudioConverter.Parameters params = new AudioConverter.Parameters(Encoding.PCM_SIGNED, AudioFileFormat.Type.WAVE, 48000F, 24);
+		params.setChannels(1);
+		assertSameAsSequential(params, "mono24");
+	}
+
+	@Test
+	public void testResample() throws Exception {
+		AudioConverter.Parameters params = new AudioConverter.Parameters(Encoding.PCM_SIGNED, AudioFileFormat.Type.WAVE, 44100F, 16);
+		assertSameAsSequential(params, "resampled");
+		params.setChannels(1);
+		params.setSampleSizeInBits(8);
+		assertSameAsSequential(params, "resampled8");
+	}
+
+	@Test
+	public void testUnsegmentable() throws Exception {
+		try (MappedWaveFile wave = MappedWaveFile.open(source)) {
+			assertNull(SegmentedConverter.create(wave, new AudioConverter.Parameters(Encoding.PCM_SIGNED, AudioFileFormat.Type.AIFF, 48000F, 16)));
+		}
+		// falls back to a sequential conversion
+		File target = new File(outputPath, "segmented.aiff");
+		SegmentedConverter.convert(source, target, new AudioConverter.Parameters(Encoding.PCM_SIGNED, AudioFileFormat.Type.AIFF, 48000F, 16), pool);
+		assertEquals(AudioFileFormat.Type.AIFF, AudioSystem.getAudioFileFormat(target).getType());
+	}
+
+	/**
+	 * Above the RIFF limit, here lowered to any length, the output is RF64
+	 * with the same data as the sequential conversion.
+	 */
+	@Test
+	public void testRf64() throws Exception {
+		AudioConverter.Parameters params = new AudioConverter.Parameters(Encoding.PCM_SIGNED, AudioFileFormat.Type.WAVE, 44100F, 16);
+		File expected = new File(outputPath, "rf64-sequential.wav");
+		File actual = new File(outputPath, "rf64-segmented.wav");
+		AudioConverter.convert(source, expected, params);
+		try (MappedWaveFile wave = MappedWaveFile.open(source)) {
+			SegmentedConverter converter = SegmentedConverter.create(wave, params);
+			converter.maxRiffDataLength = 0;
+			long dataLength = converter.frameLength * converter.targetFormat.getFrameSize();
+			assertEquals(StreamingAudioFileWriter.RF64_HEADER_LENGTH + dataLength + (dataLength & 1), converter.write(actual, 4, pool));
+		}
+		assertEquals("RF64", new String(Files.readAllBytes(actual.toPath()), 0, 4, "US-ASCII"));
+		try (MappedWaveFile sequential = MappedWaveFile.open(expected); MappedWaveFile segmented = MappedWaveFile.open(actual)) {
+			assertEquals(StreamingAudioFileWriter.RF64_HEADER_LENGTH, segmented.getDataOffset());
+			assertTrue(sequential.getFormat().matches(segmented.getFormat()));
+			assertArrayEquals(sequential.toByteArray(), segmented.toByteArray());
+		}
+	}
+
+	/**
+	 * An input beyond 4 GB is split into segments that each map at most
+	 * MAX_SEGMENT_LENGTH bytes, and the last one reads the end of the file.
+	 */
+	@Test
+	public void testLargeInput() throws Exception {
+		File large = new File(outputPath, "large.wav");
+		AudioFormat format = new AudioFormat(48000F, 16, 2, true, false);
+		// a sparse streaming file with 5 GB of data, whose last frame is set
+		long frameLength = 5L << 28;
+		try (RandomAccessFile out = new RandomAccessFile(large, "rw")) {
+			out.write(StreamingAudioFileWriter.createWaveHeader(format, StreamingAudioFileWriter.UNKNOWN_LENGTH));
+			out.setLength(44 + frameLength * 4);
+			out.seek(44 + (frameLength - 1) * 4);
+			out.write(new byte[] { 1, 2, 3, 4 });
+		}
+		File target = new File(outputPath, "large-tail.wav");
+		try (MappedWaveFile wave = MappedWaveFile.open(large);
+				FileChannel input = FileChannel.open(large.toPath(), StandardOpenOption.READ);
+				FileChannel output = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+			SegmentedConverter converter = SegmentedConverter.create(wave, new AudioConverter.Parameters(Encoding.PCM_SIGNED, AudioFileFormat.Type.WAVE, 48000F, 16));
+			assertEquals(frameLength, converter.frameLength);
+			assertEquals(5, converter.getSegmentCount(1));
+			// the last two frames, written at the start of the output
+			converter.convertSegment(frameLength - 2, frameLength, input, output, -(frameLength - 2) * 4);
+		} finally {
+			large.delete();
+		}
+		assertArrayEquals(new byte[] { 0, 0, 0, 0, 1, 2, 3, 4 }, Files.readAllBytes(target.toPath()));
+	}
+
+	void assertSameAsSequential(AudioConverter.Parameters params, String name) throws Exception {
+		File expected = new File(outputPath, name + "-sequential.wav");
+		File actual = new File(outputPath, name + "-segmented.wav");
+		AudioConverter.convert(source, expected, params);
+		assertEquals(expected.length(), SegmentedConverter.convert(source, actual, params, pool));
+		assertArrayEquals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(actual.toPath()));
+	}
+
+}